@@ -0,0 +1,118 @@
+package com.bukkitbackup.bench;
+
+import com.bukkitbackup.full.engine.BackupEngine;
+import com.bukkitbackup.full.engine.FileSettings;
+import com.bukkitbackup.full.engine.FolderBackupSource;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Measures the backup engine on its own, without a server or the simulated
+ * main thread of TickImpactBenchmark. A world from WorldGenerator is backed up
+ * several times, and mutated between backups like a server would change it.
+ *
+ * Usage: EngineBenchmark [--dir path] [--world-mb 256] [--runs 5]
+ * [--modified 0.1] [--output engine.json] [--set key=value]...
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class EngineBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--set")) {
+                String[] pair = args[i + 1].split("=", 2);
+                overrides.put(pair[0], pair.length > 1 ? pair[1] : "");
+            } else {
+                options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+            }
+        }
+        File baseDir = new File(getOption(options, "dir", "target/engine-bench")).getAbsoluteFile();
+        int worldMegabytes = Integer.parseInt(getOption(options, "world-mb", "256"));
+        int runs = Integer.parseInt(getOption(options, "runs", "5"));
+        double modifiedFraction = Double.parseDouble(getOption(options, "modified", "0.1"));
+        File outputFile = new File(getOption(options, "output", "engine.json"));
+
+        // Set up the server folder and world.
+        FileUtils.deleteDirectory(baseDir);
+        File serverFolder = new File(baseDir, "server");
+        File dataFolder = new File(serverFolder, "plugins" + File.separator + "Backup");
+        FileUtils.checkFolderAndCreate(dataFolder);
+        WorldGenerator generator = new WorldGenerator(1);
+        generator.setSizeMegabytes(worldMegabytes);
+        generator.setModifiedFraction(modifiedFraction);
+        generator.generate(new File(serverFolder, "world"));
+
+        LogUtils.initLogUtils(Logger.getLogger("Bench"), "Backup", dataFolder);
+        LogUtils.finishInitLogUtils(false, false);
+        FileSettings strings = new FileSettings(null, "/resources/strings.yml", null);
+        FileSettings settings = new FileSettings(null, "/resources/config.yml", strings);
+        settings.set("backuppath", new File(baseDir, "backups").getPath());
+        settings.set("backupplugins", "false");
+        settings.set("maxbackups", String.valueOf(runs));
+        for (Map.Entry<String, String> entry : overrides.entrySet()) {
+            settings.set(entry.getKey(), entry.getValue());
+        }
+        FolderBackupSource source = new FolderBackupSource(serverFolder, new File(serverFolder, "."), null);
+
+        // Back up, then change the world, a number of times.
+        long[] runMillis = new long[runs];
+        for (int run = 0; run < runs; run++) {
+            if (run > 0) {
+                generator.mutate(new File(serverFolder, "world"));
+
+                // Backup names have a resolution of one second.
+                Thread.sleep(1000);
+            }
+            long startNanos = System.nanoTime();
+            BackupEngine engine = new BackupEngine(source, settings, strings);
+            engine.doBackup();
+            engine.deleteTempFolder();
+            runMillis[run] = (System.nanoTime() - startNanos) / 1000000L;
+            System.out.println("Run " + (run + 1) + ": " + runMillis[run] + "ms");
+        }
+        LogUtils.shutdown();
+
+        for (String line : BackupStats.getSummary()) {
+            System.out.println(line);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8");
+        try {
+            writer.write(String.format(Locale.ROOT, "{\n  \"worldMegabytes\": %d,\n  \"modifiedFraction\": %.3f,\n  \"config\": %s,\n  \"runMillis\": %s,\n  \"stats\": %s\n}\n",
+                    worldMegabytes, modifiedFraction, toJson(overrides), Arrays.toString(runMillis), BackupStats.toJson().trim().replace("\n", "\n  ")));
+        } finally {
+            writer.close();
+        }
+        System.out.println("Results written to " + outputFile.getPath());
+    }
+
+    private static String toJson(Map<String, String> map) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey().replace("\"", "\\\"")).append("\": \"").append(entry.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return json.append('}').toString();
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
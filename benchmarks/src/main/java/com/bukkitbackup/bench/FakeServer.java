@@ -0,0 +1,245 @@
+package com.bukkitbackup.bench;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.entity.Player;
+import org.bukkit.plugin.Plugin;
+import org.bukkit.plugin.PluginDescriptionFile;
+import org.bukkit.scheduler.BukkitScheduler;
+import org.bukkit.scheduler.BukkitTask;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Just enough of a Bukkit server to run the backup pipeline outside of a real
+ * one. Sync tasks are queued for the simulated main thread, and async tasks run
+ * on a thread pool, as they would with the real scheduler.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class FakeServer {
+
+    private final File worldContainer;
+    private final List<World> worlds = new ArrayList<World>();
+    private final ConcurrentLinkedQueue<Runnable> syncTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final ExecutorService asyncExecutor = Executors.newCachedThreadPool();
+    private final List<Future<?>> asyncTasks = new ArrayList<Future<?>>();
+    private final AtomicInteger taskIds = new AtomicInteger();
+    private final Logger logger = Logger.getLogger("Bench");
+    private final Server server;
+    private final Plugin plugin;
+    private final BukkitScheduler scheduler;
+
+    /**
+     * @param worldContainer The folder holding the world folders.
+     * @param worldNames The worlds in that folder.
+     * @param dataFolder The plugin's data folder.
+     */
+    public FakeServer(File worldContainer, List<String> worldNames, File dataFolder) {
+        this.worldContainer = worldContainer;
+        this.scheduler = (BukkitScheduler) proxy(BukkitScheduler.class, new SchedulerHandler());
+        this.server = (Server) proxy(Server.class, new ServerHandler());
+        this.plugin = (Plugin) proxy(Plugin.class, new PluginHandler(dataFolder));
+        for (String worldName : worldNames) {
+            worlds.add((World) proxy(World.class, new WorldHandler(worldName)));
+        }
+    }
+
+    public Server getServer() {
+        return server;
+    }
+
+    public Plugin getPlugin() {
+        return plugin;
+    }
+
+    /**
+     * Runs every sync task that is currently queued. Called by the simulated
+     * main thread once per tick.
+     */
+    public void runSyncTasks() {
+        Runnable task;
+        while ((task = syncTasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Checks whether any async task is still running.
+     *
+     * @return True if all async tasks have finished.
+     */
+    public synchronized boolean asyncTasksDone() {
+        for (Future<?> future : asyncTasks) {
+            if (!future.isDone()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        asyncExecutor.shutdownNow();
+    }
+
+    private synchronized BukkitTask runAsync(Runnable task) {
+        final Future<?> future = asyncExecutor.submit(task);
+        asyncTasks.add(future);
+        return newTask(future);
+    }
+
+    private BukkitTask newTask(final Future<?> future) {
+        final int taskId = taskIds.incrementAndGet();
+        return (BukkitTask) proxy(BukkitTask.class, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if (method.getName().equals("getTaskId")) {
+                    return taskId;
+                } else if (method.getName().equals("cancel") && future != null) {
+                    future.cancel(false);
+                }
+                return defaultFor(proxy, method, args);
+            }
+        });
+    }
+
+    private class SchedulerHandler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("runTaskAsynchronously")) {
+                return runAsync((Runnable) args[1]);
+            } else if (name.equals("runTask") || name.equals("scheduleSyncDelayedTask")) {
+                syncTasks.add((Runnable) args[1]);
+                return name.equals("runTask") ? newTask(null) : (Object) taskIds.incrementAndGet();
+            }
+            return defaultFor(proxy, method, args);
+        }
+    }
+
+    private class ServerHandler implements InvocationHandler {
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getWorldContainer")) {
+                return worldContainer;
+            } else if (name.equals("getWorlds")) {
+                return worlds;
+            } else if (name.equals("getWorld") && args[0] instanceof String) {
+                for (World world : worlds) {
+                    if (world.getName().equals(args[0])) {
+                        return world;
+                    }
+                }
+                return null;
+            } else if (name.equals("getOnlinePlayers")) {
+                return new Player[0];
+            } else if (name.equals("getScheduler")) {
+                return scheduler;
+            } else if (name.equals("getLogger")) {
+                return logger;
+            } else if (name.equals("getName")) {
+                return "Bench";
+            }
+            return defaultFor(proxy, method, args);
+        }
+    }
+
+    private class PluginHandler implements InvocationHandler {
+
+        private final File dataFolder;
+        private final PluginDescriptionFile description = new PluginDescriptionFile("Backup", "3.0", "com.bukkitbackup.full.BackupFull");
+
+        PluginHandler(File dataFolder) {
+            this.dataFolder = dataFolder;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getServer")) {
+                return server;
+            } else if (name.equals("getDescription")) {
+                return description;
+            } else if (name.equals("getDataFolder")) {
+                return dataFolder;
+            } else if (name.equals("getLogger")) {
+                return logger;
+            } else if (name.equals("getName")) {
+                return "Backup";
+            } else if (name.equals("isEnabled")) {
+                return true;
+            }
+            return defaultFor(proxy, method, args);
+        }
+    }
+
+    private class WorldHandler implements InvocationHandler {
+
+        private final String worldName;
+
+        WorldHandler(String worldName) {
+            this.worldName = worldName;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("getName")) {
+                return worldName;
+            } else if (name.equals("getSeed")) {
+                return (long) worldName.hashCode();
+            } else if (name.equals("getWorldFolder")) {
+                return new File(worldContainer, worldName);
+            }
+            return defaultFor(proxy, method, args);
+        }
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(FakeServer.class.getClassLoader(), new Class<?>[]{type}, handler);
+    }
+
+    /**
+     * The value returned for anything the fake server does not implement.
+     */
+    private static Object defaultFor(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("equals")) {
+            return proxy == args[0];
+        } else if (name.equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        } else if (name.equals("toString")) {
+            return "Fake" + proxy.getClass().getInterfaces()[0].getSimpleName();
+        }
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == double.class) {
+            return 0D;
+        } else if (type == float.class) {
+            return 0F;
+        } else if (type == short.class) {
+            return (short) 0;
+        } else if (type == byte.class) {
+            return (byte) 0;
+        } else if (type == char.class) {
+            return (char) 0;
+        }
+        return null;
+    }
+}
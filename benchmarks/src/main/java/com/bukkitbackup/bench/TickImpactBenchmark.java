@@ -0,0 +1,261 @@
+package com.bukkitbackup.bench;
+
+import com.bukkitbackup.full.BackupFull;
+import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.engine.BackupEngine;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.threading.BackupTask;
+import com.bukkitbackup.full.threading.PrepareBackup;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Measures how much a backup slows down the server's main thread. A simulated
+ * main thread runs a fixed amount of work every 50ms, like a server at 20 TPS,
+ * while the real PrepareBackup and BackupTask back up a world made by
+ * WorldGenerator.
+ * Tick times are reported before, during and after the backup.
+ *
+ * Usage: TickImpactBenchmark [--dir path] [--world-mb 256] [--worlds 1]
+ * [--before 10] [--after 10] [--tick-ms 10] [--alloc-kb 256]
+ * [--output tick-impact.json] [--set key=value]...
+ *
+ * Options given with --set are written to the plugin's config.yml, so
+ * different settings can be compared.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class TickImpactBenchmark {
+
+    private static final long TICK_NANOS = 50000000L;
+
+    // Simulated main thread workload.
+    private final int[] workArea = new int[1 << 18];
+    private final byte[][] retained = new byte[64][];
+    private int retainedIndex;
+    private long workIterations = 100000;
+    private int workSeed = 1;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        Map<String, String> overrides = new LinkedHashMap<String, String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (args[i].equals("--set")) {
+                String[] pair = args[i + 1].split("=", 2);
+                overrides.put(pair[0], pair.length > 1 ? pair[1] : "");
+            } else {
+                options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+            }
+        }
+        new TickImpactBenchmark().run(options, overrides);
+    }
+
+    private void run(Map<String, String> options, Map<String, String> overrides) throws Exception {
+        File baseDir = new File(getOption(options, "dir", "target/tick-bench")).getAbsoluteFile();
+        int worldMegabytes = Integer.parseInt(getOption(options, "world-mb", "256"));
+        int worldCount = Integer.parseInt(getOption(options, "worlds", "1"));
+        int beforeSeconds = Integer.parseInt(getOption(options, "before", "10"));
+        int afterSeconds = Integer.parseInt(getOption(options, "after", "10"));
+        double tickWorkMillis = Double.parseDouble(getOption(options, "tick-ms", "10"));
+        int allocKilobytes = Integer.parseInt(getOption(options, "alloc-kb", "256"));
+        File outputFile = new File(getOption(options, "output", "tick-impact.json"));
+
+        // Set up the server folder, worlds and plugin configuration.
+        FileUtils.deleteDirectory(baseDir);
+        File worldContainer = new File(baseDir, "server");
+        File dataFolder = new File(worldContainer, "plugins" + File.separator + "Backup");
+        FileUtils.checkFolderAndCreate(dataFolder);
+        List<String> worldNames = new ArrayList<String>();
+        for (int i = 0; i < worldCount; i++) {
+            String worldName = i == 0 ? "world" : "world" + i;
+            worldNames.add(worldName);
+            WorldGenerator generator = new WorldGenerator(i);
+            generator.setSizeMegabytes(worldMegabytes / worldCount);
+            generator.generate(new File(worldContainer, worldName));
+        }
+        writeConfig(new File(dataFolder, "config.yml"), new File(baseDir, "backups"), overrides);
+
+        // Start the plugin pieces, the same way BackupFull does.
+        FakeServer fakeServer = new FakeServer(worldContainer, worldNames, dataFolder);
+        LogUtils.initLogUtils(Logger.getLogger("Bench"), "Backup", dataFolder);
+        LogUtils.finishInitLogUtils(false, false);
+        Strings strings = new Strings(new File(dataFolder, "strings.yml"));
+        Settings settings = new Settings(new File(dataFolder, "config.yml"), strings);
+        BackupFull.backupTask = new BackupTask(fakeServer.getPlugin(), settings, strings);
+        PrepareBackup prepareBackup = new PrepareBackup(fakeServer.getPlugin(), settings, strings);
+        prepareBackup.isManualBackup = true;
+
+        // Calibrate the tick workload, then run the three phases.
+        Thread.currentThread().setName("Server thread");
+        calibrate(tickWorkMillis, allocKilobytes);
+        TickRecorder before = new TickRecorder("before");
+        TickRecorder during = new TickRecorder("during");
+        TickRecorder after = new TickRecorder("after");
+
+        System.out.println("Running " + beforeSeconds + "s before the backup...");
+        runTicks(fakeServer, before, beforeSeconds * 20, allocKilobytes, false);
+
+        System.out.println("Running backup of " + worldMegabytes + "MB in " + worldCount + " world(s)...");
+        fakeServer.getServer().getScheduler().runTask(fakeServer.getPlugin(), prepareBackup);
+        runTicks(fakeServer, during, Integer.MAX_VALUE, allocKilobytes, true);
+
+        System.out.println("Running " + afterSeconds + "s after the backup...");
+        runTicks(fakeServer, after, afterSeconds * 20, allocKilobytes, false);
+
+        fakeServer.shutdown();
+        LogUtils.shutdown();
+
+        // Report.
+        System.out.println();
+        System.out.println("Tick times in milliseconds (simulated work " + tickWorkMillis + "ms, " + allocKilobytes + "KB allocated per tick):");
+        System.out.println(before.toSummary());
+        System.out.println(during.toSummary());
+        System.out.println(after.toSummary());
+        for (String line : BackupStats.getSummary()) {
+            System.out.println(line);
+        }
+        writeResults(outputFile, options, overrides, new TickRecorder[]{before, during, after});
+        System.out.println("Results written to " + outputFile.getPath());
+    }
+
+    /**
+     * Runs ticks at 20 per second, as the server's main thread would.
+     *
+     * @param fakeServer The server, for running sync tasks.
+     * @param recorder Where to record tick times.
+     * @param maxTicks How many ticks to run.
+     * @param untilBackupDone Stop once the backup has finished instead.
+     */
+    private void runTicks(FakeServer fakeServer, TickRecorder recorder, int maxTicks, int allocKilobytes, boolean untilBackupDone) throws InterruptedException {
+        recorder.start();
+        long nextTick = System.nanoTime();
+        for (int tick = 0; tick < maxTicks; tick++) {
+            long tickStart = System.nanoTime();
+            fakeServer.runSyncTasks();
+            doTickWork(allocKilobytes);
+            recorder.record(System.nanoTime() - tickStart);
+
+            // Stop once the backup has started and finished.
+            if (untilBackupDone && tick > 1 && !BackupEngine.backupInProgress.get() && fakeServer.asyncTasksDone()) {
+                fakeServer.runSyncTasks();
+                break;
+            }
+
+            // Wait for the next tick, without trying to catch up.
+            nextTick += TICK_NANOS;
+            long sleepNanos = nextTick - System.nanoTime();
+            if (sleepNanos > 0) {
+                Thread.sleep(sleepNanos / 1000000L, (int) (sleepNanos % 1000000L));
+            } else {
+                nextTick = System.nanoTime();
+            }
+        }
+        recorder.finish();
+    }
+
+    /**
+     * One tick of simulated work: random memory access over a working set, and
+     * some short-lived and some retained allocation.
+     */
+    private void doTickWork(int allocKilobytes) {
+        int seed = workSeed;
+        int mask = workArea.length - 1;
+        for (long i = 0; i < workIterations; i++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            workArea[seed & mask] += seed;
+        }
+        workSeed = seed;
+        for (int kb = 0; kb < allocKilobytes; kb += 4) {
+            byte[] chunk = new byte[4096];
+            chunk[seed & 4095] = (byte) kb;
+            if ((kb & 63) == 0) {
+                retained[retainedIndex++ & (retained.length - 1)] = chunk;
+            }
+        }
+    }
+
+    /**
+     * Finds how many work iterations take the requested time on an idle system.
+     */
+    private void calibrate(double tickWorkMillis, int allocKilobytes) {
+        for (int round = 0; round < 20; round++) {
+            long start = System.nanoTime();
+            doTickWork(allocKilobytes);
+            double tookMillis = (System.nanoTime() - start) / 1000000D;
+            if (tookMillis > 0) {
+                workIterations = Math.max(1000, (long) (workIterations * (tickWorkMillis / tookMillis)));
+            }
+        }
+    }
+
+    private void writeConfig(File configFile, File backupFolder, Map<String, String> overrides) throws IOException {
+        Map<String, String> config = new LinkedHashMap<String, String>();
+        config.put("backuppath", "'" + backupFolder.getPath() + "'");
+        config.put("backupworlds", "true");
+        config.put("backupplugins", "false");
+        config.put("zipbackup", "true");
+        config.put("splitbackup", "false");
+        config.put("usetemp", "true");
+        config.put("maxbackups", "5");
+        config.put("enableautosave", "true");
+        config.put("version", "3.0");
+        config.putAll(overrides);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(configFile), "UTF-8");
+        try {
+            for (Map.Entry<String, String> entry : config.entrySet()) {
+                writer.write(entry.getKey() + ": " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void writeResults(File outputFile, Map<String, String> options, Map<String, String> overrides, TickRecorder[] recorders) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"options\": ").append(toJson(options));
+        json.append(",\n  \"config\": ").append(toJson(overrides));
+        json.append(",\n  \"phases\": [");
+        for (int i = 0; i < recorders.length; i++) {
+            json.append(i == 0 ? "\n    " : ",\n    ").append(recorders[i].toJson());
+        }
+        json.append("\n  ],\n  \"stats\": ").append(BackupStats.toJson().trim().replace("\n", "\n  "));
+        json.append("\n}\n");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8");
+        try {
+            writer.write(json.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String toJson(Map<String, String> map) {
+        StringBuilder json = new StringBuilder("{");
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append('"').append(entry.getKey().replace("\"", "\\\"")).append("\": \"").append(entry.getValue().replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+        }
+        return json.append('}').toString();
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
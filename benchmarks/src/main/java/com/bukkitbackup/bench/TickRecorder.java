@@ -0,0 +1,116 @@
+package com.bukkitbackup.bench;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Collects tick durations for one phase of the benchmark, and reports their
+ * percentiles.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class TickRecorder {
+
+    private static final long TICK_NANOS = 50000000L;
+    private final String phase;
+    private long[] tickNanos = new long[1024];
+    private int ticks;
+    private long startNanos;
+    private long endNanos;
+
+    public TickRecorder(String phase) {
+        this.phase = phase;
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    public void finish() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * Records how long one tick took.
+     *
+     * @param nanos The tick duration.
+     */
+    public void record(long nanos) {
+        if (ticks == tickNanos.length) {
+            tickNanos = Arrays.copyOf(tickNanos, ticks * 2);
+        }
+        tickNanos[ticks++] = nanos;
+    }
+
+    public String getPhase() {
+        return phase;
+    }
+
+    public int getTicks() {
+        return ticks;
+    }
+
+    /**
+     * Gets a percentile of the tick durations.
+     *
+     * @param percentile The percentile, from 0 to 100.
+     * @return The duration in milliseconds.
+     */
+    public double getPercentile(double percentile) {
+        if (ticks == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(tickNanos, ticks);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100D * ticks) - 1;
+        return sorted[Math.max(0, Math.min(ticks - 1, index))] / 1000000D;
+    }
+
+    public double getMean() {
+        if (ticks == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < ticks; i++) {
+            sum += tickNanos[i];
+        }
+        return sum / (double) ticks / 1000000D;
+    }
+
+    /**
+     * @return The number of ticks that took longer than 50ms.
+     */
+    public int getOverruns() {
+        int overruns = 0;
+        for (int i = 0; i < ticks; i++) {
+            if (tickNanos[i] > TICK_NANOS) {
+                overruns++;
+            }
+        }
+        return overruns;
+    }
+
+    /**
+     * @return The ticks per second actually achieved.
+     */
+    public double getTps() {
+        long elapsed = endNanos - startNanos;
+        return elapsed <= 0 ? 0 : ticks * 1000000000D / elapsed;
+    }
+
+    public double getSeconds() {
+        return (endNanos - startNanos) / 1000000000D;
+    }
+
+    public String toSummary() {
+        return String.format(Locale.ROOT, "%-7s %6d ticks %6.1fs  TPS %5.2f  mean %6.2f  p50 %6.2f  p95 %6.2f  p99 %6.2f  max %7.2f  >50ms %d",
+                phase, ticks, getSeconds(), getTps(), getMean(), getPercentile(50), getPercentile(95), getPercentile(99), getPercentile(100), getOverruns());
+    }
+
+    public String toJson() {
+        return String.format(Locale.ROOT, "{\"phase\": \"%s\", \"ticks\": %d, \"seconds\": %.3f, \"tps\": %.3f, \"meanMs\": %.3f, \"p50Ms\": %.3f, \"p95Ms\": %.3f, \"p99Ms\": %.3f, \"p999Ms\": %.3f, \"maxMs\": %.3f, \"overruns\": %d}",
+                phase, ticks, getSeconds(), getTps(), getMean(), getPercentile(50), getPercentile(95), getPercentile(99), getPercentile(99.9), getPercentile(100), getOverruns());
+    }
+}
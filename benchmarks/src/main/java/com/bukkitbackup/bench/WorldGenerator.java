@@ -0,0 +1,643 @@
+package com.bukkitbackup.bench;
+
+import com.bukkitbackup.full.utils.FileUtils;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Generates world folders shaped like real ones, for benchmarks and tests:
+ * level.dat, session.lock, region files in the Anvil format with valid headers,
+ * sparse sectors and zlib compressed NBT chunks, playerdata, data/ and the
+ * nether and end dimension folders.
+ *
+ * A world can also be mutated to simulate 15 minutes of play. Some of the
+ * files are rewritten the way the server would: chunks are updated in place
+ * or moved to the end of their region file, new chunks are explored, and
+ * level.dat and player files are saved again.
+ *
+ * Usage: WorldGenerator generate|mutate folder [--seed 1] [--size-mb 64]
+ * [--fill 0.5] [--players 20] [--data-files 4] [--dimensions true]
+ * [--modified 0.1]
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class WorldGenerator {
+
+    private static final int SECTOR_BYTES = 4096;
+    private static final int CHUNKS_PER_REGION = 1024;
+    private static final int HEADER_BYTES = SECTOR_BYTES * 2;
+    private static final long TICKS_PER_MUTATION = 18000;
+    private static final String[] DIMENSION_FOLDERS = {"region", "DIM-1" + File.separator + "region", "DIM1" + File.separator + "region"};
+
+    // NBT tag types.
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+
+    // Common block ids, weighted towards stone and air.
+    private static final byte[] BLOCKS = {0, 0, 0, 1, 1, 1, 1, 3, 3, 2, 13, 12, 9, 7, 4, 17};
+    private final Random random;
+    private int sizeMegabytes = 64;
+    private double chunkFill = 0.5;
+    private int playerFiles = 20;
+    private int dataFiles = 4;
+    private boolean dimensions = true;
+    private double modifiedFraction = 0.1;
+
+    public WorldGenerator(long seed) {
+        this.random = new Random(seed);
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || !(args[0].equals("generate") || args[0].equals("mutate"))) {
+            System.err.println("Usage: WorldGenerator generate|mutate folder [--seed 1] [--size-mb 64] [--fill 0.5] [--players 20] [--data-files 4] [--dimensions true] [--modified 0.1]");
+            System.exit(2);
+        }
+        Map<String, String> options = new LinkedHashMap<String, String>();
+        for (int i = 2; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        WorldGenerator generator = new WorldGenerator(Long.parseLong(getOption(options, "seed", "1")));
+        generator.setSizeMegabytes(Integer.parseInt(getOption(options, "size-mb", "64")));
+        generator.setChunkFill(Double.parseDouble(getOption(options, "fill", "0.5")));
+        generator.setPlayerFiles(Integer.parseInt(getOption(options, "players", "20")));
+        generator.setDataFiles(Integer.parseInt(getOption(options, "data-files", "4")));
+        generator.setDimensions(Boolean.parseBoolean(getOption(options, "dimensions", "true")));
+        generator.setModifiedFraction(Double.parseDouble(getOption(options, "modified", "0.1")));
+
+        File worldFolder = new File(args[1]);
+        if (args[0].equals("generate")) {
+            generator.generate(worldFolder);
+            System.out.println("Generated " + worldFolder + ": " + FileUtils.getTotalFolderSize(worldFolder) + " bytes.");
+        } else {
+            List<File> modified = generator.mutate(worldFolder);
+            System.out.println("Mutated " + worldFolder + ": " + modified.size() + " files modified.");
+        }
+    }
+
+    /**
+     * @param sizeMegabytes Roughly how large the region files should be in
+     * total, over all dimensions.
+     */
+    public void setSizeMegabytes(int sizeMegabytes) {
+        this.sizeMegabytes = sizeMegabytes;
+    }
+
+    /**
+     * @param chunkFill The fraction of chunks present in each region file.
+     */
+    public void setChunkFill(double chunkFill) {
+        this.chunkFill = chunkFill;
+    }
+
+    /**
+     * @param playerFiles How many files to create in playerdata.
+     */
+    public void setPlayerFiles(int playerFiles) {
+        this.playerFiles = playerFiles;
+    }
+
+    /**
+     * @param dataFiles How many files to create in data.
+     */
+    public void setDataFiles(int dataFiles) {
+        this.dataFiles = dataFiles;
+    }
+
+    /**
+     * @param dimensions Whether to create the nether and end folders.
+     */
+    public void setDimensions(boolean dimensions) {
+        this.dimensions = dimensions;
+    }
+
+    /**
+     * @param modifiedFraction The fraction of region, player and data files
+     * that a mutation modifies.
+     */
+    public void setModifiedFraction(double modifiedFraction) {
+        this.modifiedFraction = modifiedFraction;
+    }
+
+    /**
+     * Generates a world.
+     *
+     * @param worldFolder The folder to create the world in.
+     * @throws IOException If the world could not be written.
+     */
+    public void generate(File worldFolder) throws IOException {
+        FileUtils.checkFolderAndCreate(worldFolder);
+        long now = System.currentTimeMillis();
+        long worldTime = 200000 + random.nextInt(2000000);
+        writeGzip(new File(worldFolder, "level.dat"), createLevel(worldFolder.getName(), worldTime, now));
+        writeSessionLock(worldFolder, now);
+
+        // The nether and end each get a tenth of the size.
+        long totalBytes = sizeMegabytes * FileUtils.ONE_MB;
+        long dimensionBytes = dimensions ? totalBytes / 10 : 0;
+        writeRegions(new File(worldFolder, DIMENSION_FOLDERS[0]), totalBytes - dimensionBytes * 2, worldTime);
+        if (dimensions) {
+            writeRegions(new File(worldFolder, DIMENSION_FOLDERS[1]), dimensionBytes, worldTime);
+            writeRegions(new File(worldFolder, DIMENSION_FOLDERS[2]), dimensionBytes, worldTime);
+        }
+
+        File playerFolder = new File(worldFolder, "playerdata");
+        FileUtils.checkFolderAndCreate(playerFolder);
+        for (int i = 0; i < playerFiles; i++) {
+            UUID uuid = new UUID(random.nextLong(), random.nextLong());
+            writeGzip(new File(playerFolder, uuid + ".dat"), createPlayer());
+        }
+
+        File dataFolder = new File(worldFolder, "data");
+        FileUtils.checkFolderAndCreate(dataFolder);
+        for (int i = 0; i < dataFiles; i++) {
+            writeGzip(new File(dataFolder, i == 0 ? "villages.dat" : "map_" + (i - 1) + ".dat"), createData());
+        }
+    }
+
+    /**
+     * Changes a world the way about 15 minutes of play would.
+     *
+     * @param worldFolder The world to change.
+     * @return The files that were modified or created.
+     * @throws IOException If the world could not be changed.
+     */
+    public List<File> mutate(File worldFolder) throws IOException {
+        List<File> modified = new ArrayList<File>();
+
+        // The server saves these every time.
+        File levelFile = new File(worldFolder, "level.dat");
+        byte[] level = readGzip(levelFile);
+        addToLong(level, "Time", TICKS_PER_MUTATION);
+        setLong(level, "LastPlayed", System.currentTimeMillis());
+        int timeOffset = findTag(level, TAG_LONG, "Time");
+        long worldTime = timeOffset >= 0 ? ByteBuffer.wrap(level).getLong(timeOffset) : 0;
+        writeGzip(levelFile, level);
+        modified.add(levelFile);
+        writeSessionLock(worldFolder, System.currentTimeMillis());
+        modified.add(new File(worldFolder, "session.lock"));
+
+        // Region files, always at least one in the overworld.
+        for (int i = 0; i < DIMENSION_FOLDERS.length; i++) {
+            File[] regionFiles = new File(worldFolder, DIMENSION_FOLDERS[i]).listFiles();
+            if (regionFiles == null || regionFiles.length == 0) {
+                continue;
+            }
+            List<File> chosen = choose(regionFiles, i == 0 ? 1 : 0);
+            for (File regionFile : chosen) {
+                mutateRegion(regionFile, worldTime);
+            }
+            modified.addAll(chosen);
+        }
+
+        // Player files, and sometimes a new player.
+        File playerFolder = new File(worldFolder, "playerdata");
+        File[] playerList = playerFolder.listFiles();
+        if (playerList != null) {
+            for (File playerFile : choose(playerList, 0)) {
+                writeGzip(playerFile, createPlayer());
+                modified.add(playerFile);
+            }
+            if (random.nextDouble() < modifiedFraction) {
+                File playerFile = new File(playerFolder, new UUID(random.nextLong(), random.nextLong()) + ".dat");
+                writeGzip(playerFile, createPlayer());
+                modified.add(playerFile);
+            }
+        }
+
+        File[] dataList = new File(worldFolder, "data").listFiles();
+        if (dataList != null) {
+            for (File dataFile : choose(dataList, 0)) {
+                writeGzip(dataFile, createData());
+                modified.add(dataFile);
+            }
+        }
+        return modified;
+    }
+
+    /**
+     * Chooses the modified fraction of some files.
+     */
+    private List<File> choose(File[] files, int minimum) {
+        List<File> shuffled = new ArrayList<File>();
+        Collections.addAll(shuffled, files);
+        Collections.shuffle(shuffled, random);
+        int count = (int) Math.round(files.length * modifiedFraction);
+        return shuffled.subList(0, Math.min(files.length, Math.max(minimum, count)));
+    }
+
+    /**
+     * Writes region files until they reach a total size.
+     */
+    private void writeRegions(File regionFolder, long targetBytes, long worldTime) throws IOException {
+        FileUtils.checkFolderAndCreate(regionFolder);
+        long written = 0;
+        for (int i = 0; written < targetBytes; i++) {
+            int regionX = (i % 8) - 4;
+            int regionZ = (i / 8) - 4;
+            written += writeRegion(new File(regionFolder, "r." + regionX + "." + regionZ + ".mca"), regionX, regionZ, worldTime);
+        }
+    }
+
+    /**
+     * Writes one region file. Each present chunk starts on a sector boundary,
+     * and an occasional free sector is left between chunks, as happens when
+     * the server moves a chunk that has grown.
+     *
+     * @return The size of the file.
+     */
+    private long writeRegion(File regionFile, int regionX, int regionZ, long worldTime) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream(4 * (int) FileUtils.ONE_MB);
+        body.write(new byte[HEADER_BYTES]);
+        int[] locations = new int[CHUNKS_PER_REGION];
+        int[] timestamps = new int[CHUNKS_PER_REGION];
+        int sector = 2;
+        int nowSeconds = (int) (System.currentTimeMillis() / 1000L);
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            if (random.nextDouble() >= chunkFill) {
+                continue;
+            }
+            byte[] chunk = deflate(createChunk(regionX * 32 + (i & 31), regionZ * 32 + (i >> 5), worldTime - random.nextInt(100000), random.nextInt(200000)));
+            int sectors = writeChunk(body, chunk);
+            locations[i] = sector << 8 | sectors;
+            timestamps[i] = nowSeconds - random.nextInt(86400);
+            sector += sectors;
+            if (random.nextInt(20) == 0) {
+                body.write(new byte[SECTOR_BYTES]);
+                sector++;
+            }
+        }
+
+        ByteBuffer file = ByteBuffer.wrap(body.toByteArray());
+        for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+            file.putInt(i * 4, locations[i]);
+            file.putInt(SECTOR_BYTES + i * 4, timestamps[i]);
+        }
+        FileOutputStream out = new FileOutputStream(regionFile);
+        try {
+            out.write(file.array());
+        } finally {
+            out.close();
+        }
+        return file.capacity();
+    }
+
+    /**
+     * Writes a chunk's length, compression type and data, padded to whole
+     * sectors.
+     *
+     * @return The number of sectors used.
+     */
+    private int writeChunk(OutputStream out, byte[] chunk) throws IOException {
+        int sectors = (chunk.length + 5 + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(chunk.length + 1);
+        data.writeByte(2);
+        data.write(chunk);
+        data.write(new byte[sectors * SECTOR_BYTES - chunk.length - 5]);
+        data.flush();
+        return sectors;
+    }
+
+    /**
+     * Updates some chunks of a region file and explores a few new ones.
+     */
+    private void mutateRegion(File regionFile, long worldTime) throws IOException {
+        String[] nameParts = regionFile.getName().split("\\.");
+        int regionX = Integer.parseInt(nameParts[1]);
+        int regionZ = Integer.parseInt(nameParts[2]);
+        RandomAccessFile raf = new RandomAccessFile(regionFile, "rw");
+        try {
+            byte[] headerBytes = new byte[HEADER_BYTES];
+            raf.readFully(headerBytes);
+            ByteBuffer header = ByteBuffer.wrap(headerBytes);
+            List<Integer> present = new ArrayList<Integer>();
+            List<Integer> absent = new ArrayList<Integer>();
+            for (int i = 0; i < CHUNKS_PER_REGION; i++) {
+                (header.getInt(i * 4) != 0 ? present : absent).add(i);
+            }
+            Collections.shuffle(present, random);
+            Collections.shuffle(absent, random);
+            int nowSeconds = (int) (System.currentTimeMillis() / 1000L);
+            long fileSectors = (raf.length() + SECTOR_BYTES - 1) / SECTOR_BYTES;
+
+            // Between 5% and 15% of the chunks are changed, and a quarter as
+            // many are new.
+            int changed = Math.min(present.size(), Math.max(1, (int) (present.size() * (0.05 + random.nextDouble() * 0.1))));
+            int explored = Math.min(absent.size(), Math.max(1, changed / 4));
+            for (int n = 0; n < changed + explored; n++) {
+                boolean isNew = n >= changed;
+                int index = isNew ? absent.get(n - changed) : present.get(n);
+                int location = header.getInt(index * 4);
+                byte[] chunk;
+                if (isNew) {
+                    chunk = createChunk(regionX * 32 + (index & 31), regionZ * 32 + (index >> 5), worldTime, random.nextInt((int) TICKS_PER_MUTATION));
+                } else {
+                    raf.seek((long) (location >> 8) * SECTOR_BYTES);
+                    byte[] compressed = new byte[raf.readInt() - 1];
+                    int compression = raf.readByte();
+                    raf.readFully(compressed);
+                    chunk = inflate(compressed, compression);
+                    addToLong(chunk, "LastUpdate", TICKS_PER_MUTATION);
+                    addToLong(chunk, "InhabitedTime", 1 + random.nextInt((int) TICKS_PER_MUTATION));
+                    changeBlocks(chunk);
+                }
+                byte[] compressed = deflate(chunk);
+                ByteArrayOutputStream sectorsOut = new ByteArrayOutputStream(compressed.length + SECTOR_BYTES);
+                int sectors = writeChunk(sectorsOut, compressed);
+
+                // Rewrite in place if it still fits, otherwise move to the end.
+                int sector = location >> 8;
+                if (isNew || sectors > (location & 0xFF)) {
+                    sector = (int) fileSectors;
+                    fileSectors += sectors;
+                }
+                raf.seek((long) sector * SECTOR_BYTES);
+                raf.write(sectorsOut.toByteArray());
+                header.putInt(index * 4, sector << 8 | sectors);
+                header.putInt(SECTOR_BYTES + index * 4, nowSeconds);
+            }
+            raf.seek(0);
+            raf.write(headerBytes);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Changes some blocks in the first section of a chunk.
+     */
+    private void changeBlocks(byte[] chunk) {
+        int offset = findTag(chunk, TAG_BYTE_ARRAY, "Blocks");
+        if (offset < 0) {
+            return;
+        }
+        int length = ByteBuffer.wrap(chunk).getInt(offset);
+        for (int i = 0; i < 64 && length > 0; i++) {
+            chunk[offset + 4 + random.nextInt(length)] = BLOCKS[random.nextInt(BLOCKS.length)];
+        }
+    }
+
+    private byte[] createChunk(int chunkX, int chunkZ, long lastUpdate, long inhabitedTime) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(65536);
+        DataOutputStream out = new DataOutputStream(bytes);
+        beginCompound(out, "");
+        beginCompound(out, "Level");
+        writeTag(out, TAG_INT, "xPos").writeInt(chunkX);
+        writeTag(out, TAG_INT, "zPos").writeInt(chunkZ);
+        writeTag(out, TAG_LONG, "LastUpdate").writeLong(lastUpdate);
+        writeTag(out, TAG_LONG, "InhabitedTime").writeLong(inhabitedTime);
+        writeTag(out, TAG_BYTE, "TerrainPopulated").writeByte(1);
+        writeTag(out, TAG_BYTE, "V").writeByte(1);
+        writeByteArray(out, "Biomes", runs(256, 4, 64));
+
+        // Sections from the bottom, with fewer blocks and more sky higher up.
+        int sectionCount = 2 + random.nextInt(4);
+        writeTag(out, TAG_LIST, "Sections").writeByte(TAG_COMPOUND);
+        out.writeInt(sectionCount);
+        for (int y = 0; y < sectionCount; y++) {
+            writeTag(out, TAG_BYTE, "Y").writeByte(y);
+            writeByteArray(out, "Blocks", blocks(4096, y * 0.2));
+            writeByteArray(out, "Data", runs(2048, 2, 32));
+            writeByteArray(out, "BlockLight", runs(2048, 1, 256));
+            writeByteArray(out, "SkyLight", y < 2 ? new byte[2048] : runs(2048, 16, 64));
+            out.writeByte(TAG_END);
+        }
+        out.writeByte(TAG_END);
+        out.writeByte(TAG_END);
+        return bytes.toByteArray();
+    }
+
+    private byte[] createLevel(String levelName, long worldTime, long lastPlayed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        beginCompound(out, "");
+        beginCompound(out, "Data");
+        writeTag(out, TAG_STRING, "LevelName").writeUTF(levelName);
+        writeTag(out, TAG_LONG, "RandomSeed").writeLong(random.nextLong());
+        writeTag(out, TAG_LONG, "Time").writeLong(worldTime);
+        writeTag(out, TAG_LONG, "DayTime").writeLong(worldTime % 24000);
+        writeTag(out, TAG_LONG, "LastPlayed").writeLong(lastPlayed);
+        writeTag(out, TAG_INT, "version").writeInt(19133);
+        writeTag(out, TAG_INT, "SpawnX").writeInt(random.nextInt(512) - 256);
+        writeTag(out, TAG_INT, "SpawnY").writeInt(64);
+        writeTag(out, TAG_INT, "SpawnZ").writeInt(random.nextInt(512) - 256);
+        out.writeByte(TAG_END);
+        out.writeByte(TAG_END);
+        return bytes.toByteArray();
+    }
+
+    private byte[] createPlayer() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        beginCompound(out, "");
+        writeTag(out, TAG_LIST, "Pos").writeByte(TAG_DOUBLE);
+        out.writeInt(3);
+        out.writeDouble(random.nextGaussian() * 500);
+        out.writeDouble(64 + random.nextInt(32));
+        out.writeDouble(random.nextGaussian() * 500);
+        writeTag(out, TAG_INT, "XpLevel").writeInt(random.nextInt(40));
+        writeTag(out, TAG_INT, "foodLevel").writeInt(random.nextInt(21));
+        writeTag(out, TAG_INT, "Dimension").writeInt(random.nextInt(8) == 0 ? -1 : 0);
+
+        // The inventory, as one blob of slots.
+        writeByteArray(out, "Inventory", runs(36 * 24, 8, 24));
+        writeByteArray(out, "EnderItems", runs(27 * 24, 8, 24));
+        out.writeByte(TAG_END);
+        return bytes.toByteArray();
+    }
+
+    private byte[] createData() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        beginCompound(out, "");
+        beginCompound(out, "data");
+        writeTag(out, TAG_INT, "Tick").writeInt(random.nextInt(1000000));
+        writeByteArray(out, "colors", runs(16384, 16, 128));
+        out.writeByte(TAG_END);
+        out.writeByte(TAG_END);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Block ids in runs, with some randomly placed ores.
+     *
+     * @param airChance How much of the section is air.
+     */
+    private byte[] blocks(int length, double airChance) {
+        byte[] blocks = new byte[length];
+        int i = 0;
+        while (i < length) {
+            byte block = random.nextDouble() < airChance ? 0 : BLOCKS[random.nextInt(BLOCKS.length)];
+            int start = i;
+            int end = Math.min(length, i + 1 + random.nextInt(24));
+            while (i < end) {
+                blocks[i++] = block;
+            }
+            if (block != 0 && random.nextInt(4) == 0) {
+                blocks[start + random.nextInt(end - start)] = (byte) (14 + random.nextInt(3));
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * Bytes in runs of the same value.
+     */
+    private byte[] runs(int length, int values, int maxRun) {
+        byte[] bytes = new byte[length];
+        int i = 0;
+        while (i < length) {
+            byte value = (byte) random.nextInt(values);
+            int end = Math.min(length, i + 1 + random.nextInt(maxRun));
+            while (i < end) {
+                bytes[i++] = value;
+            }
+        }
+        return bytes;
+    }
+
+    private static void beginCompound(DataOutputStream out, String name) throws IOException {
+        writeTag(out, TAG_COMPOUND, name);
+    }
+
+    private static DataOutputStream writeTag(DataOutputStream out, int type, String name) throws IOException {
+        out.writeByte(type);
+        out.writeUTF(name);
+        return out;
+    }
+
+    private static void writeByteArray(DataOutputStream out, String name, byte[] value) throws IOException {
+        writeTag(out, TAG_BYTE_ARRAY, name).writeInt(value.length);
+        out.write(value);
+    }
+
+    /**
+     * Finds a named tag in uncompressed NBT data.
+     *
+     * @return The offset of the tag's value, or -1 if not found.
+     */
+    private static int findTag(byte[] nbt, int type, String name) {
+        byte[] nameBytes = name.getBytes();
+        int patternLength = nameBytes.length + 3;
+        search:
+        for (int i = 0; i + patternLength <= nbt.length; i++) {
+            if (nbt[i] != type || nbt[i + 1] != (byte) (nameBytes.length >> 8) || nbt[i + 2] != (byte) nameBytes.length) {
+                continue;
+            }
+            for (int j = 0; j < nameBytes.length; j++) {
+                if (nbt[i + 3 + j] != nameBytes[j]) {
+                    continue search;
+                }
+            }
+            return i + patternLength;
+        }
+        return -1;
+    }
+
+    private static void addToLong(byte[] nbt, String name, long delta) {
+        int offset = findTag(nbt, TAG_LONG, name);
+        if (offset >= 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(nbt);
+            buffer.putLong(offset, buffer.getLong(offset) + delta);
+        }
+    }
+
+    private static void setLong(byte[] nbt, String name, long value) {
+        int offset = findTag(nbt, TAG_LONG, name);
+        if (offset >= 0) {
+            ByteBuffer.wrap(nbt).putLong(offset, value);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 2);
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes, deflater);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+            deflater.end();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decompresses a chunk stored with compression type 1 (gzip) or 2 (zlib).
+     */
+    private static byte[] inflate(byte[] data, int compression) throws IOException {
+        InputStream in = new ByteArrayInputStream(data);
+        return readAll(compression == 1 ? new GZIPInputStream(in) : new InflaterInputStream(in));
+    }
+
+    private static byte[] readGzip(File file) throws IOException {
+        return readAll(new GZIPInputStream(new FileInputStream(file)));
+    }
+
+    private static void writeGzip(File file, byte[] data) throws IOException {
+        GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(65536);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeSessionLock(File worldFolder, long now) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(worldFolder, "session.lock")));
+        try {
+            out.writeLong(now);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String getOption(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
@@ -0,0 +1,132 @@
+package com.bukkitbackup.bench.jmh;
+
+import com.bukkitbackup.bench.WorldGenerator;
+import com.bukkitbackup.full.utils.FileUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Generates the folder trees the file benchmarks run over. Each shape has
+ * about the same layout every time, and is kept under the temporary folder so
+ * later forks and runs can reuse it.
+ *
+ * Shapes:
+ * few-large - 4 files of 32MB, like the region files of a small world.
+ * mixed - 32 files of 2MB plus 2048 files of 8KB in 32 folders.
+ * many-tiny - 20000 files of 512 bytes in 200 folders, like playerdata.
+ * world - a 64MB world from WorldGenerator.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BenchTrees {
+
+    public static final String FEW_LARGE = "few-large";
+    public static final String MIXED = "mixed";
+    public static final String MANY_TINY = "many-tiny";
+    public static final String WORLD = "world";
+
+    private BenchTrees() {
+    }
+
+    /**
+     * Gets the tree for a shape, generating it if needed.
+     *
+     * @param shape One of the shape names.
+     * @return The root folder of the tree.
+     * @throws IOException If the tree could not be written.
+     */
+    public static File getTree(String shape) throws IOException {
+        File root = new File(getBaseFolder(), shape);
+        File marker = new File(root, ".complete");
+        if (marker.exists()) {
+            return root;
+        }
+        FileUtils.deleteDirectory(root);
+        Random random = new Random(shape.hashCode());
+        if (shape.equals(FEW_LARGE)) {
+            writeFiles(new File(root, "region"), 4, (int) (32 * FileUtils.ONE_MB), random);
+        } else if (shape.equals(MIXED)) {
+            writeFiles(new File(root, "region"), 32, (int) (2 * FileUtils.ONE_MB), random);
+            for (int i = 0; i < 32; i++) {
+                writeFiles(new File(root, "data" + File.separator + i), 64, 8192, random);
+            }
+        } else if (shape.equals(MANY_TINY)) {
+            for (int i = 0; i < 200; i++) {
+                writeFiles(new File(root, "players" + File.separator + i), 100, 512, random);
+            }
+        } else if (shape.equals(WORLD)) {
+            WorldGenerator generator = new WorldGenerator(1);
+            generator.setSizeMegabytes(64);
+            generator.generate(root);
+        } else {
+            throw new IllegalArgumentException("Unknown tree shape: " + shape);
+        }
+        marker.createNewFile();
+        return root;
+    }
+
+    /**
+     * @return The folder generated trees and scratch folders are kept in.
+     */
+    public static File getBaseFolder() {
+        return new File(System.getProperty("backup.bench.dir", System.getProperty("java.io.tmpdir") + File.separator + "backup-jmh"));
+    }
+
+    /**
+     * Creates an empty scratch folder for a benchmark to write into.
+     *
+     * @param name The name of the folder.
+     * @return The folder.
+     * @throws IOException If an old folder could not be removed.
+     */
+    public static File newScratchFolder(String name) throws IOException {
+        File scratch = new File(getBaseFolder(), "scratch" + File.separator + name);
+        FileUtils.deleteDirectory(scratch);
+        FileUtils.checkFolderAndCreate(scratch);
+        return scratch;
+    }
+
+    /**
+     * Finds the largest file in a tree.
+     *
+     * @param folder The folder to search.
+     * @return The largest file, or null if there are no files.
+     */
+    public static File findLargestFile(File folder) {
+        File largest = null;
+        File[] files = folder.listFiles();
+        for (File file : files) {
+            File candidate = file.isDirectory() ? findLargestFile(file) : file;
+            if (candidate != null && !candidate.getName().startsWith(".") && (largest == null || candidate.length() > largest.length())) {
+                largest = candidate;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Writes files whose data is half random and half zeros in every 4KB
+     * block, so they compress about as well as region files do.
+     */
+    private static void writeFiles(File folder, int count, int size, Random random) throws IOException {
+        FileUtils.checkFolderAndCreate(folder);
+        byte[] block = new byte[4096];
+        for (int i = 0; i < count; i++) {
+            FileOutputStream out = new FileOutputStream(new File(folder, "f" + i + ".dat"));
+            try {
+                for (int written = 0; written < size; written += block.length) {
+                    random.nextBytes(block);
+                    Arrays.fill(block, block.length / 2, block.length, (byte) 0);
+                    out.write(block, 0, Math.min(block.length, size - written));
+                }
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.bukkitbackup.bench.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Compares two JMH result files written with "-rf json", for example from two
+ * releases, and prints the change in every score. Exits with status 1 if any
+ * benchmark got slower by more than the threshold, so it can fail a build.
+ *
+ * Usage: CompareResults baseline.json current.json [threshold-percent]
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class CompareResults {
+
+    private static final Pattern RESULT = Pattern.compile(
+            "\"benchmark\"\\s*:\\s*\"([^\"]+)\"(.*?)\"primaryMetric\"\\s*:\\s*\\{\\s*\"score\"\\s*:\\s*([-0-9.eE]+|\"NaN\")\\s*,\\s*\"scoreError\"\\s*:\\s*([-0-9.eE]+|\"NaN\")\\s*,.*?\"scoreUnit\"\\s*:\\s*\"([^\"]+)\"",
+            Pattern.DOTALL);
+    private static final Pattern PARAMS = Pattern.compile("\"params\"\\s*:\\s*\\{([^}]*)\\}");
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompareResults baseline.json current.json [threshold-percent]");
+            System.exit(2);
+        }
+        Map<String, double[]> baseline = readResults(new File(args[0]));
+        Map<String, double[]> current = readResults(new File(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10D;
+
+        int regressions = 0;
+        for (Map.Entry<String, double[]> entry : current.entrySet()) {
+            double[] before = baseline.get(entry.getKey());
+            double[] after = entry.getValue();
+            if (before == null) {
+                System.out.println(String.format(Locale.ROOT, "%-70s %12s -> %12.3f  (new)", entry.getKey(), "", after[0]));
+                continue;
+            }
+            double change = before[0] == 0 ? 0 : (after[0] - before[0]) * 100D / before[0];
+
+            // Only count changes bigger than the error of both runs.
+            boolean significant = Math.abs(after[0] - before[0]) > before[1] + after[1];
+            String verdict = "";
+            if (significant && change > threshold) {
+                verdict = "  SLOWER";
+                regressions++;
+            } else if (significant && change < -threshold) {
+                verdict = "  faster";
+            }
+            System.out.println(String.format(Locale.ROOT, "%-70s %12.3f -> %12.3f  %+7.1f%%%s", entry.getKey(), before[0], after[0], change, verdict));
+        }
+        for (String name : baseline.keySet()) {
+            if (!current.containsKey(name)) {
+                System.out.println(String.format(Locale.ROOT, "%-70s  (missing)", name));
+            }
+        }
+        System.out.println(regressions + " regression(s) over " + threshold + "%.");
+        if (regressions > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the scores from a JMH JSON result file. All scores here are
+     * times, so a higher score is slower.
+     *
+     * @param resultFile The file to read.
+     * @return Score and error, by benchmark name and parameters.
+     */
+    private static Map<String, double[]> readResults(File resultFile) throws IOException {
+        String json = new String(Files.readAllBytes(resultFile.toPath()), Charset.forName("UTF-8"));
+        Map<String, double[]> results = new LinkedHashMap<String, double[]>();
+        Matcher matcher = RESULT.matcher(json);
+        while (matcher.find()) {
+            String name = matcher.group(1).replaceFirst("^.*\\.(\\w+\\.\\w+)$", "$1");
+            Matcher params = PARAMS.matcher(matcher.group(2));
+            if (params.find()) {
+                name += " [" + params.group(1).replaceAll("[\"\\s]", "").replace(":", "=") + "]";
+            }
+            name += " (" + matcher.group(5) + ")";
+            results.put(name, new double[]{parse(matcher.group(3)), parse(matcher.group(4))});
+        }
+        return results;
+    }
+
+    private static double parse(String value) {
+        return value.startsWith("\"") ? 0D : Double.parseDouble(value);
+    }
+}
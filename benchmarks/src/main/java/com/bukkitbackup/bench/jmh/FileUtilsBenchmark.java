@@ -0,0 +1,134 @@
+package com.bukkitbackup.bench.jmh;
+
+import com.bukkitbackup.full.utils.ArchiveOptions;
+import com.bukkitbackup.full.utils.FileUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Benchmarks the file operations a backup spends its time in, over trees from
+ * a few large files to many tiny ones (see BenchTrees). Each operation is
+ * timed once per iteration, and anything it leaves behind is cleaned up
+ * between iterations, outside of the measurement.
+ *
+ * The source trees are read from the page cache after the first iteration, so
+ * these measure the plugin's own overhead rather than the disk.
+ *
+ * Usage: java -jar target/benchmarks.jar -rf json -rff jmh-result.json
+ *
+ * @author Domenic Horner (gamerx)
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileUtilsBenchmark {
+
+    /**
+     * The generated tree to work on.
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+
+        @Param({BenchTrees.FEW_LARGE, BenchTrees.MIXED, BenchTrees.MANY_TINY, BenchTrees.WORLD})
+        public String shape;
+        public File source;
+        public File largestFile;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            source = BenchTrees.getTree(shape);
+            largestFile = BenchTrees.findLargestFile(source);
+        }
+    }
+
+    /**
+     * An empty folder to write into, emptied again after each iteration.
+     */
+    @State(Scope.Thread)
+    public static class Target {
+
+        public File folder;
+
+        @Setup(Level.Iteration)
+        public void setUp() throws IOException {
+            folder = BenchTrees.newScratchFolder("target");
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    /**
+     * A fresh copy of the tree, for benchmarks that delete it.
+     */
+    @State(Scope.Thread)
+    public static class Copy {
+
+        public File folder;
+
+        @Setup(Level.Iteration)
+        public void setUp(Tree tree) throws IOException {
+            folder = new File(BenchTrees.newScratchFolder("copy"), tree.shape);
+            FileUtils.copyDirectory(tree.source, folder, null, true);
+        }
+
+        @TearDown(Level.Iteration)
+        public void tearDown() throws IOException {
+            FileUtils.deleteDirectory(folder.getParentFile());
+        }
+    }
+
+    @Benchmark
+    public File copyDirectory(Tree tree, Target target) throws IOException {
+        File destination = new File(target.folder, tree.shape);
+        FileUtils.copyDirectory(tree.source, destination, null, true);
+        return destination;
+    }
+
+    @Benchmark
+    public File copyFile(Tree tree, Target target) throws IOException {
+        File destination = new File(target.folder, tree.largestFile.getName());
+        FileUtils.copyFile(tree.largestFile, destination, true);
+        return destination;
+    }
+
+    @Benchmark
+    public File zipDir(Tree tree, Target target) throws IOException {
+        File zipFile = new File(target.folder, tree.shape + ".zip");
+        FileUtils.zipDir(tree.source.getPath(), zipFile.getPath(), ArchiveOptions.ZIP);
+        return zipFile;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @Warmup(iterations = 3, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public long getTotalFolderSize(Tree tree) {
+        return FileUtils.getTotalFolderSize(tree.source);
+    }
+
+    @Benchmark
+    public boolean deleteDir(Copy copy) {
+        return FileUtils.deleteDir(copy.folder);
+    }
+}
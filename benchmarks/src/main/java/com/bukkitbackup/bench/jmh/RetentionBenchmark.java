@@ -0,0 +1,77 @@
+package com.bukkitbackup.bench.jmh;
+
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.RetentionUtils;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Benchmarks choosing which old backups to remove, as done at the end of every
+ * backup. The backup folder holds empty files with distinct modification
+ * times, listed in a shuffled order.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RetentionBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int backups;
+    @Param({"5", "50"})
+    public int backupLimit;
+    private File[] filesList;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        File folder = BenchTrees.newScratchFolder("retention-" + backups);
+        List<File> files = new ArrayList<File>(backups);
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < backups; i++) {
+            File backup = new File(folder, "backup-" + i + ".zip");
+            backup.createNewFile();
+            backup.setLastModified(now - i * 60000L);
+            files.add(backup);
+        }
+        Collections.shuffle(files, new Random(backups));
+        filesList = files.toArray(new File[files.size()]);
+    }
+
+    @Benchmark
+    public List<File> selectByCount() {
+        return RetentionUtils.selectByCount(filesList, backupLimit);
+    }
+
+    @Benchmark
+    public File selectOldest() {
+        return RetentionUtils.selectOldest(filesList);
+    }
+
+    @Benchmark
+    public File[] listFilesInDir() {
+        return FileUtils.listFilesInDir(filesList[0].getParentFile());
+    }
+}
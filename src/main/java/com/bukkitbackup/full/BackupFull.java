@@ -1,23 +1,34 @@
 package com.bukkitbackup.full;
 
+import com.bukkitbackup.full.archive.ArchiveEncryption;
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
 import com.bukkitbackup.full.config.UpdateChecker;
+import com.bukkitbackup.full.engine.BackupCatalog;
+import com.bukkitbackup.full.engine.BackupJournal;
+import com.bukkitbackup.full.engine.BackupReplicator;
+import com.bukkitbackup.full.engine.BackupRestore;
+import com.bukkitbackup.full.engine.BackupVerifier;
+import com.bukkitbackup.full.engine.ChunkRollback;
 import com.bukkitbackup.full.events.CommandHandler;
 import com.bukkitbackup.full.events.EventListener;
+import com.bukkitbackup.full.stats.StatsExporter;
 import com.bukkitbackup.full.threading.BackupScheduler;
 import com.bukkitbackup.full.threading.BackupTask;
 import com.bukkitbackup.full.threading.PrepareBackup;
+import com.bukkitbackup.full.threading.WorkerLauncher;
 import com.bukkitbackup.full.utils.FileUtils;
 import com.bukkitbackup.full.utils.LogUtils;
 import com.bukkitbackup.full.utils.MetricUtils;
 import java.io.File;
 import java.io.IOException;
+import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.bukkit.Server;
 import org.bukkit.plugin.PluginManager;
 import org.bukkit.plugin.java.JavaPlugin;
+import org.bukkit.scheduler.BukkitTask;
 
 /**
  * Backup - The simple server backup solution.
@@ -29,7 +40,7 @@ public class BackupFull extends JavaPlugin {
 
     // Public variables for class comms.
     private static PrepareBackup prepareBackup;
-    public static BackupTask backupTask;
+    public static volatile BackupTask backupTask;
     
     // Private variables for this class.
     private static Settings settings;
@@ -37,12 +48,26 @@ public class BackupFull extends JavaPlugin {
     private File thisDataFolder;
     private String clientUID;
 
+    // Currently scheduled automatic backups.
+    private String scheduledInterval;
+    private BukkitTask intervalBackupTask;
+    private BackupScheduler backupScheduler;
+
+    // Statistics file writer.
+    private int statsExportInterval;
+    private BukkitTask statsExportTask;
+
+    // Scheduled verification of old backups.
+    private static final long VERIFY_START_DELAY_TICKS = 5 * 1200L;
+    private int verifyInterval;
+    private BukkitTask verifyTask;
+
     @Override
     public void onLoad() {
 
         // Set Data Folder, Init log utils.
         thisDataFolder = this.getDataFolder();
-        LogUtils.initLogUtils(this);
+        LogUtils.initLogUtils(Logger.getLogger(getServer().getLogger().getName() + "." + getServer().getName()), getDescription().getName(), thisDataFolder);
         FileUtils.checkFolderAndCreate(thisDataFolder);
 
         // Setup Configuration Files.
@@ -55,7 +80,11 @@ public class BackupFull extends JavaPlugin {
         settings.checkSettingsVersion(this.getDescription().getVersion());
 
         // Complete loading log utils.
-        LogUtils.finishInitLogUtils(settings.getBooleanProperty("displaylog", true), settings.getBooleanProperty("debugenabled", false));
+        LogUtils.finishInitLogUtils(settings.getBooleanProperty("displaylog", true), settings.getBooleanProperty("debugmode", false));
+
+        // Apply restores and rollbacks that waited for their world to unload.
+        new BackupRestore(getServer().getWorldContainer()).applyPending();
+        ChunkRollback.applyPending(getServer().getWorldContainer());
 
 
     }
@@ -81,6 +110,16 @@ public class BackupFull extends JavaPlugin {
 
         // Setup backup tasks.
         backupTask = new BackupTask(this, settings, strings);
+
+        // Finish a backup that was interrupted when the server last stopped.
+        if (new BackupJournal(new File(settings.getStringProperty("backuppath", "backups"))).exists()) {
+            final BackupTask recoveryTask = backupTask;
+            pluginServer.getScheduler().runTaskAsynchronously(this, new Runnable() {
+                public void run() {
+                    recoveryTask.recoverInterrupted();
+                }
+            });
+        }
         
         // Create new "PrepareBackup" instance.
         prepareBackup = new PrepareBackup(this, settings, strings);
@@ -93,8 +132,44 @@ public class BackupFull extends JavaPlugin {
         EventListener eventListener = new EventListener(prepareBackup, this, settings, strings);
         pluginManager.registerEvents(eventListener, this);
 
+        // Schedule automatic backups.
+        scheduleBackups();
+
+        // Load the key that archives are encrypted with.
+        ArchiveEncryption.setKeyFile(settings.getStringProperty("encryptkeyfile", ""));
+
+        // Start writing statistics files.
+        scheduleStatsExport();
+
+        // Start verifying backups.
+        BackupVerifier.configure(settings.getIntProperty("verifythreads", 2), settings.getIntProperty("verifyratelimit", 8) * FileUtils.ONE_MB);
+        scheduleVerification();
+
+        // Start replicating backups, resuming any uploads that were interrupted.
+        if (BackupReplicator.configure(settings)) {
+            BackupReplicator.replicateNew(BackupCatalog.forFolder(new File(settings.getStringProperty("backuppath", "backups"))));
+        }
+
+        // If the update check is enabled.
+        if (settings.getBooleanProperty("enableversioncheck", true)) {
+
+            // Start the update checker in another thread.
+            pluginServer.getScheduler().runTaskAsynchronously(this, new UpdateChecker(this.getDescription(), strings, clientUID));
+        }
+
+        // Notify loading complete.
+        LogUtils.sendLog(this.getDescription().getFullName() + " enabled!");
+    }
+
+    /**
+     * Reads the backup interval from the settings, and schedules automatic
+     * backups accordingly.
+     */
+    private void scheduleBackups() {
+
         // Get the backup interval setting, and clean it.
         String backupInterval = settings.getStringProperty("backupinterval", "15M").trim().toLowerCase();
+        scheduledInterval = backupInterval;
 
         // Initalize default variables.
         int backupMinutes = 0; // Should contain interval, in minutes.
@@ -170,7 +245,7 @@ public class BackupFull extends JavaPlugin {
             int backupIntervalInTicks = (backupMinutes * 1200);
 
             // Schedule a repeating backup task.
-            pluginServer.getScheduler().runTaskTimerAsynchronously(this, prepareBackup, backupIntervalInTicks, backupIntervalInTicks);
+            intervalBackupTask = getServer().getScheduler().runTaskTimerAsynchronously(this, prepareBackup, backupIntervalInTicks, backupIntervalInTicks);
 
             LogUtils.sendDebug("Doing recurring backup interval code. (M:0005)");
 
@@ -178,10 +253,10 @@ public class BackupFull extends JavaPlugin {
         else if (backupSchedArray != null) {
 
             // Create a backup scheduler instance.
-            BackupScheduler backupScheduler = new BackupScheduler(this, prepareBackup, settings, strings, backupSchedArray);
+            backupScheduler = new BackupScheduler(this, prepareBackup, settings, strings, backupSchedArray);
 
             // Start the scheduler as another thread.
-            pluginServer.getScheduler().runTaskAsynchronously(this, backupScheduler);
+            getServer().getScheduler().runTaskAsynchronously(this, backupScheduler);
 
             LogUtils.sendDebug("Doing time array backup code. (M:0006)");
 
@@ -194,25 +269,138 @@ public class BackupFull extends JavaPlugin {
             LogUtils.sendDebug("Disabled automatic backup. (M:0007)");
 
         }
+    }
 
-        // If the update check is enabled.
-        if (settings.getBooleanProperty("enableversioncheck", true)) {
+    /**
+     * Schedules the statistics exporter, if it is enabled.
+     */
+    private void scheduleStatsExport() {
+        statsExportInterval = settings.getIntProperty("statsexportinterval", 60);
+        if (statsExportInterval > 0) {
+            long intervalInTicks = statsExportInterval * 20L;
+            statsExportTask = getServer().getScheduler().runTaskTimerAsynchronously(this, new StatsExporter(thisDataFolder), intervalInTicks, intervalInTicks);
+        }
+    }
 
-            // Start the update checker in another thread.
-            pluginServer.getScheduler().runTaskAsynchronously(this, new UpdateChecker(this.getDescription(), strings, clientUID));
+    /**
+     * Schedules verification of old backups, if it is enabled. The first
+     * run waits for the server to finish starting.
+     */
+    private void scheduleVerification() {
+        verifyInterval = settings.getIntProperty("verifyinterval", 360);
+        if (verifyInterval > 0) {
+            final BackupCatalog catalog = BackupCatalog.forFolder(new File(settings.getStringProperty("backuppath", "backups")));
+            final long maxAgeMillis = verifyInterval * 60000L;
+            verifyTask = getServer().getScheduler().runTaskTimerAsynchronously(this, new Runnable() {
+                public void run() {
+                    BackupVerifier.verifyOld(catalog, maxAgeMillis);
+                }
+            }, VERIFY_START_DELAY_TICKS, verifyInterval * 1200L);
         }
+    }
 
-        // Notify loading complete.
-        LogUtils.sendLog(this.getDescription().getFullName() + " enabled!");
+    /**
+     * Stops any scheduled automatic backups. A backup that is already running
+     * is left to finish.
+     */
+    private void cancelScheduledBackups() {
+
+        // Cancel the repeating interval task.
+        if (intervalBackupTask != null) {
+            intervalBackupTask.cancel();
+            intervalBackupTask = null;
+        }
+
+        // Stop the time-based scheduler loop.
+        if (backupScheduler != null) {
+            backupScheduler.stop();
+            backupScheduler = null;
+        }
+    }
+
+    /**
+     * Reloads the configuration and strings without disabling the plugin.
+     *
+     * The new settings are swapped in atomically, and a fresh backup task is
+     * created for future backups. A backup that is currently running keeps
+     * its own task instance, so it finishes with the settings it started
+     * with. Automatic backups are only rescheduled if the interval changed.
+     *
+     * @return True if the new configuration was loaded.
+     */
+    public boolean reloadConfiguration() {
+
+        // Reload strings first, as settings use them for messages.
+        strings.reload();
+
+        // Swap in the new settings, keep the old on failure.
+        if (!settings.reload()) {
+            return false;
+        }
+
+        // Apply logging settings.
+        LogUtils.finishInitLogUtils(settings.getBooleanProperty("displaylog", true), settings.getBooleanProperty("debugmode", false));
+
+        // Check backup path, create if required.
+        FileUtils.checkFolderAndCreate(new File(settings.getStringProperty("backuppath", "backups")));
+
+        // Future backups use a task built from the new settings.
+        backupTask = new BackupTask(this, settings, strings);
+
+        // Only reschedule if the interval has changed.
+        String backupInterval = settings.getStringProperty("backupinterval", "15M").trim().toLowerCase();
+        if (!backupInterval.equals(scheduledInterval)) {
+            cancelScheduledBackups();
+            scheduleBackups();
+            LogUtils.sendDebug("Rescheduled backups after reload. (M:0019)");
+        }
+
+        // Only restart the statistics exporter if its interval has changed.
+        if (settings.getIntProperty("statsexportinterval", 60) != statsExportInterval) {
+            if (statsExportTask != null) {
+                statsExportTask.cancel();
+                statsExportTask = null;
+            }
+            scheduleStatsExport();
+        }
+
+        // Restart verification, as the backup path may have changed.
+        BackupVerifier.configure(settings.getIntProperty("verifythreads", 2), settings.getIntProperty("verifyratelimit", 8) * FileUtils.ONE_MB);
+        if (verifyTask != null) {
+            verifyTask.cancel();
+            verifyTask = null;
+        }
+        scheduleVerification();
+
+        // New settings apply to the next upload.
+        BackupReplicator.configure(settings);
+
+        // The key may have changed too.
+        ArchiveEncryption.setKeyFile(settings.getStringProperty("encryptkeyfile", ""));
+
+        return true;
     }
 
     @Override
     public void onDisable() {
 
         // Stop any scheduled tasks.
+        cancelScheduledBackups();
         this.getServer().getScheduler().cancelTasks(this);
 
+        // Stop a backup running in a worker process.
+        WorkerLauncher.stopWorker();
+
+        // Stop verifying backups.
+        BackupVerifier.shutdown();
+
+        // Stop replicating, uploads are resumed on the next start.
+        BackupReplicator.shutdown();
+
         // Shutdown complete.
         LogUtils.sendLog(this.getDescription().getFullName() + " diabled!");
+
+        // Write out any queued log messages.
+        LogUtils.shutdown();
     }
 }
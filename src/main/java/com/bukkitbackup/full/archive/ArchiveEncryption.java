@@ -0,0 +1,217 @@
+package com.bukkitbackup.full.archive;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Encrypts indexed archives with AES-256-GCM, when "encryptkeyfile" is set.
+ * The whole archive file is encrypted, in chunks that are each authenticated
+ * on their own, so any entry is read by decrypting only the chunks it is in.
+ *
+ * An encrypted file is a 24 byte header (the magic, the version, the chunk
+ * size, and 8 random bytes for the nonces), then the chunks, each followed by
+ * its 16 byte tag. A chunk's nonce is the random bytes and its number, and the
+ * header, its number and whether it is the last are authenticated with it, so
+ * chunks cannot be swapped, moved between files, or cut off the end.
+ *
+ * The key is 32 bytes, kept in the key file as 64 hex digits. A key file that
+ * does not exist is created with a new key.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class ArchiveEncryption {
+
+    static final long MAGIC = 0x424B555041455347L; // "BKUPAESG"
+    static final int VERSION = 1;
+    static final int HEADER_BYTES = 24;
+    static final int CHUNK_BYTES = 64 * 1024;
+    static final int TAG_BYTES = 16;
+    private static final int KEY_BYTES = 32;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private static volatile EncryptionKey current = EncryptionKey.NONE;
+
+    private ArchiveEncryption() {
+    }
+
+    /**
+     * Sets the key that archives are read with, and written with by anything
+     * that does not load its own, such as a restore.
+     *
+     * @param keyPath The key file, or "" to not encrypt.
+     */
+    public static void setKeyFile(String keyPath) {
+        current = loadKey(keyPath);
+    }
+
+    /**
+     * Loads a key, creating it if needed. If it cannot be loaded, archives
+     * are not written at all, rather than written without encryption.
+     *
+     * @param keyPath The key file, or "" to not encrypt.
+     * @return The key.
+     */
+    public static EncryptionKey loadKey(String keyPath) {
+        if (keyPath.equals("")) {
+            return EncryptionKey.NONE;
+        }
+        File keyFile = new File(keyPath);
+        try {
+            if (!keyFile.exists()) {
+                createKey(keyFile);
+            }
+            return new EncryptionKey(readKey(keyFile), null);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to load the encryption key from " + keyFile + ", no archives will be written.");
+            return new EncryptionKey(null, "The encryption key could not be loaded from " + keyFile + ".");
+        }
+    }
+
+    /**
+     * @return True if archives are encrypted.
+     */
+    public static boolean isEnabled() {
+        return current.isEnabled();
+    }
+
+    /**
+     * Gets the key to encrypt or decrypt with.
+     *
+     * @return The key.
+     * @throws IOException If there is no key.
+     */
+    static SecretKey getKey() throws IOException {
+        return current.get();
+    }
+
+    /**
+     * @return The key set by setKeyFile().
+     */
+    public static EncryptionKey getEncryptionKey() {
+        return current;
+    }
+
+    private static void createKey(File keyFile) throws IOException {
+        byte[] newKey = new byte[KEY_BYTES];
+        RANDOM.nextBytes(newKey);
+        StringBuilder hex = new StringBuilder(KEY_BYTES * 2 + 1);
+        for (byte b : newKey) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        hex.append('\n');
+        if (keyFile.getParentFile() != null) {
+            keyFile.getParentFile().mkdirs();
+        }
+        FileOutputStream fos = new FileOutputStream(keyFile);
+        try {
+            // Only the owner may read it.
+            keyFile.setReadable(false, false);
+            keyFile.setReadable(true, true);
+            fos.write(hex.toString().getBytes("US-ASCII"));
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        LogUtils.sendLog("Created a new encryption key in " + keyFile + ". Keep a copy of it somewhere other than the backups, they cannot be restored without it.");
+    }
+
+    private static SecretKey readKey(File keyFile) throws IOException {
+        if (keyFile.length() > 1024) {
+            throw new IOException(keyFile + " is not a key file.");
+        }
+        byte[] contents = new byte[(int) keyFile.length()];
+        FileInputStream fis = new FileInputStream(keyFile);
+        try {
+            int read = 0;
+            while (read < contents.length) {
+                int part = fis.read(contents, read, contents.length - read);
+                if (part < 0) {
+                    break;
+                }
+                read += part;
+            }
+        } finally {
+            fis.close();
+        }
+        String hex = new String(contents, "US-ASCII").trim();
+        if (!hex.matches("[0-9a-fA-F]{64}")) {
+            throw new IOException(keyFile + " should hold 64 hex digits.");
+        }
+        byte[] keyBytes = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            keyBytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return new SecretKeySpec(keyBytes, "AES");
+    }
+
+    /**
+     * Makes the header of a new encrypted file.
+     *
+     * @return The header.
+     */
+    static byte[] newHeader() {
+        byte[] noncePrefix = new byte[8];
+        RANDOM.nextBytes(noncePrefix);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        header.putLong(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(CHUNK_BYTES);
+        header.put(noncePrefix);
+        return header.array();
+    }
+
+    /**
+     * Checks whether a file starts with the header of an encrypted file.
+     *
+     * @param header At least the first 8 bytes of the file.
+     * @return True if it is encrypted.
+     */
+    static boolean isEncrypted(ByteBuffer header) {
+        return header.limit() >= 8 && header.getLong(0) == MAGIC;
+    }
+
+    /**
+     * Makes a cipher for one chunk.
+     *
+     * @param mode Cipher.ENCRYPT_MODE or Cipher.DECRYPT_MODE.
+     * @param secretKey The key.
+     * @param header The file's header.
+     * @param chunk The chunk's number, from 0.
+     * @param last True if it is the last chunk.
+     * @return The cipher, ready for the chunk.
+     * @throws IOException If the cipher is not available.
+     */
+    static Cipher newCipher(int mode, SecretKey secretKey, byte[] header, long chunk, boolean last) throws IOException {
+        if (chunk > 0xFFFFFFFFL) {
+            throw new IOException("The archive is too large to encrypt.");
+        }
+        ByteBuffer nonce = ByteBuffer.allocate(12);
+        nonce.put(header, 16, 8);
+        nonce.putInt((int) chunk);
+        ByteBuffer aad = ByteBuffer.allocate(HEADER_BYTES + 9);
+        aad.put(header);
+        aad.putLong(chunk);
+        aad.put((byte) (last ? 1 : 0));
+        try {
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(mode, secretKey, new GCMParameterSpec(TAG_BYTES * 8, nonce.array()));
+            cipher.updateAAD(aad.array());
+            return cipher;
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("AES-GCM is not available.", gse);
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The bytes of an indexed archive, read at any position. The file on disk may
+ * hold them as they are, or encrypted, when it is decrypted as it is read.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+abstract class ArchiveFile implements Closeable {
+
+    /**
+     * Opens an archive's file, encrypted or not.
+     *
+     * @param file The file.
+     * @return The open file, which must be closed.
+     * @throws IOException If it could not be opened.
+     */
+    static ArchiveFile open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        boolean opened = false;
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer magic = ByteBuffer.allocate(8);
+            if (channel.size() >= 8) {
+                readFully(channel, magic, 0);
+            }
+            magic.flip();
+            ArchiveFile archiveFile;
+            if (ArchiveEncryption.isEncrypted(magic)) {
+                archiveFile = new EncryptedArchiveFile(file, raf, ArchiveEncryption.getKey());
+            } else {
+                archiveFile = new PlainFile(raf);
+            }
+            opened = true;
+            return archiveFile;
+        } finally {
+            if (!opened) {
+                raf.close();
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes in the archive.
+     * @throws IOException If it could not be read.
+     */
+    abstract long size() throws IOException;
+
+    /**
+     * Reads bytes at a position, like FileChannel.read(ByteBuffer, long).
+     *
+     * @param buffer Where to read them to.
+     * @param position Where to read them from.
+     * @return The number of bytes read, or -1 at the end.
+     * @throws IOException If they could not be read.
+     */
+    abstract int read(ByteBuffer buffer, long position) throws IOException;
+
+    /**
+     * Gets a region of the archive to read, such as its index.
+     *
+     * @param position Where it starts.
+     * @param length Its length.
+     * @return The region, which may be mapped from the file.
+     * @throws IOException If it could not be read.
+     */
+    ByteBuffer map(long position, int length) throws IOException {
+        ByteBuffer region = ByteBuffer.allocate(length);
+        readFully(this, region, position);
+        region.flip();
+        return region;
+    }
+
+    static void readFully(ArchiveFile file, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = file.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * An archive that is not encrypted, which is read and mapped directly.
+     */
+    private static class PlainFile extends ArchiveFile {
+
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+
+        PlainFile(RandomAccessFile raf) {
+            this.raf = raf;
+            this.channel = raf.getChannel();
+        }
+
+        @Override
+        long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        int read(ByteBuffer buffer, long position) throws IOException {
+            return channel.read(buffer, position);
+        }
+
+        @Override
+        ByteBuffer map(long position, int length) throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.close();
+        }
+    }
+}
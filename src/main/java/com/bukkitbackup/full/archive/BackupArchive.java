@@ -0,0 +1,128 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * An archive made by a backup, read without extracting it. Backups are ZIP
+ * archives, or indexed archives when "archiveformat" is "indexed". Entry names
+ * always use "/" between folders.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public abstract class BackupArchive implements Closeable {
+
+    public static final String ZIP_EXTENSION = ".zip";
+    public static final String INDEXED_EXTENSION = ".bia";
+
+    // Added to an archive's name while it is being written.
+    public static final String PARTIAL_EXTENSION = ".partial";
+
+    /**
+     * Checks whether a file is an archive made by a backup.
+     *
+     * @param file The file.
+     * @return True if it is a ZIP or indexed archive.
+     */
+    public static boolean isArchive(File file) {
+        return hasArchiveName(file) && file.isFile();
+    }
+
+    /**
+     * Checks whether a file is named like an archive, without checking that it
+     * exists.
+     *
+     * @param file The file.
+     * @return True if it ends with an archive extension.
+     */
+    public static boolean hasArchiveName(File file) {
+        String name = file.getName();
+        return name.endsWith(ZIP_EXTENSION) || name.endsWith(INDEXED_EXTENSION);
+    }
+
+    /**
+     * Gets the name of an archive without its extension, which is the name of
+     * the backup.
+     *
+     * @param archive The archive.
+     * @return Its name, without the extension.
+     */
+    public static String getBaseName(File archive) {
+        String name = archive.getName();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * Finds the archive made for a backup, in either format.
+     *
+     * @param path The backup's path, without an extension.
+     * @return The archive, or null if there is none.
+     */
+    public static File find(String path) {
+        File zip = new File(path.concat(ZIP_EXTENSION));
+        if (zip.isFile()) {
+            return zip;
+        }
+        File indexed = new File(path.concat(INDEXED_EXTENSION));
+        return indexed.isFile() ? indexed : null;
+    }
+
+    /**
+     * Opens an archive in either format.
+     *
+     * @param archive The archive.
+     * @return The open archive, which must be closed.
+     * @throws IOException If it could not be opened.
+     */
+    public static BackupArchive open(File archive) throws IOException {
+        if (archive.getName().endsWith(INDEXED_EXTENSION)) {
+            return new IndexedArchive(archive);
+        }
+        return new ZipArchive(archive);
+    }
+
+    /**
+     * Gets the names of the files in the archive.
+     *
+     * @return The names, in the order they were added.
+     */
+    public abstract Collection<String> getNames();
+
+    /**
+     * Reads a file in the archive. Only that file is read.
+     *
+     * @param name The file's name.
+     * @return Its contents, or null if it is not in the archive.
+     * @throws IOException If it could not be read.
+     */
+    public abstract InputStream getInputStream(String name) throws IOException;
+
+    /**
+     * Gets the size of a file in the archive.
+     *
+     * @param name The file's name.
+     * @return The size, before compression, or -1 if it is not known.
+     */
+    public abstract long getSize(String name);
+
+    /**
+     * Gets when a file in the archive was last modified.
+     *
+     * @param name The file's name.
+     * @return The time in milliseconds since the epoch, or -1 if not known.
+     */
+    public abstract long getModified(String name);
+
+    /**
+     * Gets the CRC32 of a file in the archive, as it was when it was added.
+     *
+     * @param name The file's name.
+     * @return The CRC32, or -1 if it is not known.
+     */
+    public abstract long getChecksum(String name);
+}
@@ -0,0 +1,103 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * An encrypted archive, as written by EncryptedOutputStream, decrypted one
+ * chunk at a time as it is read. The last chunk read is kept, as entries are
+ * mostly read in order.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+class EncryptedArchiveFile extends ArchiveFile {
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final SecretKey key;
+    private final byte[] header = new byte[ArchiveEncryption.HEADER_BYTES];
+    private final int chunkBytes;
+    private final long encryptedLength;
+    private final long chunkCount;
+    private final long size;
+    private long cachedNumber = -1;
+    private byte[] cachedChunk;
+
+    EncryptedArchiveFile(File file, RandomAccessFile raf, SecretKey key) throws IOException {
+        this.file = file;
+        this.raf = raf;
+        this.channel = raf.getChannel();
+        this.key = key;
+        long length = channel.size();
+        if (length < ArchiveEncryption.HEADER_BYTES + ArchiveEncryption.TAG_BYTES) {
+            throw new IOException(file + " is too short to be an encrypted archive.");
+        }
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        readFully(channel, headerBuffer, 0);
+        headerBuffer.flip();
+        chunkBytes = headerBuffer.getInt(12);
+        if (headerBuffer.getInt(8) != ArchiveEncryption.VERSION || chunkBytes <= 0) {
+            throw new IOException(file + " is encrypted in a way this version cannot read.");
+        }
+
+        // Every chunk but the last is full, and each has a tag.
+        long stride = chunkBytes + (long) ArchiveEncryption.TAG_BYTES;
+        encryptedLength = length - ArchiveEncryption.HEADER_BYTES;
+        chunkCount = (encryptedLength + stride - 1) / stride;
+        if (encryptedLength - (chunkCount - 1) * stride < ArchiveEncryption.TAG_BYTES) {
+            throw new IOException(file + " is not a complete encrypted archive.");
+        }
+        size = encryptedLength - chunkCount * ArchiveEncryption.TAG_BYTES;
+    }
+
+    @Override
+    long size() {
+        return size;
+    }
+
+    @Override
+    synchronized int read(ByteBuffer buffer, long position) throws IOException {
+        if (position >= size) {
+            return -1;
+        }
+        long number = position / chunkBytes;
+        byte[] plain = getChunk(number);
+        int start = (int) (position - number * chunkBytes);
+        int length = Math.min(buffer.remaining(), plain.length - start);
+        buffer.put(plain, start, length);
+        return length;
+    }
+
+    private byte[] getChunk(long number) throws IOException {
+        if (number == cachedNumber) {
+            return cachedChunk;
+        }
+        long stride = chunkBytes + (long) ArchiveEncryption.TAG_BYTES;
+        long offset = number * stride;
+        ByteBuffer encrypted = ByteBuffer.allocate((int) Math.min(stride, encryptedLength - offset));
+        readFully(channel, encrypted, ArchiveEncryption.HEADER_BYTES + offset);
+        Cipher cipher = ArchiveEncryption.newCipher(Cipher.DECRYPT_MODE, key, header, number, number == chunkCount - 1);
+        try {
+            cachedChunk = cipher.doFinal(encrypted.array());
+        } catch (GeneralSecurityException gse) {
+            cachedNumber = -1;
+            throw new IOException(file + " could not be decrypted: the key is wrong, or part " + number + " of it is damaged.", gse);
+        }
+        cachedNumber = number;
+        return cachedChunk;
+    }
+
+    @Override
+    public void close() throws IOException {
+        raf.close();
+    }
+}
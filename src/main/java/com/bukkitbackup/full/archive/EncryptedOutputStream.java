@@ -0,0 +1,139 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Encrypts what is written to it, as described in ArchiveEncryption. Chunks
+ * are encrypted on worker threads while the archive goes on compressing the
+ * next ones, and are written in order. A full chunk is held until more is
+ * written, so the last chunk is known when finish() is called.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+class EncryptedOutputStream extends OutputStream {
+
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    private final OutputStream out;
+    private final SecretKey key;
+    private final byte[] header;
+    private final ExecutorService encryptors;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] chunk = new byte[ArchiveEncryption.CHUNK_BYTES];
+    private int chunkLength = 0;
+    private long chunkNumber = 0;
+    private boolean finished = false;
+
+    /**
+     * Starts an encrypted file, writing its header.
+     *
+     * @param out Where the encrypted file is written. It is not closed.
+     * @param key The key.
+     * @throws IOException If the header could not be written.
+     */
+    EncryptedOutputStream(OutputStream out, SecretKey key) throws IOException {
+        this.out = out;
+        this.key = key;
+        header = ArchiveEncryption.newHeader();
+        encryptors = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup encryption");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        out.write(header);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (chunkLength == chunk.length) {
+                submit(false);
+            }
+            int part = Math.min(length, chunk.length - chunkLength);
+            System.arraycopy(bytes, offset, chunk, chunkLength, part);
+            chunkLength += part;
+            offset += part;
+            length -= part;
+        }
+    }
+
+    /**
+     * Encrypts the last chunk, and writes everything that is left. The stream
+     * it writes to is not closed or synced.
+     *
+     * @throws IOException If it could not be encrypted or written.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        submit(true);
+        while (!pending.isEmpty()) {
+            writeNext();
+        }
+        finished = true;
+        encryptors.shutdown();
+    }
+
+    /**
+     * Stops the workers, without writing anything more.
+     */
+    @Override
+    public void close() {
+        encryptors.shutdownNow();
+    }
+
+    private void submit(final boolean last) throws IOException {
+        final byte[] plain = chunk;
+        final int plainLength = chunkLength;
+        final long number = chunkNumber++;
+        pending.add(encryptors.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                Cipher cipher = ArchiveEncryption.newCipher(Cipher.ENCRYPT_MODE, key, header, number, last);
+                return cipher.doFinal(plain, 0, plainLength);
+            }
+        }));
+        chunk = new byte[ArchiveEncryption.CHUNK_BYTES];
+        chunkLength = 0;
+
+        // Enough are queued to keep the workers busy.
+        while (pending.size() > THREADS * 2) {
+            writeNext();
+        }
+    }
+
+    private void writeNext() throws IOException {
+        byte[] encrypted;
+        try {
+            encrypted = pending.poll().get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while encrypting.", ie);
+        } catch (ExecutionException ee) {
+            throw new IOException("Failed to encrypt the archive.", ee.getCause());
+        }
+        out.write(encrypted);
+    }
+}
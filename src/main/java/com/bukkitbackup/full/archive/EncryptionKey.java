@@ -0,0 +1,52 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.IOException;
+import javax.crypto.SecretKey;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The key archives are encrypted with, as loaded from a key file by
+ * ArchiveEncryption. It does not change once loaded, so a backup that holds
+ * one writes all of its archives with the same key, or all of them without.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class EncryptionKey {
+
+    // Archives are not encrypted.
+    public static final EncryptionKey NONE = new EncryptionKey(null, null);
+
+    private final SecretKey key;
+    private final String problem;
+
+    /**
+     * @param key The key, or null.
+     * @param problem Why the key file could not be loaded, or null.
+     */
+    EncryptionKey(SecretKey key, String problem) {
+        this.key = key;
+        this.problem = problem;
+    }
+
+    /**
+     * @return True if archives are encrypted. They are when the key could
+     * not be loaded too, so that no archives are written without it.
+     */
+    public boolean isEnabled() {
+        return key != null || problem != null;
+    }
+
+    /**
+     * Gets the key to encrypt or decrypt with.
+     *
+     * @return The key.
+     * @throws IOException If there is no key.
+     */
+    SecretKey get() throws IOException {
+        if (key == null) {
+            throw new IOException(problem != null ? problem : "Archives are encrypted, but \"encryptkeyfile\" is not set.");
+        }
+        return key;
+    }
+}
@@ -0,0 +1,313 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * An indexed archive, as written by IndexedArchiveWriter. Unlike a ZIP, it is
+ * laid out for random access:
+ *
+ * - A 4096 byte header, then the entries, each starting on a 4096 byte
+ * boundary. Each entry is stored, or compressed on its own with zlib.
+ * - An index after the last entry: a 64 byte record for each entry, a hash
+ * table of the records by name, and the entry names.
+ * - A 64 byte trailer at the end of the file, locating the index, with a
+ * CRC32 of it.
+ *
+ * Opening an archive maps only its index. Any entry is then found with one
+ * hash table probe, and read without reading anything else. Region files are
+ * always stored, so a chunk is found through its region's header in the same
+ * way.
+ *
+ * The whole file may be encrypted, as described in ArchiveEncryption. It is
+ * then decrypted as it is read, and its index is read rather than mapped.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class IndexedArchive extends BackupArchive {
+
+    static final long MAGIC = 0x424B5550494E4458L; // "BKUPINDX"
+    static final int VERSION = 1;
+    static final int ALIGNMENT = 4096;
+    static final int HEADER_BYTES = ALIGNMENT;
+    static final int TRAILER_BYTES = 64;
+    static final int RECORD_BYTES = 64;
+    static final byte STORED = 0;
+    static final byte DEFLATED = 1;
+    static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Record fields.
+    static final int HASH = 0;
+    static final int OFFSET = 8;
+    static final int STORED_SIZE = 16;
+    static final int SIZE = 24;
+    static final int MODIFIED = 32;
+    static final int CRC = 40;
+    static final int NAME_OFFSET = 44;
+    static final int NAME_LENGTH = 48;
+    static final int COMPRESSION = 50;
+    static final int FLAGS = 51;
+    static final int ARCHIVE = 52;
+
+    private static final int REGION_SECTOR_BYTES = 4096;
+
+    private final File file;
+    private final ArchiveFile source;
+    private final ByteBuffer index;
+    private final int entryCount;
+    private final int tableOffset;
+    private final int tableMask;
+    private final int namesOffset;
+
+    /**
+     * Opens an indexed archive, and checks its index.
+     *
+     * @param file The archive.
+     * @throws IOException If it could not be read, or is not complete.
+     */
+    public IndexedArchive(File file) throws IOException {
+        this.file = file;
+        source = ArchiveFile.open(file);
+        boolean opened = false;
+        try {
+            long length = source.size();
+            if (length < HEADER_BYTES + TRAILER_BYTES) {
+                throw new IOException(file + " is too short to be an indexed archive.");
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            ArchiveFile.readFully(source, trailer, length - TRAILER_BYTES);
+            trailer.flip();
+            if (trailer.getLong(0) != MAGIC || trailer.getInt(8) != VERSION) {
+                throw new IOException(file + " is not a complete indexed archive.");
+            }
+            long indexOffset = trailer.getLong(16);
+            long indexLength = trailer.getLong(24);
+            entryCount = trailer.getInt(32);
+            int tableSlots = trailer.getInt(36);
+            namesOffset = trailer.getInt(40);
+            int archiveCount = trailer.getInt(48);
+            int indexCrc = trailer.getInt(52);
+            if (indexOffset < HEADER_BYTES || indexLength > Integer.MAX_VALUE || indexOffset + indexLength != length - TRAILER_BYTES) {
+                throw new IOException(file + " has a damaged trailer.");
+            }
+            index = source.map(indexOffset, (int) indexLength);
+
+            // A damaged index would send reads anywhere.
+            CRC32 crc = new CRC32();
+            byte[] chunk = new byte[8192];
+            ByteBuffer check = index.duplicate();
+            while (check.hasRemaining()) {
+                int part = Math.min(chunk.length, check.remaining());
+                check.get(chunk, 0, part);
+                crc.update(chunk, 0, part);
+            }
+            if ((int) crc.getValue() != indexCrc) {
+                throw new IOException(file + " has a damaged index.");
+            }
+
+            tableOffset = entryCount * RECORD_BYTES;
+            tableMask = tableSlots - 1;
+
+            // Entries that refer to other archives are not supported yet.
+            if (archiveCount != 0) {
+                throw new IOException(file + " refers to other archives, which cannot be read.");
+            }
+            opened = true;
+        } finally {
+            if (!opened) {
+                source.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the hash of an entry name, which is 64 bit FNV-1a of its UTF-8.
+     *
+     * @param name The name.
+     * @return The hash.
+     */
+    static long hash(String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Finds an entry's record.
+     *
+     * @param name The entry's name.
+     * @return The record's position in the index, or -1 if it is not there.
+     */
+    private int findRecord(String name) {
+        long hash = hash(name);
+        int slot = (int) hash & tableMask;
+        while (true) {
+            int record = index.getInt(tableOffset + slot * 4) - 1;
+            if (record < 0) {
+                return -1;
+            }
+            int position = record * RECORD_BYTES;
+            if (index.getLong(position + HASH) == hash && getName(position).equals(name)) {
+                return position;
+            }
+            slot = (slot + 1) & tableMask;
+        }
+    }
+
+    private String getName(int position) {
+        return getString(namesOffset + index.getInt(position + NAME_OFFSET), index.getShort(position + NAME_LENGTH) & 0xFFFF);
+    }
+
+    private String getString(int position, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer view = index.duplicate();
+        view.position(position);
+        view.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+
+    @Override
+    public Collection<String> getNames() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int i) {
+                return getName(i * RECORD_BYTES);
+            }
+
+            @Override
+            public int size() {
+                return entryCount;
+            }
+        };
+    }
+
+    @Override
+    public InputStream getInputStream(String name) throws IOException {
+        int position = findRecord(name);
+        if (position < 0) {
+            return null;
+        }
+        InputStream in = new EntryInputStream(source, index.getLong(position + OFFSET), index.getLong(position + STORED_SIZE));
+        if (index.get(position + COMPRESSION) == DEFLATED) {
+            in = new InflaterInputStream(in, new Inflater(), 8192);
+        }
+        return in;
+    }
+
+    @Override
+    public long getSize(String name) {
+        int position = findRecord(name);
+        return position >= 0 ? index.getLong(position + SIZE) : -1;
+    }
+
+    @Override
+    public long getModified(String name) {
+        int position = findRecord(name);
+        return position >= 0 ? index.getLong(position + MODIFIED) : -1;
+    }
+
+    @Override
+    public long getChecksum(String name) {
+        int position = findRecord(name);
+        return position >= 0 ? index.getInt(position + CRC) & 0xFFFFFFFFL : -1;
+    }
+
+    /**
+     * Reads one chunk of a region file in the archive, without reading the
+     * rest of the region.
+     *
+     * @param regionName The region file's name.
+     * @param chunkIndex The chunk's index in the region, from 0 to 1023.
+     * @return The chunk's payload, or null if the region or chunk is not in
+     * the archive.
+     * @throws IOException If it could not be read.
+     */
+    public byte[] readChunk(String regionName, int chunkIndex) throws IOException {
+        int position = findRecord(regionName);
+        if (position < 0) {
+            return null;
+        }
+        if (index.get(position + COMPRESSION) != STORED) {
+            throw new IOException(regionName + " is compressed, so its chunks cannot be read on their own.");
+        }
+        long offset = index.getLong(position + OFFSET);
+        long size = index.getLong(position + STORED_SIZE);
+        if (size < REGION_SECTOR_BYTES) {
+            return null;
+        }
+
+        // The region's header gives the chunk's sectors.
+        ByteBuffer location = ByteBuffer.allocate(4);
+        ArchiveFile.readFully(source, location, offset + chunkIndex * 4L);
+        int sectors = location.getInt(0);
+        if (sectors == 0) {
+            return null;
+        }
+        long chunkOffset = (long) (sectors >>> 8) * REGION_SECTOR_BYTES;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(4);
+        ArchiveFile.readFully(source, lengthBuffer, offset + chunkOffset);
+        int length = lengthBuffer.getInt(0);
+        if (length <= 0 || length + 4 > (sectors & 0xFF) * REGION_SECTOR_BYTES || chunkOffset + length + 4 > size) {
+            throw new IOException("Chunk " + chunkIndex + " of " + regionName + " has a bad length of " + length + ".");
+        }
+        ByteBuffer payload = ByteBuffer.allocate(length + 4);
+        ArchiveFile.readFully(source, payload, offset + chunkOffset);
+        return payload.array();
+    }
+
+    public void close() throws IOException {
+        source.close();
+    }
+
+    /**
+     * Reads an entry's stored bytes, with positioned reads so entries can be
+     * read at the same time.
+     */
+    private static class EntryInputStream extends InputStream {
+
+        private final ArchiveFile source;
+        private long position;
+        private long remaining;
+
+        EntryInputStream(ArchiveFile source, long position, long length) {
+            this.source = source;
+            this.position = position;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+            ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, remaining));
+            int read = source.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+            remaining -= read;
+            return read;
+        }
+    }
+}
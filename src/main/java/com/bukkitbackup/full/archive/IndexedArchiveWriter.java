@@ -0,0 +1,394 @@
+package com.bukkitbackup.full.archive;
+
+import com.bukkitbackup.full.utils.ArchiveCopies;
+import com.bukkitbackup.full.utils.BufferPool;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Writes an indexed archive, as read by IndexedArchive. Entries are written
+ * through a pooled buffer in whole blocks, and the index and trailer are
+ * written by close(). Files that are already compressed, and region files
+ * (which must stay random access), are stored; everything else is compressed.
+ * When archives are encrypted, the blocks are encrypted on their way to the
+ * file, after compression.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class IndexedArchiveWriter implements Closeable {
+
+    private static final String[] STORED_EXTENSIONS = {".mca", ".mcr", ".zip", ".gz", ".png", ".jar", ".dat"};
+
+    private final File file;
+    private final FileOutputStream fos;
+    private final FileChannel channel;
+    private final ArchiveCopies copies;
+    private final EncryptedOutputStream encrypted;
+    private final CRC32 fileCrc = new CRC32();
+    private byte[] blockBytes;
+    private ByteBuffer buffer;
+    private ByteBuffer block;
+    private ByteBuffer readBuffer;
+    private long position = 0;
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final Set<String> names = new HashSet<String>();
+    private boolean closed = false;
+
+    /**
+     * Creates an indexed archive, encrypted with the key set by
+     * ArchiveEncryption.setKeyFile(). It is not complete, or readable, until
+     * it is closed.
+     *
+     * @param file The archive to create.
+     * @throws IOException If it could not be created.
+     */
+    public IndexedArchiveWriter(File file) throws IOException {
+        this(file, new ArchiveCopies(Collections.<File>emptyList()), ArchiveEncryption.getEncryptionKey());
+    }
+
+    /**
+     * Creates an indexed archive, and copies of it that get the same bytes.
+     *
+     * @param file The archive to create.
+     * @param copies Its copies, which are synced with it but not closed.
+     * @param encryptionKey The key to encrypt it with, or EncryptionKey.NONE.
+     * @throws IOException If it could not be created.
+     */
+    public IndexedArchiveWriter(File file, ArchiveCopies copies, EncryptionKey encryptionKey) throws IOException {
+        this.file = file;
+        this.copies = copies;
+        fos = new FileOutputStream(file);
+        channel = fos.getChannel();
+        boolean opened = false;
+        EncryptedOutputStream encryptedOut = null;
+        try {
+            // One pooled buffer: half for the block being written, half to
+            // read the files that are compressed.
+            buffer = BufferPool.acquire();
+            ByteBuffer[] halves = BufferPool.split(buffer);
+            block = halves[0];
+            readBuffer = halves[1];
+
+            // The copies are given the encrypted bytes.
+            if (encryptionKey.isEnabled()) {
+                encryptedOut = new EncryptedOutputStream(new CheckedOutputStream(copies.tee(fos), fileCrc), encryptionKey.get());
+                blockBytes = new byte[8192];
+            }
+
+            // The header is one aligned block, so the first entry is aligned.
+            block.putLong(IndexedArchive.MAGIC);
+            block.putInt(IndexedArchive.VERSION);
+            block.putInt(IndexedArchive.ALIGNMENT);
+            position = 16;
+            pad();
+            opened = true;
+        } finally {
+            if (!opened) {
+                if (encryptedOut != null) {
+                    encryptedOut.close();
+                }
+                BufferPool.release(buffer);
+                fos.close();
+            }
+        }
+        encrypted = encryptedOut;
+    }
+
+    /**
+     * Adds a file to the archive.
+     *
+     * @param name The entry's name, with "/" between folders.
+     * @param source The file to add.
+     * @return The number of bytes read from the file.
+     * @throws IOException If it could not be read or written.
+     */
+    public long addFile(String name, File source) throws IOException {
+        Entry entry = newEntry(name);
+        entry.modified = source.lastModified();
+        entry.compression = isStored(name) ? IndexedArchive.STORED : IndexedArchive.DEFLATED;
+        pad();
+        entry.offset = position;
+
+        FileInputStream fis = new FileInputStream(source);
+        try {
+            FileChannel input = fis.getChannel();
+            CRC32 crc = new CRC32();
+            if (entry.compression == IndexedArchive.STORED) {
+
+                // Read straight into the block buffer.
+                while (true) {
+                    if (!block.hasRemaining()) {
+                        flushBlock();
+                    }
+                    int start = block.position();
+                    int read = input.read(block);
+                    if (read == -1) {
+                        break;
+                    }
+                    ByteBuffer readBytes = block.duplicate();
+                    readBytes.limit(block.position());
+                    readBytes.position(start);
+                    crc.update(readBytes);
+                    entry.size += read;
+                    position += read;
+                }
+            } else {
+                readBuffer.clear();
+                Deflater deflater = new Deflater();
+                DeflaterOutputStream out = new DeflaterOutputStream(new BlockOutputStream(), deflater, 8192);
+                byte[] chunk = new byte[8192];
+                try {
+                    while (input.read(readBuffer) != -1) {
+                        readBuffer.flip();
+                        while (readBuffer.hasRemaining()) {
+                            int length = Math.min(readBuffer.remaining(), chunk.length);
+                            readBuffer.get(chunk, 0, length);
+                            crc.update(chunk, 0, length);
+                            out.write(chunk, 0, length);
+                            entry.size += length;
+                        }
+                        readBuffer.clear();
+                    }
+                    out.finish();
+                } finally {
+                    deflater.end();
+                }
+            }
+            entry.crc = (int) crc.getValue();
+        } finally {
+            fis.close();
+        }
+        entry.storedSize = position - entry.offset;
+        entries.add(entry);
+        return entry.size;
+    }
+
+    private Entry newEntry(String name) throws IOException {
+        if (closed) {
+            throw new IOException(file + " is already closed.");
+        }
+        if (!names.add(name)) {
+            throw new IOException(name + " is already in " + file + ".");
+        }
+        Entry entry = new Entry();
+        entry.name = name;
+        return entry;
+    }
+
+    private static boolean isStored(String name) {
+        String lowerName = name.toLowerCase();
+        for (String extension : STORED_EXTENSIONS) {
+            if (lowerName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Writes the index and trailer, and syncs the archive to disk.
+     *
+     * @throws IOException If they could not be written.
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            writeIndex();
+            flushBlock();
+            if (encrypted != null) {
+                encrypted.finish();
+            }
+            channel.force(true);
+            copies.sync();
+        } finally {
+            if (encrypted != null) {
+                encrypted.close();
+            }
+            BufferPool.release(buffer);
+            buffer = null;
+            block = null;
+            readBuffer = null;
+            fos.close();
+        }
+    }
+
+    /**
+     * Gets the CRC32 of the archive's file, as it was written, so it does not
+     * have to be read again to find it.
+     *
+     * @return The CRC32, once the archive is closed.
+     */
+    public long getFileChecksum() {
+        return fileCrc.getValue();
+    }
+
+    private void writeIndex() throws IOException {
+        int count = entries.size();
+        int slots = 2;
+        while (slots < count * 2) {
+            slots <<= 1;
+        }
+
+        // The names.
+        byte[][] nameBytes = new byte[count][];
+        int namesLength = 0;
+        for (int i = 0; i < count; i++) {
+            nameBytes[i] = entries.get(i).name.getBytes(IndexedArchive.UTF_8);
+            if (nameBytes[i].length > 0xFFFF) {
+                throw new IOException(entries.get(i).name + " is too long for an indexed archive.");
+            }
+            namesLength += nameBytes[i].length;
+        }
+
+        int tableOffset = count * IndexedArchive.RECORD_BYTES;
+        int archivesOffset = tableOffset + slots * 4;
+        int namesOffset = archivesOffset;
+        ByteBuffer index = ByteBuffer.allocate(namesOffset + namesLength);
+        int nameOffset = 0;
+        for (int i = 0; i < count; i++) {
+            Entry entry = entries.get(i);
+            long hash = IndexedArchive.hash(entry.name);
+            int record = i * IndexedArchive.RECORD_BYTES;
+            index.putLong(record + IndexedArchive.HASH, hash);
+            index.putLong(record + IndexedArchive.OFFSET, entry.offset);
+            index.putLong(record + IndexedArchive.STORED_SIZE, entry.storedSize);
+            index.putLong(record + IndexedArchive.SIZE, entry.size);
+            index.putLong(record + IndexedArchive.MODIFIED, entry.modified);
+            index.putInt(record + IndexedArchive.CRC, entry.crc);
+            index.putInt(record + IndexedArchive.NAME_OFFSET, nameOffset);
+            index.putShort(record + IndexedArchive.NAME_LENGTH, (short) nameBytes[i].length);
+            index.put(record + IndexedArchive.COMPRESSION, entry.compression);
+
+            // Kept for entries that refer to another archive, which are not
+            // written yet.
+            index.put(record + IndexedArchive.FLAGS, (byte) 0);
+            index.putInt(record + IndexedArchive.ARCHIVE, -1);
+
+            // Open addressing, so a lookup is one probe unless names collide.
+            int slot = (int) hash & (slots - 1);
+            while (index.getInt(tableOffset + slot * 4) != 0) {
+                slot = (slot + 1) & (slots - 1);
+            }
+            index.putInt(tableOffset + slot * 4, i + 1);
+            index.position(namesOffset + nameOffset);
+            index.put(nameBytes[i]);
+            nameOffset += nameBytes[i].length;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(index.array(), 0, index.capacity());
+        long indexOffset = position;
+        write(index.array(), 0, index.capacity());
+
+        ByteBuffer trailer = ByteBuffer.allocate(IndexedArchive.TRAILER_BYTES);
+        trailer.putLong(IndexedArchive.MAGIC);
+        trailer.putInt(IndexedArchive.VERSION);
+        trailer.putInt(IndexedArchive.ALIGNMENT);
+        trailer.putLong(indexOffset);
+        trailer.putLong(index.capacity());
+        trailer.putInt(count);
+        trailer.putInt(slots);
+        trailer.putInt(namesOffset);
+        trailer.putInt(archivesOffset);
+        trailer.putInt(0);
+        trailer.putInt((int) crc.getValue());
+        write(trailer.array(), 0, trailer.capacity());
+    }
+
+    /**
+     * Pads with zeros up to the next aligned offset.
+     */
+    private void pad() throws IOException {
+        int padding = (int) (-position & (IndexedArchive.ALIGNMENT - 1));
+        while (padding > 0) {
+            if (!block.hasRemaining()) {
+                flushBlock();
+            }
+            int length = Math.min(padding, block.remaining());
+            for (int i = 0; i < length; i++) {
+                block.put((byte) 0);
+            }
+            padding -= length;
+            position += length;
+        }
+    }
+
+    private void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (!block.hasRemaining()) {
+                flushBlock();
+            }
+            int part = Math.min(length, block.remaining());
+            block.put(bytes, offset, part);
+            offset += part;
+            length -= part;
+            position += part;
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        block.flip();
+        if (encrypted != null) {
+            while (block.hasRemaining()) {
+                int length = Math.min(block.remaining(), blockBytes.length);
+                block.get(blockBytes, 0, length);
+                encrypted.write(blockBytes, 0, length);
+            }
+            block.clear();
+            return;
+        }
+        fileCrc.update(block.duplicate());
+        copies.write(block);
+        while (block.hasRemaining()) {
+            channel.write(block);
+        }
+        block.clear();
+    }
+
+    /**
+     * Passes compressed data to the block buffer.
+     */
+    private class BlockOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            IndexedArchiveWriter.this.write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            IndexedArchiveWriter.this.write(bytes, offset, length);
+        }
+    }
+
+    private static class Entry {
+
+        String name;
+        long offset = 0;
+        long storedSize = 0;
+        long size = 0;
+        long modified = 0;
+        int crc = 0;
+        byte compression = IndexedArchive.STORED;
+    }
+}
@@ -0,0 +1,72 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A ZIP archive. Its central directory is read when it is opened, and entries
+ * are then read on their own.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+class ZipArchive extends BackupArchive {
+
+    private final ZipFile zip;
+    private final Map<String, ZipEntry> entries = new LinkedHashMap<String, ZipEntry>();
+
+    ZipArchive(File archive) throws IOException {
+        zip = new ZipFile(archive);
+
+        // Archives made on Windows have "\" between folders.
+        Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+        while (zipEntries.hasMoreElements()) {
+            ZipEntry zipEntry = zipEntries.nextElement();
+            if (!zipEntry.isDirectory()) {
+                entries.put(zipEntry.getName().replace('\\', '/'), zipEntry);
+            }
+        }
+    }
+
+    @Override
+    public Collection<String> getNames() {
+        return Collections.unmodifiableCollection(entries.keySet());
+    }
+
+    @Override
+    public InputStream getInputStream(String name) throws IOException {
+        ZipEntry zipEntry = entries.get(name);
+        return zipEntry != null ? zip.getInputStream(zipEntry) : null;
+    }
+
+    @Override
+    public long getSize(String name) {
+        ZipEntry zipEntry = entries.get(name);
+        return zipEntry != null ? zipEntry.getSize() : -1;
+    }
+
+    @Override
+    public long getModified(String name) {
+        ZipEntry zipEntry = entries.get(name);
+        return zipEntry != null ? zipEntry.getTime() : -1;
+    }
+
+    @Override
+    public long getChecksum(String name) {
+        ZipEntry zipEntry = entries.get(name);
+        return zipEntry != null ? zipEntry.getCrc() : -1;
+    }
+
+    public void close() throws IOException {
+        zip.close();
+    }
+}
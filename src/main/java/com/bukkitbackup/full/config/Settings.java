@@ -1,9 +1,9 @@
 package com.bukkitbackup.full.config;
 
+import com.bukkitbackup.full.engine.BackupLimit;
+import com.bukkitbackup.full.engine.BackupSettings;
 import com.bukkitbackup.full.utils.LogUtils;
 import java.io.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import org.bukkit.configuration.file.FileConfiguration;
 import org.bukkit.configuration.file.YamlConfiguration;
 
@@ -12,16 +12,18 @@ import org.bukkit.configuration.file.YamlConfiguration;
  *
  * @author Domenic Horner (gamerx)
  */
-public final class Settings {
+public final class Settings implements BackupSettings {
 
     private static Strings strings;
-    private static FileConfiguration settings;
+    private final File configFile;
+    private volatile FileConfiguration settings;
     public boolean useMaxSizeBackup = false;
 
     public Settings(File configFile, Strings strings) {
         
         // Populate the strings variable.
         Settings.strings = strings;
+        this.configFile = configFile;
 
         try {
 
@@ -63,15 +65,43 @@ public final class Settings {
                 }
             }
 
-            // Initialize the configuration, and populate with settings.
-            settings = new YamlConfiguration();
-            settings.load(configFile);
+        } catch (Exception e) {
+            LogUtils.exceptionLog(e, "Failed to create configuration.");
+        }
 
+        // Initialize the configuration, and populate with settings.
+        settings = new YamlConfiguration();
+        try {
+            settings.load(configFile);
         } catch (Exception e) {
             LogUtils.exceptionLog(e, "Failed to load configuration.");
         }
     }
 
+    /**
+     * Reloads the configuration file from disk. The new configuration is
+     * loaded completely before it replaces the current one, so callers never
+     * see a half-loaded file. If loading fails, the current one is kept.
+     *
+     * @return True if the new configuration is in use, false otherwise.
+     */
+    public boolean reload() {
+
+        // Load into a fresh configuration first.
+        FileConfiguration newSettings = new YamlConfiguration();
+        try {
+            newSettings.load(configFile);
+        } catch (Exception e) {
+            LogUtils.exceptionLog(e, "Failed to reload configuration, keeping previous settings.");
+            return false;
+        }
+
+        // Swap it in, and reset values derived from the old one.
+        settings = newSettings;
+        useMaxSizeBackup = false;
+        return true;
+    }
+
     public void checkSettingsVersion(String requiredVersion) {
 
         // Get the version information from the file.
@@ -119,49 +149,12 @@ public final class Settings {
     }
 
     public long getBackupLimits() {
-        String limitSetting = getStringProperty("maxbackups", "25").trim().toLowerCase();
-
-        // If it is null or set to disable.
-        if (limitSetting.equals("-1")) {
-            return 0L;
-        }
-
-        // If it is just a number, return minutes.
-        if (limitSetting.matches("^[0-9]+$")) {
-            LogUtils.sendDebug("Max Backups: Amount (M:0011)");
-
-            return Long.parseLong(limitSetting);
-        } else if (limitSetting.matches("^[0-9]+[a-z]$")) {
-            LogUtils.sendDebug("Max Backups: Size (M:0010)");
-
-            useMaxSizeBackup = true;
-            Pattern timePattern = Pattern.compile("^([0-9]+)[a-z]$");
-            Matcher amountTime = timePattern.matcher(limitSetting);
-            Pattern letterPattern = Pattern.compile("^[0-9]+([a-z])$");
-            Matcher letterTime = letterPattern.matcher(limitSetting);
-            if (letterTime.matches() && amountTime.matches()) {
-                String letter = letterTime.group(1);
-                long bytes = Long.parseLong(amountTime.group(1));
-
-                if (letter.equals("k")) {
-                    return bytes * 1024L;
-                } else if (letter.equals("m")) {
-                    return bytes * 1048576L;
-                } else if (letter.equals("g")) {
-                    return bytes * 1073741824L;
-                } else {
-                    LogUtils.sendLog(strings.getString("unknownsizeident"));
-                    return bytes;
-                }
-            } else {
-                LogUtils.sendLog(strings.getString("checksizelimit"));
-                return 0L;
-            }
-        } else {
-            LogUtils.sendDebug("Max Backups: Unknown (M:0012)");
+        BackupLimit parsedLimit = BackupLimit.parse(getStringProperty("maxbackups", "25"), strings);
+        useMaxSizeBackup = parsedLimit.bySize;
+        return parsedLimit.limit;
+    }
 
-            LogUtils.sendLog(strings.getString("checksizelimit"));
-            return 0L;
-        }
+    public boolean isMaxSizeBackup() {
+        return useMaxSizeBackup;
     }
 }
@@ -1,5 +1,6 @@
 package com.bukkitbackup.full.config;
 
+import com.bukkitbackup.full.engine.BackupMessages;
 import com.bukkitbackup.full.utils.LogUtils;
 import java.io.*;
 import org.bukkit.configuration.file.FileConfiguration;
@@ -10,10 +11,10 @@ import org.bukkit.configuration.file.YamlConfiguration;
  *
  * @author Domenic Horner (gamerx)
  */
-public class Strings {
+public class Strings implements BackupMessages {
 
     private File stringsFile;
-    private FileConfiguration strings;
+    private volatile FileConfiguration strings;
 
     /**
      * Loads the strings configuration file. If it does not exist, it creates it
@@ -60,16 +61,30 @@ public class Strings {
 
     }
 
+    /**
+     * Reloads the strings file from disk, keeping the current strings if the
+     * file cannot be read.
+     */
+    public void reload() {
+        loadStrings();
+    }
+
     /**
      * Load strings configuration into memory from file.
      */
     private void loadStrings() {
-        strings = new YamlConfiguration();
+        FileConfiguration newStrings = new YamlConfiguration();
         try {
-            strings.load(stringsFile);
+            newStrings.load(stringsFile);
         } catch (Exception e) {
             LogUtils.exceptionLog(e, "Error loading strings file.");
+
+            // Keep what we had, if anything.
+            if (strings != null) {
+                return;
+            }
         }
+        strings = newStrings;
     }
 
     /**
@@ -0,0 +1,709 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.utils.ContentHash;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The catalog of backups in a backup folder, kept in catalog.tsv inside it.
+ * The file is only ever appended to: a line adds, moves or removes a backup,
+ * or records that one was copied to or removed from a mirror folder (see
+ * BackupMirror), and ends with a checksum of the line, so a line torn by a crash is skipped when
+ * the catalog is read. Each append is synced to disk.
+ *
+ * The catalog is held in memory, in time order and by world, and only the
+ * lines added since it was last read are read again. This lets the server list
+ * backups made by a worker process without scanning the folder, and retention
+ * choose what to delete without listing it. The engine creates the catalog from
+ * the zipped backups already in the folder, the first time it runs.
+ *
+ * Commands read the catalog on the main thread, so its lock is only held to
+ * read or append lines: backups are opened and hashed before it is taken.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupCatalog {
+
+    public static final String CATALOG_NAME = "catalog.tsv";
+    private static final String ADD = "add";
+    private static final String REMOVE = "remove";
+    private static final String MOVE = "move";
+    private static final String MIRROR = "mirror";
+    private static final String UNMIRROR = "unmirror";
+    private static final int COMPACT_MIN_REMOVED = 64;
+    private static final Map<String, BackupCatalog> catalogs = new HashMap<String, BackupCatalog>();
+
+    private final File backupFolder;
+    private final File catalogFile;
+    private final Object importLock = new Object();
+
+    // Entries oldest first, and indexes into them.
+    private final List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+    private final Map<String, CatalogEntry> entriesByPath = new HashMap<String, CatalogEntry>();
+    private final Map<String, List<CatalogEntry>> entriesByWorld = new HashMap<String, List<CatalogEntry>>();
+
+    // The paths of the backups in each mirror folder.
+    private final Map<String, Set<String>> mirrored = new HashMap<String, Set<String>>();
+
+    // How much of which file has been read, and how many removals it holds.
+    private long loadedLength = 0;
+    private Object loadedFileKey = null;
+    private int removedCount = 0;
+
+    private BackupCatalog(File backupFolder) {
+        this.backupFolder = backupFolder;
+        this.catalogFile = new File(backupFolder, CATALOG_NAME);
+    }
+
+    /**
+     * Gets the catalog of a backup folder. There is one instance for each
+     * folder, shared by the engine and the commands.
+     *
+     * @param backupFolder The backup folder.
+     * @return The catalog.
+     */
+    public static BackupCatalog forFolder(File backupFolder) {
+        String key = backupFolder.getAbsoluteFile().toPath().normalize().toString();
+        synchronized (catalogs) {
+            BackupCatalog catalog = catalogs.get(key);
+            if (catalog == null) {
+                catalog = new BackupCatalog(backupFolder.getAbsoluteFile());
+                catalogs.put(key, catalog);
+            }
+            return catalog;
+        }
+    }
+
+    /**
+     * Gets a page of backups, newest first.
+     *
+     * @param page The page, from 1.
+     * @param pageSize Backups on each page.
+     * @param worldName Only backups holding this world, or null for all.
+     * @return The backups on the page.
+     */
+    public synchronized List<CatalogEntry> getPage(int page, int pageSize, String worldName) {
+        refresh();
+        List<CatalogEntry> source = getEntries(worldName);
+        List<CatalogEntry> pageEntries = new ArrayList<CatalogEntry>(pageSize);
+        int first = source.size() - 1 - (page - 1) * pageSize;
+        for (int i = first; i >= 0 && i > first - pageSize; i--) {
+            pageEntries.add(source.get(i));
+        }
+        return pageEntries;
+    }
+
+    /**
+     * Counts the backups.
+     *
+     * @param worldName Only count backups holding this world, or null for all.
+     * @return The number of backups.
+     */
+    public synchronized int getCount(String worldName) {
+        refresh();
+        return getEntries(worldName).size();
+    }
+
+    /**
+     * Finds the newest backup of a world, by its ID or of any ID. Backups
+     * imported without a list of worlds may hold any world.
+     *
+     * @param id The backup's ID, or null for the newest.
+     * @param worldName The world.
+     * @return The backup, or null if there is none.
+     */
+    public synchronized CatalogEntry findBackup(String id, String worldName) {
+        refresh();
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            CatalogEntry entry = entries.get(i);
+            if ((id == null || entry.id.equals(id)) && !entry.kind.equals(CatalogEntry.KIND_PLUGINS)
+                    && (entry.hasWorld(worldName) || entry.worlds.isEmpty())) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a backup is in the catalog.
+     *
+     * @param path The backup's path, relative to the backup folder.
+     * @return True if it has not been removed.
+     */
+    public synchronized boolean hasBackup(String path) {
+        refresh();
+        return entriesByPath.containsKey(path);
+    }
+
+    /**
+     * Gets the archive or folder of a backup.
+     *
+     * @param entry The backup.
+     * @return The archive or folder.
+     */
+    public File getFile(CatalogEntry entry) {
+        return new File(backupFolder, entry.path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Gets the backup folder that this catalog is for.
+     *
+     * @return The folder.
+     */
+    public File getFolder() {
+        return backupFolder;
+    }
+
+    /**
+     * Gets the backups in the backup folder, or in a folder inside it such as
+     * a world's folder of a split backup, for retention.
+     *
+     * @param folder The folder.
+     * @return The backups, oldest first.
+     */
+    public synchronized List<CatalogEntry> getBackupsIn(File folder) {
+        refresh();
+        Path folderPath = folder.getAbsoluteFile().toPath().normalize();
+        if (folderPath.equals(backupFolder.toPath().normalize())) {
+            return new ArrayList<CatalogEntry>(entries);
+        }
+        String prefix = getRelativePath(folder);
+        List<CatalogEntry> folderEntries = new ArrayList<CatalogEntry>();
+        if (prefix != null) {
+            for (CatalogEntry entry : entries) {
+                if (entry.path.startsWith(prefix.concat("/"))) {
+                    folderEntries.add(entry);
+                }
+            }
+        }
+        return folderEntries;
+    }
+
+    private List<CatalogEntry> getEntries(String worldName) {
+        if (worldName == null) {
+            return entries;
+        }
+        List<CatalogEntry> worldEntries = entriesByWorld.get(worldName);
+        return worldEntries != null ? worldEntries : Collections.<CatalogEntry>emptyList();
+    }
+
+    /**
+     * Adds a finished backup to the catalog.
+     *
+     * @param id The backup's name.
+     * @param kind One of the CatalogEntry kinds.
+     * @param worlds The worlds in it.
+     * @param backup The archive, or the folder if it was not zipped.
+     * @param durationMillis How long the backup took.
+     */
+    public void addBackup(String id, String kind, List<String> worlds, File backup, long durationMillis) {
+        try {
+            CatalogEntry entry = describe(id, kind, worlds, backup, backup.lastModified(), durationMillis, true);
+            synchronized (this) {
+                refresh();
+                append(ADD, entry.toFields());
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to add " + backup + " to the backup catalog.");
+        }
+    }
+
+    /**
+     * Removes a deleted backup from the catalog.
+     *
+     * @param backup The archive or folder that was deleted.
+     */
+    public synchronized void removeBackup(File backup) {
+        refresh();
+        String path = getRelativePath(backup);
+        if (path != null && entriesByPath.containsKey(path)) {
+            try {
+                append(REMOVE, new String[]{path});
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to remove " + backup + " from the backup catalog.");
+            }
+        }
+    }
+
+    /**
+     * Records that a backup has been moved, such as into a shard folder.
+     *
+     * @param from Where the backup was.
+     * @param to Where it is now.
+     */
+    public synchronized void moveBackup(File from, File to) {
+        refresh();
+        String fromPath = getRelativePath(from);
+        String toPath = getRelativePath(to);
+        if (fromPath != null && toPath != null && entriesByPath.containsKey(fromPath)) {
+            try {
+                append(MOVE, new String[]{fromPath, toPath});
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to record the move of " + from + " in the backup catalog.");
+            }
+        }
+    }
+
+    /**
+     * Gets the backups that have been copied to a mirror folder, and not
+     * removed from it. They may since have been removed from this folder.
+     *
+     * @param mirrorFolder The mirror folder.
+     * @return The backups' paths, relative to either folder.
+     */
+    public synchronized Set<String> getMirrored(File mirrorFolder) {
+        refresh();
+        Set<String> paths = mirrored.get(getMirrorKey(mirrorFolder));
+        return paths != null ? new TreeSet<String>(paths) : new TreeSet<String>();
+    }
+
+    /**
+     * Records that a backup has been copied to a mirror folder.
+     *
+     * @param mirrorFolder The mirror folder.
+     * @param path The backup's path, relative to either folder.
+     */
+    public synchronized void addMirrored(File mirrorFolder, String path) {
+        refresh();
+        try {
+            append(MIRROR, new String[]{getMirrorKey(mirrorFolder), path});
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to record the mirroring of " + path + " in the backup catalog.");
+        }
+    }
+
+    /**
+     * Records that a backup has been removed from a mirror folder.
+     *
+     * @param mirrorFolder The mirror folder.
+     * @param path The backup's path, relative to either folder.
+     */
+    public synchronized void removeMirrored(File mirrorFolder, String path) {
+        refresh();
+        try {
+            append(UNMIRROR, new String[]{getMirrorKey(mirrorFolder), path});
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to record the removal of " + path + " from the mirror in the backup catalog.");
+        }
+    }
+
+    private static String getMirrorKey(File mirrorFolder) {
+        return mirrorFolder.getAbsoluteFile().toPath().normalize().toString();
+    }
+
+    /**
+     * Rewrites the catalog without the removed backups, if they make up most
+     * of it. Only the engine should do this, as it is the only writer.
+     */
+    public synchronized void compact() {
+        refresh();
+        if (removedCount < COMPACT_MIN_REMOVED || removedCount < entries.size()) {
+            return;
+        }
+        final int dropped = removedCount;
+        try {
+            rewrite(entries);
+            LogUtils.sendDebug(() -> String.format("Compacted the backup catalog, dropping %d removed backups. (M:0023)", dropped));
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to compact the backup catalog.");
+        }
+    }
+
+    /**
+     * Replaces the file with these backups and the mirrored ones, and reads it
+     * again. The caller holds the lock.
+     */
+    private void rewrite(List<CatalogEntry> backups) throws IOException {
+        File tempFile = new File(backupFolder, CATALOG_NAME + ".tmp");
+        try {
+            StringBuilder text = new StringBuilder(backups.size() * 128);
+            for (CatalogEntry entry : backups) {
+                text.append(toLine(ADD, entry.toFields()));
+            }
+            for (Map.Entry<String, Set<String>> mirror : mirrored.entrySet()) {
+                for (String path : mirror.getValue()) {
+                    text.append(toLine(MIRROR, new String[]{mirror.getKey(), path}));
+                }
+            }
+            writeSynced(tempFile, text.toString().getBytes("UTF-8"), false);
+            Files.move(tempFile.toPath(), catalogFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            tempFile.delete();
+        }
+        clear();
+        refresh();
+    }
+
+    /**
+     * Creates the catalog from the backups in the folder, if there is no
+     * catalog yet. This reads every archive, so it should not be done on the
+     * main thread, but the catalog can be read while it does.
+     */
+    public void createIfMissing() {
+        synchronized (importLock) {
+            if (!catalogFile.exists() && backupFolder.isDirectory()) {
+                importFolder();
+            }
+        }
+    }
+
+    /**
+     * Checks whether the catalog has been created.
+     *
+     * @return True if the file exists.
+     */
+    public boolean exists() {
+        return catalogFile.exists();
+    }
+
+    /**
+     * Reads whatever has been added to the file since it was last read.
+     */
+    private void refresh() {
+        if (!catalogFile.exists()) {
+            clear();
+            return;
+        }
+        long length = catalogFile.length();
+        Object fileKey = getFileKey();
+        if (length < loadedLength || (fileKey != null && !fileKey.equals(loadedFileKey))) {
+
+            // Rewritten by another process, so start again.
+            clear();
+            loadedFileKey = fileKey;
+        }
+        if (length == loadedLength) {
+            return;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(catalogFile, "r");
+            byte[] data;
+            try {
+                file.seek(loadedLength);
+                data = new byte[(int) (file.length() - loadedLength)];
+                file.readFully(data);
+            } finally {
+                file.close();
+            }
+
+            // Only whole lines, as the last may still be being written.
+            int start = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] == '\n') {
+                    applyLine(new String(data, start, i - start, "UTF-8"));
+                    start = i + 1;
+                }
+            }
+            loadedLength += start;
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read the backup catalog.");
+        }
+    }
+
+    private Object getFileKey() {
+        try {
+            return Files.readAttributes(catalogFile.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException ioe) {
+            return null;
+        }
+    }
+
+    private void clear() {
+        entries.clear();
+        entriesByPath.clear();
+        entriesByWorld.clear();
+        mirrored.clear();
+        loadedLength = 0;
+        removedCount = 0;
+    }
+
+    private void applyLine(String line) {
+        int lastTab = line.lastIndexOf('\t');
+        if (lastTab < 0 || !line.substring(lastTab + 1).equals(getChecksum(line.substring(0, lastTab)))) {
+            LogUtils.sendDebug(() -> String.format("Skipped a damaged catalog line: %s (M:0024)", line));
+            return;
+        }
+        String[] fields = line.substring(0, lastTab).split("\t");
+        try {
+            if (fields[0].equals(ADD)) {
+                CatalogEntry entry = CatalogEntry.fromFields(Arrays.copyOfRange(fields, 1, fields.length));
+                if (entriesByPath.containsKey(entry.path)) {
+                    unindex(entriesByPath.get(entry.path));
+                }
+                entries.add(entry);
+                entriesByPath.put(entry.path, entry);
+                for (String world : entry.worlds) {
+                    List<CatalogEntry> worldEntries = entriesByWorld.get(world);
+                    if (worldEntries == null) {
+                        worldEntries = new ArrayList<CatalogEntry>();
+                        entriesByWorld.put(world, worldEntries);
+                    }
+                    worldEntries.add(entry);
+                }
+            } else if (fields[0].equals(MOVE) && fields.length == 3) {
+                CatalogEntry entry = entriesByPath.remove(fields[1]);
+                if (entry != null) {
+                    CatalogEntry moved = entry.withPath(fields[2]);
+                    entries.set(entries.indexOf(entry), moved);
+                    entriesByPath.put(moved.path, moved);
+                    for (String world : entry.worlds) {
+                        List<CatalogEntry> worldEntries = entriesByWorld.get(world);
+                        worldEntries.set(worldEntries.indexOf(entry), moved);
+                    }
+                }
+            } else if (fields[0].equals(REMOVE) && fields.length == 2) {
+                CatalogEntry entry = entriesByPath.get(fields[1]);
+                if (entry != null) {
+                    unindex(entry);
+                }
+                removedCount++;
+            } else if (fields[0].equals(MIRROR) && fields.length == 3) {
+                Set<String> paths = mirrored.get(fields[1]);
+                if (paths == null) {
+                    paths = new TreeSet<String>();
+                    mirrored.put(fields[1], paths);
+                }
+                paths.add(fields[2]);
+            } else if (fields[0].equals(UNMIRROR) && fields.length == 3) {
+                Set<String> paths = mirrored.get(fields[1]);
+                if (paths != null) {
+                    paths.remove(fields[2]);
+                }
+                removedCount++;
+            }
+        } catch (IllegalArgumentException iae) {
+            LogUtils.sendDebug(() -> String.format("Skipped a malformed catalog line: %s (M:0024)", line));
+        }
+    }
+
+    private void unindex(CatalogEntry entry) {
+        entries.remove(entry);
+        entriesByPath.remove(entry.path);
+        for (String world : entry.worlds) {
+            List<CatalogEntry> worldEntries = entriesByWorld.get(world);
+            if (worldEntries != null) {
+                worldEntries.remove(entry);
+            }
+        }
+    }
+
+    /**
+     * Appends a line to the file, and reads it back into memory.
+     */
+    private void append(String type, String[] fields) throws IOException {
+        FileUtils.checkFolderAndCreate(backupFolder);
+
+        // Finish a line torn by a crash, so it does not swallow this one.
+        String line = toLine(type, fields);
+        long length = catalogFile.length();
+        if (length > 0) {
+            RandomAccessFile file = new RandomAccessFile(catalogFile, "r");
+            try {
+                file.seek(length - 1);
+                if (file.read() != '\n') {
+                    line = "\n".concat(line);
+                }
+            } finally {
+                file.close();
+            }
+        }
+        writeSynced(catalogFile, line.getBytes("UTF-8"), true);
+        refresh();
+    }
+
+    static String toLine(String type, String[] fields) {
+        StringBuilder line = new StringBuilder(type);
+        for (String field : fields) {
+            line.append('\t').append(field);
+        }
+        String text = line.toString();
+        return text.concat("\t").concat(getChecksum(text)).concat("\n");
+    }
+
+    static String getChecksum(String text) {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(text.getBytes("UTF-8"));
+        } catch (IOException ioe) {
+            // UTF-8 is always supported.
+        }
+        return String.format(Locale.ROOT, "%08x", crc.getValue());
+    }
+
+    static void writeSynced(File file, byte[] data, boolean append) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, append);
+        try {
+            out.write(data);
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Builds the catalog from the zipped backups already in the folder. Their
+     * kind is guessed from where they are, and how long they took is unknown.
+     */
+    private void importFolder() {
+        List<CatalogEntry> found = new ArrayList<CatalogEntry>();
+        File[] items = BackupLayout.listBackups(backupFolder);
+        if (items != null) {
+            for (File item : items) {
+                if (isArchive(item)) {
+                    found.add(describeQuietly(CatalogEntry.KIND_FULL, Collections.<String>emptyList(), item));
+                } else if (item.isDirectory()) {
+
+                    // Folders of a split backup, perhaps in a world container.
+                    importSplitFolder(item, found, true);
+                }
+            }
+        }
+        found.removeAll(Collections.singleton(null));
+        synchronized (this) {
+
+            // Backups may have been added while the folder was read.
+            refresh();
+            int imported = found.size();
+            for (CatalogEntry entry : entries) {
+                if (!containsPath(found, entry.path)) {
+                    found.add(entry);
+                }
+            }
+            Collections.sort(found, new Comparator<CatalogEntry>() {
+
+                public int compare(CatalogEntry a, CatalogEntry b) {
+                    return a.time < b.time ? -1 : (a.time > b.time ? 1 : 0);
+                }
+            });
+            try {
+                rewrite(found);
+                LogUtils.sendLog("Created the backup catalog, with " + imported + " existing backups.");
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to create the backup catalog.");
+            }
+        }
+    }
+
+    private static boolean containsPath(List<CatalogEntry> backups, String path) {
+        for (CatalogEntry entry : backups) {
+            if (entry.path.equals(path)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void importSplitFolder(File folder, List<CatalogEntry> found, boolean mayBeContainer) {
+        File[] items = BackupLayout.listBackups(folder);
+        if (items == null) {
+            return;
+        }
+        boolean isPlugins = folder.getName().equals("plugins");
+        for (File item : items) {
+            if (isArchive(item)) {
+                found.add(describeQuietly(isPlugins ? CatalogEntry.KIND_PLUGINS : CatalogEntry.KIND_WORLD,
+                        isPlugins ? Collections.<String>emptyList() : Collections.singletonList(folder.getName()), item));
+            } else if (item.isDirectory() && mayBeContainer && !isPlugins) {
+                importSplitFolder(item, found, false);
+            }
+        }
+    }
+
+    private static boolean isArchive(File item) {
+        return BackupArchive.isArchive(item);
+    }
+
+    private CatalogEntry describeQuietly(String kind, List<String> worlds, File backup) {
+        try {
+            String id = BackupArchive.getBaseName(backup);
+            return describe(id, kind, worlds, backup, backup.lastModified(), 0, false);
+        } catch (IOException ioe) {
+            LogUtils.sendDebug(() -> String.format("Could not read %s for the catalog. (M:0024)", backup));
+            return null;
+        }
+    }
+
+    /**
+     * Reads the size, file count and compression of a backup.
+     */
+    private CatalogEntry describe(String id, String kind, List<String> worlds, File backup, long time, long durationMillis, boolean withChecksum) throws IOException {
+        String path = getRelativePath(backup);
+        if (path == null) {
+            throw new IOException(backup + " is not in " + backupFolder + ".");
+        }
+        long size;
+        long fileCount = 0;
+        long contentSize = 0;
+        String checksum = "-";
+        if (backup.isDirectory()) {
+            size = FileUtils.getTotalFolderSize(backup);
+            fileCount = countFiles(backup);
+            contentSize = size;
+        } else {
+            size = backup.length();
+            BackupArchive archive = BackupArchive.open(backup);
+            try {
+                for (String name : archive.getNames()) {
+                    fileCount++;
+                    contentSize += Math.max(0, archive.getSize(name));
+                }
+            } finally {
+                archive.close();
+            }
+            if (withChecksum) {
+                checksum = String.format(Locale.ROOT, "crc32:%08x", ContentHash.crc32(backup));
+            }
+        }
+        long ratioPermille = contentSize > 0 ? size * 1000L / contentSize : 1000L;
+        return new CatalogEntry(time, id, kind, worlds, path, size, fileCount, durationMillis, ratioPermille, checksum);
+    }
+
+    private static long countFiles(File folder) {
+        long count = 0;
+        File[] items = folder.listFiles();
+        if (items != null) {
+            for (File item : items) {
+                count += item.isDirectory() ? countFiles(item) : 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Gets the path of a backup in the catalog.
+     *
+     * @param backup The archive or folder.
+     * @return The path, relative to the backup folder, or null if it is not
+     * in it.
+     */
+    private String getRelativePath(File backup) {
+        Path folderPath = backupFolder.toPath().normalize();
+        Path backupPath = backup.getAbsoluteFile().toPath().normalize();
+        if (!backupPath.startsWith(folderPath) || backupPath.equals(folderPath)) {
+            return null;
+        }
+        return folderPath.relativize(backupPath).toString().replace(File.separatorChar, '/');
+    }
+}
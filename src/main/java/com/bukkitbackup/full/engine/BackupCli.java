@@ -0,0 +1,239 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.ArchiveEncryption;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Runs a backup from the command line, without a server. It reads the
+ * plugin's config.yml and strings.yml, so it behaves like the plugin does. The
+ * server should be stopped, or have saving turned off, while it runs.
+ *
+ * Usage: java -cp Backup.jar com.bukkitbackup.full.engine.BackupCli
+ * [--server .] [--world-container path] [--worlds world,world_nether]
+ * [--config path] [--strings path] [--set key=value]... [--debug true]
+ * [--worker true] [--restore latest|backup --restore-world world
+ * [--restore-path path | --restore-chunks x,z[;x,z]...]]
+ *
+ * With "--worker true" it is the plugin's compression worker, and reports to
+ * the server as described in WorkerProtocol.
+ *
+ * If replication is set up, the new backup is then uploaded, along with any
+ * earlier backups that were not, before it exits.
+ *
+ * With "--restore" it restores a world, or a folder or file of it, from the
+ * catalog instead of backing up. With "--restore-chunks" it rolls back only
+ * those chunks. The server must be stopped.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupCli {
+
+    public static void main(String[] args) {
+        File serverFolder = new File(".");
+        String worldContainerPath = ".";
+        List<String> worldNames = null;
+        File configFile = null;
+        File stringsFile = null;
+        boolean debugMode = false;
+        boolean workerMode = false;
+        String restoreId = null;
+        String restoreWorld = null;
+        String restorePath = "";
+        String restoreChunks = null;
+        List<String> overrides = new ArrayList<String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            if (args[i].equals("--server")) {
+                serverFolder = new File(value);
+            } else if (args[i].equals("--world-container")) {
+                worldContainerPath = value;
+            } else if (args[i].equals("--worlds")) {
+                worldNames = Arrays.asList(value.split(","));
+            } else if (args[i].equals("--config")) {
+                configFile = new File(value);
+            } else if (args[i].equals("--strings")) {
+                stringsFile = new File(value);
+            } else if (args[i].equals("--set")) {
+                overrides.add(value);
+            } else if (args[i].equals("--debug")) {
+                debugMode = Boolean.parseBoolean(value);
+            } else if (args[i].equals("--worker")) {
+                workerMode = Boolean.parseBoolean(value);
+            } else if (args[i].equals("--restore")) {
+                restoreId = value;
+            } else if (args[i].equals("--restore-world")) {
+                restoreWorld = value;
+            } else if (args[i].equals("--restore-path")) {
+                restorePath = value;
+            } else if (args[i].equals("--restore-chunks")) {
+                restoreChunks = value;
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        // Default to the plugin's own files.
+        File dataFolder = new File(serverFolder, "plugins" + File.separator + "Backup");
+        if (configFile == null) {
+            configFile = new File(dataFolder, "config.yml");
+        }
+        if (stringsFile == null) {
+            stringsFile = new File(dataFolder, "strings.yml");
+        }
+
+        // Like the server's, the world container is relative to its folder.
+        // When it is the server's folder, its name is ".", as on a server.
+        File worldContainer = new File(worldContainerPath);
+        if (!worldContainer.isAbsolute()) {
+            worldContainer = new File(serverFolder, worldContainerPath);
+        }
+
+        // One line per message on the console.
+        if (System.getProperty("java.util.logging.SimpleFormatter.format") == null) {
+            System.setProperty("java.util.logging.SimpleFormatter.format", "%5$s%6$s%n");
+        }
+        // A worker keeps its debug.log apart from the server's.
+        File logFolder = dataFolder.isDirectory() ? dataFolder : serverFolder;
+        if (workerMode) {
+            logFolder = new File(configFile.getAbsoluteFile().getParentFile(), "worker");
+            FileUtils.checkFolderAndCreate(logFolder);
+        }
+        LogUtils.initLogUtils(Logger.getLogger("Backup"), workerMode ? "Worker" : "Backup", logFolder);
+        LogUtils.finishInitLogUtils(true, debugMode);
+        FileSettings strings = new FileSettings(stringsFile, "/resources/strings.yml", null);
+        FileSettings settings = new FileSettings(configFile, "/resources/config.yml", strings);
+        for (String override : overrides) {
+            String[] pair = override.split("=", 2);
+            settings.set(pair[0], pair.length > 1 ? pair[1] : "");
+        }
+
+        // Paths in the config are relative to the server's folder.
+        resolvePath(settings, "backuppath", serverFolder);
+        resolvePath(settings, "tempfoldername", serverFolder);
+        resolvePath(settings, "mirrorpath", serverFolder);
+        resolvePath(settings, "encryptkeyfile", serverFolder);
+        resolveCopyPaths(settings, serverFolder);
+
+        // Restores need the key as much as backups do.
+        ArchiveEncryption.setKeyFile(settings.getStringProperty("encryptkeyfile", ""));
+
+        if (restoreId != null) {
+            System.exit(restore(settings, worldContainer, restoreId, restoreWorld, restorePath, restoreChunks));
+        }
+
+        FolderBackupSource source = new FolderBackupSource(serverFolder, worldContainer, worldNames);
+        LogUtils.sendLog("Backing up " + source.getWorldNames() + " from " + worldContainer.toPath().toAbsolutePath().normalize() + ".");
+        BackupEngine engine = new BackupEngine(source, settings, strings);
+        BackupEngine.backupInProgress.set(true);
+        if (workerMode) {
+            WorkerProtocol.startReporting(System.out);
+        }
+        String backupName;
+        try {
+            backupName = engine.doBackup();
+            engine.deleteTempFolder();
+        } finally {
+            BackupEngine.backupInProgress.set(false);
+        }
+        if (workerMode) {
+            WorkerProtocol.finishReporting(System.out, backupName);
+        } else {
+            LogUtils.sendLog(backupName != null ? "Finished backup " + backupName + "." : "The backup failed.");
+            if (BackupReplicator.configure(settings)) {
+                BackupReplicator.replicate(BackupCatalog.forFolder(new File(settings.getStringProperty("backuppath", "backups"))));
+                BackupReplicator.shutdown();
+            }
+            for (String line : BackupStats.getSummary()) {
+                LogUtils.sendLog(line);
+            }
+        }
+        LogUtils.shutdown();
+        System.exit(BackupStats.BACKUP_FAILURES.get() > 0 ? 1 : 0);
+    }
+
+    private static int restore(FileSettings settings, File worldContainer, String backupId, String worldName, String path, String chunks) {
+        int exitCode = 0;
+        if (worldName == null) {
+            System.err.println("--restore needs --restore-world.");
+            exitCode = 2;
+        } else {
+            BackupCatalog catalog = BackupCatalog.forFolder(new File(settings.getStringProperty("backuppath", "backups")));
+            BackupRestore restore = new BackupRestore(worldContainer);
+            catalog.createIfMissing();
+            try {
+                if (chunks != null) {
+                    rollback(catalog, worldContainer, backupId, worldName, chunks);
+                } else {
+                    int files = restore.stage(catalog, backupId, worldName, path);
+                    LogUtils.sendLog("Staged " + files + " files.");
+                    restore.apply(worldName);
+                }
+            } catch (FileNotFoundException fnfe) {
+                LogUtils.sendLog(fnfe.getMessage());
+                exitCode = 1;
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to restore " + worldName + ".");
+                exitCode = 1;
+            } catch (IllegalArgumentException iae) {
+                LogUtils.sendLog(iae.getMessage());
+                exitCode = 2;
+            }
+        }
+        LogUtils.shutdown();
+        return exitCode;
+    }
+
+    private static void rollback(BackupCatalog catalog, File worldContainer, String backupId, String worldName, String chunks) throws IOException {
+        List<Long> keys = new ArrayList<Long>();
+        for (String chunk : chunks.split(";")) {
+            String[] coordinates = chunk.split(",");
+            if (coordinates.length != 2) {
+                throw new IllegalArgumentException("Chunks are given as x,z;x,z, not " + chunk + ".");
+            }
+            keys.add(ChunkRollback.getKey(Integer.parseInt(coordinates[0].trim()), Integer.parseInt(coordinates[1].trim())));
+        }
+        ChunkRollback rollback = new ChunkRollback(worldContainer, worldName);
+        int found = rollback.extract(catalog, backupId, keys);
+        rollback.apply(rollback.getChunks(), false);
+        LogUtils.sendLog("Rolled back " + keys.size() + " chunks of " + worldName + ", " + (keys.size() - found) + " of them were not in the backup.");
+    }
+
+    private static void resolvePath(FileSettings settings, String property, File serverFolder) {
+        String path = settings.getStringProperty(property, "");
+        if (!path.isEmpty() && !new File(path).isAbsolute()) {
+            settings.set(property, new File(serverFolder, path).getPath());
+        }
+    }
+
+    private static void resolveCopyPaths(FileSettings settings, File serverFolder) {
+        StringBuilder resolved = new StringBuilder();
+        for (String item : settings.getStringProperty("copypaths", "").split(";")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int equals = item.lastIndexOf('=');
+            String path = equals < 0 ? item : item.substring(0, equals).trim();
+            if (!new File(path).isAbsolute()) {
+                path = new File(serverFolder, path).getPath();
+            }
+            if (resolved.length() > 0) {
+                resolved.append(';');
+            }
+            resolved.append(path).append(equals < 0 ? "" : item.substring(equals));
+        }
+        settings.set("copypaths", resolved.toString());
+    }
+}
@@ -0,0 +1,71 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.utils.FileUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Another folder that each archive is copied to as it is written, from the
+ * "copypaths" setting. Each folder has its own catalog, so it can be restored
+ * from on its own, and its own limit on the backups it keeps.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupDestination {
+
+    public final File folder;
+    public final long backupLimit;
+    public final boolean useMaxSizeBackup;
+    public final BackupCatalog catalog;
+
+    private BackupDestination(File folder, long backupLimit, boolean useMaxSizeBackup) {
+        this.folder = folder;
+        this.backupLimit = backupLimit;
+        this.useMaxSizeBackup = useMaxSizeBackup;
+        this.catalog = BackupCatalog.forFolder(folder);
+    }
+
+    /**
+     * Parses the setting, a list of folders separated by ";". Each may be
+     * followed by "=" and a limit like "maxbackups", such as
+     * "/mnt/disk2/backups=10; D:\Backups=5g".
+     *
+     * @param setting The value of "copypaths".
+     * @param backupLimit The limit of folders without their own.
+     * @param useMaxSizeBackup Whether that limit is a size.
+     * @param strings Messages for a malformed limit.
+     * @return The folders.
+     */
+    public static List<BackupDestination> parse(String setting, long backupLimit, boolean useMaxSizeBackup, BackupMessages strings) {
+        List<BackupDestination> destinations = new ArrayList<BackupDestination>();
+        for (String item : setting.split(";")) {
+            item = item.trim();
+            if (item.isEmpty()) {
+                continue;
+            }
+            int equals = item.lastIndexOf('=');
+            if (equals < 0) {
+                destinations.add(new BackupDestination(new File(item), backupLimit, useMaxSizeBackup));
+            } else {
+                BackupLimit limit = BackupLimit.parse(item.substring(equals + 1), strings);
+                destinations.add(new BackupDestination(new File(item.substring(0, equals).trim()), limit.limit, limit.bySize));
+            }
+        }
+        return destinations;
+    }
+
+    /**
+     * Finds where a backup goes in this folder.
+     *
+     * @param backup The backup, in the backup folder.
+     * @param backupFolder The backup folder.
+     * @return Its copy, which may not exist, or null if it is not in the
+     * backup folder.
+     */
+    public File getCopy(File backup, File backupFolder) {
+        return FileUtils.relocate(backup, backupFolder, folder);
+    }
+}
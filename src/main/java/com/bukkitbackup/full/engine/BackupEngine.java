@@ -0,0 +1,732 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.ArchiveEncryption;
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.archive.EncryptionKey;
+import com.bukkitbackup.full.stats.BackupProgress;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.stats.jfr.BackupEvents;
+import com.bukkitbackup.full.utils.ArchiveOptions;
+import com.bukkitbackup.full.utils.BufferPool;
+import com.bukkitbackup.full.utils.ContentHash;
+import com.bukkitbackup.full.utils.FileUtils;
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.RetentionUtils;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Performs a backup: copies and archives the worlds and plugins, then removes
+ * old backups. Nothing in this package depends on Bukkit, so the engine can
+ * run inside the plugin (see BackupTask), from BackupCli, or from a benchmark.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupEngine {
+
+    // Held by whatever is using the backup folders: a backup, the recovery of
+    // an interrupted one, a restore or a rollback. Take it with
+    // compareAndSet(false, true), never by checking and then setting it.
+    public static final AtomicBoolean backupInProgress = new AtomicBoolean(false);
+    private final BackupSource source;
+    private final BackupMessages strings;
+    private final boolean backupEverything;
+    private final boolean splitBackup;
+    private final boolean shouldZIP;
+    private final boolean useTemp;
+    private final boolean backupWorlds;
+    private final boolean backupPlugins;
+    private final long backupLimit;
+    private final boolean useMaxSizeBackup;
+    private final String dateFormat;
+    private final String worldContainer;
+    private final String backupPath;
+    private final String tempDestination;
+    private final BackupCatalog catalog;
+    private final BackupLayout layout;
+    private final BackupJournal journal;
+    private final BackupMirror mirror;
+    private final List<BackupDestination> destinations;
+    private final ArchiveOptions archiveOptions;
+    private final long ioBufferMemory;
+
+    // Tasks.
+    private final BackupWorlds worldBackupTask;
+    private final BackupPlugins pluginBackupTask;
+    private final BackupEverything everythingBackupTask;
+
+    /**
+     * All settings are read when the engine is created, so a backup that is
+     * in progress is not affected by a configuration reload.
+     *
+     * @param source Where to find the worlds and plugins.
+     * @param settings The settings to use.
+     * @param strings The messages to log.
+     */
+    public BackupEngine(BackupSource source, BackupSettings settings, BackupMessages strings) {
+        this.source = source;
+        this.strings = strings;
+
+        // The worlds container, if any.
+        worldContainer = source.getWorldContainer().getName();
+
+        // Load settings.
+        backupPath = settings.getStringProperty("backuppath", "backups");
+        backupEverything = settings.getBooleanProperty("backupeverything", false);
+        splitBackup = settings.getBooleanProperty("splitbackup", false);
+        shouldZIP = settings.getBooleanProperty("zipbackup", true);
+        useTemp = settings.getBooleanProperty("usetemp", true);
+        backupWorlds = settings.getBooleanProperty("backupworlds", true);
+        backupPlugins = settings.getBooleanProperty("backupplugins", true);
+        backupLimit = settings.getBackupLimits();
+        useMaxSizeBackup = settings.isMaxSizeBackup();
+        dateFormat = settings.getStringProperty("dateformat", "%1$tY-%1$tm-%1$td-%1$tH-%1$tM-%1$tS");
+        ioBufferMemory = settings.getIntProperty("iobuffermemory", 8) * FileUtils.ONE_MB;
+        catalog = BackupCatalog.forFolder(new File(backupPath));
+        layout = BackupLayout.fromSettings(settings);
+        journal = new BackupJournal(new File(backupPath));
+        String mirrorPath = settings.getStringProperty("mirrorpath", "");
+        mirror = mirrorPath.equals("") ? null : new BackupMirror(new File(mirrorPath), catalog);
+        destinations = BackupDestination.parse(settings.getStringProperty("copypaths", ""), backupLimit, useMaxSizeBackup, strings);
+        List<File> copyFolders = new ArrayList<File>();
+        for (BackupDestination destination : destinations) {
+            copyFolders.add(destination.folder);
+        }
+
+        // The key is loaded here too, so every archive of a backup is written
+        // with the same one, whatever a reload does to it meanwhile.
+        boolean indexed = settings.getStringProperty("archiveformat", "zip").equalsIgnoreCase("indexed");
+        EncryptionKey encryptionKey = ArchiveEncryption.loadKey(settings.getStringProperty("encryptkeyfile", ""));
+        archiveOptions = new ArchiveOptions(indexed, encryptionKey, new File(backupPath), copyFolders);
+
+        // Import backup tasks.
+        everythingBackupTask = new BackupEverything(source, settings, journal, archiveOptions);
+        worldBackupTask = new BackupWorlds(source, settings, strings, journal, archiveOptions);
+        pluginBackupTask = new BackupPlugins(source, settings, strings, journal, archiveOptions);
+
+        // Generate the worldStore.
+        if (useTemp) {
+            String tempFolder = settings.getStringProperty("tempfoldername", "");
+            if (!tempFolder.equals("")) { // Absolute.
+                tempDestination = tempFolder.concat(FILE_SEPARATOR);
+            } else { // Relative.
+                tempDestination = backupPath.concat(FILE_SEPARATOR).concat("temp").concat(FILE_SEPARATOR);
+            }
+        } else { // No temp folder.
+            tempDestination = backupPath.concat(FILE_SEPARATOR);
+        }
+    }
+
+    /**
+     * Performs the backup, and removes old backups. Any exception is logged
+     * and counted as a failure, so the caller can always finish up.
+     *
+     * @return The name of the backup, or null if it failed part way.
+     */
+    public String doBackup() {
+        try {
+            return performBackup();
+        } catch (Exception e) {
+            LogUtils.exceptionLog(e, "Failed to backup: unexpected exception.");
+            BackupStats.BACKUP_FAILURES.inc();
+            return null;
+        }
+    }
+
+    private String performBackup() {
+
+        // Record when we started, for the statistics.
+        long startNanos = System.nanoTime();
+        long filesCopiedAtStart = BackupStats.FILES_COPIED.get();
+
+        // Get this instances folder name, set variables.
+        Calendar backupTime = Calendar.getInstance();
+        String thisBackupName = getBackupName(backupTime);
+
+        // Where it goes in the backup folders, which may be in a shard.
+        String thisBackupFile = layout.getShardPath(backupTime).concat(thisBackupName);
+
+        long bytesAtStart = BackupStats.BYTES_WRITTEN.get();
+        Object backupEvent = BackupEvents.beginPhase("backup", thisBackupName);
+        BackupProgress.begin();
+
+        // The pool is shared by the whole process, so its limit is set by the
+        // backup that is about to use it, not when an engine is created.
+        BufferPool.setMemoryLimit(ioBufferMemory);
+
+        // The catalog is created from the existing backups the first time,
+        // an interrupted backup is finished, and backups made before a change
+        // of layout are moved into it.
+        catalog.createIfMissing();
+        for (BackupDestination destination : destinations) {
+            destination.catalog.createIfMissing();
+        }
+        recoverInterrupted();
+        migrateLayout();
+        journal.begin(thisBackupName);
+
+        // Check if backupeverything enabled.
+        if (backupEverything) {
+
+            // Start the BackupEverything class.
+            BackupProgress.setPhase("everything");
+            try {
+                everythingBackupTask.doEverything(thisBackupFile);
+            } catch (Exception e) {
+                LogUtils.exceptionLog(e, "Failed to backup worlds: Exception in BackupWorlds.");
+                BackupStats.BACKUP_FAILURES.inc();
+            }
+        } else {
+
+            // A non-split backup is one archive, of the worlds and plugins.
+            if (!splitBackup) {
+                List<String> worldNames = backupWorlds ? worldBackupTask.getWorldsToBackup() : Collections.<String>emptyList();
+                journal.unit(CatalogEntry.KIND_FULL, tempDestination.concat(thisBackupFile), backupPath.concat(FILE_SEPARATOR).concat(thisBackupFile), worldNames);
+            }
+
+            // Check if we should be backing up worlds.
+            if (backupWorlds) {
+
+                // Attempt to backup worlds.
+                try {
+                    worldBackupTask.doWorlds(thisBackupFile);
+                } catch (Exception e) {
+                    LogUtils.exceptionLog(e, "Failed to backup worlds: Exception in BackupWorlds.");
+                    BackupStats.BACKUP_FAILURES.inc();
+                }
+            } else {
+                LogUtils.sendLog(strings.getString("skipworlds"));
+            }
+
+            // Check if we should be backing up plugins.
+            if (backupPlugins) {
+
+                // Attempt to backup plugins.
+                BackupProgress.setPhase("plugins");
+                try {
+                    pluginBackupTask.doPlugins(thisBackupFile);
+                } catch (Exception e) {
+                    LogUtils.exceptionLog(e, "Failed to backup plugins: Exception in BackupPlugins.");
+                    BackupStats.BACKUP_FAILURES.inc();
+                }
+            } else {
+                LogUtils.sendLog(strings.getString("skipplugins"));
+            }
+
+            // If this is a non-split backup, we need to ZIP the whole thing.
+            if (!splitBackup) {
+                BackupProgress.setPhase("archive " + thisBackupName);
+                if (FileUtils.doCopyAndZIP(tempDestination.concat(thisBackupFile), backupPath.concat(FILE_SEPARATOR).concat(thisBackupFile), shouldZIP, useTemp, archiveOptions)) {
+                    journal.archived(tempDestination.concat(thisBackupFile));
+                }
+            }
+        }
+
+        // Make the archives' renames durable, then add this backup to the
+        // catalog, which completes it.
+        FileUtils.syncFolders();
+        recordBackup(thisBackupName, thisBackupFile, startNanos);
+        journal.finish();
+
+        // Perform cleaning on the backup folder.
+        long retentionStartNanos = System.nanoTime();
+        Object retentionEvent = BackupEvents.beginPhase("retention", backupPath);
+        BackupProgress.setPhase("retention");
+        try {
+            deleteOldBackups();
+        } catch (Exception e) {
+            LogUtils.exceptionLog(e, "Failed to delete old backups.");
+            BackupStats.BACKUP_FAILURES.inc();
+        }
+        BackupEvents.endPhase(retentionEvent, 0, 0);
+        BackupStats.RETENTION.observeSince(retentionStartNanos);
+
+        catalog.compact();
+        for (BackupDestination destination : destinations) {
+            destination.catalog.compact();
+        }
+
+        // Bring the mirror up to date, retention's deletions included.
+        if (mirror != null) {
+            Object mirrorEvent = BackupEvents.beginPhase("mirror", backupPath);
+            BackupProgress.setPhase("mirror");
+            long mirroredAtStart = BackupStats.BYTES_MIRRORED.get();
+            try {
+                mirror.sync();
+            } catch (Exception e) {
+                LogUtils.exceptionLog(e, "Failed to update the mirror.");
+                BackupStats.BACKUP_FAILURES.inc();
+            }
+            BackupEvents.endPhase(mirrorEvent, BackupStats.BYTES_MIRRORED.get() - mirroredAtStart, 0);
+        }
+
+        // Every buffer should be back in the pool by now.
+        BufferPool.checkLeaks();
+
+        // Record the finished backup.
+        BackupEvents.endPhase(backupEvent, BackupStats.BYTES_WRITTEN.get() - bytesAtStart, BackupStats.FILES_COPIED.get() - filesCopiedAtStart);
+        BackupStats.recordBackup(startNanos, filesCopiedAtStart);
+        return thisBackupName;
+    }
+
+    /**
+     * Finishes a backup that was interrupted, by a crash or the server
+     * stopping, from its journal. Its unfinished parts are removed, and the
+     * archives that have any copied parts are written and added to the
+     * catalog. This should be followed by deleteTempFolder().
+     */
+    public void recoverInterrupted() {
+        BackupJournal.Interrupted interrupted;
+        try {
+            interrupted = journal.read();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to read the backup journal.");
+            return;
+        }
+        if (interrupted == null) {
+            return;
+        }
+        int kept = 0;
+        int removed = 0;
+        List<Artifact> artifacts = new ArrayList<Artifact>();
+        for (BackupJournal.Unit unit : interrupted.units) {
+            List<String> copiedWorlds = new ArrayList<String>();
+            boolean anyCopied = false;
+            for (BackupJournal.Part part : unit.parts) {
+                if (part.copied) {
+                    anyCopied = true;
+                    if (part.worldName != null) {
+                        copiedWorlds.add(part.worldName);
+                    }
+                } else if (!unit.archived) {
+                    FileUtils.deleteDir(new File(part.path));
+                    removed++;
+                }
+            }
+            if (!unit.archived) {
+                deleteCopyPartials(unit.finalPath);
+            }
+            if (!unit.archived && shouldZIP && BackupArchive.find(unit.finalPath) != null) {
+
+                // Archives are renamed into place once complete, so this one
+                // was finished before the journal could record it.
+                FileUtils.deleteDir(new File(unit.tempPath));
+            } else if (!unit.archived) {
+                if (!anyCopied) {
+                    FileUtils.deleteDir(new File(unit.tempPath));
+                    continue;
+                }
+
+                // An archive that was being written is written again.
+                new File(unit.finalPath.concat(BackupArchive.ZIP_EXTENSION).concat(BackupArchive.PARTIAL_EXTENSION)).delete();
+                new File(unit.finalPath.concat(BackupArchive.INDEXED_EXTENSION).concat(BackupArchive.PARTIAL_EXTENSION)).delete();
+                boolean inPlace = new File(unit.tempPath).equals(new File(unit.finalPath));
+                if (!FileUtils.doCopyAndZIP(unit.tempPath, unit.finalPath, shouldZIP, useTemp && !inPlace, archiveOptions)) {
+                    continue;
+                }
+                FileUtils.syncFolders();
+            }
+            List<String> worldNames = unit.kind.equals(CatalogEntry.KIND_FULL) ? copiedWorlds : unit.worldNames;
+            addArtifact(artifacts, unit.kind, worldNames, unit.finalPath);
+            kept++;
+        }
+        recordArtifacts(interrupted.backupName, artifacts, 0);
+        journal.finish();
+        LogUtils.sendLog("Recovered interrupted backup " + interrupted.backupName + ": kept " + kept + " archives, removed " + removed + " unfinished parts.");
+    }
+
+    /**
+     * Deletes the copies of an archive that were being written when a backup
+     * was interrupted. Copies that were finished are kept.
+     *
+     * @param finalPath The archive, without an extension.
+     */
+    private void deleteCopyPartials(String finalPath) {
+        File backupFolder = new File(backupPath);
+        for (BackupDestination destination : destinations) {
+            for (String extension : new String[]{BackupArchive.ZIP_EXTENSION, BackupArchive.INDEXED_EXTENSION}) {
+                File partial = destination.getCopy(new File(finalPath.concat(extension).concat(BackupArchive.PARTIAL_EXTENSION)), backupFolder);
+                if (partial != null) {
+                    partial.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Deletes the temp folder, if one is used.
+     */
+    public void deleteTempFolder() {
+        if (useTemp) {
+            FileUtils.deleteDir(new File(tempDestination));
+        }
+    }
+
+    /**
+     * Adds the archives, or folders, of a finished backup to the catalog.
+     *
+     * @param backupName The name of the backup.
+     * @param backupFile Its name in the backup folders, with any shards.
+     * @param startNanos When the backup started, from System.nanoTime().
+     */
+    private void recordBackup(String backupName, String backupFile, long startNanos) {
+        long durationMillis = (System.nanoTime() - startNanos) / 1000000L;
+        List<String> worldNames = backupWorlds ? worldBackupTask.getWorldsToBackup() : Collections.<String>emptyList();
+        List<Artifact> artifacts = new ArrayList<Artifact>();
+        if (backupEverything) {
+            addArtifact(artifacts, CatalogEntry.KIND_EVERYTHING, source.getWorldNames(), backupPath.concat(FILE_SEPARATOR).concat(backupFile));
+        } else if (!splitBackup) {
+            addArtifact(artifacts, CatalogEntry.KIND_FULL, worldNames, backupPath.concat(FILE_SEPARATOR).concat(backupFile));
+        } else {
+            for (String worldName : worldNames) {
+                String worldPath = backupPath.concat(FILE_SEPARATOR);
+                if (!worldContainer.equals(".")) {
+                    worldPath = worldPath.concat(worldContainer).concat(FILE_SEPARATOR);
+                }
+                worldPath = worldPath.concat(worldName).concat(FILE_SEPARATOR).concat(backupFile);
+                addArtifact(artifacts, CatalogEntry.KIND_WORLD, Collections.singletonList(worldName), worldPath);
+            }
+            if (backupPlugins) {
+                addArtifact(artifacts, CatalogEntry.KIND_PLUGINS, Collections.<String>emptyList(), backupPath.concat(FILE_SEPARATOR).concat("plugins").concat(FILE_SEPARATOR).concat(backupFile));
+            }
+        }
+        recordArtifacts(backupName, artifacts, durationMillis);
+    }
+
+    private static void addArtifact(List<Artifact> artifacts, String kind, List<String> worldNames, String path) {
+        File archive = BackupArchive.find(path);
+        File backup = archive != null ? archive : new File(path);
+        if (backup.exists()) {
+            artifacts.add(new Artifact(kind, worldNames, backup));
+        }
+    }
+
+    /**
+     * Adds the archives, or folders, of a backup to the catalogs.
+     */
+    private void recordArtifacts(String backupName, List<Artifact> artifacts, long durationMillis) {
+
+        // Any checksums that were not worked out as the archives were
+        // written, such as by a worker process, are read all at once.
+        List<File> files = new ArrayList<File>();
+        for (Artifact artifact : artifacts) {
+            files.add(artifact.backup);
+            for (BackupDestination destination : destinations) {
+                File copy = destination.getCopy(artifact.backup, new File(backupPath));
+                if (copy != null && copy.exists()) {
+                    files.add(copy);
+                }
+            }
+        }
+        ContentHash.hashAll(files);
+
+        for (Artifact artifact : artifacts) {
+            catalog.addBackup(backupName, artifact.kind, artifact.worldNames, artifact.backup, durationMillis);
+
+            // Each copy that was written goes in its folder's catalog.
+            for (BackupDestination destination : destinations) {
+                File copy = destination.getCopy(artifact.backup, new File(backupPath));
+                if (copy != null && copy.exists()) {
+                    destination.catalog.addBackup(backupName, artifact.kind, artifact.worldNames, copy, durationMillis);
+                }
+            }
+        }
+    }
+
+    /**
+     * Return a formatted date string, using the option from settings.
+     *
+     * @param calendar When the backup was started.
+     * @return The formatted date, as a string.
+     */
+    private String getBackupName(Calendar calendar) {
+        String formattedDate;
+        try {
+            formattedDate = String.format(dateFormat, calendar);
+        } catch (Exception e) {
+            LogUtils.exceptionLog(e, "Exception formatting date.");
+            formattedDate = String.format("%1$tY-%1$tm-%1$td-%1$tH-%1$tM-%1$tS", calendar);
+        }
+        return formattedDate;
+    }
+
+    /**
+     * Check if we need to delete old backups, and perform required operations.
+     *
+     * @throws Exception
+     */
+    private void deleteOldBackups() throws Exception {
+        for (File folderToClean : getBackupFolders(backupPath)) {
+            cleanFolder(folderToClean, backupLimit, useMaxSizeBackup, catalog);
+        }
+
+        // Each other folder keeps backups to its own limit.
+        for (BackupDestination destination : destinations) {
+            if (!destination.folder.isDirectory()) {
+                continue;
+            }
+            for (File folderToClean : getBackupFolders(destination.folder.getPath())) {
+                cleanFolder(folderToClean, destination.backupLimit, destination.useMaxSizeBackup, destination.catalog);
+            }
+        }
+    }
+
+    /**
+     * Moves backups that were made before the layout was changed into their
+     * shards, so retention and restores find them where they now belong.
+     */
+    private void migrateLayout() {
+        if (layout.isFlat()) {
+            return;
+        }
+        for (File folderToMigrate : getBackupFolders(backupPath)) {
+            layout.migrate(folderToMigrate, catalog);
+        }
+        for (BackupDestination destination : destinations) {
+            for (File folderToMigrate : getBackupFolders(destination.folder.getPath())) {
+                layout.migrate(folderToMigrate, destination.catalog);
+            }
+        }
+    }
+
+    /**
+     * Gets the folders that hold backups: the backup folder itself, or the
+     * world and plugin folders inside it for split backups.
+     *
+     * @param backupPath The backup folder, or another that archives are
+     * copied to.
+     * @return The folders.
+     */
+    private List<File> getBackupFolders(String backupPath) {
+
+        List<File> backupFolders = new ArrayList<File>();
+        File backupDir = new File(backupPath);
+
+        LogUtils.sendDebug("Delete old backups. (M:0013)");
+
+        if (splitBackup) { // Look inside the folders.
+
+            LogUtils.sendDebug("Delete old backups. - Split Backup (M:0014)");
+
+            // Check if we have a different container for worlds.
+            if (!worldContainer.equals(".")) { // Custom.
+
+                LogUtils.sendDebug("Delete old backups. - Custom world container. (M:0015)");
+
+                addFolders(new File(backupPath.concat(FILE_SEPARATOR).concat(worldContainer)), backupFolders);
+                addFolders(new File(backupPath.concat(FILE_SEPARATOR).concat("plugins")), backupFolders);
+            } else {
+
+                LogUtils.sendDebug("Delete old backups. - Split backup. - No custom container. (M:0016)");
+
+                addFolders(backupDir, backupFolders);
+            }
+
+        } else { // Clean entire directory.
+
+            LogUtils.sendDebug("Delete old backups.- Plain and simple (M:0017)");
+
+            backupFolders.add(backupDir);
+        }
+        return backupFolders;
+    }
+
+    private void addFolders(File parent, List<File> backupFolders) {
+        File[] folders = parent.listFiles();
+        if (folders == null) {
+            return;
+        }
+        for (File folder : folders) {
+            // Make sure it is a directory, and not a shard of the parent.
+            if (folder.isDirectory() && !folder.getName().equals("temp") && !BackupLayout.isShardFolder(folder)) {
+                backupFolders.add(folder);
+            }
+        }
+    }
+
+    private void cleanFolder(File folderToClean, long limit, boolean bySize, BackupCatalog folderCatalog) throws IOException {
+
+        LogUtils.sendDebug(() -> String.format("Attempting to clean: %s (M:0014)", folderToClean));
+
+        // Check there is a backup limit.
+        if (limit == 0) {
+            return;
+        }
+        try {
+
+            // The catalog knows the backups, their times and sizes, so the
+            // folder is only listed if it could not be created.
+            List<File> toDelete = folderCatalog.exists()
+                    ? selectFromCatalog(folderToClean, limit, bySize, folderCatalog)
+                    : selectFromFolder(folderToClean, limit, bySize);
+            if (toDelete == null || toDelete.isEmpty()) {
+                return;
+            }
+
+            // Inform the user what backups are being deleted.
+            LogUtils.sendLog(strings.getString(bySize ? "removeoldsize" : "removeoldage"));
+            LogUtils.sendLog(Arrays.toString(toDelete.toArray()));
+
+            // Finally delete the backups.
+            for (File backupToDelete : toDelete) {
+                Object deleteEvent = BackupEvents.beginRetentionDelete();
+                long deletedBytes = deleteEvent != null ? getBackupSize(backupToDelete) : 0;
+                FileUtils.deleteDir(backupToDelete);
+                BackupEvents.endRetentionDelete(deleteEvent, backupToDelete.getPath(), bySize ? "size" : "age", deletedBytes);
+                BackupLayout.pruneEmptyShards(backupToDelete, folderToClean);
+                folderCatalog.removeBackup(backupToDelete);
+                BackupStats.BACKUPS_DELETED.inc();
+            }
+        } catch (SecurityException se) {
+            LogUtils.exceptionLog(se, "Failed to clean old backups: Security Exception.");
+            BackupStats.BACKUP_FAILURES.inc();
+        }
+    }
+
+    /**
+     * Chooses the oldest backups in a folder to delete, from the catalog.
+     * Backups that have been deleted by hand are removed from it.
+     *
+     * Backups in the folder that the catalog does not have, such as folder
+     * backups made before it existed or archives it could not read, are
+     * counted too, by their modified time and size, so the limits still
+     * apply to them.
+     *
+     * @return The backups to delete, oldest first.
+     */
+    private List<File> selectFromCatalog(File folderToClean, long limit, boolean bySize, BackupCatalog folderCatalog) {
+        List<RetainedBackup> backups = new ArrayList<RetainedBackup>();
+        Set<Path> cataloged = new HashSet<Path>();
+        long totalSize = 0;
+        for (CatalogEntry entry : folderCatalog.getBackupsIn(folderToClean)) {
+            File backup = folderCatalog.getFile(entry);
+            if (!backup.exists()) {
+                folderCatalog.removeBackup(backup);
+                continue;
+            }
+            cataloged.add(backup.getAbsoluteFile().toPath().normalize());
+            backups.add(new RetainedBackup(backup, entry.time, entry.size));
+            totalSize += entry.size;
+        }
+        File[] filesList = BackupLayout.listBackups(folderToClean);
+        if (filesList != null) {
+            for (File backup : filesList) {
+                if (!cataloged.contains(backup.getAbsoluteFile().toPath().normalize())) {
+                    long size = bySize ? getBackupSize(backup) : 0;
+                    backups.add(new RetainedBackup(backup, backup.lastModified(), size));
+                    totalSize += size;
+                }
+            }
+        }
+        Collections.sort(backups, new Comparator<RetainedBackup>() {
+
+            public int compare(RetainedBackup a, RetainedBackup b) {
+                return a.time < b.time ? -1 : (a.time > b.time ? 1 : 0);
+            }
+        });
+        List<File> toDelete = new ArrayList<File>();
+        for (int i = 0; i < backups.size(); i++) {
+            if (bySize ? totalSize <= limit : backups.size() - i <= limit) {
+                break;
+            }
+            toDelete.add(backups.get(i).file);
+            totalSize -= backups.get(i).size;
+        }
+        return toDelete;
+    }
+
+    /**
+     * Chooses the oldest backups in a folder to delete, by listing it.
+     *
+     * @return The backups to delete, or null if the folder could not be
+     * listed.
+     */
+    private List<File> selectFromFolder(File folderToClean, long limit, boolean bySize) {
+
+        // List all the backups inside this folder, and its shards.
+        File[] filesList = BackupLayout.listBackups(folderToClean);
+
+        // Check we listed the directory.
+        if (filesList == null) {
+            LogUtils.sendLog(strings.getString("failedlistdir"));
+            return null;
+        }
+
+        LogUtils.sendDebug(() -> String.format("Files: %s (M:0018)", Arrays.asList(filesList)));
+
+        // Using amount of backups: everything but the newest.
+        if (!bySize) {
+            return RetentionUtils.selectByCount(filesList, limit);
+        }
+
+        // Using size: the oldest, until the rest are within the limit.
+        long totalFolderSize = 0;
+        for (File backup : filesList) {
+            totalFolderSize += getBackupSize(backup);
+        }
+        List<File> toDelete = new ArrayList<File>();
+        List<File> remaining = new ArrayList<File>(Arrays.asList(filesList));
+        while (totalFolderSize > limit && !remaining.isEmpty()) {
+            File oldest = RetentionUtils.selectOldest(remaining.toArray(new File[remaining.size()]));
+            remaining.remove(oldest);
+            totalFolderSize -= getBackupSize(oldest);
+            toDelete.add(oldest);
+        }
+        return toDelete;
+    }
+
+    /**
+     * Gets the size of a backup, which may be a ZIP file or a folder.
+     *
+     * @param backup The backup.
+     * @return The size, in bytes.
+     */
+    private long getBackupSize(File backup) {
+        return backup.isDirectory() ? FileUtils.getTotalFolderSize(backup) : backup.length();
+    }
+
+    /**
+     * A backup that retention may delete, and when it was made.
+     */
+    private static class RetainedBackup {
+
+        private final File file;
+        private final long time;
+        private final long size;
+
+        RetainedBackup(File file, long time, long size) {
+            this.file = file;
+            this.time = time;
+            this.size = size;
+        }
+    }
+
+    /**
+     * An archive, or folder, of a finished backup.
+     */
+    private static class Artifact {
+
+        private final String kind;
+        private final List<String> worldNames;
+        private final File backup;
+
+        Artifact(String kind, List<String> worldNames, File backup) {
+            this.kind = kind;
+            this.worldNames = worldNames;
+            this.backup = backup;
+        }
+    }
+}
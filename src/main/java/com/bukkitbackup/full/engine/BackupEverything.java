@@ -1,10 +1,11 @@
-package com.bukkitbackup.full.threading.tasks;
+package com.bukkitbackup.full.engine;
 
-import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.utils.ArchiveOptions;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import java.io.File;
 import java.io.FileFilter;
+import java.io.IOException;
 
 /**
  * Backup - The simple server backup solution.
@@ -13,16 +14,25 @@ import java.io.FileFilter;
  */
 public class BackupEverything {
 
+    private final BackupSource source;
+    private final File serverFolder;
     private final String backupPath;
     private final boolean shouldZIP;
     private final boolean useTemp;
     private final String tempDestination;
+    private final BackupJournal journal;
+    private final ArchiveOptions archiveOptions;
     private final FileFilter fileFilter;
 
-    public BackupEverything(final Settings settings) {
+    public BackupEverything(BackupSource source, BackupSettings settings, BackupJournal journal, ArchiveOptions archiveOptions) {
 
-        // Get the backup destination.
+        // Get the server and the backup destination.
+        this.source = source;
+        this.journal = journal;
+        this.archiveOptions = archiveOptions;
+        serverFolder = source.getServerFolder();
         backupPath = settings.getStringProperty("backuppath", "backups");
+        final File backupFolder = new File(backupPath);
 
         // Get backup properties.
         shouldZIP = settings.getBooleanProperty("zipbackup", true);
@@ -34,7 +44,7 @@ public class BackupEverything {
             public boolean accept(File f) {
 
                 // Disallow server.log and the backuppath.
-                if (f.getName().equals(settings.getStringProperty("backuppath", "backups"))) {
+                if (f.getName().equals(backupPath) || (f.getName().equals(backupFolder.getName()) && isSameFile(f, backupFolder))) {
                     return false;
                 }
 
@@ -61,11 +71,26 @@ public class BackupEverything {
 
     // The actual backup should be done here, as it is run in another thread.
     public void doEverything(String backupName) throws Exception {
+            String thisTempDestination = tempDestination.concat(backupName);
+            journal.unit(CatalogEntry.KIND_EVERYTHING, thisTempDestination, backupPath.concat(FILE_SEPARATOR).concat(backupName), source.getWorldNames());
+            journal.part(thisTempDestination, thisTempDestination, null);
+
             // Copy the directory.
-            FileUtils.copyDirectory(new File(".".concat(FILE_SEPARATOR)), new File(tempDestination.concat(backupName)), fileFilter, true);
+            FileUtils.copyDirectory(new File(serverFolder.getPath().concat(FILE_SEPARATOR)), new File(thisTempDestination), fileFilter, true);
+            journal.copied(thisTempDestination);
 
             // Perform the zipping action.
-            FileUtils.doCopyAndZIP(tempDestination.concat(backupName), backupPath.concat(FILE_SEPARATOR).concat(backupName), shouldZIP, useTemp);
+            if (FileUtils.doCopyAndZIP(thisTempDestination, backupPath.concat(FILE_SEPARATOR).concat(backupName), shouldZIP, useTemp, archiveOptions)) {
+                journal.archived(thisTempDestination);
+            }
 
     }
+
+    private static boolean isSameFile(File file, File other) {
+        try {
+            return file.getCanonicalFile().equals(other.getCanonicalFile());
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
 }
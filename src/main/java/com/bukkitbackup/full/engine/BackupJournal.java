@@ -0,0 +1,240 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The checkpoint journal of the backup in progress, kept in journal.tsv in
+ * the backup folder. It only exists while a backup runs, so finding it means
+ * the last backup was interrupted.
+ *
+ * A backup is made of units: the archives (or folders) it writes, each built
+ * from a temp folder. A unit is made of parts, such as a world or the plugins,
+ * each copied into the unit's temp folder. The journal records each unit and
+ * part before it is started, and each part once it is copied and each unit
+ * once it is archived. Lines end with a checksum, like the catalog's, and are
+ * synced to disk as they are written.
+ *
+ * A world that was partly copied cannot be finished later, as it has changed
+ * since. So an interrupted backup is recovered by removing its unfinished
+ * parts, and archiving the units that have copied parts. Nothing that was
+ * copied or archived is done again.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupJournal {
+
+    public static final String JOURNAL_NAME = "journal.tsv";
+    private static final String BEGIN = "begin";
+    private static final String UNIT = "unit";
+    private static final String PART = "part";
+    private static final String COPIED = "copied";
+    private static final String ARCHIVED = "archived";
+
+    private final File journalFile;
+
+    /**
+     * @param backupFolder The backup folder.
+     */
+    public BackupJournal(File backupFolder) {
+        journalFile = new File(backupFolder, JOURNAL_NAME);
+    }
+
+    /**
+     * Checks whether a backup was interrupted.
+     *
+     * @return True if the journal exists.
+     */
+    public boolean exists() {
+        return journalFile.exists();
+    }
+
+    /**
+     * Starts the journal of a backup, replacing any other.
+     *
+     * @param backupName The backup's name.
+     */
+    public void begin(String backupName) {
+
+        // The backup folder is not made until the first backup.
+        journalFile.getParentFile().mkdirs();
+        write(BEGIN, new String[]{backupName}, false);
+    }
+
+    /**
+     * Records an archive or folder the backup will write.
+     *
+     * @param kind One of the CatalogEntry kinds.
+     * @param tempPath The folder it is built in.
+     * @param finalPath Where it goes, without an extension.
+     * @param worldNames The worlds it holds.
+     */
+    public void unit(String kind, String tempPath, String finalPath, List<String> worldNames) {
+        StringBuilder worldList = new StringBuilder();
+        for (String worldName : worldNames) {
+            if (worldList.length() > 0) {
+                worldList.append(',');
+            }
+            worldList.append(worldName);
+        }
+        write(UNIT, new String[]{kind, getPath(tempPath), getPath(finalPath), worldList.length() > 0 ? worldList.toString() : "-"}, true);
+    }
+
+    /**
+     * Records a part of a unit, before it is copied.
+     *
+     * @param unitTempPath The unit's temp folder.
+     * @param partPath Where the part is copied to.
+     * @param worldName The world it is, or null.
+     */
+    public void part(String unitTempPath, String partPath, String worldName) {
+        write(PART, new String[]{getPath(unitTempPath), getPath(partPath), worldName != null ? worldName : "-"}, true);
+    }
+
+    /**
+     * Records that a part has been copied.
+     *
+     * @param partPath Where the part was copied to.
+     */
+    public void copied(String partPath) {
+        write(COPIED, new String[]{getPath(partPath)}, true);
+    }
+
+    /**
+     * Records that a unit has been archived, or moved into place.
+     *
+     * @param unitTempPath The unit's temp folder.
+     */
+    public void archived(String unitTempPath) {
+        write(ARCHIVED, new String[]{getPath(unitTempPath)}, true);
+    }
+
+    /**
+     * Removes the journal, once the backup is in the catalog.
+     */
+    public void finish() {
+        if (journalFile.exists() && !journalFile.delete()) {
+            LogUtils.sendLog("Failed to remove " + journalFile + ".");
+        }
+    }
+
+    private static String getPath(String path) {
+        return new File(path).getAbsolutePath();
+    }
+
+    private void write(String type, String[] fields, boolean append) {
+        try {
+            BackupCatalog.writeSynced(journalFile, BackupCatalog.toLine(type, fields).getBytes("UTF-8"), append);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write the backup journal.");
+        }
+    }
+
+    /**
+     * Reads the journal of an interrupted backup. A line torn by the
+     * interruption is skipped.
+     *
+     * @return The backup, or null if none was interrupted.
+     * @throws IOException If the journal could not be read.
+     */
+    public Interrupted read() throws IOException {
+        if (!journalFile.exists()) {
+            return null;
+        }
+        Interrupted backup = null;
+        Map<String, Unit> units = new LinkedHashMap<String, Unit>();
+        Map<String, Part> parts = new LinkedHashMap<String, Part>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int lastTab = line.lastIndexOf('\t');
+                if (lastTab < 0 || !line.substring(lastTab + 1).equals(BackupCatalog.getChecksum(line.substring(0, lastTab)))) {
+                    continue;
+                }
+                String[] fields = line.substring(0, lastTab).split("\t");
+                if (fields[0].equals(BEGIN) && fields.length == 2) {
+                    backup = new Interrupted(fields[1]);
+                } else if (backup == null) {
+                    continue;
+                } else if (fields[0].equals(UNIT) && fields.length == 5) {
+                    Unit unit = new Unit(fields[1], fields[2], fields[3],
+                            fields[4].equals("-") ? Collections.<String>emptyList() : Arrays.asList(fields[4].split(",")));
+                    units.put(unit.tempPath, unit);
+                    backup.units.add(unit);
+                } else if (fields[0].equals(PART) && fields.length == 4 && units.containsKey(fields[1])) {
+                    Part part = new Part(fields[2], fields[3].equals("-") ? null : fields[3]);
+                    parts.put(part.path, part);
+                    units.get(fields[1]).parts.add(part);
+                } else if (fields[0].equals(COPIED) && fields.length == 2 && parts.containsKey(fields[1])) {
+                    parts.get(fields[1]).copied = true;
+                } else if (fields[0].equals(ARCHIVED) && fields.length == 2 && units.containsKey(fields[1])) {
+                    units.get(fields[1]).archived = true;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return backup;
+    }
+
+    /**
+     * A backup that was interrupted.
+     */
+    public static class Interrupted {
+
+        public final String backupName;
+        public final List<Unit> units = new ArrayList<Unit>();
+
+        Interrupted(String backupName) {
+            this.backupName = backupName;
+        }
+    }
+
+    /**
+     * An archive or folder of an interrupted backup.
+     */
+    public static class Unit {
+
+        public final String kind;
+        public final String tempPath;
+        public final String finalPath;
+        public final List<String> worldNames;
+        public final List<Part> parts = new ArrayList<Part>();
+        public boolean archived = false;
+
+        Unit(String kind, String tempPath, String finalPath, List<String> worldNames) {
+            this.kind = kind;
+            this.tempPath = tempPath;
+            this.finalPath = finalPath;
+            this.worldNames = worldNames;
+        }
+    }
+
+    /**
+     * A part of a unit, such as a world.
+     */
+    public static class Part {
+
+        public final String path;
+        public final String worldName;
+        public boolean copied = false;
+
+        Part(String path, String worldName) {
+            this.path = path;
+            this.worldName = worldName;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.bukkitbackup.full.engine;
+
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * How backups are arranged inside a backup folder (the root, or a world's
+ * folder of a split backup). With the "flat" layout they are all in the
+ * folder. With "monthly" or "daily" they are in shard folders by date, such as
+ * 2012/06/21/, so no folder holds more than a day's backups.
+ *
+ * Listing understands every layout at once, so changing the layout never
+ * hides backups. Flat backups are moved into shards by migrate().
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupLayout {
+
+    public static final String FLAT = "flat";
+    public static final String MONTHLY = "monthly";
+    public static final String DAILY = "daily";
+
+    private final String layout;
+
+    /**
+     * @param layout One of FLAT, MONTHLY or DAILY.
+     */
+    public BackupLayout(String layout) {
+        this.layout = layout;
+    }
+
+    /**
+     * Reads the layout from the settings.
+     *
+     * @param settings The settings to use.
+     * @return The layout.
+     */
+    public static BackupLayout fromSettings(BackupSettings settings) {
+        String layout = settings.getStringProperty("backuplayout", FLAT).toLowerCase(Locale.ROOT);
+        if (!layout.equals(FLAT) && !layout.equals(MONTHLY) && !layout.equals(DAILY)) {
+            LogUtils.sendLog("Unknown backuplayout \"" + layout + "\", using flat.");
+            layout = FLAT;
+        }
+        return new BackupLayout(layout);
+    }
+
+    public boolean isFlat() {
+        return layout.equals(FLAT);
+    }
+
+    /**
+     * Gets the shard folders for a backup made at a time.
+     *
+     * @param time When the backup was made.
+     * @return The folders, ending with a separator, or "" for the flat layout.
+     */
+    public String getShardPath(Calendar time) {
+        if (layout.equals(DAILY)) {
+            return String.format(Locale.ROOT, "%1$tY%2$s%1$tm%2$s%1$td%2$s", time, FILE_SEPARATOR);
+        } else if (layout.equals(MONTHLY)) {
+            return String.format(Locale.ROOT, "%1$tY%2$s%1$tm%2$s", time, FILE_SEPARATOR);
+        }
+        return "";
+    }
+
+    /**
+     * Checks whether a folder is a shard: a year, month or day.
+     *
+     * @param folder The folder.
+     * @return True if it is a shard folder.
+     */
+    public static boolean isShardFolder(File folder) {
+        return folder.getName().matches("[0-9]{4}|[0-9]{2}") && folder.isDirectory();
+    }
+
+    /**
+     * Lists the backups in a backup folder, including those in its shards.
+     * The temp folder, the catalog, journal and replication state, and archives
+     * that are still being written are left out.
+     *
+     * @param folder The backup folder.
+     * @return The backups, or null if the folder could not be listed.
+     */
+    public static File[] listBackups(File folder) {
+        File[] items = folder.listFiles();
+        if (items == null) {
+            return null;
+        }
+        List<File> backups = new ArrayList<File>(items.length);
+        for (File item : items) {
+            String name = item.getName();
+            if (name.startsWith(BackupCatalog.CATALOG_NAME) || name.startsWith(BackupJournal.JOURNAL_NAME) || name.startsWith(BackupReplicator.STATE_NAME) || name.endsWith(BackupArchive.PARTIAL_EXTENSION) || (name.equals("temp") && item.isDirectory())) {
+                continue;
+            }
+            if (isShardFolder(item)) {
+                File[] shardBackups = listBackups(item);
+                if (shardBackups != null) {
+                    for (File backup : shardBackups) {
+                        backups.add(backup);
+                    }
+                }
+            } else {
+                backups.add(item);
+            }
+        }
+        return backups.toArray(new File[backups.size()]);
+    }
+
+    /**
+     * Deletes the shard folders above a deleted backup, if they are empty.
+     *
+     * @param backup The deleted backup.
+     * @param folder The backup folder it was in.
+     */
+    public static void pruneEmptyShards(File backup, File folder) {
+        File shard = backup.getParentFile();
+        File stop = folder.getAbsoluteFile();
+        while (shard != null && !shard.getAbsoluteFile().equals(stop) && isShardFolder(shard)) {
+            String[] remaining = shard.list();
+            if (remaining == null || remaining.length > 0 || !shard.delete()) {
+                return;
+            }
+            shard = shard.getParentFile();
+        }
+    }
+
+    /**
+     * Moves the backups that are directly in a backup folder into their
+     * shards, dated by when they were last modified. Nothing is moved for the
+     * flat layout, or when every backup is already in a shard.
+     *
+     * @param folder The backup folder.
+     * @param catalog The catalog to record the moves in.
+     * @return The number of backups moved.
+     */
+    public int migrate(File folder, BackupCatalog catalog) {
+        if (isFlat()) {
+            return 0;
+        }
+        File[] items = folder.listFiles();
+        if (items == null) {
+            return 0;
+        }
+        int moved = 0;
+        Calendar time = Calendar.getInstance();
+        for (File item : items) {
+            if (!isFlatBackup(item)) {
+                continue;
+            }
+            time.setTimeInMillis(item.lastModified());
+            File shard = new File(folder, getShardPath(time));
+            File destination = new File(shard, item.getName());
+            if (destination.exists() || !(shard.isDirectory() || shard.mkdirs()) || !item.renameTo(destination)) {
+                LogUtils.sendLog("Failed to move " + item + " to " + destination + ".");
+                continue;
+            }
+            catalog.moveBackup(item, destination);
+            moved++;
+        }
+        if (moved > 0) {
+            LogUtils.sendLog("Moved " + moved + " backups in " + folder + " into the " + layout + " layout.");
+        }
+        return moved;
+    }
+
+    /**
+     * Checks whether an item in a backup folder is a backup that has not been
+     * sharded. Archives are, and so are folders named like a date (digits and
+     * other characters) that hold no archives or shards. This leaves alone the
+     * world and plugins folders of split backups.
+     */
+    private static boolean isFlatBackup(File item) {
+        String name = item.getName();
+        if (name.startsWith(BackupCatalog.CATALOG_NAME) || name.equals("temp") || isShardFolder(item)) {
+            return false;
+        }
+        if (item.isFile()) {
+            return BackupArchive.hasArchiveName(item);
+        }
+        File[] contents = item.listFiles();
+        if (contents == null) {
+            return false;
+        }
+        for (File content : contents) {
+            if (BackupArchive.hasArchiveName(content) || isShardFolder(content)) {
+                return false;
+            }
+        }
+        return name.matches(".*[0-9].*[^0-9].*|.*[^0-9].*[0-9].*");
+    }
+}
@@ -0,0 +1,75 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The parsed "maxbackups" setting: either a number of backups, or a size such
+ * as "500m".
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BackupLimit {
+
+    private static final Pattern SIZE_PATTERN = Pattern.compile("^([0-9]+)([a-z])$");
+    public final long limit;
+    public final boolean bySize;
+
+    private BackupLimit(long limit, boolean bySize) {
+        this.limit = limit;
+        this.bySize = bySize;
+    }
+
+    /**
+     * Parses the setting.
+     *
+     * @param limitSetting The value of "maxbackups".
+     * @param strings Messages for a malformed setting.
+     * @return The limit. A limit of 0 means unlimited.
+     */
+    public static BackupLimit parse(String limitSetting, BackupMessages strings) {
+        limitSetting = limitSetting.trim().toLowerCase();
+
+        // If it is null or set to disable.
+        if (limitSetting.equals("-1")) {
+            return new BackupLimit(0L, false);
+        }
+
+        // If it is just a number, return minutes.
+        if (limitSetting.matches("^[0-9]+$")) {
+            LogUtils.sendDebug("Max Backups: Amount (M:0011)");
+
+            return new BackupLimit(Long.parseLong(limitSetting), false);
+        } else if (limitSetting.matches("^[0-9]+[a-z]$")) {
+            LogUtils.sendDebug("Max Backups: Size (M:0010)");
+
+            Matcher sizeMatcher = SIZE_PATTERN.matcher(limitSetting);
+            if (sizeMatcher.matches()) {
+                String letter = sizeMatcher.group(2);
+                long bytes = Long.parseLong(sizeMatcher.group(1));
+
+                if (letter.equals("k")) {
+                    return new BackupLimit(bytes * 1024L, true);
+                } else if (letter.equals("m")) {
+                    return new BackupLimit(bytes * 1048576L, true);
+                } else if (letter.equals("g")) {
+                    return new BackupLimit(bytes * 1073741824L, true);
+                } else {
+                    LogUtils.sendLog(strings.getString("unknownsizeident"));
+                    return new BackupLimit(bytes, true);
+                }
+            } else {
+                LogUtils.sendLog(strings.getString("checksizelimit"));
+                return new BackupLimit(0L, true);
+            }
+        } else {
+            LogUtils.sendDebug("Max Backups: Unknown (M:0012)");
+
+            LogUtils.sendLog(strings.getString("checksizelimit"));
+            return new BackupLimit(0L, false);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package com.bukkitbackup.full.engine;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The messages the backup engine logs. Implemented by the plugin's Strings,
+ * and by FileSettings when running without a server.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public interface BackupMessages {
+
+    /**
+     * Gets a value of the string property.
+     *
+     * @param property The identifier for the string.
+     * @return The string.
+     */
+    String getString(String property);
+}
@@ -0,0 +1,244 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.utils.BufferPool;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Keeps a second folder, such as one on another disk or a network share, in
+ * step with the backup folder. The catalog records which backups have been
+ * copied there, so only new backups are copied and neither folder is scanned.
+ * Backups that retention removed are removed from the mirror too. The catalog
+ * itself is copied last, so the mirror can be restored from like the backup
+ * folder.
+ *
+ * A file that is already in the mirror, such as the catalog or a copy that was
+ * interrupted, is compared block by block and only the blocks that differ are
+ * written. New files are written under a ".partial" name and renamed once
+ * complete.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupMirror {
+
+    private final File mirrorFolder;
+    private final BackupCatalog catalog;
+
+    // For the summary of each sync.
+    private long bytesWritten;
+    private long bytesUnchanged;
+
+    /**
+     * @param mirrorFolder The folder to keep in step.
+     * @param catalog The catalog of the backup folder.
+     */
+    public BackupMirror(File mirrorFolder, BackupCatalog catalog) {
+        this.mirrorFolder = mirrorFolder.getAbsoluteFile();
+        this.catalog = catalog;
+    }
+
+    /**
+     * Copies the new backups to the mirror, and removes the backups that are
+     * no longer in the catalog from it.
+     */
+    public void sync() {
+        bytesWritten = 0;
+        bytesUnchanged = 0;
+        FileUtils.checkFolderAndCreate(mirrorFolder);
+        Set<String> mirrored = catalog.getMirrored(mirrorFolder);
+        List<CatalogEntry> entries = catalog.getPage(1, catalog.getCount(null), null);
+        Collections.reverse(entries);
+        Set<String> livePaths = new HashSet<String>();
+        for (CatalogEntry entry : entries) {
+            livePaths.add(entry.path);
+        }
+
+        // Retention's deletions.
+        int removed = 0;
+        for (String path : mirrored) {
+            if (!livePaths.contains(path)) {
+                File copy = getMirrorFile(path);
+                FileUtils.deleteDir(copy);
+                new File(copy.getPath().concat(BackupArchive.PARTIAL_EXTENSION)).delete();
+                BackupLayout.pruneEmptyShards(copy, mirrorFolder);
+                catalog.removeMirrored(mirrorFolder, path);
+                removed++;
+            }
+        }
+
+        // New backups, and any whose copy has gone.
+        int copied = 0;
+        for (CatalogEntry entry : entries) {
+            File source = catalog.getFile(entry);
+            File copy = getMirrorFile(entry.path);
+            if ((mirrored.contains(entry.path) && copy.exists()) || !source.exists()) {
+                continue;
+            }
+            try {
+                syncTree(source, copy);
+                catalog.addMirrored(mirrorFolder, entry.path);
+                copied++;
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to mirror backup " + entry.path + ".");
+                BackupStats.BACKUP_FAILURES.inc();
+            }
+        }
+
+        // The catalog goes last, so it lists only what is there.
+        try {
+            syncFile(new File(catalog.getFolder(), BackupCatalog.CATALOG_NAME), new File(mirrorFolder, BackupCatalog.CATALOG_NAME));
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to mirror the backup catalog.");
+            BackupStats.BACKUP_FAILURES.inc();
+        }
+        final int copiedCount = copied;
+        final int removedCount = removed;
+        final long written = bytesWritten;
+        final long total = bytesWritten + bytesUnchanged;
+        LogUtils.sendDebug(() -> String.format("Mirrored %d backups and removed %d, writing %d bytes of %d. (M:0031)", copiedCount, removedCount, written, total));
+    }
+
+    private File getMirrorFile(String path) {
+        return new File(mirrorFolder, path.replace('/', File.separatorChar));
+    }
+
+    /**
+     * Makes a file or folder in the mirror the same as one in the backup
+     * folder.
+     */
+    private void syncTree(File source, File copy) throws IOException {
+        if (!source.isDirectory()) {
+            syncFile(source, copy);
+            return;
+        }
+        FileUtils.checkFolderAndCreate(copy);
+        String[] names = source.list();
+        if (names == null) {
+            throw new IOException("Failed to list " + source + ".");
+        }
+        Set<String> sourceNames = new HashSet<String>();
+        for (String name : names) {
+            sourceNames.add(name);
+            syncTree(new File(source, name), new File(copy, name));
+        }
+
+        // Left by an earlier copy that has changed since.
+        String[] copyNames = copy.list();
+        if (copyNames != null) {
+            for (String name : copyNames) {
+                if (!sourceNames.contains(name)) {
+                    FileUtils.deleteDir(new File(copy, name));
+                }
+            }
+        }
+    }
+
+    /**
+     * Makes a file in the mirror the same as one in the backup folder,
+     * writing only the blocks that differ.
+     */
+    private void syncFile(File source, File copy) throws IOException {
+        long size = source.length();
+        if (copy.isFile() && copy.length() == size && copy.lastModified() == source.lastModified()) {
+            bytesUnchanged += size;
+            BackupStats.BYTES_MIRROR_UNCHANGED.add(size);
+            return;
+        }
+
+        // A new file is written under another name, which an interrupted
+        // copy left behind, so it is compared too.
+        boolean exists = copy.isFile();
+        File target = exists ? copy : new File(copy.getPath().concat(BackupArchive.PARTIAL_EXTENSION));
+        if (target.getParentFile() != null) {
+            target.getParentFile().mkdirs();
+        }
+        FileInputStream fis = new FileInputStream(source);
+        RandomAccessFile raf = null;
+        ByteBuffer buffer = null;
+        try {
+            raf = new RandomAccessFile(target, "rw");
+            FileChannel input = fis.getChannel();
+            FileChannel output = raf.getChannel();
+
+            // Half for the source's blocks, half for the copy's.
+            buffer = BufferPool.acquire();
+            ByteBuffer[] halves = BufferPool.split(buffer);
+            ByteBuffer sourceBlock = halves[0];
+            ByteBuffer copyBlock = halves[1];
+            boolean changed = false;
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(sourceBlock.capacity(), size - position);
+                sourceBlock.clear();
+                sourceBlock.limit(length);
+                readFully(input, sourceBlock, position, true);
+                copyBlock.clear();
+                copyBlock.limit(length);
+                readFully(output, copyBlock, position, false);
+                sourceBlock.flip();
+                copyBlock.flip();
+                if (sourceBlock.equals(copyBlock)) {
+                    bytesUnchanged += length;
+                    BackupStats.BYTES_MIRROR_UNCHANGED.add(length);
+                } else {
+                    while (sourceBlock.hasRemaining()) {
+                        output.write(sourceBlock, position + sourceBlock.position());
+                    }
+                    bytesWritten += length;
+                    BackupStats.BYTES_MIRRORED.add(length);
+                    changed = true;
+                }
+                position += length;
+            }
+            if (output.size() != size) {
+                raf.setLength(size);
+                changed = true;
+            }
+            if (changed) {
+                output.force(true);
+            }
+        } finally {
+            BufferPool.release(buffer);
+            if (raf != null) {
+                raf.close();
+            }
+            fis.close();
+        }
+        target.setLastModified(source.lastModified());
+        if (!exists) {
+            Files.move(target.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Reads from a position until the buffer is full, or the end of the file.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, boolean mustFill) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                if (mustFill) {
+                    throw new EOFException(channel + " is shorter than it was.");
+                }
+                return;
+            }
+        }
+    }
+}
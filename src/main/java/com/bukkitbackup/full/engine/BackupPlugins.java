@@ -1,7 +1,8 @@
-package com.bukkitbackup.full.threading.tasks;
+package com.bukkitbackup.full.engine;
 
-import com.bukkitbackup.full.config.Settings;
-import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.stats.jfr.BackupEvents;
+import com.bukkitbackup.full.utils.ArchiveOptions;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import com.bukkitbackup.full.utils.LogUtils;
@@ -9,6 +10,7 @@ import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -18,7 +20,8 @@ import java.util.List;
  */
 public class BackupPlugins {
 
-    private final Strings strings;
+    private final BackupMessages strings;
+    private final File pluginsFolder;
     private final String backupPath;
     private final boolean shouldZIP;
     private final boolean splitBackup;
@@ -27,10 +30,15 @@ public class BackupPlugins {
     private final boolean pluginListMode;
     private final List<String> pluginList;
     private final FileFilter pluginsFileFilter;
+    private final BackupJournal journal;
+    private final ArchiveOptions archiveOptions;
 
-    public BackupPlugins(Settings settings, Strings strings) {
+    public BackupPlugins(BackupSource source, BackupSettings settings, BackupMessages strings, BackupJournal journal, ArchiveOptions archiveOptions) {
 
         this.strings = strings;
+        this.journal = journal;
+        this.archiveOptions = archiveOptions;
+        this.pluginsFolder = new File(source.getServerFolder(), "plugins");
 
         // Get the backup destination.
         backupPath = settings.getStringProperty("backuppath", "backups");
@@ -94,18 +102,22 @@ public class BackupPlugins {
     // The actual backup should be done here.
     public void doPlugins(String backupName) throws IOException {
 
-        // Setup Source and destination DIR's.
-        File pluginsFolder = new File("plugins");
-
         // Touch the folder to update the modified date.
         pluginsFolder.setLastModified(System.currentTimeMillis());
+        long bytesAtStart = BackupStats.BYTES_READ.get();
+        long filesAtStart = BackupStats.FILES_COPIED.get();
+        Object pluginsEvent = BackupEvents.beginPhase("plugins", backupName);
 
 
         String thisTempDestination;
+        String destination = backupPath.concat(FILE_SEPARATOR).concat("plugins").concat(FILE_SEPARATOR).concat(backupName);
         if (splitBackup) {
-            thisTempDestination = backupPath.concat(FILE_SEPARATOR).concat("plugins").concat(FILE_SEPARATOR).concat(backupName);
+            thisTempDestination = destination;
+            journal.unit(CatalogEntry.KIND_PLUGINS, thisTempDestination, destination, Collections.<String>emptyList());
+            journal.part(thisTempDestination, thisTempDestination, null);
         } else {
             thisTempDestination = tempDestination.concat(backupName).concat(FILE_SEPARATOR).concat("plugins");
+            journal.part(tempDestination.concat(backupName), thisTempDestination, null);
         }
         FileUtils.checkFolderAndCreate(new File(thisTempDestination));
 
@@ -119,19 +131,24 @@ public class BackupPlugins {
             LogUtils.sendLog(pluginList.toString());
         }
         FileUtils.copyDirectory(pluginsFolder, new File(thisTempDestination), pluginsFileFilter, true);
+        journal.copied(thisTempDestination);
 
         // Check if ZIP is required.
         if (splitBackup && shouldZIP) {
-            String destination = backupPath.concat(FILE_SEPARATOR).concat("plugins").concat(FILE_SEPARATOR).concat(backupName);
             try {
                 if (useTemp) {
-                    FileUtils.zipDir(thisTempDestination, destination);
+                    FileUtils.archiveDir(thisTempDestination, destination, archiveOptions);
                     FileUtils.deleteDirectory(new File(thisTempDestination));
                     new File(thisTempDestination).delete();
                 }
+                journal.archived(thisTempDestination);
             } catch (Exception e) {
                 LogUtils.exceptionLog(e);
+                BackupStats.BACKUP_FAILURES.inc();
             }
+        } else if (splitBackup) {
+            journal.archived(thisTempDestination);
         }
+        BackupEvents.endPhase(pluginsEvent, BackupStats.BYTES_READ.get() - bytesAtStart, BackupStats.FILES_COPIED.get() - filesAtStart);
     }
 }
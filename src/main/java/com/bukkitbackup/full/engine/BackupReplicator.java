@@ -0,0 +1,518 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.RateLimiter;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Copies finished archives to S3-compatible storage, so backups survive the
+ * loss of the server. Each archive is sent as a multipart upload, with its
+ * parts sent on several threads at once, and all of them together no faster
+ * than the rate limit.
+ *
+ * Uploads are recorded in replication.tsv in the backup folder, with lines
+ * like the catalog's: an upload's ID when it is started, and the archive's
+ * checksum once it is complete. An upload that was interrupted is resumed by
+ * asking the store which parts it already has, and sending only the rest.
+ * Folder backups are not replicated, and backups removed by retention are not
+ * removed from the store.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BackupReplicator {
+
+    public static final String STATE_NAME = "replication.tsv";
+    private static final String DONE = "done";
+    private static final String UPLOAD = "upload";
+    private static final long MIN_PART_SIZE = 5 * FileUtils.ONE_MB;
+    private static final int ATTEMPTS = 3;
+    private static final long RETRY_DELAY_MILLIS = 2000;
+    private static final int MAX_ALERTS = 3;
+
+    private static final RateLimiter rateLimiter = new RateLimiter(0);
+    private static final Object runLock = new Object();
+    private static final LinkedList<String> alerts = new LinkedList<String>();
+    private static volatile Config config = null;
+    private static ExecutorService coordinator = null;
+    private static ExecutorService partExecutor = null;
+    private static int partThreads = 0;
+    private static volatile long oldestPendingMillis = 0;
+    private static volatile int pendingCount = 0;
+
+    private BackupReplicator() {
+    }
+
+    /**
+     * Reads the replication settings. Replication is off unless an endpoint
+     * and bucket are set. An upload in progress keeps its settings.
+     *
+     * @param settings The settings.
+     * @return True if replication is on.
+     */
+    public static synchronized boolean configure(BackupSettings settings) {
+        String endpoint = settings.getStringProperty("replicateendpoint", "").trim();
+        String bucket = settings.getStringProperty("replicatebucket", "").trim();
+        rateLimiter.setRate(settings.getIntProperty("replicateratelimit", 0) * FileUtils.ONE_MB);
+        if (endpoint.isEmpty() || bucket.isEmpty()) {
+            config = null;
+            return false;
+        }
+        String prefix = settings.getStringProperty("replicateprefix", "").trim();
+        if (!prefix.isEmpty() && !prefix.endsWith("/")) {
+            prefix = prefix.concat("/");
+        }
+        try {
+            S3Client client = new S3Client(endpoint, settings.getStringProperty("replicateregion", "us-east-1"), bucket,
+                    settings.getStringProperty("replicateaccesskey", ""), settings.getStringProperty("replicatesecretkey", ""));
+            long partSize = Math.max(MIN_PART_SIZE, settings.getIntProperty("replicatepartsize", 16) * FileUtils.ONE_MB);
+            config = new Config(client, prefix, partSize);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Replication is off, as its endpoint is not valid.");
+            config = null;
+            return false;
+        }
+        int threads = Math.max(1, settings.getIntProperty("replicatethreads", 4));
+        if (threads != partThreads && partExecutor != null) {
+            partExecutor.shutdown();
+            partExecutor = null;
+        }
+        partThreads = threads;
+        return true;
+    }
+
+    /**
+     * Replicates the backups in a catalog that are not replicated yet, in
+     * the background. This also resumes uploads that were interrupted.
+     *
+     * @param catalog The catalog of the backups.
+     */
+    public static synchronized void replicateNew(final BackupCatalog catalog) {
+        if (config == null) {
+            return;
+        }
+        if (coordinator == null) {
+            coordinator = Executors.newSingleThreadExecutor(newThreadFactory("Backup Replicator"));
+        }
+        coordinator.execute(new Runnable() {
+            public void run() {
+                replicate(catalog);
+            }
+        });
+    }
+
+    /**
+     * Replicates the backups in a catalog that are not replicated yet, and
+     * waits for them.
+     *
+     * @param catalog The catalog of the backups.
+     * @return The number of backups that failed to replicate.
+     */
+    public static int replicate(BackupCatalog catalog) {
+        Config current = config;
+        if (current == null) {
+            return 0;
+        }
+        synchronized (runLock) {
+            ReplicationState state = new ReplicationState(new File(catalog.getFolder(), STATE_NAME));
+            List<CatalogEntry> entries = catalog.getPage(1, catalog.getCount(null), null);
+            Collections.reverse(entries);
+            List<CatalogEntry> pending = new ArrayList<CatalogEntry>();
+            try {
+                state.load();
+                state.compact(current, entries);
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to read the replication state.");
+                return 1;
+            }
+            for (CatalogEntry entry : entries) {
+                if (catalog.getFile(entry).isFile() && !state.isDone(entry)) {
+                    pending.add(entry);
+                }
+            }
+
+            List<CatalogEntry> failed = new ArrayList<CatalogEntry>();
+            for (int i = 0; i < pending.size(); i++) {
+                setPending(pending.subList(i, pending.size()));
+                CatalogEntry entry = pending.get(i);
+                try {
+                    upload(current, state, entry, catalog.getFile(entry));
+                    BackupStats.BACKUPS_REPLICATED.inc();
+                    LogUtils.sendDebug(() -> String.format("Replicated backup %s. (M:0029)", entry.path));
+                } catch (InterruptedIOException iioe) {
+                    break;
+                } catch (IOException ioe) {
+                    if (!catalog.hasBackup(entry.path)) {
+
+                        // Removed by retention while it was sent.
+                        continue;
+                    }
+                    failed.add(entry);
+                    BackupStats.REPLICATION_FAILURES.inc();
+                    addAlert("Failed to replicate " + entry.path + ": " + ioe.getMessage());
+                    LogUtils.sendLog("Failed to replicate backup " + entry.path + ": " + ioe.getMessage());
+                }
+            }
+            setPending(failed);
+            return failed.size();
+        }
+    }
+
+    /**
+     * Stops replicating. Interrupted uploads are resumed by the next run.
+     */
+    public static synchronized void shutdown() {
+        if (coordinator != null) {
+            coordinator.shutdownNow();
+            coordinator = null;
+        }
+        if (partExecutor != null) {
+            partExecutor.shutdownNow();
+            partExecutor = null;
+        }
+    }
+
+    /**
+     * Gets how far replication is behind: the age of the oldest backup that
+     * has not been replicated.
+     *
+     * @return The lag in seconds, 0 if replication is up to date or off.
+     */
+    public static long getLagSeconds() {
+        long oldest = oldestPendingMillis;
+        return oldest > 0 ? Math.max(0, (System.currentTimeMillis() - oldest) / 1000L) : 0;
+    }
+
+    /**
+     * Gets the state of replication, for "/backup stats".
+     *
+     * @return The lines to send.
+     */
+    public static List<String> getStatus() {
+        List<String> lines = new ArrayList<String>();
+        if (config == null) {
+            return lines;
+        }
+        lines.add("Replicated " + BackupStats.BACKUPS_REPLICATED.get() + " backups, sending " + BackupStats.formatBytes(BackupStats.BYTES_REPLICATED.get())
+                + ", " + pendingCount + " waiting, lag " + BackupStats.formatMillis(getLagSeconds() * 1000L) + ".");
+        synchronized (alerts) {
+            lines.addAll(alerts);
+        }
+        return lines;
+    }
+
+    private static void setPending(List<CatalogEntry> pending) {
+        pendingCount = pending.size();
+        oldestPendingMillis = pending.isEmpty() ? 0 : pending.get(0).time;
+    }
+
+    private static void addAlert(String alert) {
+        synchronized (alerts) {
+            alerts.addFirst(alert);
+            if (alerts.size() > MAX_ALERTS) {
+                alerts.removeLast();
+            }
+        }
+    }
+
+    private static synchronized ExecutorService getPartExecutor() {
+        if (partExecutor == null) {
+            partExecutor = Executors.newFixedThreadPool(Math.max(1, partThreads), newThreadFactory("Backup Replicator Upload"));
+        }
+        return partExecutor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Sends one archive, resuming its upload if one was started.
+     */
+    private static void upload(Config current, ReplicationState state, CatalogEntry entry, File archive) throws IOException {
+        final S3Client client = current.client;
+        final String key = current.prefix.concat(entry.path);
+        long size = archive.length();
+        Upload upload = state.uploads.get(entry.path);
+        SortedMap<Integer, String> etags = new TreeMap<Integer, String>();
+
+        // The store keeps the parts of an interrupted upload.
+        if (upload != null && upload.size == size) {
+            try {
+                for (Map.Entry<Integer, S3Client.Part> part : client.listParts(key, upload.uploadId).entrySet()) {
+                    if (part.getValue().size == getPartLength(size, upload.partSize, part.getKey())) {
+                        etags.put(part.getKey(), part.getValue().etag);
+                    }
+                }
+            } catch (FileNotFoundException fnfe) {
+                upload = null;
+            }
+        } else if (upload != null) {
+            abortQuietly(client, key, upload.uploadId);
+            upload = null;
+        }
+        if (upload == null) {
+            upload = new Upload(client.createUpload(key), size, current.partSize);
+            state.recordUpload(entry.path, upload);
+        }
+
+        final String uploadId = upload.uploadId;
+        final long partSize = upload.partSize;
+        int partCount = (int) Math.max(1, (size + partSize - 1) / partSize);
+        final RandomAccessFile raf = new RandomAccessFile(archive, "r");
+        try {
+            final FileChannel channel = raf.getChannel();
+            Map<Integer, Future<String>> futures = new HashMap<Integer, Future<String>>();
+            for (int part = 1; part <= partCount; part++) {
+                if (etags.containsKey(part)) {
+                    continue;
+                }
+                final int partNumber = part;
+                final long offset = (part - 1) * partSize;
+                final int length = (int) getPartLength(size, partSize, part);
+                futures.put(partNumber, getPartExecutor().submit(new Callable<String>() {
+                    public String call() throws IOException {
+                        return uploadPart(client, channel, key, uploadId, partNumber, offset, length);
+                    }
+                }));
+            }
+            IOException failure = null;
+            for (Map.Entry<Integer, Future<String>> future : futures.entrySet()) {
+                try {
+                    etags.put(future.getKey(), future.getValue().get());
+                } catch (InterruptedException ie) {
+                    cancelAll(futures);
+                    throw new InterruptedIOException("Replication was stopped.");
+                } catch (ExecutionException ee) {
+                    if (failure == null) {
+                        failure = ee.getCause() instanceof IOException ? (IOException) ee.getCause() : new IOException(ee.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        } finally {
+            raf.close();
+        }
+        client.completeUpload(key, uploadId, etags);
+        state.recordDone(entry);
+    }
+
+    /**
+     * Reads a part of the archive, and sends it, trying again if it fails.
+     */
+    private static String uploadPart(S3Client client, FileChannel channel, String key, String uploadId, int partNumber, long offset, int length) throws IOException {
+        byte[] data = new byte[length];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        long position = offset;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                throw new EOFException(key + " is shorter than it was.");
+            }
+            position += read;
+        }
+        for (int attempt = 1;; attempt++) {
+            try {
+                String etag = client.uploadPart(key, uploadId, partNumber, data, length, rateLimiter);
+                BackupStats.BYTES_REPLICATED.add(length);
+                return etag;
+            } catch (InterruptedIOException iioe) {
+                throw iioe;
+            } catch (IOException ioe) {
+                if (attempt >= ATTEMPTS) {
+                    throw ioe;
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS * attempt);
+                } catch (InterruptedException ie) {
+                    throw new InterruptedIOException("Replication was stopped.");
+                }
+            }
+        }
+    }
+
+    private static long getPartLength(long size, long partSize, int partNumber) {
+        return Math.max(0, Math.min(partSize, size - (partNumber - 1) * partSize));
+    }
+
+    private static void cancelAll(Map<Integer, Future<String>> futures) {
+        for (Future<String> future : futures.values()) {
+            future.cancel(true);
+        }
+    }
+
+    private static void abortQuietly(S3Client client, String key, String uploadId) {
+        try {
+            client.abortUpload(key, uploadId);
+        } catch (IOException ioe) {
+            LogUtils.sendDebug(() -> String.format("Could not abandon the upload of %s: %s (M:0030)", key, ioe));
+        }
+    }
+
+    /**
+     * The settings of replication.
+     */
+    private static class Config {
+
+        final S3Client client;
+        final String prefix;
+        final long partSize;
+
+        Config(S3Client client, String prefix, long partSize) {
+            this.client = client;
+            this.prefix = prefix;
+            this.partSize = partSize;
+        }
+    }
+
+    /**
+     * An upload that was started.
+     */
+    private static class Upload {
+
+        final String uploadId;
+        final long size;
+        final long partSize;
+
+        Upload(String uploadId, long size, long partSize) {
+            this.uploadId = uploadId;
+            this.size = size;
+            this.partSize = partSize;
+        }
+    }
+
+    /**
+     * The uploads in replication.tsv.
+     */
+    private static class ReplicationState {
+
+        final File file;
+        final Map<String, String> done = new HashMap<String, String>();
+        final Map<String, Upload> uploads = new HashMap<String, Upload>();
+
+        ReplicationState(File file) {
+            this.file = file;
+        }
+
+        boolean isDone(CatalogEntry entry) {
+            return entry.checksum.equals(done.get(entry.path));
+        }
+
+        void load() throws IOException {
+            if (!file.exists()) {
+                return;
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int lastTab = line.lastIndexOf('\t');
+                    if (lastTab < 0 || !line.substring(lastTab + 1).equals(BackupCatalog.getChecksum(line.substring(0, lastTab)))) {
+                        continue;
+                    }
+                    String[] fields = line.substring(0, lastTab).split("\t");
+                    if (fields[0].equals(DONE) && fields.length == 3) {
+                        done.put(fields[1], fields[2]);
+                        uploads.remove(fields[1]);
+                    } else if (fields[0].equals(UPLOAD) && fields.length == 5) {
+                        uploads.put(fields[1], new Upload(fields[2], Long.parseLong(fields[3]), Long.parseLong(fields[4])));
+                        done.remove(fields[1]);
+                    }
+                }
+            } catch (NumberFormatException nfe) {
+                throw new IOException(file + " is damaged.", nfe);
+            } finally {
+                reader.close();
+            }
+        }
+
+        /**
+         * Rewrites the state with only the backups still in the catalog,
+         * abandoning the uploads of any others.
+         */
+        void compact(Config current, List<CatalogEntry> entries) throws IOException {
+            Map<String, CatalogEntry> byPath = new HashMap<String, CatalogEntry>();
+            for (CatalogEntry entry : entries) {
+                byPath.put(entry.path, entry);
+            }
+            StringBuilder text = new StringBuilder();
+            boolean dropped = false;
+            for (Map.Entry<String, String> entry : new ArrayList<Map.Entry<String, String>>(done.entrySet())) {
+                if (byPath.containsKey(entry.getKey())) {
+                    text.append(BackupCatalog.toLine(DONE, new String[]{entry.getKey(), entry.getValue()}));
+                } else {
+                    done.remove(entry.getKey());
+                    dropped = true;
+                }
+            }
+            for (Map.Entry<String, Upload> entry : new ArrayList<Map.Entry<String, Upload>>(uploads.entrySet())) {
+                Upload upload = entry.getValue();
+                if (byPath.containsKey(entry.getKey())) {
+                    text.append(BackupCatalog.toLine(UPLOAD, new String[]{entry.getKey(), upload.uploadId, Long.toString(upload.size), Long.toString(upload.partSize)}));
+                } else {
+                    abortQuietly(current.client, current.prefix.concat(entry.getKey()), upload.uploadId);
+                    uploads.remove(entry.getKey());
+                    dropped = true;
+                }
+            }
+            if (dropped) {
+                File tempFile = new File(file.getPath().concat(".tmp"));
+                BackupCatalog.writeSynced(tempFile, text.toString().getBytes("UTF-8"), false);
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+
+        void recordUpload(String path, Upload upload) throws IOException {
+            uploads.put(path, upload);
+            append(BackupCatalog.toLine(UPLOAD, new String[]{path, upload.uploadId, Long.toString(upload.size), Long.toString(upload.partSize)}));
+        }
+
+        void recordDone(CatalogEntry entry) throws IOException {
+            uploads.remove(entry.path);
+            done.put(entry.path, entry.checksum);
+            append(BackupCatalog.toLine(DONE, new String[]{entry.path, entry.checksum}));
+        }
+
+        private void append(String line) throws IOException {
+            BackupCatalog.writeSynced(file, line.getBytes("UTF-8"), true);
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedList;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Restores a world, or one folder or file of it, from a backup in the
+ * catalog. Only the entries that are wanted are read: the archive's index
+ * is used to find them, and nothing else is decompressed.
+ *
+ * A restore happens in two steps. stage() extracts into "<world>.restore"
+ * beside the world, and marks it complete once everything is on disk. apply()
+ * then swaps the staged file or folder in with renames, and must only be
+ * called while the world is not loaded. A staged restore that could not be
+ * applied is applied by applyPending() the next time the server starts, and
+ * an apply that was interrupted finishes there too.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupRestore {
+
+    public static final String STAGING_SUFFIX = ".restore";
+    public static final String LATEST = "latest";
+    private static final String MARKER_NAME = "restore.tsv";
+    private static final String DATA_NAME = "data";
+    private static final String REPLACED_NAME = "replaced";
+    private static final String LEVEL_FILE = "level.dat";
+    private static final String SEED_FILE = "worldSeed.txt";
+
+    private final File worldContainer;
+
+    /**
+     * @param worldContainer The folder holding the worlds.
+     */
+    public BackupRestore(File worldContainer) {
+        this.worldContainer = worldContainer;
+    }
+
+    /**
+     * Extracts part of a world from a backup, ready to be applied. Any
+     * restore of the world that was staged before is discarded.
+     *
+     * @param catalog The catalog of the backups.
+     * @param backupId The backup's ID, or null or LATEST for the newest.
+     * @param worldName The world.
+     * @param path The file or folder in the world, such as "region" or
+     * "region/r.0.0.mca", or "" for the whole world.
+     * @return The number of files staged.
+     * @throws IOException If there is no such backup or nothing in it matched,
+     * or it could not be read.
+     */
+    public int stage(BackupCatalog catalog, String backupId, String worldName, String path) throws IOException {
+        path = normalizePath(path);
+        if (LATEST.equals(backupId)) {
+            backupId = null;
+        }
+        CatalogEntry entry = catalog.findBackup(backupId, worldName);
+        if (entry == null) {
+            throw new FileNotFoundException("There is no backup " + (backupId != null ? backupId + " " : "") + "of " + worldName + ".");
+        }
+        File backup = catalog.getFile(entry);
+        File staging = getStagingFolder(worldName);
+        FileUtils.deleteDir(staging);
+        File data = new File(staging, DATA_NAME);
+
+        final String stagedPath = path.isEmpty() ? "everything" : path;
+        LogUtils.sendDebug(() -> String.format("Staging %s of %s from %s. (M:0025)", stagedPath, worldName, backup));
+        int staged;
+        try {
+            staged = backup.isDirectory() ? stageFromFolder(backup, worldName, path, data) : stageFromArchive(backup, worldName, path, data);
+            if (staged == 0) {
+                throw new FileNotFoundException("Backup " + entry.id + " has no " + (path.isEmpty() ? "files" : path) + " in " + worldName + ".");
+            }
+
+            // Only a complete staging has a marker, so it is safe to apply.
+            File marker = new File(staging, MARKER_NAME);
+            File markerTemp = new File(staging, MARKER_NAME + ".tmp");
+            FileOutputStream out = new FileOutputStream(markerTemp);
+            try {
+                Writer writer = new OutputStreamWriter(out, "UTF-8");
+                writer.write(entry.id + "\t" + worldName + "\t" + path + "\n");
+                writer.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(markerTemp.toPath(), marker.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            FileUtils.deleteDir(staging);
+            throw ioe;
+        }
+        return staged;
+    }
+
+    /**
+     * Checks whether a restore of a world is staged and complete.
+     *
+     * @param worldName The world.
+     * @return True if there is one to apply.
+     */
+    public boolean isStaged(String worldName) {
+        return new File(getStagingFolder(worldName), MARKER_NAME).isFile();
+    }
+
+    /**
+     * Swaps a staged restore into the world. The world must not be loaded.
+     *
+     * @param worldName The world.
+     * @return True if a restore was applied, false if none was staged.
+     * @throws IOException If it could not be swapped in, in which case it is
+     * left staged.
+     */
+    public boolean apply(String worldName) throws IOException {
+        File staging = getStagingFolder(worldName);
+        String[] marker = readMarker(staging);
+        if (marker == null) {
+            return false;
+        }
+        String path = marker[2];
+        File staged = path.isEmpty() ? new File(staging, DATA_NAME) : new File(new File(staging, DATA_NAME), path);
+        File target = path.isEmpty() ? new File(worldContainer, worldName) : new File(new File(worldContainer, worldName), path);
+
+        // If it is gone, an apply was stopped after swapping it in.
+        if (staged.exists()) {
+            if (staged.isFile()) {
+
+                // A file is replaced in one rename.
+                target.getParentFile().mkdirs();
+                Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } else {
+
+                // A folder is moved aside first, as a rename will not replace it.
+                File replaced = new File(staging, REPLACED_NAME);
+                if (target.exists()) {
+                    FileUtils.deleteDir(replaced);
+                    Files.move(target.toPath(), replaced.toPath(), StandardCopyOption.ATOMIC_MOVE);
+                }
+                target.getParentFile().mkdirs();
+                Files.move(staged.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+        }
+        FileUtils.deleteDir(staging);
+        LogUtils.sendLog("Restored " + (path.isEmpty() ? "" : path + " of ") + worldName + " from backup " + marker[0] + ".");
+        return true;
+    }
+
+    /**
+     * Applies every complete restore that is staged, and removes incomplete
+     * ones. This should be called before any world is loaded.
+     *
+     * @return The number of restores applied.
+     */
+    public int applyPending() {
+        File[] items = worldContainer.listFiles();
+        if (items == null) {
+            return 0;
+        }
+        int applied = 0;
+        for (File item : items) {
+            String name = item.getName();
+            if (!item.isDirectory() || !name.endsWith(STAGING_SUFFIX)) {
+                continue;
+            }
+            String worldName = name.substring(0, name.length() - STAGING_SUFFIX.length());
+            try {
+                if (apply(worldName)) {
+                    applied++;
+                } else {
+                    FileUtils.deleteDir(item);
+                }
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to apply the staged restore of " + worldName + ".");
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Removes a staged restore of a world.
+     *
+     * @param worldName The world.
+     */
+    public void discard(String worldName) {
+        FileUtils.deleteDir(getStagingFolder(worldName));
+    }
+
+    private File getStagingFolder(String worldName) {
+        return new File(worldContainer, worldName + STAGING_SUFFIX);
+    }
+
+    private static String[] readMarker(File staging) throws IOException {
+        File marker = new File(staging, MARKER_NAME);
+        if (!marker.isFile()) {
+            return null;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(marker), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            String[] fields = line != null ? line.split("\t", -1) : null;
+            return fields != null && fields.length == 3 ? fields : null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Extracts the wanted entries of an archive. Only the archive's index is
+     * listed, and only the wanted entries are read.
+     */
+    private static int stageFromArchive(File backup, String worldName, String path, File data) throws IOException {
+        BackupArchive archive = BackupArchive.open(backup);
+        try {
+            String worldPrefix = findWorldPrefix(archive, worldName);
+            int staged = 0;
+            byte[] chunk = new byte[FileUtils.BUFFER_SIZE];
+            for (String name : archive.getNames()) {
+                if (!name.startsWith(worldPrefix)) {
+                    continue;
+                }
+                String relative = name.substring(worldPrefix.length());
+                if (!isWanted(relative, path) || !isSafe(relative)) {
+                    continue;
+                }
+                File file = new File(data, relative.replace('/', File.separatorChar));
+                file.getParentFile().mkdirs();
+                InputStream in = archive.getInputStream(name);
+                try {
+                    FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        int length;
+                        while ((length = in.read(chunk)) != -1) {
+                            out.write(chunk, 0, length);
+                        }
+                        out.getFD().sync();
+                    } finally {
+                        out.close();
+                    }
+                } finally {
+                    in.close();
+                }
+                long modified = archive.getModified(name);
+                if (modified != -1) {
+                    file.setLastModified(modified);
+                }
+                staged++;
+            }
+            return staged;
+        } finally {
+            archive.close();
+        }
+    }
+
+    /**
+     * Finds where a world is in an archive, which depends on the kind of
+     * backup and the world container. It is where the world's level.dat is.
+     *
+     * @param archive The archive.
+     * @param worldName The world.
+     * @return The prefix of the world's entries, ending with "/".
+     */
+    static String findWorldPrefix(BackupArchive archive, String worldName) {
+        String worldPrefix = null;
+        for (String name : archive.getNames()) {
+            if (isWorldLevel(name, worldName) && (worldPrefix == null || name.length() < worldPrefix.length() + LEVEL_FILE.length())) {
+                worldPrefix = name.substring(0, name.length() - LEVEL_FILE.length());
+            }
+        }
+        return worldPrefix != null ? worldPrefix : worldName + "/";
+    }
+
+    /**
+     * Copies the wanted files of a backup that was not zipped.
+     */
+    private static int stageFromFolder(File backup, String worldName, String path, File data) throws IOException {
+        File worldFolder = findWorldFolder(backup, worldName);
+        if (worldFolder == null) {
+            return 0;
+        }
+        File source = path.isEmpty() ? worldFolder : new File(worldFolder, path.replace('/', File.separatorChar));
+        File destination = path.isEmpty() ? data : new File(data, path.replace('/', File.separatorChar));
+        if (source.isDirectory()) {
+            FileUtils.copyDirectory(source.getPath(), destination.getPath());
+            new File(destination, SEED_FILE).delete();
+        } else if (source.isFile()) {
+            destination.getParentFile().mkdirs();
+            FileUtils.copyFile(source, destination, true);
+        } else {
+            return 0;
+        }
+        return countFiles(destination);
+    }
+
+    /**
+     * Finds a world in a backup folder, up to a world container and a
+     * backup's own folder deep.
+     *
+     * @param backup The backup folder.
+     * @param worldName The world.
+     * @return The world's folder, or null if it is not there.
+     */
+    static File findWorldFolder(File backup, String worldName) {
+        LinkedList<File> folders = new LinkedList<File>();
+        folders.add(backup);
+        for (int depth = 0; depth < 3 && !folders.isEmpty(); depth++) {
+            LinkedList<File> next = new LinkedList<File>();
+            for (File folder : folders) {
+                File world = new File(folder, worldName);
+                if (new File(world, LEVEL_FILE).isFile()) {
+                    return world;
+                }
+                File[] children = folder.listFiles();
+                if (children != null) {
+                    for (File child : children) {
+                        if (child.isDirectory()) {
+                            next.add(child);
+                        }
+                    }
+                }
+            }
+            folders = next;
+        }
+        return null;
+    }
+
+    private static int countFiles(File file) {
+        if (!file.isDirectory()) {
+            return file.isFile() ? 1 : 0;
+        }
+        int count = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                count += countFiles(child);
+            }
+        }
+        return count;
+    }
+
+    private static boolean isWorldLevel(String name, String worldName) {
+        String level = worldName + "/" + LEVEL_FILE;
+        return name.equals(level) || name.endsWith("/" + level);
+    }
+
+    private static boolean isWanted(String relative, String path) {
+        if (path.isEmpty()) {
+
+            // The seed file is written by the backup, and was not in the world.
+            return !relative.equals(SEED_FILE);
+        }
+        return relative.equals(path) || relative.startsWith(path + "/");
+    }
+
+    private static boolean isSafe(String relative) {
+        for (String part : relative.split("/")) {
+            if (part.equals("..")) {
+                return false;
+            }
+        }
+        return !relative.startsWith("/");
+    }
+
+    /**
+     * Cleans up a path in a world, so it has "/" between folders and no
+     * leading or trailing "/".
+     *
+     * @throws IllegalArgumentException If it leaves the world.
+     */
+    private static String normalizePath(String path) {
+        if (path == null) {
+            return "";
+        }
+        path = path.replace('\\', '/');
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+        while (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        if (!isSafe(path) || path.contains(":")) {
+            throw new IllegalArgumentException("The path " + path + " is not inside the world.");
+        }
+        return path;
+    }
+}
@@ -0,0 +1,52 @@
+package com.bukkitbackup.full.engine;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The settings the backup engine reads. Implemented by the plugin's Settings,
+ * and by FileSettings when running without a server.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public interface BackupSettings {
+
+    /**
+     * Gets the value of a integer property.
+     *
+     * @param property The name of the property.
+     * @param defaultInt Set the default value of the integer.
+     * @return The value of the property.
+     */
+    int getIntProperty(String property, int defaultInt);
+
+    /**
+     * Gets the value of a boolean property.
+     *
+     * @param property The name of the property.
+     * @param defaultBool Set the default value of the boolean.
+     * @return The value of the property.
+     */
+    boolean getBooleanProperty(String property, boolean defaultBool);
+
+    /**
+     * Gets a value of the string property.
+     *
+     * @param property The name of the property.
+     * @param defaultString Set the default value of the string.
+     * @return The value of the property.
+     */
+    String getStringProperty(String property, String defaultString);
+
+    /**
+     * Gets the backup limit from "maxbackups".
+     *
+     * @return The number of backups, or the size in bytes, to keep. 0 for no
+     * limit.
+     */
+    long getBackupLimits();
+
+    /**
+     * @return True if the last call to getBackupLimits() returned a size.
+     */
+    boolean isMaxSizeBackup();
+}
@@ -0,0 +1,39 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Where the engine finds the things it backs up. On a server this comes from
+ * Bukkit (see ServerBackupSource), otherwise from a folder on disk (see
+ * FolderBackupSource).
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public interface BackupSource {
+
+    /**
+     * @return The server's folder, holding the plugins folder.
+     */
+    File getServerFolder();
+
+    /**
+     * @return The folder holding the world folders.
+     */
+    File getWorldContainer();
+
+    /**
+     * @return The names of the loaded worlds.
+     */
+    List<String> getWorldNames();
+
+    /**
+     * Gets the seed of a world, for "worldSeed.txt".
+     *
+     * @param worldName The name of the world.
+     * @return The seed, as text.
+     */
+    String getWorldSeed(String worldName);
+}
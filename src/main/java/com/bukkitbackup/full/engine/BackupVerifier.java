@@ -0,0 +1,309 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.utils.LogUtils;
+import com.bukkitbackup.full.utils.RateLimiter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Checks that backups can still be read, in the background. Each archive is
+ * read in full and its CRC32 compared with the catalog's, then each file in it
+ * is read and compared with the CRC32 the archive holds for it. A folder
+ * backup is checked for the number of files the catalog has for it.
+ *
+ * Backups are verified on a few low priority threads, one backup on each, and
+ * all of them together read no faster than the rate limit. Nothing is read
+ * while a backup is running. Results are kept in memory, and corrupt backups
+ * are logged and shown by "/backup stats".
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BackupVerifier {
+
+    private static final int MAX_ALERTS = 5;
+    private static final long BACKUP_WAIT_MILLIS = 1000;
+    private static final int READ_SIZE = 64 * 1024;
+
+    // Verified and queued backups, by absolute path.
+    private static final Map<String, Long> verifiedTimes = new HashMap<String, Long>();
+    private static final Set<String> queued = new HashSet<String>();
+    private static final LinkedList<String> alerts = new LinkedList<String>();
+
+    private static ExecutorService executor = null;
+    private static int threadCount = 1;
+    private static final RateLimiter rateLimiter = new RateLimiter(0);
+
+    private BackupVerifier() {
+    }
+
+    /**
+     * Sets how many backups are verified at once, and how fast they may be
+     * read. Verifications already queued keep running.
+     *
+     * @param threads Backups to verify at once.
+     * @param rateLimit Bytes read per second by all of them, 0 for no limit.
+     */
+    public static synchronized void configure(int threads, long rateLimit) {
+        rateLimiter.setRate(rateLimit);
+        threads = Math.max(1, threads);
+        if (threads != threadCount && executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+        threadCount = threads;
+    }
+
+    /**
+     * Verifies the backups that finished since a time, such as the start of
+     * the backup that made them.
+     *
+     * @param catalog The catalog of the backups.
+     * @param since The time, in milliseconds since the epoch.
+     */
+    public static void verifyNew(BackupCatalog catalog, long since) {
+        for (CatalogEntry entry : catalog.getPage(1, catalog.getCount(null), null)) {
+            if (entry.time >= since) {
+                submit(catalog, entry);
+            }
+        }
+    }
+
+    /**
+     * Verifies the backups that have not been verified for a while.
+     *
+     * @param catalog The catalog of the backups.
+     * @param maxAgeMillis How long a verification is trusted for.
+     */
+    public static void verifyOld(BackupCatalog catalog, long maxAgeMillis) {
+        long now = System.currentTimeMillis();
+        for (CatalogEntry entry : catalog.getPage(1, catalog.getCount(null), null)) {
+            Long verified;
+            synchronized (BackupVerifier.class) {
+                verified = verifiedTimes.get(catalog.getFile(entry).getAbsolutePath());
+            }
+            if (verified == null || now - verified >= maxAgeMillis) {
+                submit(catalog, entry);
+            }
+        }
+    }
+
+    /**
+     * Stops verifying, dropping any that are queued.
+     */
+    public static synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        queued.clear();
+    }
+
+    /**
+     * Gets the alerts for corrupt backups, for "/backup stats".
+     *
+     * @return The lines to send, newest first.
+     */
+    public static synchronized List<String> getAlerts() {
+        List<String> lines = new ArrayList<String>(alerts.size() + 1);
+        if (!queued.isEmpty()) {
+            lines.add("Verifying " + queued.size() + " backups.");
+        }
+        lines.addAll(alerts);
+        return lines;
+    }
+
+    private static synchronized void submit(final BackupCatalog catalog, final CatalogEntry entry) {
+        final String key = catalog.getFile(entry).getAbsolutePath();
+        if (!queued.add(key)) {
+            return;
+        }
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "Backup Verifier");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    verify(catalog, entry, key);
+                } finally {
+                    synchronized (BackupVerifier.class) {
+                        queued.remove(key);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Verifies one backup, and records the result.
+     */
+    private static void verify(BackupCatalog catalog, CatalogEntry entry, String key) {
+        File backup = catalog.getFile(entry);
+        String problem;
+        try {
+            if (backup.isDirectory()) {
+                problem = verifyFolder(backup, entry);
+            } else if (backup.isFile()) {
+                problem = verifyArchive(backup, entry);
+            } else if (catalog.hasBackup(entry.path)) {
+                problem = "it is missing";
+            } else {
+
+                // Removed by retention since it was queued.
+                return;
+            }
+        } catch (InterruptedIOException iioe) {
+            return;
+        } catch (IOException ioe) {
+            if (!backup.exists() && !catalog.hasBackup(entry.path)) {
+                return;
+            }
+            problem = ioe.getMessage() != null ? ioe.getMessage() : ioe.toString();
+        }
+
+        BackupStats.BACKUPS_VERIFIED.inc();
+        synchronized (BackupVerifier.class) {
+            verifiedTimes.put(key, System.currentTimeMillis());
+            if (problem != null) {
+                alerts.addFirst("CORRUPT: " + entry.id + " (" + entry.path + "), " + problem + ".");
+                if (alerts.size() > MAX_ALERTS) {
+                    alerts.removeLast();
+                }
+            }
+        }
+        if (problem != null) {
+            BackupStats.BACKUPS_CORRUPT.inc();
+            LogUtils.sendLog("Backup " + entry.id + " (" + entry.path + ") is corrupt: " + problem + ".");
+        } else {
+            LogUtils.sendDebug(() -> String.format("Verified backup %s. (M:0027)", entry.path));
+        }
+    }
+
+    /**
+     * Checks an archive against the catalog, and each file in it against the
+     * archive's checksums.
+     *
+     * @return What is wrong with it, or null if nothing.
+     */
+    private static String verifyArchive(File backup, CatalogEntry entry) throws IOException {
+        byte[] buffer = new byte[READ_SIZE];
+        if (entry.checksum.startsWith("crc32:")) {
+            InputStream in = new FileInputStream(backup);
+            long crc;
+            try {
+                crc = readChecksum(in, buffer);
+            } finally {
+                in.close();
+            }
+            String checksum = String.format(Locale.ROOT, "crc32:%08x", crc);
+            if (!checksum.equals(entry.checksum)) {
+                return "its checksum is " + checksum + " but the catalog has " + entry.checksum;
+            }
+        }
+
+        BackupArchive archive = BackupArchive.open(backup);
+        try {
+            int files = 0;
+            for (String name : archive.getNames()) {
+                files++;
+                InputStream in = archive.getInputStream(name);
+                long crc;
+                try {
+                    crc = readChecksum(in, buffer);
+                } finally {
+                    in.close();
+                }
+                long expected = archive.getChecksum(name);
+                if (expected != -1 && crc != expected) {
+                    return name + " does not match its checksum";
+                }
+            }
+            if (files != entry.fileCount) {
+                return "it holds " + files + " files but the catalog has " + entry.fileCount;
+            }
+        } finally {
+            archive.close();
+        }
+        return null;
+    }
+
+    /**
+     * Checks that a folder still holds as many files as it did.
+     *
+     * @return What is wrong with it, or null if nothing.
+     */
+    private static String verifyFolder(File backup, CatalogEntry entry) {
+        long files = countFiles(backup);
+        if (files != entry.fileCount) {
+            return "it holds " + files + " files but the catalog has " + entry.fileCount;
+        }
+        return null;
+    }
+
+    private static long countFiles(File folder) {
+        long count = 0;
+        File[] items = folder.listFiles();
+        if (items != null) {
+            for (File item : items) {
+                count += item.isDirectory() ? countFiles(item) : 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Reads a stream to the end, at no more than the rate limit.
+     *
+     * @return The CRC32 of what was read.
+     */
+    private static long readChecksum(InputStream in, byte[] buffer) throws IOException {
+        CRC32 crc = new CRC32();
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            crc.update(buffer, 0, length);
+            throttle(length);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Waits until bytes that were read are within the rate limit, and while a
+     * backup is running.
+     */
+    private static void throttle(long bytes) throws IOException {
+        BackupStats.BYTES_VERIFIED.add(bytes);
+        try {
+            while (BackupEngine.backupInProgress.get()) {
+                Thread.sleep(BACKUP_WAIT_MILLIS);
+            }
+            rateLimiter.acquire(bytes);
+        } catch (InterruptedException ie) {
+            throw new InterruptedIOException("Verification was stopped.");
+        }
+    }
+}
@@ -1,7 +1,9 @@
-package com.bukkitbackup.full.threading.tasks;
+package com.bukkitbackup.full.engine;
 
-import com.bukkitbackup.full.config.Settings;
-import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.stats.BackupProgress;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.stats.jfr.BackupEvents;
+import com.bukkitbackup.full.utils.ArchiveOptions;
 import com.bukkitbackup.full.utils.FileUtils;
 import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
 import com.bukkitbackup.full.utils.LogUtils;
@@ -10,10 +12,10 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
-import org.bukkit.Server;
-import org.bukkit.World;
 
 /**
  * Backup - The simple server backup solution.
@@ -22,9 +24,12 @@ import org.bukkit.World;
  */
 public class BackupWorlds {
 
-    private final Server pluginServer;
-    private final Settings settings;
-    private final Strings strings;
+    // The other files kept for each region, by chunk.
+    private static final List<String> CHUNK_DATA = Arrays.asList("entities", "poi");
+
+    private final BackupSource source;
+    private final BackupSettings settings;
+    private final BackupMessages strings;
     private final String worldContainer;
     private final String backupPath;
     private final boolean useTemp;
@@ -33,26 +38,35 @@ public class BackupWorlds {
     private final String tempDestination;
     private final List<String> ignoredWorlds;
     private final boolean backupSeeds;
+    private final boolean compactRegions;
+    private final long pruneTicks;
+    private int prunedChunks;
+    private final BackupJournal journal;
+    private final ArchiveOptions archiveOptions;
 
     /**
      * This should be the place where all the settings and paths for the backup
      * are defined.
      *
-     * @param plugin
+     * @param source Where to find the worlds.
      * @param settings
      * @param strings
+     * @param journal The journal to record checkpoints in.
+     * @param archiveOptions How the backup's archives are written.
      */
-    public BackupWorlds(Server server, final Settings settings, Strings strings) {
+    public BackupWorlds(BackupSource source, final BackupSettings settings, BackupMessages strings, BackupJournal journal, ArchiveOptions archiveOptions) {
 
-        this.pluginServer = server;
+        this.source = source;
         this.settings = settings;
         this.strings = strings;
+        this.journal = journal;
+        this.archiveOptions = archiveOptions;
 
         // Create list of worlds we need to backup.
         ignoredWorlds = getIgnoredWorldNames();
 
         // Build folder paths.
-        worldContainer = pluginServer.getWorldContainer().getName();
+        worldContainer = source.getWorldContainer().getName();
 
         // Get backup properties.
         backupPath = settings.getStringProperty("backuppath", "backups");
@@ -60,6 +74,8 @@ public class BackupWorlds {
         splitBackup = settings.getBooleanProperty("splitbackup", false);
         useTemp = settings.getBooleanProperty("usetemp", true);
         backupSeeds = settings.getBooleanProperty("backupworldseed", true);
+        pruneTicks = settings.getIntProperty("pruneunvisitedchunks", 0) * 20L;
+        compactRegions = settings.getBooleanProperty("compactregions", false) || pruneTicks > 0;
 
         // Generate the worldStore.
         if (useTemp) {
@@ -88,9 +104,13 @@ public class BackupWorlds {
         while (!worldsToBackup.isEmpty()) {
             
             String currentWorldName = worldsToBackup.removeFirst();
+            long bytesAtStart = BackupStats.BYTES_READ.get();
+            long filesAtStart = BackupStats.FILES_COPIED.get();
+            Object worldEvent = BackupEvents.beginPhase("world", currentWorldName);
+            BackupProgress.setPhase("world " + currentWorldName);
 
             // Get the current worlds seed.
-            String worldSeed = String.valueOf(pluginServer.getWorld(currentWorldName).getSeed());
+            String worldSeed = source.getWorldSeed(currentWorldName);
 
             // Check for split backup.
             if (splitBackup) {
@@ -118,6 +138,11 @@ public class BackupWorlds {
                     // backups/temp/world/yymmdd-hhmmss
                 }
 
+                // Each world is its own archive.
+                String thisWorldArchive = thisWorldBackupPath.concat(FILE_SEPARATOR).concat(backupName);
+                journal.unit(CatalogEntry.KIND_WORLD, thisWorldBackupFolder, thisWorldArchive, Collections.singletonList(currentWorldName));
+                journal.part(thisWorldBackupFolder, thisWorldBackupFolder, currentWorldName);
+
                 // Check this backup folder exists.
                 FileUtils.checkFolderAndCreate(new File(thisWorldBackupFolder));
 
@@ -135,11 +160,15 @@ public class BackupWorlds {
                 }
 
                 // Copy the current world into it's backup folder.
-                FileUtils.copyDirectory(worldContainer.concat(FILE_SEPARATOR).concat(currentWorldName), thisWorldBackupFolder.concat(FILE_SEPARATOR).concat(currentWorldName));
+                FileUtils.copyDirectory(source.getWorldContainer().getPath().concat(FILE_SEPARATOR).concat(currentWorldName), thisWorldBackupFolder.concat(FILE_SEPARATOR).concat(currentWorldName));
+                if (compactRegions) {
+                    compactRegions(currentWorldName, new File(thisWorldBackupFolder.concat(FILE_SEPARATOR).concat(currentWorldName)));
+                }
+                journal.copied(thisWorldBackupFolder);
 
                 // Check and ZIP folder.
-                if (useTemp || shouldZIP) {
-                    FileUtils.doCopyAndZIP(thisWorldBackupFolder, thisWorldBackupPath.concat(FILE_SEPARATOR).concat(backupName), shouldZIP, useTemp);
+                if (!(useTemp || shouldZIP) || FileUtils.doCopyAndZIP(thisWorldBackupFolder, thisWorldArchive, shouldZIP, useTemp, archiveOptions)) {
+                    journal.archived(thisWorldBackupFolder);
                 }
 
             } else { // Not a split backup.
@@ -153,6 +182,7 @@ public class BackupWorlds {
                 }
 
                 // Create this folder.
+                journal.part(tempDestination.concat(backupName), copyDestination, currentWorldName);
                 FileUtils.checkFolderAndCreate(new File(copyDestination));
 
                 // Bacup level seeds.
@@ -169,10 +199,92 @@ public class BackupWorlds {
                 }
 
                 // Copy the current world into it's backup folder.
-                FileUtils.copyDirectory(pluginServer.getWorldContainer().getAbsolutePath().concat(FILE_SEPARATOR).concat(currentWorldName), copyDestination);
+                FileUtils.copyDirectory(source.getWorldContainer().getAbsolutePath().concat(FILE_SEPARATOR).concat(currentWorldName), copyDestination);
+                if (compactRegions) {
+                    compactRegions(currentWorldName, new File(copyDestination));
+                }
+                journal.copied(copyDestination);
+
+            }
+            BackupEvents.endPhase(worldEvent, BackupStats.BYTES_READ.get() - bytesAtStart, BackupStats.FILES_COPIED.get() - filesAtStart);
+        }
+    }
+
+    /**
+     * Packs the region files in the copy of a world, so the free sectors in
+     * them are not archived. Chunks no player has spent "pruneunvisitedchunks"
+     * seconds near are left out, as they can be generated again from the seed.
+     * The world itself is not touched.
+     *
+     * @param worldName The world.
+     * @param worldCopy Its copy.
+     */
+    private void compactRegions(String worldName, File worldCopy) {
+        BackupProgress.setPhase("compact " + worldName);
+        prunedChunks = 0;
+        long saved = compactFolder(worldCopy);
+        BackupStats.recordCompaction(worldName, saved, prunedChunks);
+        final int pruned = prunedChunks;
+        LogUtils.sendDebug(() -> String.format("Compacted the regions of %s, saving %d bytes and leaving out %d chunks. (M:0032)", worldName, saved, pruned));
+    }
+
+    private long compactFolder(File folder) {
+        long saved = 0;
+        File[] items = folder.listFiles();
+        if (items == null) {
+            return 0;
+        }
+        for (File item : items) {
+            if (item.isDirectory()) {
+
+                // These are compacted with the region they belong to.
+                if (pruneTicks == 0 || !CHUNK_DATA.contains(item.getName()) || !new File(folder, "region").isDirectory()) {
+                    saved += compactFolder(item);
+                }
+            } else if (item.getName().endsWith(".mca")) {
+                saved += compactRegion(item);
+            }
+        }
+        return saved;
+    }
+
+    private long compactRegion(File regionFile) {
+        long saved = 0;
+        BitSet unvisited = new BitSet();
+        File dimension = regionFile.getParentFile().getParentFile();
+        boolean prune = pruneTicks > 0 && regionFile.getParentFile().getName().equals("region");
+        try {
+            if (prune) {
+                unvisited = RegionFile.findUnvisited(regionFile, pruneTicks);
+            }
+            RegionFile.Compaction compaction = RegionFile.compact(regionFile, unvisited);
+            saved = compaction.savedBytes;
+
+            // It was left as it was, so its chunks' other data is kept. One
+            // that was rewritten may still have saved nothing.
+            if (!compaction.rewritten) {
+                unvisited.clear();
+            }
+            prunedChunks += unvisited.cardinality();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to compact " + regionFile + ", it is backed up as it was.");
+            unvisited.clear();
+        }
 
+        // The entities and points of interest of the chunks left out go too.
+        if (prune) {
+            for (String data : CHUNK_DATA) {
+                File dataFile = new File(new File(dimension, data), regionFile.getName());
+                if (dataFile.isFile()) {
+                    try {
+                        saved += RegionFile.compact(dataFile, unvisited).savedBytes;
+                    } catch (IOException ioe) {
+                        LogUtils.exceptionLog(ioe, "Failed to compact " + dataFile + ", it is backed up as it was.");
+                    }
+                }
             }
         }
+        return saved;
     }
 
     /**
@@ -197,11 +309,11 @@ public class BackupWorlds {
         return worldNames;
     }
 
-    private LinkedList<String> getWorldsToBackup() {
+    LinkedList<String> getWorldsToBackup() {
         LinkedList<String> toBackup = new LinkedList<String>();
-        for (World loopWorld : pluginServer.getWorlds()) {
-            if ((loopWorld.getName() != null) && !loopWorld.getName().isEmpty() && (!ignoredWorlds.contains(loopWorld.getName()))) {
-                toBackup.add(loopWorld.getName());
+        for (String worldName : source.getWorldNames()) {
+            if ((worldName != null) && !worldName.isEmpty() && (!ignoredWorlds.contains(worldName))) {
+                toBackup.add(worldName);
             }
         }
         return toBackup;
@@ -0,0 +1,107 @@
+package com.bukkitbackup.full.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * One archive (or folder) in the backup catalog. A split backup has one
+ * entry for each world and one for the plugins, all with the same ID.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class CatalogEntry {
+
+    public static final String KIND_FULL = "full";
+    public static final String KIND_WORLD = "world";
+    public static final String KIND_PLUGINS = "plugins";
+    public static final String KIND_EVERYTHING = "everything";
+
+    // When the backup finished, in milliseconds since the epoch.
+    public final long time;
+    // The backup's name, from the date format.
+    public final String id;
+    public final String kind;
+    public final List<String> worlds;
+    // Relative to the backup folder, with "/" between folders.
+    public final String path;
+    public final long size;
+    public final long fileCount;
+    public final long durationMillis;
+    // Archive size as thousandths of its contents.
+    public final long ratioPermille;
+    // "crc32:" and eight hex digits, or "-".
+    public final String checksum;
+
+    public CatalogEntry(long time, String id, String kind, List<String> worlds, String path, long size, long fileCount, long durationMillis, long ratioPermille, String checksum) {
+        this.time = time;
+        this.id = id;
+        this.kind = kind;
+        this.worlds = Collections.unmodifiableList(worlds);
+        this.path = path;
+        this.size = size;
+        this.fileCount = fileCount;
+        this.durationMillis = durationMillis;
+        this.ratioPermille = ratioPermille;
+        this.checksum = checksum;
+    }
+
+    /**
+     * Gets this entry for a backup that has been moved.
+     *
+     * @param newPath The new path, relative to the backup folder.
+     * @return The moved entry.
+     */
+    CatalogEntry withPath(String newPath) {
+        return new CatalogEntry(time, id, kind, worlds, newPath, size, fileCount, durationMillis, ratioPermille, checksum);
+    }
+
+    /**
+     * Checks whether this backup holds a world.
+     *
+     * @param worldName The name of the world.
+     * @return True if the world is in it.
+     */
+    public boolean hasWorld(String worldName) {
+        return worlds.contains(worldName);
+    }
+
+    /**
+     * Gets the fields as stored in the catalog.
+     *
+     * @return The fields, which contain no tabs or line breaks.
+     */
+    String[] toFields() {
+        StringBuilder worldList = new StringBuilder();
+        for (String world : worlds) {
+            if (worldList.length() > 0) {
+                worldList.append(',');
+            }
+            worldList.append(world);
+        }
+        return new String[]{String.valueOf(time), clean(id), kind, worlds.isEmpty() ? "-" : clean(worldList.toString()), clean(path),
+            String.valueOf(size), String.valueOf(fileCount), String.valueOf(durationMillis), String.valueOf(ratioPermille), checksum};
+    }
+
+    /**
+     * Reads an entry from the fields stored in the catalog.
+     *
+     * @param fields The fields, from toFields().
+     * @return The entry.
+     * @throws IllegalArgumentException If the fields are malformed.
+     */
+    static CatalogEntry fromFields(String[] fields) {
+        if (fields.length != 10) {
+            throw new IllegalArgumentException("Expected 10 fields, found " + fields.length + ".");
+        }
+        List<String> worlds = fields[3].equals("-") ? Collections.<String>emptyList() : Arrays.asList(fields[3].split(","));
+        return new CatalogEntry(Long.parseLong(fields[0]), fields[1], fields[2], worlds, fields[4],
+                Long.parseLong(fields[5]), Long.parseLong(fields[6]), Long.parseLong(fields[7]), Long.parseLong(fields[8]), fields[9]);
+    }
+
+    private static String clean(String value) {
+        return value.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+}
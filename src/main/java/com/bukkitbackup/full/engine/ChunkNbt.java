@@ -0,0 +1,175 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Reads a chunk's NBT as it is decompressed, only as far as the one value
+ * wanted, without building the tree. Everything else is skipped over. Before
+ * 1.18 a chunk's values are in its "Level" compound, and since then they are
+ * at the top, so both are looked in.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+final class ChunkNbt {
+
+    private static final int TAG_END = 0;
+    private static final int TAG_BYTE = 1;
+    private static final int TAG_SHORT = 2;
+    private static final int TAG_INT = 3;
+    private static final int TAG_LONG = 4;
+    private static final int TAG_FLOAT = 5;
+    private static final int TAG_DOUBLE = 6;
+    private static final int TAG_BYTE_ARRAY = 7;
+    private static final int TAG_STRING = 8;
+    private static final int TAG_LIST = 9;
+    private static final int TAG_COMPOUND = 10;
+    private static final int TAG_INT_ARRAY = 11;
+    private static final int TAG_LONG_ARRAY = 12;
+    private static final int MAX_DEPTH = 512;
+
+    private static final int COMPRESSION_GZIP = 1;
+    private static final int COMPRESSION_ZLIB = 2;
+    private static final int COMPRESSION_NONE = 3;
+
+    private final Inflater inflater = new Inflater();
+
+    /**
+     * Reads a long value of a chunk, such as "InhabitedTime".
+     *
+     * @param payload The chunk's payload, as read from its region file.
+     * @param length The payload's length, with its length and compression.
+     * @param name The value's name.
+     * @return The value, or -1 if the chunk does not have it, or is stored in
+     * a way this cannot read.
+     * @throws IOException If the chunk is damaged.
+     */
+    long readLong(byte[] payload, int length, String name) throws IOException {
+        InputStream in = new ByteArrayInputStream(payload, 5, length - 5);
+        switch (payload[4]) {
+            case COMPRESSION_GZIP:
+                in = new GZIPInputStream(in);
+                break;
+            case COMPRESSION_ZLIB:
+                inflater.reset();
+                in = new InflaterInputStream(in, inflater, 4096);
+                break;
+            case COMPRESSION_NONE:
+                break;
+            default:
+
+                // Stored outside the region, or compressed some newer way.
+                return -1;
+        }
+        try {
+            DataInputStream data = new DataInputStream(in);
+            if (data.readUnsignedByte() != TAG_COMPOUND) {
+                return -1;
+            }
+            skipFully(data, data.readUnsignedShort());
+            return findLong(data, name, true);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Frees the inflater.
+     */
+    void close() {
+        inflater.end();
+    }
+
+    private long findLong(DataInputStream data, String name, boolean top) throws IOException {
+        int type;
+        while ((type = data.readUnsignedByte()) != TAG_END) {
+            String tagName = data.readUTF();
+            if (type == TAG_LONG && tagName.equals(name)) {
+                return data.readLong();
+            } else if (top && type == TAG_COMPOUND && tagName.equals("Level")) {
+                long value = findLong(data, name, false);
+                if (value != -1) {
+                    return value;
+                }
+            } else {
+                skip(data, type, 0);
+            }
+        }
+        return -1;
+    }
+
+    private void skip(DataInputStream data, int type, int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("The chunk's tags are nested too deeply.");
+        }
+        switch (type) {
+            case TAG_BYTE:
+                skipFully(data, 1);
+                break;
+            case TAG_SHORT:
+                skipFully(data, 2);
+                break;
+            case TAG_INT:
+            case TAG_FLOAT:
+                skipFully(data, 4);
+                break;
+            case TAG_LONG:
+            case TAG_DOUBLE:
+                skipFully(data, 8);
+                break;
+            case TAG_BYTE_ARRAY:
+                skipFully(data, getCount(data));
+                break;
+            case TAG_STRING:
+                skipFully(data, data.readUnsignedShort());
+                break;
+            case TAG_LIST:
+                int elementType = data.readUnsignedByte();
+                int count = getCount(data);
+                for (int i = 0; i < count; i++) {
+                    skip(data, elementType, depth + 1);
+                }
+                break;
+            case TAG_COMPOUND:
+                int childType;
+                while ((childType = data.readUnsignedByte()) != TAG_END) {
+                    skipFully(data, data.readUnsignedShort());
+                    skip(data, childType, depth + 1);
+                }
+                break;
+            case TAG_INT_ARRAY:
+                skipFully(data, getCount(data) * 4L);
+                break;
+            case TAG_LONG_ARRAY:
+                skipFully(data, getCount(data) * 8L);
+                break;
+            default:
+                throw new IOException("The chunk has a tag of unknown type " + type + ".");
+        }
+    }
+
+    private static int getCount(DataInputStream data) throws IOException {
+        int count = data.readInt();
+        if (count < 0) {
+            throw new IOException("The chunk has a list of " + count + " values.");
+        }
+        return count;
+    }
+
+    private static void skipFully(DataInputStream data, long bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = data.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("The chunk ended early.");
+            }
+            bytes -= skipped;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.archive.IndexedArchive;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Rolls chunks of a world back to how they were in a backup, by copying their
+ * payloads from the backup's region files into the world's. Only the region
+ * files holding the chunks are read from the backup, and only up to the last
+ * chunk that is wanted. From an indexed archive, only the wanted chunks are
+ * read.
+ *
+ * While the server has the world loaded it caches the region headers, so
+ * apply() can then only write chunks over their own sectors. Chunks that do
+ * not fit, or that must be removed, are deferred: they are kept in
+ * "<world>.chunks" beside the world and written by applyPending() when the
+ * server next starts.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class ChunkRollback {
+
+    public static final String PENDING_SUFFIX = ".chunks";
+    private static final String[] REGION_FOLDERS = {"region", "DIM-1/region", "DIM1/region"};
+
+    private final File worldContainer;
+    private final String worldName;
+    private final String regionFolder;
+    private final Map<Long, byte[]> payloads = new LinkedHashMap<Long, byte[]>();
+
+    /**
+     * @param worldContainer The folder holding the worlds.
+     * @param worldName The world to roll back.
+     */
+    public ChunkRollback(File worldContainer, String worldName) {
+        this.worldContainer = worldContainer;
+        this.worldName = worldName;
+
+        // A world's own dimension is the first of these it has.
+        File worldFolder = new File(worldContainer, worldName);
+        String found = REGION_FOLDERS[0];
+        for (String folder : REGION_FOLDERS) {
+            if (new File(worldFolder, folder.replace('/', File.separatorChar)).isDirectory()) {
+                found = folder;
+                break;
+            }
+        }
+        regionFolder = found;
+    }
+
+    /**
+     * Gets the chunks in a square around a chunk.
+     *
+     * @param chunkX The center chunk's X coordinate.
+     * @param chunkZ The center chunk's Z coordinate.
+     * @param radius How many chunks on each side, 0 for only the center.
+     * @return The chunks, from getKey().
+     */
+    public static List<Long> getArea(int chunkX, int chunkZ, int radius) {
+        List<Long> chunks = new ArrayList<Long>((2 * radius + 1) * (2 * radius + 1));
+        for (int x = chunkX - radius; x <= chunkX + radius; x++) {
+            for (int z = chunkZ - radius; z <= chunkZ + radius; z++) {
+                chunks.add(getKey(x, z));
+            }
+        }
+        return chunks;
+    }
+
+    public static long getKey(int chunkX, int chunkZ) {
+        return (long) chunkX << 32 | (chunkZ & 0xFFFFFFFFL);
+    }
+
+    public static int getX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int getZ(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Reads chunks from a backup. Chunks that are not in the backup are
+     * removed by the rollback, so the server generates them again.
+     *
+     * @param catalog The catalog of the backups.
+     * @param backupId The backup's ID, or null or BackupRestore.LATEST for
+     * the newest.
+     * @param chunks The chunks, from getKey().
+     * @return The number of chunks that are in the backup.
+     * @throws IOException If there is no such backup, or it could not be read.
+     */
+    public int extract(BackupCatalog catalog, String backupId, Collection<Long> chunks) throws IOException {
+        CatalogEntry entry = catalog.findBackup(BackupRestore.LATEST.equals(backupId) ? null : backupId, worldName);
+        if (entry == null) {
+            throw new FileNotFoundException("There is no backup " + (backupId != null ? backupId + " " : "") + "of " + worldName + ".");
+        }
+        File backup = catalog.getFile(entry);
+
+        // One region file at a time.
+        Map<String, List<Long>> regions = new LinkedHashMap<String, List<Long>>();
+        for (Long key : chunks) {
+            String fileName = RegionFile.getFileName(getX(key), getZ(key));
+            List<Long> regionChunks = regions.get(fileName);
+            if (regionChunks == null) {
+                regionChunks = new ArrayList<Long>();
+                regions.put(fileName, regionChunks);
+            }
+            regionChunks.add(key);
+        }
+
+        final int chunkCount = chunks.size();
+        LogUtils.sendDebug(() -> String.format("Reading %d chunks of %s from %s. (M:0026)", chunkCount, worldName, backup));
+        payloads.clear();
+        int found = 0;
+        BackupArchive archive = backup.isDirectory() ? null : BackupArchive.open(backup);
+        try {
+            String worldPrefix = archive != null ? BackupRestore.findWorldPrefix(archive, worldName) : null;
+            File worldFolder = archive == null ? BackupRestore.findWorldFolder(backup, worldName) : null;
+            if (archive == null && worldFolder == null) {
+                throw new FileNotFoundException("Backup " + entry.id + " does not hold " + worldName + ".");
+            }
+            for (Map.Entry<String, List<Long>> region : regions.entrySet()) {
+                String regionPath = regionFolder + "/" + region.getKey();
+                List<Integer> indexes = new ArrayList<Integer>();
+                for (Long key : region.getValue()) {
+                    indexes.add(RegionFile.getIndex(getX(key), getZ(key)));
+                }
+
+                // An indexed archive reads each chunk on its own.
+                Map<Integer, byte[]> regionPayloads = new LinkedHashMap<Integer, byte[]>();
+                if (archive instanceof IndexedArchive) {
+                    for (Integer index : indexes) {
+                        byte[] payload = ((IndexedArchive) archive).readChunk(worldPrefix + regionPath, index);
+                        if (payload != null) {
+                            regionPayloads.put(index, payload);
+                        }
+                    }
+                } else {
+                    InputStream in;
+                    if (archive != null) {
+                        in = archive.getInputStream(worldPrefix + regionPath);
+                    } else {
+                        File regionFile = new File(worldFolder, regionPath.replace('/', File.separatorChar));
+                        in = regionFile.isFile() ? new FileInputStream(regionFile) : null;
+                    }
+
+                    // A missing region has none of its chunks.
+                    if (in != null) {
+                        try {
+                            regionPayloads = RegionFile.readChunks(in, indexes);
+                        } finally {
+                            in.close();
+                        }
+                    }
+                }
+                for (Long key : region.getValue()) {
+                    byte[] payload = regionPayloads.get(RegionFile.getIndex(getX(key), getZ(key)));
+                    payloads.put(key, payload);
+                    if (payload != null) {
+                        found++;
+                    }
+                }
+            }
+        } finally {
+            if (archive != null) {
+                archive.close();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Gets the chunks that were extracted.
+     *
+     * @return The chunks, from getKey().
+     */
+    public List<Long> getChunks() {
+        return new ArrayList<Long>(payloads.keySet());
+    }
+
+    /**
+     * Writes extracted chunks into the world. None of them may be loaded.
+     *
+     * @param chunks The chunks to write, from getChunks().
+     * @param worldLoaded True if the server has the world loaded, so chunks
+     * can only be written over their own sectors.
+     * @return The chunks that could not be written, and need defer().
+     * @throws IOException If a region file could not be written.
+     */
+    public List<Long> apply(Collection<Long> chunks, boolean worldLoaded) throws IOException {
+        List<Long> notApplied = new ArrayList<Long>();
+        File regionDir = new File(new File(worldContainer, worldName), regionFolder.replace('/', File.separatorChar));
+        int timestamp = (int) (System.currentTimeMillis() / 1000);
+        String openName = null;
+        RegionFile openRegion = null;
+        try {
+            for (Long key : chunks) {
+                if (!payloads.containsKey(key)) {
+                    continue;
+                }
+                int chunkX = getX(key);
+                int chunkZ = getZ(key);
+                String fileName = RegionFile.getFileName(chunkX, chunkZ);
+                File file = new File(regionDir, fileName);
+
+                // The server keeps its own copy of the header of a loaded world.
+                if (!file.isFile()) {
+                    if (worldLoaded) {
+                        notApplied.add(key);
+                    }
+                    if (worldLoaded || payloads.get(key) == null) {
+                        continue;
+                    }
+                }
+                if (!fileName.equals(openName)) {
+                    if (openRegion != null) {
+                        openRegion.close();
+                        openRegion = null;
+                    }
+                    regionDir.mkdirs();
+                    openRegion = new RegionFile(file);
+                    openName = fileName;
+                }
+                int index = RegionFile.getIndex(chunkX, chunkZ);
+                byte[] payload = payloads.get(key);
+                if (worldLoaded) {
+                    if (payload != null && openRegion.fitsInPlace(index, payload)) {
+                        openRegion.writeChunkInPlace(index, payload);
+                    } else {
+                        notApplied.add(key);
+                    }
+                } else if (payload != null) {
+                    openRegion.writeChunk(index, payload, timestamp);
+                } else {
+                    openRegion.removeChunk(index);
+                }
+            }
+        } finally {
+            if (openRegion != null) {
+                openRegion.close();
+            }
+        }
+        return notApplied;
+    }
+
+    /**
+     * Keeps chunks to be written when the server next starts.
+     *
+     * @param chunks The chunks, from apply().
+     * @throws IOException If they could not be kept.
+     */
+    public void defer(Collection<Long> chunks) throws IOException {
+        File pendingFolder = getPendingFolder(worldContainer, worldName);
+        for (Long key : chunks) {
+            if (!payloads.containsKey(key)) {
+                continue;
+            }
+            pendingFolder.mkdirs();
+
+            // An empty file removes the chunk.
+            byte[] payload = payloads.get(key);
+            String name = getX(key) + "." + getZ(key);
+            File temp = new File(pendingFolder, name + ".tmp");
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                if (payload != null) {
+                    out.write(payload);
+                }
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), new File(pendingFolder, name + ".chunk").toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Writes the deferred chunks of every world. This should be called before
+     * any world is loaded.
+     *
+     * @param worldContainer The folder holding the worlds.
+     * @return The number of chunks written.
+     */
+    public static int applyPending(File worldContainer) {
+        File[] items = worldContainer.listFiles();
+        if (items == null) {
+            return 0;
+        }
+        int applied = 0;
+        for (File item : items) {
+            String name = item.getName();
+            if (!item.isDirectory() || !name.endsWith(PENDING_SUFFIX)) {
+                continue;
+            }
+            String worldName = name.substring(0, name.length() - PENDING_SUFFIX.length());
+            ChunkRollback rollback = new ChunkRollback(worldContainer, worldName);
+            try {
+                File[] pending = item.listFiles();
+                for (File chunkFile : pending != null ? pending : new File[0]) {
+                    String[] parts = chunkFile.getName().split("\\.");
+                    if (parts.length != 3 || !parts[2].equals("chunk")) {
+                        continue;
+                    }
+                    long key = getKey(Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+                    byte[] payload = Files.readAllBytes(chunkFile.toPath());
+                    rollback.payloads.put(key, payload.length > 0 ? payload : null);
+                }
+                rollback.apply(rollback.getChunks(), false);
+                applied += rollback.payloads.size();
+                FileUtils.deleteDir(item);
+                LogUtils.sendLog("Rolled back " + rollback.payloads.size() + " chunks of " + worldName + ".");
+            } catch (IOException ioe) {
+                LogUtils.exceptionLog(ioe, "Failed to roll back the deferred chunks of " + worldName + ".");
+            } catch (NumberFormatException nfe) {
+                LogUtils.exceptionLog(nfe, "Failed to roll back the deferred chunks of " + worldName + ".");
+            }
+        }
+        return applied;
+    }
+
+    private static File getPendingFolder(File worldContainer, String worldName) {
+        return new File(worldContainer, worldName + PENDING_SUFFIX);
+    }
+}
@@ -0,0 +1,119 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Settings or strings read from the plugin's config.yml or strings.yml without
+ * Bukkit, for running the engine outside a server. Both files are flat lists
+ * of "key: value" lines, which is all this understands. The defaults inside
+ * the jar are loaded first, so missing keys keep their default values.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class FileSettings implements BackupSettings, BackupMessages {
+
+    private final Map<String, String> values = new HashMap<String, String>();
+    private final BackupMessages strings;
+    private boolean useMaxSizeBackup = false;
+
+    /**
+     * @param file The file to read, which need not exist.
+     * @param defaultResource The defaults in the jar, such as
+     * "/resources/config.yml".
+     * @param strings Messages for malformed settings, or null to use these.
+     */
+    public FileSettings(File file, String defaultResource, BackupMessages strings) {
+        this.strings = strings != null ? strings : this;
+        try {
+            InputStream defaults = getClass().getResourceAsStream(defaultResource);
+            if (defaults != null) {
+                load(defaults);
+            }
+            if (file != null && file.exists()) {
+                load(new FileInputStream(file));
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to load " + file + ".");
+        }
+    }
+
+    private void load(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String trimmed = line.trim();
+                int colon = trimmed.indexOf(':');
+                if (trimmed.isEmpty() || trimmed.startsWith("#") || colon < 1) {
+                    continue;
+                }
+                values.put(trimmed.substring(0, colon).trim(), unquote(trimmed.substring(colon + 1).trim()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 2 && value.startsWith("'") && value.endsWith("'")) {
+            return value.substring(1, value.length() - 1).replace("''", "'");
+        } else if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            return value.substring(1, value.length() - 1).replace("\\\"", "\"");
+        }
+        return value;
+    }
+
+    /**
+     * Changes a value, as if it had been in the file.
+     *
+     * @param property The name of the property.
+     * @param value The new value.
+     */
+    public void set(String property, String value) {
+        values.put(property, value);
+    }
+
+    public int getIntProperty(String property, int defaultInt) {
+        try {
+            String value = values.get(property);
+            return value != null ? Integer.parseInt(value) : defaultInt;
+        } catch (NumberFormatException nfe) {
+            return defaultInt;
+        }
+    }
+
+    public boolean getBooleanProperty(String property, boolean defaultBool) {
+        String value = values.get(property);
+        return value != null ? Boolean.parseBoolean(value) : defaultBool;
+    }
+
+    public String getStringProperty(String property, String defaultString) {
+        String value = values.get(property);
+        return value != null ? value : defaultString;
+    }
+
+    public long getBackupLimits() {
+        BackupLimit parsedLimit = BackupLimit.parse(getStringProperty("maxbackups", "25"), strings);
+        useMaxSizeBackup = parsedLimit.bySize;
+        return parsedLimit.limit;
+    }
+
+    public boolean isMaxSizeBackup() {
+        return useMaxSizeBackup;
+    }
+
+    public String getString(String property) {
+        String string = values.get(property);
+        return string != null ? string : getStringProperty("stringnotfound", "String not found - ") + property;
+    }
+}
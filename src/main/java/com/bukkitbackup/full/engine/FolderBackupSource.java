@@ -0,0 +1,115 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Finds worlds in a server folder on disk, for running the engine without a
+ * server. Any folder in the world container with a level.dat is a world, and
+ * its seed is read from level.dat.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class FolderBackupSource implements BackupSource {
+
+    private final File serverFolder;
+    private final File worldContainer;
+    private final List<String> worldNames;
+
+    /**
+     * @param serverFolder The server's folder.
+     * @param worldContainer The folder holding the worlds.
+     * @param worldNames The worlds to back up, or null to find them.
+     */
+    public FolderBackupSource(File serverFolder, File worldContainer, List<String> worldNames) {
+        this.serverFolder = serverFolder;
+        this.worldContainer = worldContainer;
+        this.worldNames = worldNames != null ? worldNames : findWorlds(worldContainer);
+    }
+
+    public File getServerFolder() {
+        return serverFolder;
+    }
+
+    public File getWorldContainer() {
+        return worldContainer;
+    }
+
+    public List<String> getWorldNames() {
+        return worldNames;
+    }
+
+    public String getWorldSeed(String worldName) {
+        try {
+            byte[] level = readGzip(new File(new File(worldContainer, worldName), "level.dat"));
+            int offset = findLongTag(level, "RandomSeed");
+            if (offset >= 0) {
+                return String.valueOf(ByteBuffer.wrap(level).getLong(offset));
+            }
+        } catch (IOException ioe) {
+            // No seed then.
+        }
+        return "unknown";
+    }
+
+    private static List<String> findWorlds(File worldContainer) {
+        List<String> found = new ArrayList<String>();
+        File[] folders = worldContainer.listFiles();
+        if (folders != null) {
+            Arrays.sort(folders);
+            for (File folder : folders) {
+                if (folder.isDirectory() && new File(folder, "level.dat").isFile()) {
+                    found.add(folder.getName());
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds a long tag in uncompressed NBT data by its name.
+     *
+     * @return The offset of the tag's value, or -1.
+     */
+    private static int findLongTag(byte[] nbt, String name) {
+        byte[] nameBytes = name.getBytes();
+        search:
+        for (int i = 0; i + nameBytes.length + 11 <= nbt.length; i++) {
+            if (nbt[i] != 4 || nbt[i + 1] != 0 || nbt[i + 2] != nameBytes.length) {
+                continue;
+            }
+            for (int j = 0; j < nameBytes.length; j++) {
+                if (nbt[i + 3 + j] != nameBytes[j]) {
+                    continue search;
+                }
+            }
+            return i + 3 + nameBytes.length;
+        }
+        return -1;
+    }
+
+    private static byte[] readGzip(File file) throws IOException {
+        InputStream in = new GZIPInputStream(new FileInputStream(file));
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
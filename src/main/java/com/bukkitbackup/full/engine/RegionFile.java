@@ -0,0 +1,504 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A region file in the Anvil format: a header of 1024 chunk locations and
+ * 1024 timestamps, then chunks in 4096 byte sectors. A chunk's location is
+ * its first sector and its number of sectors. Chunks are handled as their raw
+ * payload (the length, compression type and compressed NBT), so they are
+ * never decompressed.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class RegionFile {
+
+    public static final int SECTOR_BYTES = 4096;
+    private static final int CHUNKS = 1024;
+    private static final int HEADER_BYTES = SECTOR_BYTES * 2;
+    private static final int MAX_SECTORS = 255;
+
+    private final RandomAccessFile file;
+    private final int[] locations = new int[CHUNKS];
+
+    /**
+     * Opens a region file for reading and writing, creating it if needed.
+     *
+     * @param regionFile The file.
+     * @throws IOException If it could not be opened.
+     */
+    public RegionFile(File regionFile) throws IOException {
+        file = new RandomAccessFile(regionFile, "rw");
+        if (file.length() < HEADER_BYTES) {
+            file.setLength(HEADER_BYTES);
+        }
+        byte[] header = new byte[SECTOR_BYTES];
+        file.seek(0);
+        file.readFully(header);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(header));
+        for (int i = 0; i < CHUNKS; i++) {
+            locations[i] = in.readInt();
+        }
+    }
+
+    /**
+     * Gets the name of the region file holding a chunk.
+     *
+     * @param chunkX The chunk's X coordinate.
+     * @param chunkZ The chunk's Z coordinate.
+     * @return The file name, such as "r.0.-1.mca".
+     */
+    public static String getFileName(int chunkX, int chunkZ) {
+        return "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca";
+    }
+
+    /**
+     * Gets where a chunk is in its region file's header.
+     *
+     * @param chunkX The chunk's X coordinate.
+     * @param chunkZ The chunk's Z coordinate.
+     * @return The index, from 0 to 1023.
+     */
+    public static int getIndex(int chunkX, int chunkZ) {
+        return (chunkX & 31) + (chunkZ & 31) * 32;
+    }
+
+    /**
+     * Reads chunks from a region file that can only be read from front to
+     * back, such as an entry of an archive. Sectors before and between the
+     * chunks are skipped, and nothing after the last chunk is read.
+     *
+     * @param in The region file's contents.
+     * @param indexes The chunks to read.
+     * @return The payload of each chunk, or null for chunks that are not in
+     * the region.
+     * @throws IOException If it could not be read, or is not a region file.
+     */
+    public static Map<Integer, byte[]> readChunks(InputStream in, Collection<Integer> indexes) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+        byte[] headerBytes = new byte[SECTOR_BYTES];
+        data.readFully(headerBytes);
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(headerBytes));
+        int[] fileLocations = new int[CHUNKS];
+        for (int i = 0; i < CHUNKS; i++) {
+            fileLocations[i] = header.readInt();
+        }
+        long position = SECTOR_BYTES;
+
+        // Visit the chunks in the order they are stored.
+        Map<Integer, byte[]> chunks = new HashMap<Integer, byte[]>();
+        List<Integer> present = new ArrayList<Integer>(indexes.size());
+        for (Integer index : indexes) {
+            chunks.put(index, null);
+            if (fileLocations[index] != 0) {
+                present.add(index);
+            }
+        }
+        final int[] sortLocations = fileLocations;
+        Collections.sort(present, new Comparator<Integer>() {
+            public int compare(Integer first, Integer second) {
+                return Integer.valueOf(sortLocations[first] >>> 8).compareTo(sortLocations[second] >>> 8);
+            }
+        });
+        for (Integer index : present) {
+            long offset = (long) (fileLocations[index] >>> 8) * SECTOR_BYTES;
+            int sectors = fileLocations[index] & 0xFF;
+            if (offset < HEADER_BYTES || offset < position) {
+                throw new IOException("Chunk " + index + " overlaps the header or another chunk.");
+            }
+            skipFully(data, offset - position);
+            int length = data.readInt();
+            if (length <= 0 || length + 4 > sectors * SECTOR_BYTES) {
+                throw new IOException("Chunk " + index + " has a bad length of " + length + ".");
+            }
+            byte[] payload = new byte[length + 4];
+            payload[0] = (byte) (length >>> 24);
+            payload[1] = (byte) (length >>> 16);
+            payload[2] = (byte) (length >>> 8);
+            payload[3] = (byte) length;
+            data.readFully(payload, 4, length);
+            chunks.put(index, payload);
+            position = offset + payload.length;
+        }
+        return chunks;
+    }
+
+    /**
+     * Finds the chunks of a region that players have spent less than a given
+     * time near, going by their "InhabitedTime". Chunks that cannot be read,
+     * or do not have it, are not included.
+     *
+     * @param regionFile The file.
+     * @param minInhabitedTicks The time, in ticks.
+     * @return The indexes of the chunks.
+     * @throws IOException If it could not be read.
+     */
+    public static BitSet findUnvisited(File regionFile, long minInhabitedTicks) throws IOException {
+        BitSet unvisited = new BitSet(CHUNKS);
+        long fileLength = regionFile.length();
+        if (fileLength <= HEADER_BYTES) {
+            return unvisited;
+        }
+        byte[] header = new byte[SECTOR_BYTES];
+        byte[] payload = new byte[0];
+        ChunkNbt nbt = new ChunkNbt();
+        RandomAccessFile in = new RandomAccessFile(regionFile, "r");
+        try {
+            in.readFully(header);
+            ByteBuffer locationsIn = ByteBuffer.wrap(header);
+            for (int i = 0; i < CHUNKS; i++) {
+                int location = locationsIn.getInt(i * 4);
+                long offset = (long) (location >>> 8) * SECTOR_BYTES;
+                if (location == 0 || offset < HEADER_BYTES || offset + 5 > fileLength) {
+                    continue;
+                }
+                in.seek(offset);
+                int length = in.readInt() + 4;
+                if (length <= 5 || length > (location & 0xFF) * SECTOR_BYTES || offset + length > fileLength) {
+                    continue;
+                }
+                payload = ensureCapacity(payload, length);
+                in.seek(offset);
+                in.readFully(payload, 0, length);
+                try {
+                    long inhabited = nbt.readLong(payload, length, "InhabitedTime");
+                    if (inhabited >= 0 && inhabited < minInhabitedTicks) {
+                        unvisited.set(i);
+                    }
+                } catch (IOException ioe) {
+
+                    // A damaged chunk is kept, in case it can be repaired.
+                }
+            }
+        } finally {
+            in.close();
+            nbt.close();
+        }
+        return unvisited;
+    }
+
+    /**
+     * Rewrites a region file with its chunks packed together in the order
+     * they were in, dropping the free sectors between them. Chunks keep their
+     * timestamps, and each takes only the sectors it needs. The file is
+     * written beside the old one and renamed over it, and is left as it was
+     * if any chunk is damaged, or nothing would be saved.
+     *
+     * @param regionFile The file, which must not be in use.
+     * @return Whether it was rewritten, and the bytes saved.
+     * @throws IOException If it could not be read or written.
+     */
+    public static Compaction compact(File regionFile) throws IOException {
+        return compact(regionFile, new BitSet());
+    }
+
+    /**
+     * Rewrites a region file like compact(File), leaving some chunks out.
+     *
+     * @param regionFile The file, which must not be in use.
+     * @param removed The indexes of the chunks to leave out.
+     * @return Whether it was rewritten, and the bytes saved. A file that had
+     * chunks left out is always rewritten, even if it is no smaller.
+     * @throws IOException If it could not be read or written.
+     */
+    public static Compaction compact(File regionFile, BitSet removed) throws IOException {
+        long oldLength = regionFile.length();
+        if (oldLength <= HEADER_BYTES) {
+            return Compaction.UNCHANGED;
+        }
+        final int[] fileLocations = new int[CHUNKS];
+        int[] lengths = new int[CHUNKS];
+        byte[] header = new byte[HEADER_BYTES];
+        List<Integer> present = new ArrayList<Integer>();
+        File compacted = new File(regionFile.getPath().concat(".compact"));
+        long newLength = HEADER_BYTES;
+        boolean dropped = false;
+        RandomAccessFile in = new RandomAccessFile(regionFile, "r");
+        try {
+            in.readFully(header);
+            DataInputStream headerIn = new DataInputStream(new ByteArrayInputStream(header));
+            for (int i = 0; i < CHUNKS; i++) {
+                fileLocations[i] = headerIn.readInt();
+                if (fileLocations[i] != 0 && removed.get(i)) {
+                    dropped = true;
+                    fileLocations[i] = 0;
+                }
+                if (fileLocations[i] == 0) {
+                    continue;
+                }
+                long offset = (long) (fileLocations[i] >>> 8) * SECTOR_BYTES;
+                int sectors = fileLocations[i] & 0xFF;
+                if (offset < HEADER_BYTES || offset + 4 > oldLength) {
+                    return Compaction.UNCHANGED;
+                }
+                in.seek(offset);
+                int length = in.readInt();
+                if (length <= 0 || length + 4 > sectors * SECTOR_BYTES || offset + 4 + length > oldLength) {
+                    return Compaction.UNCHANGED;
+                }
+                lengths[i] = length + 4;
+                present.add(i);
+            }
+
+            // Keep the chunks in the order they were stored.
+            Collections.sort(present, new Comparator<Integer>() {
+                public int compare(Integer first, Integer second) {
+                    return Integer.valueOf(fileLocations[first] >>> 8).compareTo(fileLocations[second] >>> 8);
+                }
+            });
+            for (Integer index : present) {
+                newLength += (long) getSectors(lengths[index]) * SECTOR_BYTES;
+            }
+            if (newLength >= oldLength && !dropped) {
+                return Compaction.UNCHANGED;
+            }
+
+            // The timestamps are kept, and the locations rewritten.
+            ByteBuffer newHeader = ByteBuffer.wrap(header);
+            int sector = HEADER_BYTES / SECTOR_BYTES;
+            for (int i = 0; i < CHUNKS; i++) {
+                newHeader.putInt(i * 4, 0);
+                if (fileLocations[i] == 0) {
+                    newHeader.putInt(SECTOR_BYTES + i * 4, 0);
+                }
+            }
+            for (Integer index : present) {
+                newHeader.putInt(index * 4, sector << 8 | getSectors(lengths[index]));
+                sector += getSectors(lengths[index]);
+            }
+            FileOutputStream out = new FileOutputStream(compacted);
+            boolean written = false;
+            try {
+                out.write(header);
+                byte[] sectorBytes = new byte[0];
+                for (Integer index : present) {
+                    int padded = getSectors(lengths[index]) * SECTOR_BYTES;
+                    sectorBytes = ensureCapacity(sectorBytes, padded);
+                    in.seek((long) (fileLocations[index] >>> 8) * SECTOR_BYTES);
+                    in.readFully(sectorBytes, 0, lengths[index]);
+                    Arrays.fill(sectorBytes, lengths[index], padded, (byte) 0);
+                    out.write(sectorBytes, 0, padded);
+                }
+                out.getFD().sync();
+                written = true;
+            } finally {
+                out.close();
+                if (!written) {
+                    compacted.delete();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        compacted.setLastModified(regionFile.lastModified());
+        try {
+            Files.move(compacted.toPath(), regionFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            compacted.delete();
+            throw ioe;
+        }
+
+        // Padding the last chunk to a whole sector, or chunks that shared
+        // sectors, can make it no smaller even with chunks left out.
+        return new Compaction(true, Math.max(0, oldLength - newLength));
+    }
+
+    /**
+     * Grows a buffer that chunks are read into, so it is only as large as the
+     * largest chunk rather than the largest a chunk could be. Most are a few
+     * sectors.
+     *
+     * @param buffer The buffer.
+     * @param length The bytes it must hold.
+     * @return The buffer, or a larger one.
+     */
+    private static byte[] ensureCapacity(byte[] buffer, int length) {
+        if (buffer.length >= length) {
+            return buffer;
+        }
+        return new byte[Math.max(length, Math.min(buffer.length * 2, MAX_SECTORS * SECTOR_BYTES))];
+    }
+
+    private static void skipFully(DataInputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            int skipped = in.skipBytes((int) Math.min(bytes, Integer.MAX_VALUE));
+            if (skipped <= 0) {
+                throw new IOException("The region file ended early.");
+            }
+            bytes -= skipped;
+        }
+    }
+
+    /**
+     * Reads a chunk's payload.
+     *
+     * @param index The chunk's index.
+     * @return The payload, or null if the chunk is not in the region.
+     * @throws IOException If it could not be read.
+     */
+    public byte[] readChunk(int index) throws IOException {
+        if (locations[index] == 0) {
+            return null;
+        }
+        file.seek((long) (locations[index] >>> 8) * SECTOR_BYTES);
+        int length = file.readInt();
+        if (length <= 0 || length + 4 > (locations[index] & 0xFF) * SECTOR_BYTES) {
+            throw new IOException("Chunk " + index + " has a bad length of " + length + ".");
+        }
+        byte[] payload = new byte[length + 4];
+        file.seek((long) (locations[index] >>> 8) * SECTOR_BYTES);
+        file.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Checks whether a payload can replace a chunk without changing the
+     * header, which is what a server caches about the file.
+     *
+     * @param index The chunk's index.
+     * @param payload The new payload.
+     * @return True if the chunk is present and the payload fits its sectors.
+     */
+    public boolean fitsInPlace(int index, byte[] payload) {
+        return locations[index] != 0 && getSectors(payload) <= (locations[index] & 0xFF);
+    }
+
+    /**
+     * Writes a chunk over its old sectors, leaving the header as it was. This
+     * is safe while a server has the file open, as long as the chunk is not
+     * loaded.
+     *
+     * @param index The chunk's index.
+     * @param payload The payload, which must fit in place.
+     * @throws IOException If it could not be written.
+     */
+    public void writeChunkInPlace(int index, byte[] payload) throws IOException {
+        if (!fitsInPlace(index, payload)) {
+            throw new IOException("Chunk " + index + " does not fit in place.");
+        }
+        file.seek((long) (locations[index] >>> 8) * SECTOR_BYTES);
+        file.write(payload);
+    }
+
+    /**
+     * Writes a chunk. It is written over its old sectors when it fits, and
+     * otherwise into the first free sectors that are large enough.
+     *
+     * @param index The chunk's index.
+     * @param payload The payload, from readChunk() or readChunks().
+     * @param timestamp When it was written, in seconds since the epoch.
+     * @throws IOException If it could not be written.
+     */
+    public void writeChunk(int index, byte[] payload, int timestamp) throws IOException {
+        int sectors = getSectors(payload);
+        if (sectors > MAX_SECTORS) {
+            throw new IOException("Chunk " + index + " is too large for a region file.");
+        }
+        int sector;
+        if (fitsInPlace(index, payload)) {
+            sector = locations[index] >>> 8;
+        } else {
+            locations[index] = 0;
+            sector = findFreeSectors(sectors);
+        }
+        byte[] padded = Arrays.copyOf(payload, sectors * SECTOR_BYTES);
+        file.seek((long) sector * SECTOR_BYTES);
+        file.write(padded);
+        setHeader(index, sector << 8 | sectors, timestamp);
+    }
+
+    /**
+     * Removes a chunk, so the server generates it again.
+     *
+     * @param index The chunk's index.
+     * @throws IOException If the header could not be written.
+     */
+    public void removeChunk(int index) throws IOException {
+        setHeader(index, 0, 0);
+    }
+
+    /**
+     * Syncs and closes the file.
+     *
+     * @throws IOException If it could not be synced.
+     */
+    public void close() throws IOException {
+        try {
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+    }
+
+    private void setHeader(int index, int location, int timestamp) throws IOException {
+        locations[index] = location;
+        file.seek(index * 4);
+        file.writeInt(location);
+        file.seek(SECTOR_BYTES + index * 4);
+        file.writeInt(timestamp);
+    }
+
+    private int findFreeSectors(int sectors) throws IOException {
+        int fileSectors = (int) ((file.length() + SECTOR_BYTES - 1) / SECTOR_BYTES);
+        BitSet used = new BitSet(fileSectors);
+        used.set(0, HEADER_BYTES / SECTOR_BYTES);
+        for (int location : locations) {
+            if (location != 0) {
+                used.set(location >>> 8, (location >>> 8) + (location & 0xFF));
+            }
+        }
+        int start = used.nextClearBit(0);
+        while (start < fileSectors) {
+            int end = used.nextSetBit(start);
+            if (end == -1 || end - start >= sectors) {
+                return start;
+            }
+            start = used.nextClearBit(end);
+        }
+        return Math.max(start, fileSectors);
+    }
+
+    private static int getSectors(byte[] payload) {
+        return getSectors(payload.length);
+    }
+
+    private static int getSectors(int length) {
+        return (length + SECTOR_BYTES - 1) / SECTOR_BYTES;
+    }
+
+    /**
+     * What compact() did to a region file.
+     */
+    public static class Compaction {
+
+        static final Compaction UNCHANGED = new Compaction(false, 0);
+
+        public final boolean rewritten;
+        public final long savedBytes;
+
+        Compaction(boolean rewritten, long savedBytes) {
+            this.rewritten = rewritten;
+            this.savedBytes = savedBytes;
+        }
+    }
+}
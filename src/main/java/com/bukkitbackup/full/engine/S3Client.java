@@ -0,0 +1,397 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.utils.RateLimiter;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The few S3 requests that replication needs: multipart uploads, and checking
+ * whether an object exists. Requests are signed with AWS Signature Version 4,
+ * and use path-style addresses ("endpoint/bucket/key"), so any S3-compatible
+ * store works, including a local one such as MinIO.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+class S3Client {
+
+    private static final int TIMEOUT_MILLIS = 60000;
+    private static final int WRITE_CHUNK = 64 * 1024;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final String endpoint;
+    private final String host;
+    private final String region;
+    private final String bucket;
+    private final String accessKey;
+    private final String secretKey;
+
+    /**
+     * @param endpoint The store's address, such as "https://s3.amazonaws.com"
+     * or "http://localhost:9000".
+     * @param region The region to sign requests for.
+     * @param bucket The bucket to upload to.
+     * @param accessKey The access key ID.
+     * @param secretKey The secret access key.
+     * @throws IOException If the address is not a URL.
+     */
+    S3Client(String endpoint, String region, String bucket, String accessKey, String secretKey) throws IOException {
+        URL url = new URL(endpoint);
+        this.endpoint = endpoint.endsWith("/") ? endpoint.substring(0, endpoint.length() - 1) : endpoint;
+        this.host = url.getPort() != -1 ? url.getHost() + ":" + url.getPort() : url.getHost();
+        this.region = region;
+        this.bucket = bucket;
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+    }
+
+    /**
+     * Gets the size of an object.
+     *
+     * @param key The object's key.
+     * @return Its size, or -1 if it does not exist.
+     * @throws IOException If the store could not be asked.
+     */
+    long getSize(String key) throws IOException {
+        HttpURLConnection connection = send("HEAD", key, null, null, 0, 0, null);
+        try {
+            int status = connection.getResponseCode();
+            if (status == 404) {
+                return -1;
+            }
+            checkStatus(connection, status, key);
+            return connection.getContentLengthLong();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Starts a multipart upload.
+     *
+     * @param key The object's key.
+     * @return The upload's ID.
+     * @throws IOException If it could not be started.
+     */
+    String createUpload(String key) throws IOException {
+        String response = request("POST", key, "uploads=", null, 0, 0);
+        String uploadId = getElement(response, "UploadId", 0);
+        if (uploadId == null) {
+            throw new IOException("The store did not return an upload ID for " + key + ".");
+        }
+        return uploadId;
+    }
+
+    /**
+     * Uploads a part of a multipart upload.
+     *
+     * @param key The object's key.
+     * @param uploadId The upload's ID.
+     * @param partNumber The part's number, from 1.
+     * @param data The part's contents.
+     * @param length The length of the contents.
+     * @param limiter Limits how fast the part is sent.
+     * @return The part's ETag.
+     * @throws IOException If it could not be uploaded.
+     */
+    String uploadPart(String key, String uploadId, int partNumber, byte[] data, int length, RateLimiter limiter) throws IOException {
+        String query = "partNumber=" + partNumber + "&uploadId=" + encode(uploadId, true);
+        HttpURLConnection connection = send("PUT", key, query, data, 0, length, limiter);
+        try {
+            checkStatus(connection, connection.getResponseCode(), key);
+            String etag = connection.getHeaderField("ETag");
+            if (etag == null) {
+                throw new IOException("The store did not return an ETag for part " + partNumber + " of " + key + ".");
+            }
+            return etag;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Lists the parts of an upload that the store already has, so an
+     * interrupted upload can be resumed.
+     *
+     * @param key The object's key.
+     * @param uploadId The upload's ID.
+     * @return The ETags and sizes of the parts, by part number.
+     * @throws FileNotFoundException If the upload no longer exists.
+     * @throws IOException If they could not be listed.
+     */
+    SortedMap<Integer, Part> listParts(String key, String uploadId) throws IOException {
+        SortedMap<Integer, Part> parts = new TreeMap<Integer, Part>();
+        String marker = "0";
+        while (true) {
+            String response = request("GET", key, "part-number-marker=" + marker + "&uploadId=" + encode(uploadId, true), null, 0, 0);
+            int position = 0;
+            String partXml;
+            while ((partXml = getElement(response, "Part", position)) != null) {
+                position = response.indexOf("</Part>", position) + 7;
+                parts.put(Integer.parseInt(getElement(partXml, "PartNumber", 0)),
+                        new Part(getElement(partXml, "ETag", 0).replace("&quot;", "\""), Long.parseLong(getElement(partXml, "Size", 0))));
+            }
+            marker = getElement(response, "NextPartNumberMarker", 0);
+            if (!"true".equals(getElement(response, "IsTruncated", 0)) || marker == null) {
+                return parts;
+            }
+        }
+    }
+
+    /**
+     * Finishes a multipart upload, which makes the object.
+     *
+     * @param key The object's key.
+     * @param uploadId The upload's ID.
+     * @param etags The ETags of all its parts, by part number.
+     * @throws IOException If it could not be finished.
+     */
+    void completeUpload(String key, String uploadId, SortedMap<Integer, String> etags) throws IOException {
+        StringBuilder body = new StringBuilder("<CompleteMultipartUpload>");
+        for (Map.Entry<Integer, String> etag : etags.entrySet()) {
+            body.append("<Part><PartNumber>").append(etag.getKey()).append("</PartNumber><ETag>")
+                    .append(etag.getValue().replace("\"", "&quot;")).append("</ETag></Part>");
+        }
+        body.append("</CompleteMultipartUpload>");
+        byte[] bytes = body.toString().getBytes("UTF-8");
+        String response = request("POST", key, "uploadId=" + encode(uploadId, true), bytes, 0, bytes.length);
+
+        // The store may fail the request after it has answered 200.
+        if (response.contains("<Error>")) {
+            throw new IOException("Failed to complete the upload of " + key + ": " + getElement(response, "Message", 0));
+        }
+    }
+
+    /**
+     * Abandons a multipart upload, so the store drops its parts.
+     *
+     * @param key The object's key.
+     * @param uploadId The upload's ID.
+     * @throws IOException If it could not be abandoned.
+     */
+    void abortUpload(String key, String uploadId) throws IOException {
+        HttpURLConnection connection = send("DELETE", key, "uploadId=" + encode(uploadId, true), null, 0, 0, null);
+        try {
+            int status = connection.getResponseCode();
+            if (status != 404) {
+                checkStatus(connection, status, key);
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private String request(String method, String key, String query, byte[] body, int offset, int length) throws IOException {
+        HttpURLConnection connection = send(method, key, query, body, offset, length, null);
+        try {
+            int status = connection.getResponseCode();
+            if (status == 404) {
+                throw new FileNotFoundException(key + ": " + getElement(readBody(connection, true), "Code", 0));
+            }
+            checkStatus(connection, status, key);
+            return readBody(connection, false);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Signs and sends a request, and its body.
+     */
+    private HttpURLConnection send(String method, String key, String query, byte[] body, int offset, int length, RateLimiter limiter) throws IOException {
+        String path = "/" + encode(bucket, false) + "/" + encode(key, false);
+        String payloadHash = toHex(sha256(body != null ? body : new byte[0], offset, length));
+        Date now = new Date();
+        String amzDate = format("yyyyMMdd'T'HHmmss'Z'", now);
+        String date = amzDate.substring(0, 8);
+
+        // The canonical request, as AWS Signature Version 4 describes it.
+        String canonicalQuery = query != null ? canonicalQuery(query) : "";
+        String signedHeaders = "host;x-amz-content-sha256;x-amz-date";
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n"
+                + "host:" + host + "\n" + "x-amz-content-sha256:" + payloadHash + "\n" + "x-amz-date:" + amzDate + "\n\n"
+                + signedHeaders + "\n" + payloadHash;
+        String scope = date + "/" + region + "/s3/aws4_request";
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + scope + "\n" + toHex(sha256(canonicalRequest.getBytes("UTF-8"), 0, -1));
+        byte[] signingKey = hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes("UTF-8"), date), region), "s3"), "aws4_request");
+        String signature = toHex(hmac(signingKey, stringToSign));
+
+        HttpURLConnection connection = (HttpURLConnection) new URL(endpoint + path + (canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery)).openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        connection.setRequestMethod(method);
+        connection.setRequestProperty("x-amz-date", amzDate);
+        connection.setRequestProperty("x-amz-content-sha256", payloadHash);
+        connection.setRequestProperty("Authorization", "AWS4-HMAC-SHA256 Credential=" + accessKey + "/" + scope
+                + ", SignedHeaders=" + signedHeaders + ", Signature=" + signature);
+        if (body != null) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode((long) length);
+            OutputStream out = connection.getOutputStream();
+            try {
+                for (int position = 0; position < length; position += WRITE_CHUNK) {
+                    int chunk = Math.min(WRITE_CHUNK, length - position);
+                    if (limiter != null) {
+                        try {
+                            limiter.acquire(chunk);
+                        } catch (InterruptedException ie) {
+                            throw new InterruptedIOException("The upload of " + key + " was stopped.");
+                        }
+                    }
+                    out.write(body, offset + position, chunk);
+                }
+            } finally {
+                out.close();
+            }
+        } else if (method.equals("POST")) {
+            connection.setDoOutput(true);
+            connection.setFixedLengthStreamingMode(0L);
+            connection.getOutputStream().close();
+        }
+        return connection;
+    }
+
+    private static void checkStatus(HttpURLConnection connection, int status, String key) throws IOException {
+        if (status / 100 != 2) {
+            String response = readBody(connection, true);
+            String code = getElement(response, "Code", 0);
+            throw new IOException("The store answered " + status + (code != null ? " " + code : "") + " for " + key + ".");
+        }
+    }
+
+    private static String readBody(HttpURLConnection connection, boolean error) throws IOException {
+        InputStream in = error ? connection.getErrorStream() : connection.getInputStream();
+        if (in == null) {
+            return "";
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int length;
+            while ((length = in.read(buffer)) != -1) {
+                out.write(buffer, 0, length);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    /**
+     * Gets the text of the first element with a name, from a position. This
+     * is enough for the few responses read here.
+     */
+    private static String getElement(String xml, String name, int from) {
+        int start = xml.indexOf("<" + name + ">", from);
+        if (start < 0) {
+            return null;
+        }
+        start += name.length() + 2;
+        int end = xml.indexOf("</" + name + ">", start);
+        return end >= 0 ? xml.substring(start, end) : null;
+    }
+
+    /**
+     * Sorts a query string's parameters, and encodes them as S3 expects.
+     */
+    private static String canonicalQuery(String query) throws UnsupportedEncodingException {
+        SortedMap<String, String> parameters = new TreeMap<String, String>();
+        for (String parameter : query.split("&")) {
+            int equals = parameter.indexOf('=');
+            parameters.put(parameter.substring(0, equals), parameter.substring(equals + 1));
+        }
+        StringBuilder canonical = new StringBuilder();
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            if (canonical.length() > 0) {
+                canonical.append('&');
+            }
+            canonical.append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        return canonical.toString();
+    }
+
+    /**
+     * URI-encodes text as S3 signs it: everything but letters, digits and
+     * "-._~", and "/" too unless it is a path.
+     */
+    static String encode(String text, boolean encodeSlash) throws UnsupportedEncodingException {
+        StringBuilder encoded = new StringBuilder(text.length());
+        for (byte b : text.getBytes("UTF-8")) {
+            char c = (char) (b & 0xFF);
+            if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '.' || c == '_' || c == '~' || (c == '/' && !encodeSlash)) {
+                encoded.append(c);
+            } else {
+                encoded.append('%').append(Character.toUpperCase(HEX[c >> 4])).append(Character.toUpperCase(HEX[c & 0xF]));
+            }
+        }
+        return encoded.toString();
+    }
+
+    private static String format(String pattern, Date date) {
+        SimpleDateFormat format = new SimpleDateFormat(pattern, Locale.ROOT);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static byte[] sha256(byte[] data, int offset, int length) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(data, offset, length < 0 ? data.length : length);
+            return digest.digest();
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes("UTF-8"));
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * A part the store already has.
+     */
+    static class Part {
+
+        final String etag;
+        final long size;
+
+        Part(String etag, long size) {
+            this.etag = etag;
+            this.size = size;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.bukkitbackup.full.engine;
+
+import com.bukkitbackup.full.stats.BackupProgress;
+import com.bukkitbackup.full.stats.BackupStats;
+import java.io.PrintStream;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The lines a worker process (BackupCli with "--worker true") writes to its
+ * standard output for the server:
+ *
+ * "backup-worker: progress [files] [bytes read] [bytes written] [phase]"
+ * every second, then "backup-worker: total [line]" for each line of
+ * BackupStats.getTotals(), and "backup-worker: done [backup name]" last.
+ *
+ * Anything else the worker prints is passed on to the server's log.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class WorkerProtocol {
+
+    private static final String PREFIX = "backup-worker: ";
+    private static final String PROGRESS = PREFIX + "progress ";
+    private static final String TOTAL = PREFIX + "total ";
+    private static final String DONE = PREFIX + "done ";
+    private static final long PROGRESS_INTERVAL_MILLIS = 1000;
+    private static volatile Thread reporterThread;
+
+    private WorkerProtocol() {
+    }
+
+    /**
+     * Starts writing progress lines, until finishReporting() is called. Used
+     * by the worker.
+     *
+     * @param out The worker's standard output.
+     */
+    public static void startReporting(final PrintStream out) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                while (reporterThread == Thread.currentThread()) {
+                    out.println(PROGRESS + BackupProgress.getFilesCopied() + " " + BackupProgress.getBytesRead() + " " + BackupProgress.getBytesWritten() + " " + BackupProgress.getPhase());
+                    try {
+                        Thread.sleep(PROGRESS_INTERVAL_MILLIS);
+                    } catch (InterruptedException ie) {
+                        return;
+                    }
+                }
+            }
+        }, "Backup-WorkerProgress");
+        thread.setDaemon(true);
+        reporterThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stops the progress lines, and writes the statistics and the name of the
+     * finished backup. Used by the worker.
+     *
+     * @param out The worker's standard output.
+     * @param backupName The name of the backup.
+     */
+    public static void finishReporting(PrintStream out, String backupName) {
+        Thread thread = reporterThread;
+        reporterThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(PROGRESS_INTERVAL_MILLIS);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (String line : BackupStats.getTotals()) {
+            out.println(TOTAL + line);
+        }
+        out.println(DONE + backupName);
+        out.flush();
+    }
+
+    /**
+     * Applies a line from the worker to the server's progress and statistics.
+     * Used by the server.
+     *
+     * @param line The line.
+     * @return False if the line is not part of the protocol, and should be
+     * logged instead.
+     */
+    public static boolean handleLine(String line) {
+        if (line.startsWith(PROGRESS)) {
+            String[] parts = line.substring(PROGRESS.length()).split(" ", 4);
+            try {
+                BackupProgress.reportWorker(Long.parseLong(parts[0]), Long.parseLong(parts[1]), Long.parseLong(parts[2]), parts.length > 3 ? parts[3] : "");
+            } catch (RuntimeException re) {
+                return false;
+            }
+            return true;
+        } else if (line.startsWith(TOTAL)) {
+            return BackupStats.addTotal(line.substring(TOTAL.length()));
+        }
+        return line.startsWith(DONE);
+    }
+
+    /**
+     * Checks for the worker's last line.
+     *
+     * @param line A line from the worker.
+     * @return Whether the worker finished its backup.
+     */
+    public static boolean isDone(String line) {
+        return line.startsWith(DONE);
+    }
+}
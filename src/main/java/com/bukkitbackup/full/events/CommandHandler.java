@@ -1,9 +1,17 @@
 package com.bukkitbackup.full.events;
 
+import com.bukkitbackup.full.BackupFull;
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
 import com.bukkitbackup.full.config.UpdateChecker;
+import com.bukkitbackup.full.engine.BackupCatalog;
+import com.bukkitbackup.full.engine.CatalogEntry;
+import com.bukkitbackup.full.engine.ChunkRollback;
+import com.bukkitbackup.full.stats.BackupProgress;
+import com.bukkitbackup.full.stats.BackupStats;
 import com.bukkitbackup.full.threading.PrepareBackup;
+import com.bukkitbackup.full.threading.RestoreTask;
+import com.bukkitbackup.full.threading.RollbackTask;
 import java.io.File;
 import java.util.Arrays;
 import java.util.List;
@@ -13,7 +21,6 @@ import org.bukkit.command.CommandExecutor;
 import org.bukkit.command.CommandSender;
 import org.bukkit.entity.Player;
 import org.bukkit.event.Listener;
-import org.bukkit.plugin.Plugin;
 
 /**
  * Backup - The simple server backup solution.
@@ -23,22 +30,24 @@ import org.bukkit.plugin.Plugin;
 public class CommandHandler implements Listener, CommandExecutor {
 
     private PrepareBackup prepareBackup;
-    private Plugin plugin;
+    private BackupFull plugin;
     private Server server;
     private Settings settings;
     private Strings strings;
     private UpdateChecker updateChecker;
+    private static final int LIST_PAGE_SIZE = 8;
+    private static final int MAX_ROLLBACK_RADIUS = 8;
 
     /**
      * This class is used to listen for console and player commands. It also
      * contains methods to handle them, and provide output.
      *
      * @param prepareBackup Instance of the prepareBackup.
-     * @param plugin Instance of the JavaPlugin.
+     * @param plugin Instance of the plugin.
      * @param settings Instance of the settings loader.
      * @param strings Instance of the strings loader.
      */
-    public CommandHandler(PrepareBackup prepareBackup, Plugin plugin, Settings settings, Strings strings) {
+    public CommandHandler(PrepareBackup prepareBackup, BackupFull plugin, Settings settings, Strings strings) {
         this.prepareBackup = prepareBackup;
         this.plugin = plugin;
         this.server = plugin.getServer();
@@ -99,15 +108,25 @@ public class CommandHandler implements Listener, CommandExecutor {
                     if (checkPerms(sender, "backup.help")) {
                         showHelp(sender);
                     }
-                } // List backups - Default 8.
+                } // List backups - First page.
                 else if (args[0].equals("list")) {
                     if (checkPerms(sender, "backup.list")) {
-                        listBackups(sender, 8);
+                        listBackups(sender, 1, null);
                     }
                 } else if (args[0].equals("toggle")) {
                     if (checkPerms(sender, "backup.toggle")) {
                         toggleEnabled(sender);
                     }
+                } // Stats command - Show backup statistics.
+                else if (args[0].equals("stats")) {
+                    if (checkPerms(sender, "backup.stats")) {
+                        showStats(sender);
+                    }
+                } // Status command - Show the running backup.
+                else if (args[0].equals("status")) {
+                    if (checkPerms(sender, "backup.status")) {
+                        showStatus(sender);
+                    }
                 } // Unknown command.
                 else {
                     // Unknown Command Message.
@@ -116,16 +135,41 @@ public class CommandHandler implements Listener, CommandExecutor {
 
             } else if (args.length == 2) {
 
-                // List backups - Set amount.
+                // List backups - Set page, or world.
                 if (args[0].equals("list")) {
                     if (checkPerms(sender, "backup.list")) {
-                        listBackups(sender, Integer.parseInt(args[1]));
+                        if (isNumber(args[1])) {
+                            listBackups(sender, Integer.parseInt(args[1]), null);
+                        } else {
+                            listBackups(sender, 1, args[1]);
+                        }
                     }
                 } // Unknown command.
                 else {
                     messageSender(sender, strings.getString("unknowncommand"));
                 }
 
+            } else if ((args.length == 3 || args.length == 4) && args[0].equals("restore")) {
+
+                // Restore a world, or a folder or file of it.
+                if (checkPerms(sender, "backup.restore")) {
+                    restoreBackup(sender, args[1], args[2], args.length == 4 ? args[3] : "");
+                }
+
+            } else if ((args.length == 5 || args.length == 6) && args[0].equals("rollback")) {
+
+                // Roll back chunks around a chunk.
+                if (checkPerms(sender, "backup.rollback")) {
+                    rollbackChunks(sender, args);
+                }
+
+            } else if (args.length == 3 && args[0].equals("list") && isNumber(args[1])) {
+
+                // List backups - Set page and world.
+                if (checkPerms(sender, "backup.list")) {
+                    listBackups(sender, Integer.parseInt(args[1]), args[2]);
+                }
+
                 // Unknown command.
             } else {
                 messageSender(sender, strings.getString("unknowncommand"));
@@ -149,16 +193,17 @@ public class CommandHandler implements Listener, CommandExecutor {
     }
 
     /**
-     * Reload, and report success.
+     * Reload the configuration, and report success. This does not restart the
+     * plugin, so any backup in progress carries on with its old settings.
      *
      * @param sender The CommandSender.
      */
     public void reloadPlugin(CommandSender sender) {
-        plugin.getServer().getScheduler().cancelTasks(plugin);
-        plugin.onDisable();
-        plugin.onLoad();
-        plugin.onEnable();
-        messageSender(sender, strings.getString("reloadedok", plugin.getDescription().getVersion()));
+        if (plugin.reloadConfiguration()) {
+            messageSender(sender, strings.getString("reloadedok", plugin.getDescription().getVersion()));
+        } else {
+            messageSender(sender, strings.getString("reloadfailed"));
+        }
     }
 
     /**
@@ -228,52 +273,103 @@ public class CommandHandler implements Listener, CommandExecutor {
     }
 
     /**
-     * List the backups in the backup folder. We can use the parameter to limit
-     * the number of results.
+     * Show the backup statistics collected since the server started.
      *
      * @param sender The CommandSender.
-     * @param amount The amount of results we want.
      */
-    private void listBackups(CommandSender sender, int amount) {
-
-        // Get the backups path.
-        String backupDir = settings.getStringProperty("backuppath", "backups");
+    private void showStats(CommandSender sender) {
+        sender.sendMessage(plugin.getDescription().getName() + " Statistics");
+        for (String line : BackupStats.getSummary()) {
+            sender.sendMessage(line);
+        }
+    }
 
-        // Make a list.
-        String[] filesList = new File(backupDir).list();
+    /**
+     * Show what the running backup is doing.
+     *
+     * @param sender The CommandSender.
+     */
+    private void showStatus(CommandSender sender) {
+        for (String line : BackupProgress.getStatus()) {
+            sender.sendMessage(line);
+        }
+    }
 
-        // Inform what is happenning.
-        sender.sendMessage("Listing backup directory: \"" + backupDir + "\".");
+    /**
+     * List the backups in the catalog, newest first, a page at a time.
+     *
+     * @param sender The CommandSender.
+     * @param page The page to show, from 1.
+     * @param worldName Only list backups of this world, or null for all.
+     */
+    private void listBackups(CommandSender sender, int page, String worldName) {
 
-        // Check if the directory exists.
-        if (filesList == null) {
+        // Get the backups path, and its catalog.
+        String backupDir = settings.getStringProperty("backuppath", "backups");
+        BackupCatalog catalog = BackupCatalog.forFolder(new File(backupDir));
 
-            // Error message.
+        // The catalog is made by the first backup.
+        if (!catalog.exists()) {
             sender.sendMessage(strings.getString("errorfolderempty"));
-        } else {
-
-            // How many files in array.
-            int amountoffiles = filesList.length;
+            return;
+        }
 
-            // Limit listings, so it doesnt flow off screen.
-            if (amountoffiles > amount) {
-                amountoffiles = amount;
-            }
+        // Work out the pages.
+        int count = catalog.getCount(worldName);
+        int pages = Math.max(1, (count + LIST_PAGE_SIZE - 1) / LIST_PAGE_SIZE);
+        page = Math.max(1, Math.min(page, pages));
+
+        // Send informal message.
+        sender.sendMessage(count + " backups" + (worldName != null ? " of " + worldName : "") + " in \"" + backupDir + "\", page " + page + " of " + pages + ".");
+
+        // List this page.
+        int number = (page - 1) * LIST_PAGE_SIZE;
+        for (CatalogEntry entry : catalog.getPage(page, LIST_PAGE_SIZE, worldName)) {
+            number++;
+            String worlds = entry.worlds.isEmpty() ? "" : " " + entry.worlds;
+            String took = entry.durationMillis > 0 ? ", took " + BackupStats.formatMillis(entry.durationMillis) : "";
+            sender.sendMessage(number + "). " + entry.id + " (" + entry.kind + worlds + "), " + BackupStats.formatBytes(entry.size) + ", " + entry.fileCount + " files" + took + ".");
+        }
+    }
 
-            // Send informal message.
-            sender.sendMessage("" + amountoffiles + " backups found, listing...");
+    /**
+     * Restore from a backup in the catalog, in another thread.
+     *
+     * @param sender The CommandSender.
+     * @param backupId The backup's name, or "latest".
+     * @param worldName The world to restore.
+     * @param path The file or folder in the world, or "" for all of it.
+     */
+    private void restoreBackup(CommandSender sender, String backupId, String worldName, String path) {
+        messageSender(sender, strings.getString("restorestarted", path.isEmpty() ? worldName : path + " of " + worldName));
+        server.getScheduler().runTaskAsynchronously(plugin, new RestoreTask(plugin, settings, strings, sender, backupId, worldName, path));
+    }
 
-            // Loop through files, and list them.
-            for (int i = 0; i < amountoffiles; i++) {
+    /**
+     * Roll back chunks from a backup in the catalog, in another thread. The
+     * arguments are: rollback, backup or "latest", world, chunk X, chunk Z
+     * and an optional radius in chunks.
+     *
+     * @param sender The CommandSender.
+     * @param args The command's arguments.
+     */
+    private void rollbackChunks(CommandSender sender, String[] args) {
+        String radius = args.length == 6 ? args[5] : "0";
+        if (!isInteger(args[3]) || !isInteger(args[4]) || !isNumber(radius) || Integer.parseInt(radius) > MAX_ROLLBACK_RADIUS) {
+            messageSender(sender, strings.getString("unknowncommand"));
+            return;
+        }
+        List<Long> chunks = ChunkRollback.getArea(Integer.parseInt(args[3]), Integer.parseInt(args[4]), Integer.parseInt(radius));
+        messageSender(sender, strings.getString("rollbackstarted", String.valueOf(chunks.size()), args[2]));
+        server.getScheduler().runTaskAsynchronously(plugin, new RollbackTask(plugin, settings, strings, sender, args[1], args[2], chunks));
+    }
 
-                // Get filename of file.
-                String filename = filesList[i];
+    private static boolean isInteger(String text) {
+        return text.matches("-?[0-9]{1,9}");
+    }
 
-                // Send messages for each file.
-                int number = i + 1;
-                sender.sendMessage(number + "). " + filename);
-            }
-        }
+    private static boolean isNumber(String text) {
+        return text.matches("[0-9]{1,9}");
     }
 
     /**
@@ -340,8 +436,10 @@ public class CommandHandler implements Listener, CommandExecutor {
             // Loop the lines of this message.
             for (int i = 0; i < messageList.size(); i++) {
 
-                sender.sendMessage(stringsMessage);
+                sender.sendMessage(messageList.get(i));
             }
+        } else {
+            sender.sendMessage(stringsMessage);
         }
     }
 }
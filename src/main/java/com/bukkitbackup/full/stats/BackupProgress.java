@@ -0,0 +1,118 @@
+package com.bukkitbackup.full.stats;
+
+import com.bukkitbackup.full.engine.BackupEngine;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * What the running backup is doing, for "/backup status". A backup in this
+ * process is measured against the counters in BackupStats, while a backup in
+ * a worker process reports its own figures (see WorkerProtocol).
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BackupProgress {
+
+    private static volatile long startedMillis;
+    private static volatile String phase = "";
+    private static volatile boolean inWorker = false;
+
+    // Counter readings when a backup in this process began.
+    private static volatile long filesAtStart;
+    private static volatile long readAtStart;
+    private static volatile long writtenAtStart;
+
+    // Figures reported by the worker.
+    private static volatile long workerFiles;
+    private static volatile long workerRead;
+    private static volatile long workerWritten;
+
+    private BackupProgress() {
+    }
+
+    /**
+     * Starts measuring a backup in this process.
+     */
+    public static void begin() {
+        filesAtStart = BackupStats.FILES_COPIED.get();
+        readAtStart = BackupStats.BYTES_READ.get();
+        writtenAtStart = BackupStats.BYTES_WRITTEN.get();
+        inWorker = false;
+        phase = "starting";
+        startedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Starts following a backup in a worker process.
+     */
+    public static void beginWorker() {
+        workerFiles = 0;
+        workerRead = 0;
+        workerWritten = 0;
+        inWorker = true;
+        phase = "starting worker";
+        startedMillis = System.currentTimeMillis();
+    }
+
+    /**
+     * Sets what the backup is doing now.
+     *
+     * @param newPhase A short description, such as "world world_nether".
+     */
+    public static void setPhase(String newPhase) {
+        phase = newPhase;
+    }
+
+    /**
+     * Records the progress reported by the worker.
+     *
+     * @param files Files copied so far.
+     * @param read Bytes read so far.
+     * @param written Bytes written so far.
+     * @param newPhase What the worker is doing.
+     */
+    public static void reportWorker(long files, long read, long written, String newPhase) {
+        workerFiles = files;
+        workerRead = read;
+        workerWritten = written;
+        phase = newPhase;
+    }
+
+    public static String getPhase() {
+        return phase;
+    }
+
+    public static long getFilesCopied() {
+        return inWorker ? workerFiles : BackupStats.FILES_COPIED.get() - filesAtStart;
+    }
+
+    public static long getBytesRead() {
+        return inWorker ? workerRead : BackupStats.BYTES_READ.get() - readAtStart;
+    }
+
+    public static long getBytesWritten() {
+        return inWorker ? workerWritten : BackupStats.BYTES_WRITTEN.get() - writtenAtStart;
+    }
+
+    /**
+     * Builds the lines shown by "/backup status".
+     *
+     * @return The lines to send.
+     */
+    public static List<String> getStatus() {
+        List<String> lines = new ArrayList<String>();
+        if (!BackupEngine.backupInProgress.get()) {
+            lines.add("No backup is running.");
+            if (BackupStats.TOTAL.getCount() > 0) {
+                lines.add("Last backup took " + BackupStats.formatMillis(BackupStats.TOTAL.getLast()) + ".");
+            }
+            return lines;
+        }
+        lines.add("Backup running for " + BackupStats.formatMillis(System.currentTimeMillis() - startedMillis) + (inWorker ? " in a worker process." : " in the server."));
+        lines.add("Now: " + phase + ".");
+        lines.add("Copied " + getFilesCopied() + " files, read " + BackupStats.formatBytes(getBytesRead()) + ", wrote " + BackupStats.formatBytes(getBytesWritten()) + ".");
+        return lines;
+    }
+}
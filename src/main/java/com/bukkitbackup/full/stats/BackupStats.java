@@ -0,0 +1,351 @@
+package com.bukkitbackup.full.stats;
+
+import com.bukkitbackup.full.engine.BackupEngine;
+import com.bukkitbackup.full.engine.BackupReplicator;
+import com.bukkitbackup.full.engine.BackupVerifier;
+import com.bukkitbackup.full.utils.FileUtils;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The registry of backup statistics. Everything in here is updated with
+ * atomic operations, so it can be recorded from any thread.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BackupStats {
+
+    // Durations of each phase of a backup.
+    public static final Histogram SAVE = new Histogram("save");
+    public static final Histogram COPY = new Histogram("copy");
+    public static final Histogram COMPRESS = new Histogram("compress");
+    public static final Histogram RETENTION = new Histogram("retention");
+    public static final Histogram TOTAL = new Histogram("total");
+    private static final Histogram[] PHASES = {SAVE, COPY, COMPRESS, RETENTION, TOTAL};
+
+    // Running totals.
+    public static final Counter BYTES_READ = new Counter("backup_bytes_read_total", "Bytes read from source files.");
+    public static final Counter BYTES_WRITTEN = new Counter("backup_bytes_written_total", "Bytes written to backups.");
+    public static final Counter FILES_COPIED = new Counter("backup_files_copied_total", "Files copied.");
+    public static final Counter FILES_COMPRESSED = new Counter("backup_files_compressed_total", "Files added to archives.");
+    public static final Counter BYTES_UNCOMPRESSED = new Counter("backup_compress_input_bytes_total", "Bytes read into archives.");
+    public static final Counter BYTES_COMPRESSED = new Counter("backup_compress_output_bytes_total", "Bytes written by archives.");
+    public static final Counter BACKUPS_COMPLETED = new Counter("backup_completed_total", "Backups completed.");
+    public static final Counter BACKUP_FAILURES = new Counter("backup_failures_total", "Errors during backups.");
+    public static final Counter BACKUPS_DELETED = new Counter("backup_retention_deleted_total", "Old backups deleted by retention.");
+    public static final Counter BUFFER_LEAKS = new Counter("backup_buffer_leaks_total", "I/O buffers that were not returned to the pool.");
+    public static final Counter BACKUPS_VERIFIED = new Counter("backup_verified_total", "Backups verified in the background.");
+    public static final Counter BACKUPS_CORRUPT = new Counter("backup_verify_corrupt_total", "Backups that failed verification.");
+    public static final Counter BYTES_VERIFIED = new Counter("backup_verify_bytes_total", "Bytes read to verify backups.");
+    public static final Counter BACKUPS_REPLICATED = new Counter("backup_replicated_total", "Backups uploaded to remote storage.");
+    public static final Counter BYTES_REPLICATED = new Counter("backup_replicated_bytes_total", "Bytes uploaded to remote storage.");
+    public static final Counter REPLICATION_FAILURES = new Counter("backup_replication_failures_total", "Backups that failed to upload.");
+    public static final Counter BYTES_COPIED = new Counter("backup_copy_bytes_written_total", "Bytes written to copies of archives in other folders.");
+    public static final Counter COPY_FAILURES = new Counter("backup_copy_failures_total", "Copies of archives that failed to write.");
+    public static final Counter BYTES_HASHED = new Counter("backup_hash_bytes_total", "Bytes read only to find a checksum.");
+    public static final Counter BYTES_MIRRORED = new Counter("backup_mirror_bytes_written_total", "Bytes written to the mirror folder.");
+    public static final Counter BYTES_MIRROR_UNCHANGED = new Counter("backup_mirror_bytes_unchanged_total", "Bytes already in the mirror folder.");
+    public static final Counter BYTES_COMPACTED = new Counter("backup_region_compaction_saved_bytes_total", "Bytes of free space packed out of region files in backups.");
+    public static final Counter CHUNKS_PRUNED = new Counter("backup_region_chunks_pruned_total", "Chunks no player had visited, left out of backups.");
+    private static final Counter[] COUNTERS = {BYTES_READ, BYTES_WRITTEN, FILES_COPIED, FILES_COMPRESSED, BYTES_UNCOMPRESSED, BYTES_COMPRESSED, BACKUPS_COMPLETED, BACKUP_FAILURES, BACKUPS_DELETED, BUFFER_LEAKS,
+        BACKUPS_VERIFIED, BACKUPS_CORRUPT, BYTES_VERIFIED, BACKUPS_REPLICATED, BYTES_REPLICATED, REPLICATION_FAILURES, BYTES_COPIED, COPY_FAILURES,
+        BYTES_HASHED, BYTES_MIRRORED, BYTES_MIRROR_UNCHANGED, BYTES_COMPACTED, CHUNKS_PRUNED};
+
+    // Bytes saved and chunks left out by compacting each world's regions, the
+    // last time it was.
+    private static final Map<String, long[]> compaction = new TreeMap<String, long[]>();
+
+    // Readings from the last backup.
+    public static final Gauge LAST_FILES_PER_SECOND = new Gauge("backup_last_files_per_second", "Files copied per second in the last backup.");
+    public static final Gauge LAST_COMPRESSION_PERMILLE = new Gauge("backup_last_compression_permille", "Archive size as thousandths of its input, for the last archive.");
+    public static final Gauge LAST_COMPLETED = new Gauge("backup_last_completed_timestamp_seconds", "When the last backup completed.");
+    public static final Gauge BUFFER_POOL_BYTES = new Gauge("backup_buffer_pool_bytes", "Memory allocated by the I/O buffer pool.");
+    private static final Gauge[] GAUGES = {LAST_FILES_PER_SECOND, LAST_COMPRESSION_PERMILLE, LAST_COMPLETED, BUFFER_POOL_BYTES};
+
+    private BackupStats() {
+    }
+
+    /**
+     * Records the input and output size of an archive.
+     *
+     * @param inputBytes Bytes read into the archive.
+     * @param outputBytes Size of the finished archive.
+     */
+    public static void recordArchive(long inputBytes, long outputBytes) {
+        BYTES_READ.add(inputBytes);
+        BYTES_UNCOMPRESSED.add(inputBytes);
+        BYTES_COMPRESSED.add(outputBytes);
+        BYTES_WRITTEN.add(outputBytes);
+        if (inputBytes > 0) {
+            LAST_COMPRESSION_PERMILLE.set(outputBytes * 1000L / inputBytes);
+        }
+    }
+
+    /**
+     * Records a finished backup, and derives the per-backup readings.
+     *
+     * @param startNanos When the backup started, from System.nanoTime().
+     * @param filesCopiedAtStart The FILES_COPIED count when it started.
+     */
+    public static void recordBackup(long startNanos, long filesCopiedAtStart) {
+        long millis = TOTAL.observeSince(startNanos);
+        BACKUPS_COMPLETED.inc();
+        LAST_COMPLETED.set(System.currentTimeMillis() / 1000L);
+        if (millis > 0) {
+            LAST_FILES_PER_SECOND.set((FILES_COPIED.get() - filesCopiedAtStart) * 1000L / millis);
+        }
+    }
+
+    /**
+     * Records the bytes saved by compacting the regions in a world's backup.
+     *
+     * @param world The world.
+     * @param saved The bytes saved.
+     * @param pruned The chunks left out.
+     */
+    public static void recordCompaction(String world, long saved, long pruned) {
+        BYTES_COMPACTED.add(saved);
+        CHUNKS_PRUNED.add(pruned);
+        synchronized (compaction) {
+            compaction.put(world, new long[]{saved, pruned});
+        }
+    }
+
+    /**
+     * Builds the summary shown by "/backup stats".
+     *
+     * @return The lines to send.
+     */
+    public static List<String> getSummary() {
+        List<String> lines = new ArrayList<String>();
+        lines.add("Backups: " + BACKUPS_COMPLETED.get() + " completed, " + BACKUP_FAILURES.get() + " errors, " + BACKUPS_DELETED.get() + " removed by retention.");
+        if (TOTAL.getCount() > 0) {
+            lines.add("Last backup took " + formatMillis(TOTAL.getLast()) + ", copying " + LAST_FILES_PER_SECOND.get() + " files/s.");
+        }
+        for (Histogram phase : PHASES) {
+            if (phase.getCount() > 0) {
+                lines.add(" " + phase.getLabel() + ": " + phase.getCount() + " runs, avg " + formatMillis(phase.getAverage()) + ", max " + formatMillis(phase.getMax()) + ".");
+            }
+        }
+        lines.add("Copied " + FILES_COPIED.get() + " files, read " + formatBytes(BYTES_READ.get()) + ", wrote " + formatBytes(BYTES_WRITTEN.get()) + ".");
+        if (BYTES_UNCOMPRESSED.get() > 0) {
+            lines.add("Compressed " + formatBytes(BYTES_UNCOMPRESSED.get()) + " to " + formatBytes(BYTES_COMPRESSED.get())
+                    + " (last ratio " + String.format(Locale.ROOT, "%.3f", LAST_COMPRESSION_PERMILLE.get() / 1000D) + ").");
+        }
+        if (BACKUPS_VERIFIED.get() > 0) {
+            lines.add("Verified " + BACKUPS_VERIFIED.get() + " backups, reading " + formatBytes(BYTES_VERIFIED.get()) + ", " + BACKUPS_CORRUPT.get() + " corrupt.");
+        }
+        synchronized (compaction) {
+            if (!compaction.isEmpty()) {
+                StringBuilder saved = new StringBuilder("Region compaction saved");
+                String separator = ": ";
+                for (Map.Entry<String, long[]> world : compaction.entrySet()) {
+                    saved.append(separator).append(world.getKey()).append(' ').append(formatBytes(world.getValue()[0]));
+                    if (world.getValue()[1] > 0) {
+                        saved.append(" (").append(world.getValue()[1]).append(" unvisited chunks left out)");
+                    }
+                    separator = ", ";
+                }
+                lines.add(saved.append('.').toString());
+            }
+        }
+        lines.addAll(BackupVerifier.getAlerts());
+        lines.addAll(BackupReplicator.getStatus());
+        lines.add("Backup in progress: " + BackupEngine.backupInProgress.get() + ", log queue: " + LogUtils.getQueueSize() + ", " + LogUtils.getDroppedCount() + " log messages dropped.");
+        return lines;
+    }
+
+    /**
+     * Lists the counters, gauges and phase timings as "kind name values" lines,
+     * so a backup run in a worker process can be added to the server's
+     * statistics with addTotal().
+     *
+     * @return The lines.
+     */
+    public static List<String> getTotals() {
+        List<String> lines = new ArrayList<String>();
+        for (Counter counter : COUNTERS) {
+            lines.add("counter " + counter.getName() + " " + counter.get());
+        }
+        for (Gauge gauge : GAUGES) {
+            lines.add("gauge " + gauge.getName() + " " + gauge.get());
+        }
+        for (Histogram phase : PHASES) {
+            if (phase.getCount() > 0) {
+                lines.add("phase " + phase.getLabel() + " " + phase.getCount() + " " + phase.getSum());
+            }
+        }
+        synchronized (compaction) {
+            for (Map.Entry<String, long[]> world : compaction.entrySet()) {
+                lines.add("compaction " + world.getValue()[0] + " " + world.getValue()[1] + " " + world.getKey());
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Adds a line from another process's getTotals() to these statistics.
+     * Counters are added, gauges replaced, and each phase is observed as many
+     * times as it ran there, at its average duration. A world's compaction
+     * replaces the one recorded for it.
+     *
+     * @param line The line.
+     * @return False if the line was not understood.
+     */
+    public static boolean addTotal(String line) {
+        String[] parts = line.split(" ");
+        try {
+            if (parts.length >= 4 && parts[0].equals("compaction")) {
+
+                // World names may have spaces in them.
+                String[] world = line.split(" ", 4);
+                synchronized (compaction) {
+                    compaction.put(world[3], new long[]{Long.parseLong(world[1]), Long.parseLong(world[2])});
+                }
+                return true;
+            }
+            if (parts.length == 3 && parts[0].equals("counter")) {
+                for (Counter counter : COUNTERS) {
+                    if (counter.getName().equals(parts[1])) {
+                        counter.add(Long.parseLong(parts[2]));
+                        return true;
+                    }
+                }
+            } else if (parts.length == 3 && parts[0].equals("gauge")) {
+                for (Gauge gauge : GAUGES) {
+                    if (gauge.getName().equals(parts[1])) {
+                        gauge.set(Long.parseLong(parts[2]));
+                        return true;
+                    }
+                }
+            } else if (parts.length == 4 && parts[0].equals("phase")) {
+                for (Histogram phase : PHASES) {
+                    if (phase.getLabel().equals(parts[1])) {
+                        long count = Long.parseLong(parts[2]);
+                        for (long i = 0; i < count; i++) {
+                            phase.observe(Long.parseLong(parts[3]) / count);
+                        }
+                        return true;
+                    }
+                }
+            }
+        } catch (NumberFormatException nfe) {
+            return false;
+        }
+        return false;
+    }
+
+    /**
+     * Writes all statistics in the Prometheus text format.
+     *
+     * @return The exposition text.
+     */
+    public static String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        out.append("# HELP backup_phase_duration_seconds Time spent in each backup phase.\n");
+        out.append("# TYPE backup_phase_duration_seconds histogram\n");
+        for (Histogram phase : PHASES) {
+            String label = "phase=\"" + phase.getLabel() + "\"";
+            long cumulative = 0;
+            for (int i = 0; i <= Histogram.BUCKETS.length; i++) {
+                cumulative += phase.getBucketCount(i);
+                String bound = i < Histogram.BUCKETS.length ? seconds(Histogram.BUCKETS[i]) : "+Inf";
+                out.append("backup_phase_duration_seconds_bucket{").append(label).append(",le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append("backup_phase_duration_seconds_sum{").append(label).append("} ").append(seconds(phase.getSum())).append('\n');
+            out.append("backup_phase_duration_seconds_count{").append(label).append("} ").append(phase.getCount()).append('\n');
+        }
+        for (Counter counter : COUNTERS) {
+            out.append("# HELP ").append(counter.getName()).append(' ').append(counter.getHelp()).append('\n');
+            out.append("# TYPE ").append(counter.getName()).append(" counter\n");
+            out.append(counter.getName()).append(' ').append(counter.get()).append('\n');
+        }
+        for (Gauge gauge : GAUGES) {
+            out.append("# HELP ").append(gauge.getName()).append(' ').append(gauge.getHelp()).append('\n');
+            out.append("# TYPE ").append(gauge.getName()).append(" gauge\n");
+            out.append(gauge.getName()).append(' ').append(gauge.get()).append('\n');
+        }
+        out.append("# TYPE backup_in_progress gauge\n");
+        out.append("backup_in_progress ").append(BackupEngine.backupInProgress.get() ? 1 : 0).append('\n');
+        out.append("# HELP backup_replication_lag_seconds Age of the oldest backup not yet uploaded to remote storage.\n");
+        out.append("# TYPE backup_replication_lag_seconds gauge\n");
+        out.append("backup_replication_lag_seconds ").append(BackupReplicator.getLagSeconds()).append('\n');
+        out.append("# TYPE backup_log_queue_depth gauge\n");
+        out.append("backup_log_queue_depth ").append(LogUtils.getQueueSize()).append('\n');
+        out.append("# HELP backup_log_dropped_total Log messages dropped because the log queue was full.\n");
+        out.append("# TYPE backup_log_dropped_total counter\n");
+        out.append("backup_log_dropped_total ").append(LogUtils.getDroppedCount()).append('\n');
+        return out.toString();
+    }
+
+    /**
+     * Writes all statistics as a JSON object.
+     *
+     * @return The JSON text.
+     */
+    public static String toJson() {
+        StringBuilder out = new StringBuilder(2048);
+        out.append("{\n  \"phases\": {");
+        for (int i = 0; i < PHASES.length; i++) {
+            Histogram phase = PHASES[i];
+            out.append(i == 0 ? "\n" : ",\n");
+            out.append("    \"").append(phase.getLabel()).append("\": {\"count\": ").append(phase.getCount())
+                    .append(", \"sumMillis\": ").append(phase.getSum())
+                    .append(", \"maxMillis\": ").append(phase.getMax())
+                    .append(", \"lastMillis\": ").append(phase.getLast()).append('}');
+        }
+        out.append("\n  }");
+        for (Counter counter : COUNTERS) {
+            out.append(",\n  \"").append(counter.getName()).append("\": ").append(counter.get());
+        }
+        for (Gauge gauge : GAUGES) {
+            out.append(",\n  \"").append(gauge.getName()).append("\": ").append(gauge.get());
+        }
+        out.append(",\n  \"backup_in_progress\": ").append(BackupEngine.backupInProgress.get());
+        out.append(",\n  \"backup_replication_lag_seconds\": ").append(BackupReplicator.getLagSeconds());
+        out.append(",\n  \"backup_log_queue_depth\": ").append(LogUtils.getQueueSize());
+        out.append(",\n  \"backup_log_dropped_total\": ").append(LogUtils.getDroppedCount());
+        out.append("\n}\n");
+        return out.toString();
+    }
+
+    private static String seconds(long millis) {
+        return String.format(Locale.ROOT, "%.3f", millis / 1000D);
+    }
+
+    /**
+     * Formats a duration for display.
+     *
+     * @param millis The duration, in milliseconds.
+     * @return The formatted duration.
+     */
+    public static String formatMillis(long millis) {
+        if (millis < 1000) {
+            return millis + "ms";
+        }
+        return String.format(Locale.ROOT, "%.1fs", millis / 1000D);
+    }
+
+    /**
+     * Formats a size for display.
+     *
+     * @param bytes The size, in bytes.
+     * @return The formatted size.
+     */
+    public static String formatBytes(long bytes) {
+        if (bytes < FileUtils.ONE_KB) {
+            return bytes + " B";
+        } else if (bytes < FileUtils.ONE_MB) {
+            return String.format(Locale.ROOT, "%.1f KB", bytes / (double) FileUtils.ONE_KB);
+        } else if (bytes < FileUtils.ONE_MB * FileUtils.ONE_KB) {
+            return String.format(Locale.ROOT, "%.1f MB", bytes / (double) FileUtils.ONE_MB);
+        }
+        return String.format(Locale.ROOT, "%.2f GB", bytes / (double) (FileUtils.ONE_MB * FileUtils.ONE_KB));
+    }
+}
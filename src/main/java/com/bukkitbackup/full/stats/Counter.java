@@ -0,0 +1,42 @@
+package com.bukkitbackup.full.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A named value that only ever goes up, such as a byte or failure count.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class Counter {
+
+    private final String name;
+    private final String help;
+    private final AtomicLong value = new AtomicLong();
+
+    public Counter(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void inc() {
+        value.incrementAndGet();
+    }
+
+    public void add(long amount) {
+        value.addAndGet(amount);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+}
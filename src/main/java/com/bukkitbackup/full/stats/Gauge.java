@@ -0,0 +1,39 @@
+package com.bukkitbackup.full.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A named value that is set to the latest reading, such as the duration of
+ * the last backup.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class Gauge {
+
+    private final String name;
+    private final String help;
+    private final AtomicLong value = new AtomicLong();
+
+    public Gauge(String name, String help) {
+        this.name = name;
+        this.help = help;
+    }
+
+    public void set(long newValue) {
+        value.set(newValue);
+    }
+
+    public long get() {
+        return value.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getHelp() {
+        return help;
+    }
+}
@@ -0,0 +1,103 @@
+package com.bukkitbackup.full.stats;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A histogram of durations in milliseconds, using fixed buckets so that
+ * recording a value is a handful of atomic adds.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class Histogram {
+
+    /**
+     * Upper bounds of each bucket, in milliseconds.
+     */
+    static final long[] BUCKETS = {10, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 300000, 900000, 3600000};
+    private final String label;
+    private final AtomicLongArray bucketCounts = new AtomicLongArray(BUCKETS.length + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong last = new AtomicLong();
+
+    /**
+     * @param label The value of the label that identifies this histogram.
+     */
+    public Histogram(String label) {
+        this.label = label;
+    }
+
+    /**
+     * Records a duration.
+     *
+     * @param millis The duration, in milliseconds.
+     */
+    public void observe(long millis) {
+        int bucket = 0;
+        while (bucket < BUCKETS.length && millis > BUCKETS[bucket]) {
+            bucket++;
+        }
+        bucketCounts.incrementAndGet(bucket);
+        count.incrementAndGet();
+        sum.addAndGet(millis);
+        last.set(millis);
+        long currentMax;
+        while (millis > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, millis)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Records the time since the given start.
+     *
+     * @param startNanos The start, from System.nanoTime().
+     * @return The recorded duration, in milliseconds.
+     */
+    public long observeSince(long startNanos) {
+        long millis = (System.nanoTime() - startNanos) / 1000000L;
+        observe(millis);
+        return millis;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getLast() {
+        return last.get();
+    }
+
+    public long getAverage() {
+        long total = count.get();
+        return total == 0 ? 0 : sum.get() / total;
+    }
+
+    /**
+     * Gets the number of values in a bucket. The bucket after the last bound
+     * holds everything larger.
+     *
+     * @param bucket The bucket index.
+     * @return The number of values recorded in it.
+     */
+    public long getBucketCount(int bucket) {
+        return bucketCounts.get(bucket);
+    }
+}
@@ -0,0 +1,55 @@
+package com.bukkitbackup.full.stats;
+
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Periodically writes the statistics to "stats.prom" and "stats.json" in the
+ * data folder. Each file is written to a temporary name first and then renamed,
+ * so a scraper never reads a half-written file.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class StatsExporter implements Runnable {
+
+    private final File promFile;
+    private final File jsonFile;
+
+    public StatsExporter(File dataFolder) {
+        this.promFile = new File(dataFolder, "stats.prom");
+        this.jsonFile = new File(dataFolder, "stats.json");
+    }
+
+    public void run() {
+        try {
+            writeAtomically(promFile, BackupStats.toPrometheus());
+            writeAtomically(jsonFile, BackupStats.toJson());
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to write backup statistics.");
+        }
+    }
+
+    private void writeAtomically(File target, String contents) throws IOException {
+        File tempFile = new File(target.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8");
+        try {
+            writer.write(contents);
+        } finally {
+            writer.close();
+        }
+
+        // Rename over the old file, falling back to delete-then-rename.
+        if (!tempFile.renameTo(target)) {
+            target.delete();
+            if (!tempFile.renameTo(target)) {
+                throw new IOException("Unable to replace " + target + ".");
+            }
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.bukkitbackup.full.stats.jfr;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Java Flight Recorder events for the backup pipeline. Each begin method
+ * returns a token to pass to the matching end method, or null when no
+ * recording has the event enabled. With no recording running this is a
+ * single check, and on a JVM without Flight Recorder it does nothing.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BackupEvents {
+
+    private static final boolean AVAILABLE = checkAvailable();
+
+    private BackupEvents() {
+    }
+
+    /**
+     * Starts timing a backup phase.
+     *
+     * @param phase The phase name, such as "copy" or "compress".
+     * @param target The backup, world or folder being worked on.
+     * @return The event token, or null.
+     */
+    public static Object beginPhase(String phase, String target) {
+        return AVAILABLE ? JfrEvents.beginPhase(phase, target) : null;
+    }
+
+    /**
+     * Finishes a backup phase.
+     *
+     * @param token The token from beginPhase.
+     * @param bytes Bytes processed in this phase.
+     * @param files Files processed in this phase.
+     */
+    public static void endPhase(Object token, long bytes, long files) {
+        if (token != null) {
+            JfrEvents.endPhase(token, bytes, files);
+        }
+    }
+
+    /**
+     * Starts timing a single file copy.
+     *
+     * @return The event token, or null.
+     */
+    public static Object beginFileCopy() {
+        return AVAILABLE ? JfrEvents.beginFileCopy() : null;
+    }
+
+    /**
+     * Finishes a file copy. It is only recorded if it was over the threshold.
+     *
+     * @param token The token from beginFileCopy.
+     * @param source The source path.
+     * @param destination The destination path.
+     * @param bytes The size of the file.
+     */
+    public static void endFileCopy(Object token, String source, String destination, long bytes) {
+        if (token != null) {
+            JfrEvents.endFileCopy(token, source, destination, bytes);
+        }
+    }
+
+    /**
+     * Starts timing the compression of one directory's files.
+     *
+     * @return The event token, or null.
+     */
+    public static Object beginCompressionBatch() {
+        return AVAILABLE ? JfrEvents.beginCompressionBatch() : null;
+    }
+
+    /**
+     * Finishes a compression batch.
+     *
+     * @param token The token from beginCompressionBatch.
+     * @param directory The directory that was compressed.
+     * @param files The number of files added.
+     * @param bytes The number of bytes read.
+     */
+    public static void endCompressionBatch(Object token, String directory, long files, long bytes) {
+        if (token != null) {
+            JfrEvents.endCompressionBatch(token, directory, files, bytes);
+        }
+    }
+
+    /**
+     * Starts timing the deletion of an old backup.
+     *
+     * @return The event token, or null.
+     */
+    public static Object beginRetentionDelete() {
+        return AVAILABLE ? JfrEvents.beginRetentionDelete() : null;
+    }
+
+    /**
+     * Finishes the deletion of an old backup.
+     *
+     * @param token The token from beginRetentionDelete.
+     * @param backup The backup that was deleted.
+     * @param reason Why it was deleted, "age" or "size".
+     * @param bytes The size of the deleted backup.
+     */
+    public static void endRetentionDelete(Object token, String backup, String reason, long bytes) {
+        if (token != null) {
+            JfrEvents.endRetentionDelete(token, backup, reason, bytes);
+        }
+    }
+
+    /**
+     * Checks the Flight Recorder API exists, and registers our events.
+     *
+     * @return True if events can be emitted.
+     */
+    private static boolean checkAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            Class.forName(JfrEvents.class.getName());
+            return true;
+        } catch (Throwable t) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.bukkitbackup.full.stats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Flight Recorder event covering one phase of a backup.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+@Name("com.bukkitbackup.Phase")
+@Label("Backup Phase")
+@Category("Backup")
+@Description("One phase of a backup, such as saving, copying a world or compressing.")
+class BackupPhaseEvent extends jdk.jfr.Event {
+
+    @Label("Phase")
+    String phase;
+
+    @Label("Target")
+    @Description("The backup, world or folder this phase worked on.")
+    String target;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Files")
+    long files;
+}
@@ -0,0 +1,32 @@
+package com.bukkitbackup.full.stats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Flight Recorder event for the files of one directory being added to an
+ * archive.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+@Name("com.bukkitbackup.CompressionBatch")
+@Label("Backup Compression Batch")
+@Category("Backup")
+@Description("The files of one directory being compressed into an archive.")
+class CompressionBatchEvent extends jdk.jfr.Event {
+
+    @Label("Directory")
+    String directory;
+
+    @Label("Files")
+    long files;
+
+    @Label("Bytes Read")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,34 @@
+package com.bukkitbackup.full.stats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Flight Recorder event for a single file copy. Only copies slower than the
+ * threshold are recorded, which can be changed in the recording settings.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+@Name("com.bukkitbackup.FileCopy")
+@Label("Backup File Copy")
+@Category("Backup")
+@Description("A file copy that took longer than the threshold.")
+@Threshold("20 ms")
+class FileCopyEvent extends jdk.jfr.Event {
+
+    @Label("Source")
+    String source;
+
+    @Label("Destination")
+    String destination;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
@@ -0,0 +1,103 @@
+package com.bukkitbackup.full.stats.jfr;
+
+import jdk.jfr.EventType;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The part of the event support that touches the Flight Recorder API. This is
+ * only loaded by BackupEvents once it knows the API exists.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+final class JfrEvents {
+
+    private static final EventType PHASE = EventType.getEventType(BackupPhaseEvent.class);
+    private static final EventType FILE_COPY = EventType.getEventType(FileCopyEvent.class);
+    private static final EventType COMPRESSION_BATCH = EventType.getEventType(CompressionBatchEvent.class);
+    private static final EventType RETENTION_DELETE = EventType.getEventType(RetentionDeleteEvent.class);
+
+    private JfrEvents() {
+    }
+
+    static Object beginPhase(String phase, String target) {
+        if (!PHASE.isEnabled()) {
+            return null;
+        }
+        BackupPhaseEvent event = new BackupPhaseEvent();
+        event.phase = phase;
+        event.target = target;
+        event.begin();
+        return event;
+    }
+
+    static void endPhase(Object token, long bytes, long files) {
+        BackupPhaseEvent event = (BackupPhaseEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.bytes = bytes;
+            event.files = files;
+            event.commit();
+        }
+    }
+
+    static Object beginFileCopy() {
+        if (!FILE_COPY.isEnabled()) {
+            return null;
+        }
+        FileCopyEvent event = new FileCopyEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endFileCopy(Object token, String source, String destination, long bytes) {
+        FileCopyEvent event = (FileCopyEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.destination = destination;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Object beginCompressionBatch() {
+        if (!COMPRESSION_BATCH.isEnabled()) {
+            return null;
+        }
+        CompressionBatchEvent event = new CompressionBatchEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endCompressionBatch(Object token, String directory, long files, long bytes) {
+        CompressionBatchEvent event = (CompressionBatchEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.directory = directory;
+            event.files = files;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Object beginRetentionDelete() {
+        if (!RETENTION_DELETE.isEnabled()) {
+            return null;
+        }
+        RetentionDeleteEvent event = new RetentionDeleteEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endRetentionDelete(Object token, String backup, String reason, long bytes) {
+        RetentionDeleteEvent event = (RetentionDeleteEvent) token;
+        event.end();
+        if (event.shouldCommit()) {
+            event.backup = backup;
+            event.reason = reason;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+}
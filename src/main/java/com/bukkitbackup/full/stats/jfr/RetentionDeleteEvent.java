@@ -0,0 +1,31 @@
+package com.bukkitbackup.full.stats.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Flight Recorder event for an old backup being deleted by retention.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+@Name("com.bukkitbackup.RetentionDelete")
+@Label("Backup Retention Delete")
+@Category("Backup")
+@Description("An old backup deleted because of the maxbackups setting.")
+class RetentionDeleteEvent extends jdk.jfr.Event {
+
+    @Label("Backup")
+    String backup;
+
+    @Label("Reason")
+    String reason;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+}
@@ -21,6 +21,7 @@ public class BackupScheduler implements Runnable {
     private final Strings strings;
     private final Server pluginServer;
     private final String[] timesArray;
+    private volatile boolean running = true;
 
     public BackupScheduler(Plugin plugin, PrepareBackup prepareBackup, Settings settings, Strings strings, String[] timesArray) {
         this.plugin = plugin;
@@ -34,7 +35,7 @@ public class BackupScheduler implements Runnable {
     public void run() {
         
         // Loop to check if we need to backup.
-        while(true) {
+        while(running) {
             
             LogUtils.sendDebug("Checking if we should backup. (M:0008)");
             
@@ -42,7 +43,7 @@ public class BackupScheduler implements Runnable {
             Calendar calendarInstance = Calendar.getInstance();
             String timeNow = new SimpleDateFormat("HH:mm").format(calendarInstance.getTime());
             
-            LogUtils.sendDebug("Time is: "+ timeNow + " (M:0009)");
+            LogUtils.sendDebug(() -> String.format("Time is: %s (M:0009)", timeNow));
             
             // Loop the array of times we want to backup at.
             for (int j = 0; j < timesArray.length; j++) {
@@ -57,10 +58,19 @@ public class BackupScheduler implements Runnable {
             try {
                 Thread.sleep(30000);
             } catch (InterruptedException ex) {
-                LogUtils.exceptionLog(ex);
+                if (running) {
+                    LogUtils.exceptionLog(ex);
+                }
             }
             
         }
         
     }
+
+    /**
+     * Stops the scheduler loop after its current check.
+     */
+    public void stop() {
+        running = false;
+    }
 }
@@ -3,6 +3,9 @@ package com.bukkitbackup.full.threading;
 import com.bukkitbackup.full.BackupFull;
 import com.bukkitbackup.full.config.Settings;
 import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.engine.BackupEngine;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.stats.jfr.BackupEvents;
 import com.bukkitbackup.full.utils.LogUtils;
 import java.util.Arrays;
 import java.util.List;
@@ -22,10 +25,10 @@ public class PrepareBackup implements Runnable {
     private final Server pluginServer;
     private final Settings settings;
     private final Strings strings;
-    public static boolean backupInProgress = false;
     public static boolean backupEnabled = true;
     public boolean isLastBackup = false;
     public boolean isManualBackup;
+    private boolean backupStarted;
 
     public PrepareBackup(Plugin plugin, Settings settings, Strings strings) {
         this.plugin = plugin;
@@ -35,10 +38,20 @@ public class PrepareBackup implements Runnable {
     }
 
     public synchronized void run() {
-        if (backupInProgress) {
+        if (!BackupEngine.backupInProgress.compareAndSet(false, true)) {
             LogUtils.sendLog(strings.getString("backupinprogress"));
-        } else {
+            return;
+        }
+
+        // The flag is held from here, and BackupTask releases it if a backup
+        // is started.
+        backupStarted = false;
+        try {
             checkShouldDoBackup();
+        } finally {
+            if (!backupStarted) {
+                BackupEngine.backupInProgress.set(false);
+            }
         }
     }
 
@@ -109,12 +122,14 @@ public class PrepareBackup implements Runnable {
     protected void prepareBackup() {
 
         // Tell the world!
-        backupInProgress = true;
+        backupStarted = true;
 
         // Notify doBackup has started.
         notifyStarted();
 
         // Save all players to worlds.
+        long saveStartNanos = System.nanoTime();
+        Object saveEvent = BackupEvents.beginPhase("save", pluginServer.getName());
         pluginServer.savePlayers();
 
         // Turn off auto-saving of worlds.
@@ -126,6 +141,8 @@ public class PrepareBackup implements Runnable {
         for (World world : pluginServer.getWorlds()) {
             world.save();
         }
+        BackupEvents.endPhase(saveEvent, 0, 0);
+        BackupStats.SAVE.observeSince(saveStartNanos);
 
         // Scedule the doBackup.
         pluginServer.getScheduler().scheduleSyncDelayedTask(plugin, new Runnable() {
@@ -0,0 +1,132 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.engine.BackupCatalog;
+import com.bukkitbackup.full.engine.BackupEngine;
+import com.bukkitbackup.full.engine.BackupRestore;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.WorldCreator;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Restores a world, or a folder or file of it, for /backup restore. The files
+ * are staged asynchronously, and swapped in on the main thread once the world
+ * is unloaded. A world that cannot be unloaded, such as the main world or one
+ * with players in it, is restored when the server next starts.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class RestoreTask implements Runnable {
+
+    private final Plugin plugin;
+    private final Server server;
+    private final Settings settings;
+    private final Strings strings;
+    private final CommandSender sender;
+    private final String backupId;
+    private final String worldName;
+    private final String path;
+
+    /**
+     * @param plugin The plugin.
+     * @param settings The settings to use.
+     * @param strings The strings to message with.
+     * @param sender Who asked for the restore.
+     * @param backupId The backup's ID, or BackupRestore.LATEST.
+     * @param worldName The world to restore.
+     * @param path The file or folder in the world, or "" for all of it.
+     */
+    public RestoreTask(Plugin plugin, Settings settings, Strings strings, CommandSender sender, String backupId, String worldName, String path) {
+        this.plugin = plugin;
+        this.server = plugin.getServer();
+        this.settings = settings;
+        this.strings = strings;
+        this.sender = sender;
+        this.backupId = backupId;
+        this.worldName = worldName;
+        this.path = path;
+    }
+
+    public void run() {
+
+        // Backups and restores must not overlap.
+        if (!BackupEngine.backupInProgress.compareAndSet(false, true)) {
+            sender.sendMessage(strings.getString("backupinprogress"));
+            return;
+        }
+
+        final BackupRestore restore = new BackupRestore(server.getWorldContainer());
+        BackupCatalog catalog = BackupCatalog.forFolder(new File(settings.getStringProperty("backuppath", "backups")));
+        try {
+            int files = restore.stage(catalog, backupId, worldName, path);
+            LogUtils.sendLog("Staged " + files + " files to restore " + getDescription() + ".");
+        } catch (FileNotFoundException fnfe) {
+            BackupEngine.backupInProgress.set(false);
+            sender.sendMessage(strings.getString("restorefailed", fnfe.getMessage()));
+            return;
+        } catch (IllegalArgumentException iae) {
+            BackupEngine.backupInProgress.set(false);
+            sender.sendMessage(strings.getString("restorefailed", iae.getMessage()));
+            return;
+        } catch (IOException ioe) {
+            BackupEngine.backupInProgress.set(false);
+            LogUtils.exceptionLog(ioe, "Failed to stage the restore of " + worldName + ".");
+            sender.sendMessage(strings.getString("restorefailed", ioe.getMessage()));
+            return;
+        }
+
+        // Worlds are only unloaded and loaded on the main thread.
+        server.getScheduler().runTask(plugin, new Runnable() {
+            public void run() {
+                try {
+                    swapIn(restore);
+                } finally {
+                    BackupEngine.backupInProgress.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unloads the world if it is loaded, applies the restore, and loads the
+     * world again.
+     *
+     * @param restore The staged restore.
+     */
+    private void swapIn(BackupRestore restore) {
+        World world = server.getWorld(worldName);
+        World.Environment environment = null;
+        if (world != null) {
+            environment = world.getEnvironment();
+
+            // Saving first keeps the rest of the world as it was.
+            if (!server.unloadWorld(world, true)) {
+                sender.sendMessage(strings.getString("restorepending", getDescription()));
+                return;
+            }
+        }
+        try {
+            restore.apply(worldName);
+            sender.sendMessage(strings.getString("restoredone", getDescription()));
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to apply the restore of " + worldName + ", it will be retried when the server starts.");
+            sender.sendMessage(strings.getString("restorefailed", ioe.getMessage()));
+        }
+        if (environment != null) {
+            server.createWorld(new WorldCreator(worldName).environment(environment));
+        }
+    }
+
+    private String getDescription() {
+        return path.isEmpty() ? worldName : path + " of " + worldName;
+    }
+}
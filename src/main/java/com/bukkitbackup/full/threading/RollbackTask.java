@@ -0,0 +1,135 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.config.Strings;
+import com.bukkitbackup.full.engine.BackupCatalog;
+import com.bukkitbackup.full.engine.BackupEngine;
+import com.bukkitbackup.full.engine.ChunkRollback;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.command.CommandSender;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Rolls chunks back to a backup, for /backup rollback. The chunks are read
+ * from the backup asynchronously. Then, on the main thread, they are unloaded
+ * without saving and written into the world's region files. Chunks that are
+ * in use, or that cannot be written while the world is loaded, are rolled back
+ * when the server next starts.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class RollbackTask implements Runnable {
+
+    private final Plugin plugin;
+    private final Server server;
+    private final Settings settings;
+    private final Strings strings;
+    private final CommandSender sender;
+    private final String backupId;
+    private final String worldName;
+    private final List<Long> chunks;
+
+    /**
+     * @param plugin The plugin.
+     * @param settings The settings to use.
+     * @param strings The strings to message with.
+     * @param sender Who asked for the rollback.
+     * @param backupId The backup's ID, or BackupRestore.LATEST.
+     * @param worldName The world.
+     * @param chunks The chunks, from ChunkRollback.getKey().
+     */
+    public RollbackTask(Plugin plugin, Settings settings, Strings strings, CommandSender sender, String backupId, String worldName, List<Long> chunks) {
+        this.plugin = plugin;
+        this.server = plugin.getServer();
+        this.settings = settings;
+        this.strings = strings;
+        this.sender = sender;
+        this.backupId = backupId;
+        this.worldName = worldName;
+        this.chunks = chunks;
+    }
+
+    public void run() {
+
+        // Backups and restores must not overlap.
+        if (!BackupEngine.backupInProgress.compareAndSet(false, true)) {
+            sender.sendMessage(strings.getString("backupinprogress"));
+            return;
+        }
+
+        final ChunkRollback rollback = new ChunkRollback(server.getWorldContainer(), worldName);
+        BackupCatalog catalog = BackupCatalog.forFolder(new File(settings.getStringProperty("backuppath", "backups")));
+        try {
+            rollback.extract(catalog, backupId, chunks);
+        } catch (FileNotFoundException fnfe) {
+            BackupEngine.backupInProgress.set(false);
+            sender.sendMessage(strings.getString("restorefailed", fnfe.getMessage()));
+            return;
+        } catch (IOException ioe) {
+            BackupEngine.backupInProgress.set(false);
+            LogUtils.exceptionLog(ioe, "Failed to read chunks of " + worldName + " from the backup.");
+            sender.sendMessage(strings.getString("restorefailed", ioe.getMessage()));
+            return;
+        }
+
+        // Chunks are only unloaded on the main thread.
+        server.getScheduler().runTask(plugin, new Runnable() {
+            public void run() {
+                try {
+                    writeChunks(rollback);
+                } finally {
+                    BackupEngine.backupInProgress.set(false);
+                }
+            }
+        });
+    }
+
+    /**
+     * Unloads the chunks, and writes them.
+     *
+     * @param rollback The chunks read from the backup.
+     */
+    private void writeChunks(ChunkRollback rollback) {
+        World world = server.getWorld(worldName);
+        List<Long> toWrite = new ArrayList<Long>(chunks.size());
+        List<Long> deferred = new ArrayList<Long>();
+        if (world == null) {
+            toWrite.addAll(chunks);
+        } else {
+
+            // Unloading without saving drops the griefed chunk from memory.
+            for (Long key : chunks) {
+                int chunkX = ChunkRollback.getX(key);
+                int chunkZ = ChunkRollback.getZ(key);
+                if (world.isChunkLoaded(chunkX, chunkZ) && !world.unloadChunk(chunkX, chunkZ, false)) {
+                    deferred.add(key);
+                } else {
+                    toWrite.add(key);
+                }
+            }
+        }
+        try {
+            deferred.addAll(rollback.apply(toWrite, world != null));
+            rollback.defer(deferred);
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to roll back chunks of " + worldName + ".");
+            sender.sendMessage(strings.getString("restorefailed", ioe.getMessage()));
+            return;
+        }
+        LogUtils.sendLog("Rolled back " + (chunks.size() - deferred.size()) + " chunks of " + worldName + ", " + deferred.size() + " deferred.");
+        if (deferred.isEmpty()) {
+            sender.sendMessage(strings.getString("rollbackdone", String.valueOf(chunks.size())));
+        } else {
+            sender.sendMessage(strings.getString("rollbackpending", String.valueOf(chunks.size() - deferred.size()), String.valueOf(deferred.size())));
+        }
+    }
+}
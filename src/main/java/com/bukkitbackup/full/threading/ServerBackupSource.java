@@ -0,0 +1,45 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.engine.BackupSource;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.Server;
+import org.bukkit.World;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Gives the backup engine the server's worlds. The server runs in its own
+ * folder, so that is the working directory.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class ServerBackupSource implements BackupSource {
+
+    private final Server pluginServer;
+
+    public ServerBackupSource(Server server) {
+        this.pluginServer = server;
+    }
+
+    public File getServerFolder() {
+        return new File(".");
+    }
+
+    public File getWorldContainer() {
+        return pluginServer.getWorldContainer();
+    }
+
+    public List<String> getWorldNames() {
+        List<String> worldNames = new ArrayList<String>();
+        for (World world : pluginServer.getWorlds()) {
+            worldNames.add(world.getName());
+        }
+        return worldNames;
+    }
+
+    public String getWorldSeed(String worldName) {
+        return String.valueOf(pluginServer.getWorld(worldName).getSeed());
+    }
+}
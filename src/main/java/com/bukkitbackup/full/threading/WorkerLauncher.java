@@ -0,0 +1,213 @@
+package com.bukkitbackup.full.threading;
+
+import com.bukkitbackup.full.config.Settings;
+import com.bukkitbackup.full.engine.BackupCli;
+import com.bukkitbackup.full.engine.WorkerProtocol;
+import com.bukkitbackup.full.stats.BackupProgress;
+import com.bukkitbackup.full.stats.BackupStats;
+import static com.bukkitbackup.full.utils.FileUtils.FILE_SEPARATOR;
+import com.bukkitbackup.full.utils.LogUtils;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.bukkit.Server;
+import org.bukkit.World;
+import org.bukkit.plugin.Plugin;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Runs the backup in a separate JVM, so the copying and compressing does not
+ * use the server's heap. The worker is BackupCli, started with its own heap
+ * limit and a lower CPU priority, and it reports back over its standard
+ * output (see WorkerProtocol). The worlds have already been saved, with
+ * auto-save turned off, by PrepareBackup.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class WorkerLauncher {
+
+    private static volatile Process workerProcess;
+    private final Plugin plugin;
+    private final Server pluginServer;
+    private final String maxHeap;
+    private final int niceness;
+
+    /**
+     * @param plugin The plugin instance.
+     * @param settings Instance of the settings loader.
+     */
+    public WorkerLauncher(Plugin plugin, Settings settings) {
+        this.plugin = plugin;
+        this.pluginServer = plugin.getServer();
+
+        // Load settings.
+        String heapSetting = settings.getStringProperty("workermaxheap", "256M");
+        if (!heapSetting.matches("[0-9]+[kKmMgG]?")) {
+            LogUtils.sendLog("Invalid workermaxheap \"" + heapSetting + "\", using 256M.");
+            heapSetting = "256M";
+        }
+        maxHeap = heapSetting;
+        niceness = Math.max(0, Math.min(19, settings.getIntProperty("workerniceness", 10)));
+    }
+
+    /**
+     * Runs a backup in the worker, and waits for it to finish.
+     *
+     * @return False if the worker could not be started, so the backup should
+     * be done in the server instead.
+     */
+    public boolean runBackup() {
+        List<String> command = getCommand();
+        if (command == null) {
+            return false;
+        }
+        LogUtils.sendDebug(() -> String.format("Starting worker: %s (M:0020)", command));
+
+        Process process;
+        try {
+            process = new ProcessBuilder(command).start();
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Failed to start the backup worker, backing up in the server instead.");
+            return false;
+        }
+        workerProcess = process;
+        BackupProgress.beginWorker();
+        boolean finished = false;
+        try {
+            process.getOutputStream().close();
+            relayLog(process.getErrorStream());
+
+            // Follow the worker until it exits.
+            BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (WorkerProtocol.isDone(line)) {
+                        finished = true;
+                    } else if (!WorkerProtocol.handleLine(line)) {
+                        LogUtils.sendLog(line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+            int exitCode = process.waitFor();
+            if (!finished) {
+                LogUtils.sendLog("The backup worker stopped before finishing, with exit code " + exitCode + ".");
+                BackupStats.BACKUP_FAILURES.inc();
+            }
+        } catch (IOException ioe) {
+            LogUtils.exceptionLog(ioe, "Lost contact with the backup worker.");
+            BackupStats.BACKUP_FAILURES.inc();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (!finished) {
+                process.destroy();
+            }
+            workerProcess = null;
+        }
+        return true;
+    }
+
+    /**
+     * Stops the worker, if one is running.
+     */
+    public static void stopWorker() {
+        Process process = workerProcess;
+        if (process != null) {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Builds the command line for the worker.
+     *
+     * @return The command, or null if the plugin's jar can not be found.
+     */
+    private List<String> getCommand() {
+        File pluginJar;
+        try {
+            pluginJar = new File(WorkerLauncher.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        } catch (Exception e) {
+            LogUtils.exceptionLog(e, "Failed to find the plugin jar, backing up in the server instead.");
+            return null;
+        }
+
+        // The names of the worlds, as the server knows them.
+        StringBuilder worldNames = new StringBuilder();
+        for (World world : pluginServer.getWorlds()) {
+            if (worldNames.length() > 0) {
+                worldNames.append(',');
+            }
+            worldNames.append(world.getName());
+        }
+
+        List<String> command = new ArrayList<String>();
+
+        // Lower the priority, where there is a "nice".
+        if (niceness > 0 && !System.getProperty("os.name").startsWith("Windows")) {
+            command.add("nice");
+            command.add("-n");
+            command.add(String.valueOf(niceness));
+        }
+        command.add(System.getProperty("java.home").concat(FILE_SEPARATOR).concat("bin").concat(FILE_SEPARATOR).concat("java"));
+        command.add("-Xmx".concat(maxHeap));
+        command.add("-XX:+UseSerialGC");
+        command.add("-cp");
+        command.add(pluginJar.getPath());
+        command.add(BackupCli.class.getName());
+        command.add("--worker");
+        command.add("true");
+        command.add("--server");
+        command.add(new File(".").getAbsolutePath());
+        command.add("--world-container");
+        command.add(pluginServer.getWorldContainer().getPath());
+        command.add("--worlds");
+        command.add(worldNames.toString());
+        command.add("--config");
+        command.add(new File(plugin.getDataFolder(), "config.yml").getAbsolutePath());
+        command.add("--strings");
+        command.add(new File(plugin.getDataFolder(), "strings.yml").getAbsolutePath());
+        command.add("--debug");
+        command.add(String.valueOf(LogUtils.debugMode));
+        return command;
+    }
+
+    /**
+     * Passes the worker's log messages on to the server's log.
+     *
+     * @param errorStream The worker's standard error.
+     */
+    private void relayLog(final InputStream errorStream) {
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(errorStream));
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        if (!line.trim().isEmpty()) {
+                            LogUtils.sendLog(line);
+                        }
+                    }
+                } catch (IOException ioe) {
+                    // The worker has gone.
+                } finally {
+                    try {
+                        reader.close();
+                    } catch (IOException ioe) {
+                        // ignore
+                    }
+                }
+            }
+        }, "Backup-WorkerLog");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
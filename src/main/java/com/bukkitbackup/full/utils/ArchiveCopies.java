@@ -0,0 +1,200 @@
+package com.bukkitbackup.full.utils;
+
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.stats.BackupStats;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The copies of an archive, in other backup folders, that are written as the
+ * archive is. Each copy is given the same bytes as the archive, so the worlds
+ * are read and compressed once however many copies are kept.
+ *
+ * A copy that fails, such as on a full or missing disk, is logged and dropped
+ * without affecting the archive or the other copies. Like the archive, each
+ * copy is written under a ".partial" name and renamed once it is synced.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class ArchiveCopies implements Closeable {
+
+    private final List<Copy> copies = new ArrayList<Copy>();
+
+    /**
+     * Starts the copies. Any that cannot be created are dropped.
+     *
+     * @param archives Where each copy goes, under its real name.
+     */
+    public ArchiveCopies(List<File> archives) {
+        for (File archive : archives) {
+            Copy copy = new Copy(archive);
+            try {
+                if (archive.getParentFile() != null) {
+                    archive.getParentFile().mkdirs();
+                }
+                copy.out = new FileOutputStream(copy.partial);
+                copies.add(copy);
+            } catch (IOException ioe) {
+                fail(copy, ioe);
+            }
+        }
+    }
+
+    /**
+     * Wraps the archive's stream, so everything written to it is written to
+     * the copies too.
+     *
+     * @param archiveOut The archive's stream.
+     * @return The stream to write the archive with.
+     */
+    public OutputStream tee(OutputStream archiveOut) {
+        if (copies.isEmpty()) {
+            return archiveOut;
+        }
+        return new FilterOutputStream(archiveOut) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                ArchiveCopies.this.write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                ArchiveCopies.this.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Writes bytes to each copy.
+     *
+     * @param b The bytes.
+     * @param off Where they start.
+     * @param len How many to write.
+     */
+    public void write(byte[] b, int off, int len) {
+        for (Iterator<Copy> it = copies.iterator(); it.hasNext();) {
+            Copy copy = it.next();
+            try {
+                copy.out.write(b, off, len);
+                BackupStats.BYTES_COPIED.add(len);
+            } catch (IOException ioe) {
+                it.remove();
+                fail(copy, ioe);
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer to each copy. The buffer itself
+     * is not changed.
+     *
+     * @param buffer The bytes.
+     */
+    public void write(ByteBuffer buffer) {
+        for (Iterator<Copy> it = copies.iterator(); it.hasNext();) {
+            Copy copy = it.next();
+            ByteBuffer bytes = buffer.duplicate();
+            try {
+                while (bytes.hasRemaining()) {
+                    copy.out.getChannel().write(bytes);
+                }
+                BackupStats.BYTES_COPIED.add(buffer.remaining());
+            } catch (IOException ioe) {
+                it.remove();
+                fail(copy, ioe);
+            }
+        }
+    }
+
+    /**
+     * Syncs each copy to disk, once it is complete.
+     */
+    public void sync() {
+        for (Iterator<Copy> it = copies.iterator(); it.hasNext();) {
+            Copy copy = it.next();
+            try {
+                copy.out.getFD().sync();
+            } catch (IOException ioe) {
+                it.remove();
+                fail(copy, ioe);
+            }
+        }
+    }
+
+    /**
+     * Renames each synced copy into place. This should follow the archive's
+     * own rename.
+     *
+     * @param checksum The CRC32 of the archive, and so of each copy.
+     */
+    public void publish(long checksum) {
+        for (Iterator<Copy> it = copies.iterator(); it.hasNext();) {
+            Copy copy = it.next();
+            it.remove();
+            try {
+                copy.out.close();
+                FileUtils.publishArchive(copy.partial, copy.archive);
+                ContentHash.record(copy.archive, checksum);
+            } catch (IOException ioe) {
+                fail(copy, ioe);
+            }
+        }
+    }
+
+    /**
+     * Removes the copies that were not published, such as when the archive
+     * failed.
+     */
+    @Override
+    public void close() {
+        for (Copy copy : copies) {
+            closeQuietly(copy.out);
+            copy.partial.delete();
+        }
+        copies.clear();
+    }
+
+    private static void fail(Copy copy, IOException ioe) {
+        LogUtils.exceptionLog(ioe, "Failed to write the copy " + copy.archive + ", the other backups are not affected.");
+        BackupStats.COPY_FAILURES.inc();
+        closeQuietly(copy.out);
+        copy.partial.delete();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            if (closeable != null) {
+                closeable.close();
+            }
+        } catch (IOException ioe) {
+            // ignore
+        }
+    }
+
+    /**
+     * One copy of the archive.
+     */
+    private static class Copy {
+
+        private final File archive;
+        private final File partial;
+        private FileOutputStream out;
+
+        Copy(File archive) {
+            this.archive = archive;
+            this.partial = new File(archive.getPath().concat(BackupArchive.PARTIAL_EXTENSION));
+        }
+    }
+}
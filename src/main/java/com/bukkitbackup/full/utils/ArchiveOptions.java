@@ -0,0 +1,77 @@
+package com.bukkitbackup.full.utils;
+
+import com.bukkitbackup.full.archive.EncryptionKey;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * How the archives of a backup are written: their format, the key they are
+ * encrypted with, and the other folders each one is copied to. The engine makes one from its settings when
+ * it is created, and passes it to FileUtils for each archive, so a reload
+ * while a backup is running does not change the archives it has still to
+ * write.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class ArchiveOptions {
+
+    // ZIPs with no copies, as the backups were before there were options.
+    public static final ArchiveOptions ZIP = new ArchiveOptions(false, EncryptionKey.NONE, null, Collections.<File>emptyList());
+
+    private final boolean indexed;
+    private final EncryptionKey encryptionKey;
+    private final File backupFolder;
+    private final List<File> copyFolders;
+
+    /**
+     * @param indexed True for indexed archives, rather than ZIPs.
+     * @param encryptionKey The key to encrypt with, or EncryptionKey.NONE.
+     * @param backupFolder The backup folder, or null if there are no copies.
+     * @param copyFolders The folders each archive is copied to, as it is
+     * written, in the same place as it has in the backup folder.
+     */
+    public ArchiveOptions(boolean indexed, EncryptionKey encryptionKey, File backupFolder, List<File> copyFolders) {
+        this.indexed = indexed;
+        this.encryptionKey = encryptionKey;
+        this.backupFolder = backupFolder;
+        this.copyFolders = Collections.unmodifiableList(new ArrayList<File>(copyFolders));
+    }
+
+    /**
+     * @return True if archives are indexed. Encrypted archives always are,
+     * so they can be read without decrypting all of them.
+     */
+    public boolean isIndexed() {
+        return indexed || encryptionKey.isEnabled();
+    }
+
+    /**
+     * @return The key to encrypt with, or EncryptionKey.NONE.
+     */
+    public EncryptionKey getEncryptionKey() {
+        return encryptionKey;
+    }
+
+    /**
+     * Finds where the copies of an archive go.
+     *
+     * @param archive The archive, in the backup folder.
+     * @return Where each copy goes, under its real name.
+     */
+    public List<File> getCopies(File archive) {
+        List<File> copies = new ArrayList<File>();
+        if (backupFolder != null) {
+            for (File folder : copyFolders) {
+                File copy = FileUtils.relocate(archive, backupFolder, folder);
+                if (copy != null) {
+                    copies.add(copy);
+                }
+            }
+        }
+        return copies;
+    }
+}
@@ -0,0 +1,221 @@
+package com.bukkitbackup.full.utils;
+
+import com.bukkitbackup.full.stats.BackupStats;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A bounded pool of direct buffers, shared by everything that copies, hashes
+ * or archives files. Buffers are allocated on first use and then reused, and
+ * no more than the memory limit is ever allocated: when every buffer is in
+ * use, callers wait for one to be released.
+ *
+ * Every buffer that is handed out is tracked until it is released, so
+ * checkLeaks() can report (and reclaim) buffers that were never given back.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class BufferPool {
+
+    public static final int BUFFER_SIZE = 256 * 1024;
+    public static final long DEFAULT_MEMORY_LIMIT = FileUtils.ONE_MB * 8;
+    private static final long ACQUIRE_TIMEOUT_SECONDS = 30;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final Map<ByteBuffer, Lease> leases = new IdentityHashMap<ByteBuffer, Lease>();
+    private static volatile Semaphore permits = new Semaphore(getBufferCount(DEFAULT_MEMORY_LIMIT));
+    private static volatile int bufferCount = getBufferCount(DEFAULT_MEMORY_LIMIT);
+    private static int allocatedBuffers = 0;
+    private static int pendingCount = 0;
+
+    private BufferPool() {
+    }
+
+    /**
+     * Sets the most memory the pool may use. This only takes effect while no
+     * buffers are in use, so if any are, such as during a backup, it is kept
+     * until the last one is released.
+     *
+     * @param memoryLimit The limit, in bytes.
+     */
+    public static void setMemoryLimit(long memoryLimit) {
+        final int newCount = getBufferCount(memoryLimit);
+        synchronized (leases) {
+            if (newCount == bufferCount) {
+                pendingCount = 0;
+            } else if (leases.isEmpty()) {
+                applyLimit(newCount);
+            } else {
+                pendingCount = newCount;
+                LogUtils.sendDebug(() -> String.format("Buffer pool limit of %d buffers will be set once none are in use. (M:0021)", newCount));
+            }
+        }
+    }
+
+    /**
+     * Changes the number of buffers. The caller holds the lock on leases, and
+     * none may be in use.
+     *
+     * @param newCount The number of buffers.
+     */
+    private static void applyLimit(final int newCount) {
+        pendingCount = 0;
+        bufferCount = newCount;
+        permits = new Semaphore(newCount);
+
+        // Drop buffers beyond the new limit.
+        while (allocatedBuffers > newCount && freeBuffers.poll() != null) {
+            allocatedBuffers--;
+        }
+        BackupStats.BUFFER_POOL_BYTES.set((long) allocatedBuffers * BUFFER_SIZE);
+        LogUtils.sendDebug(() -> String.format("Buffer pool limit: %d buffers of %d bytes. (M:0021)", newCount, BUFFER_SIZE));
+    }
+
+    private static int getBufferCount(long memoryLimit) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryLimit / BUFFER_SIZE));
+    }
+
+    /**
+     * Takes a cleared buffer from the pool, waiting if they are all in use.
+     * It must be given back with release(), in a finally block.
+     *
+     * @return The buffer.
+     * @throws IOException If no buffer was released in time, which means
+     * buffers have leaked or the limit is too low.
+     */
+    public static ByteBuffer acquire() throws IOException {
+        Semaphore currentPermits = permits;
+        try {
+            if (!currentPermits.tryAcquire(ACQUIRE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new IOException("No I/O buffer was free after " + ACQUIRE_TIMEOUT_SECONDS + "s, " + getLeaseCount() + " are in use.");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for an I/O buffer.");
+        }
+        ByteBuffer buffer = freeBuffers.poll();
+        synchronized (leases) {
+            if (buffer == null) {
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                allocatedBuffers++;
+                BackupStats.BUFFER_POOL_BYTES.set((long) allocatedBuffers * BUFFER_SIZE);
+            }
+            leases.put(buffer, new Lease(currentPermits));
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Splits a buffer from acquire() into two halves, for a caller that needs
+     * two at once. Taking a second buffer from the pool instead would wait
+     * forever on a pool of one, and two threads doing so could each hold the
+     * buffer the other is waiting for. The buffer itself is what is released.
+     *
+     * @param buffer The buffer from acquire().
+     * @return Its two halves.
+     */
+    public static ByteBuffer[] split(ByteBuffer buffer) {
+        int half = buffer.capacity() / 2;
+        ByteBuffer first = buffer.duplicate();
+        first.clear();
+        first.limit(half);
+        ByteBuffer second = buffer.duplicate();
+        second.clear();
+        second.position(half);
+        return new ByteBuffer[]{first.slice(), second.slice()};
+    }
+
+    /**
+     * Gives a buffer back to the pool.
+     *
+     * @param buffer The buffer from acquire(), or null.
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        Lease lease;
+        synchronized (leases) {
+            lease = leases.remove(buffer);
+            if (lease != null) {
+                freeBuffers.offer(buffer);
+                if (leases.isEmpty() && pendingCount != 0) {
+                    applyLimit(pendingCount);
+                }
+            }
+        }
+        if (lease == null) {
+            LogUtils.sendDebug("A buffer was released twice, or was not from the pool. (M:0022)");
+            return;
+        }
+        lease.permits.release();
+    }
+
+    /**
+     * Reports buffers that are still in use, and takes them back. This should
+     * only be called when nothing is using the pool, such as after a backup.
+     *
+     * @return The number of leaked buffers.
+     */
+    public static int checkLeaks() {
+        List<Lease> leaked = new ArrayList<Lease>();
+        synchronized (leases) {
+            for (Map.Entry<ByteBuffer, Lease> entry : leases.entrySet()) {
+                leaked.add(entry.getValue());
+                freeBuffers.offer(entry.getKey());
+            }
+            leases.clear();
+            if (pendingCount != 0) {
+                applyLimit(pendingCount);
+            }
+        }
+        for (Lease lease : leaked) {
+            lease.permits.release();
+            BackupStats.BUFFER_LEAKS.inc();
+            if (lease.trace != null) {
+                LogUtils.exceptionLog(lease.trace, "An I/O buffer was not released by " + lease.threadName + ".");
+            } else {
+                LogUtils.sendLog("An I/O buffer was not released by " + lease.threadName + ". Enable debugmode to see where it was taken.");
+            }
+        }
+        return leaked.size();
+    }
+
+    /**
+     * Gets the number of buffers in use.
+     *
+     * @return The number of buffers.
+     */
+    public static int getLeaseCount() {
+        synchronized (leases) {
+            return leases.size();
+        }
+    }
+
+    /**
+     * Who took a buffer. Where it was taken is only recorded in debug mode, as
+     * it costs a stack trace.
+     */
+    private static final class Lease {
+
+        final Semaphore permits;
+        final String threadName;
+        final Throwable trace;
+
+        Lease(Semaphore permits) {
+            this.permits = permits;
+            this.threadName = Thread.currentThread().getName();
+            this.trace = LogUtils.debugMode ? new Throwable("Buffer taken here") : null;
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package com.bukkitbackup.full.utils;
+
+import com.bukkitbackup.full.stats.BackupStats;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * The CRC32 of whole files, such as the checksums the catalog keeps of each
+ * archive. The archive writers work out the checksum of what they write as
+ * they write it, and record it here, so a new archive is never read again
+ * just to find it. Other files are read through memory-mapped windows, with
+ * no copying, and CRC32 uses the processor's CRC instructions where there are
+ * any.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class ContentHash {
+
+    private static final long MAP_WINDOW = 64 * FileUtils.ONE_MB;
+    private static final int MAX_RECORDED = 256;
+    private static final boolean CAN_MAP = !System.getProperty("os.name").toLowerCase().contains("win");
+    private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+
+    // Checksums that were worked out as files were written, by path.
+    private static final Map<String, Recorded> recorded = new LinkedHashMap<String, Recorded>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Recorded> eldest) {
+            return size() > MAX_RECORDED;
+        }
+    };
+
+    private ContentHash() {
+    }
+
+    /**
+     * Records the checksum of a file that has just been written, so it does
+     * not have to be read to find it.
+     *
+     * @param file The file, which must be complete.
+     * @param crc Its CRC32.
+     */
+    public static void record(File file, long crc) {
+        Recorded entry = new Recorded(file.length(), file.lastModified(), crc);
+        synchronized (recorded) {
+            recorded.put(file.getAbsolutePath(), entry);
+        }
+    }
+
+    /**
+     * Gets the CRC32 of a file, as recorded when it was written, or by
+     * reading it.
+     *
+     * @param file The file.
+     * @return Its CRC32.
+     * @throws IOException If it could not be read.
+     */
+    public static long crc32(File file) throws IOException {
+        Recorded entry;
+        synchronized (recorded) {
+            entry = recorded.remove(file.getAbsolutePath());
+        }
+
+        // It may have been changed since.
+        if (entry != null && entry.matches(file)) {
+            return entry.crc;
+        }
+        return read(file);
+    }
+
+    /**
+     * Works out the CRC32 of several files at once, each on its own thread,
+     * and records them for crc32. Files that are already recorded, and
+     * folders, are skipped.
+     *
+     * @param files The files.
+     */
+    public static void hashAll(Collection<File> files) {
+        List<File> unrecorded = new ArrayList<File>();
+        synchronized (recorded) {
+            for (File file : files) {
+                Recorded entry = recorded.get(file.getAbsolutePath());
+                if (file.isFile() && (entry == null || !entry.matches(file))) {
+                    unrecorded.add(file);
+                }
+            }
+        }
+
+        // One file is as quick read by whoever needs it.
+        if (unrecorded.size() < 2) {
+            return;
+        }
+        ExecutorService hashers = Executors.newFixedThreadPool(Math.min(THREADS, unrecorded.size()), new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Backup Hasher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        try {
+            List<Future<?>> hashed = new ArrayList<Future<?>>(unrecorded.size());
+            for (final File file : unrecorded) {
+                hashed.add(hashers.submit(new Runnable() {
+                    public void run() {
+                        try {
+                            record(file, read(file));
+                        } catch (IOException ioe) {
+                            LogUtils.sendDebug(() -> String.format("Could not hash %s ahead of the catalog. (M:0033)", file));
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : hashed) {
+                future.get();
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException ee) {
+
+            // Whatever was not recorded is read again by crc32.
+            LogUtils.exceptionLog(ee.getCause(), "Failed to hash the backups.");
+        } finally {
+            hashers.shutdownNow();
+        }
+    }
+
+    /**
+     * Reads a file to find its CRC32.
+     */
+    private static long read(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (CAN_MAP) {
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    crc.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
+                }
+            } else {
+
+                // A mapped file cannot be deleted on Windows until the mapping
+                // is collected, which would keep retention from deleting it.
+                ByteBuffer buffer = BufferPool.acquire();
+                try {
+                    while (channel.read(buffer) != -1) {
+                        buffer.flip();
+                        crc.update(buffer);
+                        buffer.clear();
+                    }
+                } finally {
+                    BufferPool.release(buffer);
+                }
+            }
+            BackupStats.BYTES_HASHED.add(size);
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * A checksum recorded when a file was written.
+     */
+    private static class Recorded {
+
+        private final long length;
+        private final long modified;
+        private final long crc;
+
+        Recorded(long length, long modified, long crc) {
+            this.length = length;
+            this.modified = modified;
+            this.crc = crc;
+        }
+
+        boolean matches(File file) {
+            return length == file.length() && modified == file.lastModified();
+        }
+    }
+}
@@ -18,13 +18,22 @@
  */
 package com.bukkitbackup.full.utils;
 
-import com.bukkitbackup.full.threading.BackupTask;
+import com.bukkitbackup.full.archive.BackupArchive;
+import com.bukkitbackup.full.archive.IndexedArchiveWriter;
+import com.bukkitbackup.full.stats.BackupStats;
+import com.bukkitbackup.full.stats.jfr.BackupEvents;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -64,10 +73,6 @@ public class FileUtils {
      * The number of bytes in a megabyte.
      */
     public static final long ONE_MB = ONE_KB * ONE_KB;
-    /**
-     * The number of bytes in a 50 MB.
-     */
-    private static final long FIFTY_MB = ONE_MB * 50;
     /**
      * The number of bytes in a gigabyte.
      */
@@ -214,7 +219,48 @@ public class FileUtils {
                 }
             }
         }
+        long startNanos = System.nanoTime();
+        long bytesAtStart = BackupStats.BYTES_READ.get();
+        long filesAtStart = BackupStats.FILES_COPIED.get();
+        Object phaseEvent = BackupEvents.beginPhase("copy", srcDir.getPath());
         doCopyDirectory(srcDir, destDir, filter, preserveFileDate, exclusionList);
+        BackupEvents.endPhase(phaseEvent, BackupStats.BYTES_READ.get() - bytesAtStart, BackupStats.FILES_COPIED.get() - filesAtStart);
+        BackupStats.COPY.observeSince(startNanos);
+    }
+
+    /**
+     * Copies a file to a new location. <p> This method copies the contents of
+     * the specified source file to the specified destination file. The
+     * directory holding the destination file must already exist. If the
+     * destination file exists, then this method will overwrite it.
+     *
+     * @param srcFile an existing file to copy, must not be
+     * <code>null</code>
+     * @param destFile the new file, must not be
+     * <code>null</code>
+     * @param preserveFileDate true if the file date of the copy should be the
+     * same as the original
+     *
+     * @throws NullPointerException if source or destination is
+     * <code>null</code>
+     * @throws IOException if source or destination is invalid
+     * @throws IOException if an IO error occurs during copying
+     * @since Commons IO 1.0
+     */
+    public static void copyFile(File srcFile, File destFile, boolean preserveFileDate) throws IOException {
+        if (srcFile == null) {
+            throw new NullPointerException("Source must not be null");
+        }
+        if (destFile == null) {
+            throw new NullPointerException("Destination must not be null");
+        }
+        if (srcFile.isDirectory()) {
+            throw new IOException("Source '" + srcFile + "' exists but is a directory");
+        }
+        if (srcFile.getCanonicalPath().equals(destFile.getCanonicalPath())) {
+            throw new IOException("Source '" + srcFile + "' and destination '" + destFile + "' are the same");
+        }
+        doCopyFile(srcFile, destFile, preserveFileDate);
     }
 
     /**
@@ -287,19 +333,26 @@ public class FileUtils {
         FileOutputStream fos = null;
         FileChannel input = null;
         FileChannel output = null;
+        ByteBuffer buffer = null;
+        Object copyEvent = BackupEvents.beginFileCopy();
         try {
             fis = new FileInputStream(srcFile);
             fos = new FileOutputStream(destFile);
             input = fis.getChannel();
             output = fos.getChannel();
-            long size = input.size();
-            long pos = 0;
-            long count = 0;
-            while (pos < size) {
-                count = (size - pos) > FIFTY_MB ? FIFTY_MB : (size - pos);
-                pos += output.transferFrom(input, pos, count);
+
+            // Copy through a pooled direct buffer, rather than transferFrom,
+            // which may copy through the heap.
+            buffer = BufferPool.acquire();
+            while (input.read(buffer) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    output.write(buffer);
+                }
+                buffer.clear();
             }
         } finally {
+            BufferPool.release(buffer);
             closeQuietly(output);
             closeQuietly(fos);
             closeQuietly(input);
@@ -310,6 +363,10 @@ public class FileUtils {
             throw new IOException("Failed to copy full contents from '"
                     + srcFile + "' to '" + destFile + "'");
         }
+        BackupEvents.endFileCopy(copyEvent, srcFile.getPath(), destFile.getPath(), destFile.length());
+        BackupStats.FILES_COPIED.inc();
+        BackupStats.BYTES_READ.add(destFile.length());
+        BackupStats.BYTES_WRITTEN.add(destFile.length());
         if (preserveFileDate) {
             destFile.setLastModified(srcFile.lastModified());
         }
@@ -479,61 +536,315 @@ public class FileUtils {
     public final static String LINE_SEPARATOR = System.getProperty("line.separator");
     public final static String FILE_SEPARATOR = System.getProperty("file.separator");
 
+    // Folders that archives were renamed into, and how many to sync at once.
+    private static final Set<File> unsyncedFolders = new LinkedHashSet<File>();
+    private static final int FOLDER_SYNC_BATCH = 16;
+
+    /**
+     * Finds where a file in one folder goes in another.
+     *
+     * @param file The file.
+     * @param fromFolder The folder it is in, directly or not.
+     * @param toFolder The other folder.
+     * @return Its place in the other folder, or null if it is not in the
+     * first.
+     */
+    public static File relocate(File file, File fromFolder, File toFolder) {
+        String fromPath = fromFolder.getAbsolutePath();
+        if (!fromPath.endsWith(File.separator)) {
+            fromPath = fromPath.concat(File.separator);
+        }
+        String filePath = file.getAbsolutePath();
+        if (!filePath.startsWith(fromPath)) {
+            return null;
+        }
+        return new File(toFolder, filePath.substring(fromPath.length()));
+    }
+
+    /**
+     * Archive a directory, in the format of the backup's options.
+     *
+     * @param directory The directory to archive.
+     * @param archiveName The archive, without an extension.
+     * @param options How the backup's archives are written.
+     * @throws IOException
+     */
+    public static void archiveDir(String directory, String archiveName, ArchiveOptions options) throws IOException {
+        if (options.isIndexed()) {
+            indexDir(directory, archiveName, options);
+        } else {
+            zipDir(directory, archiveName, options);
+        }
+    }
+
+    /**
+     * Put a directory in an indexed archive.
+     *
+     * @param directory
+     * @param archiveName
+     * @param options How the backup's archives are written.
+     * @throws IOException
+     */
+    public static void indexDir(String directory, String archiveName, ArchiveOptions options) throws IOException {
+        // Make sure name is correct.
+        if (!archiveName.endsWith(BackupArchive.INDEXED_EXTENSION)) {
+            archiveName += BackupArchive.INDEXED_EXTENSION;
+        }
+        long startNanos = System.nanoTime();
+        long filesAtStart = BackupStats.FILES_COMPRESSED.get();
+        Object phaseEvent = BackupEvents.beginPhase("compress", archiveName);
+        File archive = new File(archiveName);
+        if (archive.getParentFile() != null) {
+            archive.getParentFile().mkdirs();
+        }
+        File partial = new File(archiveName.concat(BackupArchive.PARTIAL_EXTENSION));
+        ArchiveCopies copies = new ArchiveCopies(options.getCopies(archive));
+        long bytesRead;
+        long checksum;
+        boolean written = false;
+        try {
+            IndexedArchiveWriter writer = new IndexedArchiveWriter(partial, copies, options.getEncryptionKey());
+            try {
+                bytesRead = indexDir(new File(directory), writer, "");
+                // closing writes the index, and syncs the archive and its copies
+                writer.close();
+                checksum = writer.getFileChecksum();
+                written = true;
+            } finally {
+                closeQuietly(writer);
+                if (!written) {
+                    partial.delete();
+                }
+            }
+            publishArchive(partial, archive);
+            ContentHash.record(archive, checksum);
+            copies.publish(checksum);
+        } finally {
+            copies.close();
+        }
+        BackupEvents.endPhase(phaseEvent, bytesRead, BackupStats.FILES_COMPRESSED.get() - filesAtStart);
+        BackupStats.COMPRESS.observeSince(startNanos);
+        BackupStats.recordArchive(bytesRead, archive.length());
+    }
+
+    /**
+     * Put a directory path in an indexed archive, in the same order as
+     * zipDir().
+     *
+     * @param directory
+     * @param writer
+     * @param path
+     * @return The number of bytes read into the archive.
+     * @throws IOException
+     */
+    private static long indexDir(File directory, IndexedArchiveWriter writer, String path) throws IOException {
+        String[] dirList = directory.list();
+        long totalBytes = 0;
+        long batchFiles = 0;
+        List<File> subDirs = new ArrayList<File>();
+        Object batchEvent = BackupEvents.beginCompressionBatch();
+        for (int i = 0; i < dirList.length; ++i) {
+            File f = new File(directory, dirList[i]);
+            if (f.isDirectory()) {
+                subDirs.add(f);
+                continue;
+            }
+            batchFiles++;
+            totalBytes += writer.addFile(path.concat(f.getName()), f);
+            BackupStats.FILES_COMPRESSED.inc();
+        }
+        BackupEvents.endCompressionBatch(batchEvent, directory.getPath(), batchFiles, totalBytes);
+        for (File subDir : subDirs) {
+            totalBytes += indexDir(subDir, writer, path.concat(subDir.getName()).concat("/"));
+        }
+        return totalBytes;
+    }
+
     /**
      * Zip up a directory
      *
      * @param directory
      * @param zipName
+     * @param options How the backup's archives are written.
      * @throws IOException
      */
-    public static void zipDir(String directory, String zipName) throws IOException {
+    public static void zipDir(String directory, String zipName, ArchiveOptions options) throws IOException {
         // Make sure name is correct.
         if (!zipName.endsWith(".zip")) {
             zipName += ".zip";
         }
-        // create a ZipOutputStream to zip the data to
-        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(zipName));
-        zipDir(directory, zos, "");
-        // close the stream
-        closeQuietly(zos);
+        long startNanos = System.nanoTime();
+        long filesAtStart = BackupStats.FILES_COMPRESSED.get();
+        Object phaseEvent = BackupEvents.beginPhase("compress", zipName);
+        // the archive may go in shard folders that do not exist yet
+        File zipParent = new File(zipName).getParentFile();
+        if (zipParent != null) {
+            zipParent.mkdirs();
+        }
+        // create a ZipOutputStream to zip the data to, under a temporary name
+        File partial = new File(zipName.concat(BackupArchive.PARTIAL_EXTENSION));
+        FileOutputStream fos = new FileOutputStream(partial);
+        // the same bytes go to each copy of the archive
+        ArchiveCopies copies = new ArchiveCopies(options.getCopies(new File(zipName)));
+        // and the archive's checksum is worked out as it is written
+        CheckedOutputStream checked = new CheckedOutputStream(copies.tee(fos), new CRC32());
+        ZipOutputStream zos = new ZipOutputStream(checked);
+        ByteBuffer readBuffer = null;
+        long bytesRead;
+        boolean written = false;
+        try {
+            try {
+                // files are read into a pooled buffer, and passed to the stream in chunks
+                readBuffer = BufferPool.acquire();
+                bytesRead = zipDir(directory, zos, "", readBuffer, new byte[BUFFER_SIZE]);
+                // sync the whole archive once, when it is complete
+                zos.finish();
+                fos.getFD().sync();
+                copies.sync();
+                written = true;
+            } finally {
+                BufferPool.release(readBuffer);
+                // close the stream
+                closeQuietly(zos);
+                if (!written) {
+                    partial.delete();
+                }
+            }
+            publishArchive(partial, new File(zipName));
+            ContentHash.record(new File(zipName), checked.getChecksum().getValue());
+            copies.publish(checked.getChecksum().getValue());
+        } finally {
+            copies.close();
+        }
+        BackupEvents.endPhase(phaseEvent, bytesRead, BackupStats.FILES_COMPRESSED.get() - filesAtStart);
+        BackupStats.COMPRESS.observeSince(startNanos);
+        BackupStats.recordArchive(bytesRead, new File(zipName).length());
     }
 
     /**
-     * Zip up a directory path
+     * Renames a complete, synced archive into place. The rename is atomic, so
+     * an archive under its real name is always complete. The folder it is in
+     * is synced later, with others, by syncFolders().
+     *
+     * @param partial The archive, under its temporary name.
+     * @param archive Its real name.
+     * @throws IOException If it could not be renamed.
+     */
+    static void publishArchive(File partial, File archive) throws IOException {
+        try {
+            Files.move(partial.toPath(), archive.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ioe) {
+            partial.delete();
+            throw ioe;
+        }
+        boolean batchFull;
+        synchronized (unsyncedFolders) {
+            unsyncedFolders.add(archive.getAbsoluteFile().getParentFile());
+            batchFull = unsyncedFolders.size() >= FOLDER_SYNC_BATCH;
+        }
+        if (batchFull) {
+            syncFolders();
+        }
+    }
+
+    /**
+     * Syncs the folders that archives have been renamed into, so the renames
+     * survive a crash. This should be done before the archives are added to
+     * the catalog.
+     */
+    public static void syncFolders() {
+        List<File> folders;
+        synchronized (unsyncedFolders) {
+            folders = new ArrayList<File>(unsyncedFolders);
+            unsyncedFolders.clear();
+        }
+        for (File folder : folders) {
+            try {
+                FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+                try {
+                    channel.force(true);
+                } finally {
+                    channel.close();
+                }
+            } catch (IOException ioe) {
+                // Some systems, such as Windows, cannot sync a folder.
+                LogUtils.sendDebug(() -> String.format("Could not sync folder %s: %s (M:0028)", folder, ioe));
+            }
+        }
+    }
+
+    /**
+     * Zip up a directory path. The files in this directory are added first,
+     * as one batch, and then each sub-directory.
      *
      * @param directory
      * @param zos
      * @param path
+     * @param readBuffer The buffer to read files with.
+     * @param chunk The array to pass data to the stream with.
+     * @return The number of bytes read into the archive.
      * @throws IOException
      */
-    private static void zipDir(String directory, ZipOutputStream zos, String path) throws IOException {
+    private static long zipDir(String directory, ZipOutputStream zos, String path, ByteBuffer readBuffer, byte[] chunk) throws IOException {
         File zipDir = new File(directory);
         // get a listing of the directory content
         String[] dirList = zipDir.list();
-        byte[] readBuffer = new byte[2156];
-        int bytesIn = 0;
+        long totalBytes = 0;
+        long batchFiles = 0;
+        List<File> subDirs = new ArrayList<File>();
+        Object batchEvent = BackupEvents.beginCompressionBatch();
         // loop through dirList, and zip the files
         for (int i = 0; i < dirList.length; ++i) {
             File f = new File(zipDir, dirList[i]);
             if (f.isDirectory()) {
-                zipDir(f.getPath(), zos, path.concat(f.getName()).concat(FILE_SEPARATOR));
+                subDirs.add(f);
                 continue;
             }
+            batchFiles++;
             FileInputStream fis = new FileInputStream(f);
             try {
                 zos.putNextEntry(new ZipEntry(path.concat(f.getName())));
-                bytesIn = fis.read(readBuffer);
-                while (bytesIn != -1) {
-                    zos.write(readBuffer, 0, bytesIn);
-                    bytesIn = fis.read(readBuffer);
-                }
+                totalBytes += writeTo(fis.getChannel(), zos, readBuffer, chunk);
             } finally {
                 closeQuietly(fis);
             }
+            BackupStats.FILES_COMPRESSED.inc();
         }
+        BackupEvents.endCompressionBatch(batchEvent, directory, batchFiles, totalBytes);
+        // then zip each sub-directory
+        for (File subDir : subDirs) {
+            totalBytes += zipDir(subDir.getPath(), zos, path.concat(subDir.getName()).concat(FILE_SEPARATOR), readBuffer, chunk);
+        }
+        return totalBytes;
 
     }
 
+    /**
+     * Writes the rest of a channel to a stream.
+     *
+     * @param input The channel to read.
+     * @param out The stream to write to.
+     * @param readBuffer The buffer to read with.
+     * @param chunk The array to pass data to the stream with.
+     * @return The number of bytes written.
+     * @throws IOException
+     */
+    private static long writeTo(FileChannel input, OutputStream out, ByteBuffer readBuffer, byte[] chunk) throws IOException {
+        long totalBytes = 0;
+        readBuffer.clear();
+        while (input.read(readBuffer) != -1) {
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                int length = Math.min(readBuffer.remaining(), chunk.length);
+                readBuffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+                totalBytes += length;
+            }
+            readBuffer.clear();
+        }
+        return totalBytes;
+    }
+
     public static boolean deleteDir(File dir) {
         if (dir.isDirectory()) {
             String[] children = dir.list();
@@ -582,21 +893,28 @@ public class FileUtils {
      *
      * @param sourceDIR The source directory. (ex: "backups/temp/xxxxxxxx")
      * @param finalDIR The final destination. (ex: "backups/xxxxxxxx")
+     * @param options How the backup's archives are written.
+     * @return True if the backup is in place.
      */
-    public static void doCopyAndZIP(String sourceDIR, String finalDIR, boolean shouldZIP, boolean useTempFolder) {
+    public static boolean doCopyAndZIP(String sourceDIR, String finalDIR, boolean shouldZIP, boolean useTempFolder, ArchiveOptions options) {
 
+        boolean done = true;
         if (useTempFolder) {
             if (shouldZIP) {
                 try {
-                    FileUtils.zipDir(sourceDIR, finalDIR);
+                    FileUtils.archiveDir(sourceDIR, finalDIR, options);
                 } catch (IOException ioe) {
                     LogUtils.exceptionLog(ioe, "Failed to ZIP backup: IO Exception.");
+                    BackupStats.BACKUP_FAILURES.inc();
+                    done = false;
                 }
             } else {
                 try {
                     FileUtils.copyDirectory(sourceDIR, finalDIR);
                 } catch (IOException ex) {
-                    Logger.getLogger(BackupTask.class.getName()).log(Level.SEVERE, null, ex);
+                    LogUtils.exceptionLog(ex, "Failed to copy backup: IO Exception.");
+                    BackupStats.BACKUP_FAILURES.inc();
+                    done = false;
                 }
 
             }
@@ -610,9 +928,11 @@ public class FileUtils {
         } else {
             if (shouldZIP) {
                 try {
-                    FileUtils.zipDir(sourceDIR, finalDIR);
+                    FileUtils.archiveDir(sourceDIR, finalDIR, options);
                 } catch (IOException ioe) {
                     LogUtils.exceptionLog(ioe, "Failed to ZIP backup: IO Exception.");
+                    BackupStats.BACKUP_FAILURES.inc();
+                    return false;
                 }
                 try {
                     // Delete the original doBackup directory.
@@ -624,9 +944,7 @@ public class FileUtils {
             }
 
         }
-
-
-
+        return done;
     }
 
     public static File[] listFilesInDir(File directory) {
@@ -1,33 +1,72 @@
 package com.bukkitbackup.full.utils;
 
-import java.util.Arrays;
-import java.util.List;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import org.bukkit.plugin.Plugin;
 
 /**
  * Backup - The simple server backup solution.
  *
+ * Messages are handed to a background writer through a lock-free queue, so
+ * the calling thread never waits on console or file output. The queue is
+ * bounded: if the console stalls, new messages are dropped and counted rather
+ * than held in memory. Debug messages are also kept in a small ring buffer,
+ * which is written to debug.log when an exception is logged.
+ *
  * @author Domenic Horner (gamerx)
  */
 public class LogUtils {
 
-    private static Plugin plugin;
-    private static Logger logger;
-    private static boolean logToConsole = true;
-    private static String lastMesage;
-    public static boolean debugMode = false;
+    private static Logger logger = Logger.getLogger("Minecraft");
+    private static String logPrefix = "[Backup] ";
+    private static volatile boolean logToConsole = true;
+    public static volatile boolean debugMode = false;
+
+    // Queue and thread for the background writer.
+    private static final ConcurrentLinkedQueue<LogEntry> logQueue = new ConcurrentLinkedQueue<LogEntry>();
+    private static final AtomicBoolean writerRunning = new AtomicBoolean(false);
+    private static volatile Thread writerThread;
+    private static final long WRITER_PARK_NANOS = 100000000L;
+    private static final int MAX_QUEUED = 10000;
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final AtomicLong dropped = new AtomicLong();
+
+    // Ring buffer of the most recent debug messages.
+    private static final int DEBUG_BUFFER_SIZE = 256;
+    private static final AtomicReferenceArray<LogEntry> debugBuffer = new AtomicReferenceArray<LogEntry>(DEBUG_BUFFER_SIZE);
+    private static final AtomicLong debugBufferIndex = new AtomicLong();
+
+    // The debug.log file, and when to rotate it.
+    private static File debugLogFile;
+    private static final long DEBUG_LOG_MAX_SIZE = FileUtils.ONE_MB * 5;
+    private static final int DEBUG_LOG_HISTORY = 3;
 
     /**
      * Setup the logger class with required settings.
      *
-     * @param plugin he plugin's object.
+     * @param logger The logger to write to.
+     * @param name The name to prefix messages with.
+     * @param dataFolder Where to write debug.log.
      */
-    public static void initLogUtils(Plugin plugin) {
-        LogUtils.plugin = plugin;
-        LogUtils.logger = Logger.getLogger(plugin.getServer().getLogger().getName() + "." + plugin.getServer().getName());
-        lastMesage = "";
+    public static void initLogUtils(Logger logger, String name, File dataFolder) {
+        LogUtils.logger = logger;
+        LogUtils.logPrefix = "[".concat(name).concat("] ");
+        LogUtils.debugLogFile = new File(dataFolder, "debug.log");
+        startWriter();
     }
 
     /**
@@ -44,39 +83,28 @@ public class LogUtils {
         LogUtils.debugMode = debugMode;
     }
 
+    /**
+     * Stops the background writer, once every queued message is written.
+     */
+    public static void shutdown() {
+        if (writerRunning.compareAndSet(true, false)) {
+            Thread thread = writerThread;
+            LockSupport.unpark(thread);
+            try {
+                thread.join(5000);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /**
      * This will send a message to the console using the logger.
      *
      * @param message The message to be send.
      */
     public static void sendLog(String message) {
-
-        // Check if this is a split-message.
-        if (message.contains(";;")) {
-
-            // Split the message list.
-            List<String> messageList = Arrays.asList(message.split(";;"));
-
-            // Loop each message in the array.
-            for (int i = 0; i < messageList.size(); i++) {
-
-                String thisMessage = messageList.get(i);
-
-                // Check it should be sent to the console.
-                if (logToConsole && !lastMesage.equals(message)) {
-                    logger.log(Level.INFO, "[".concat(plugin.getDescription().getName()).concat("] ").concat(thisMessage));
-                }
-            }
-        } else {
-
-            // Check it should be sent to the console.
-            if (logToConsole && !lastMesage.equals(message)) {
-                logger.log(Level.INFO, "[".concat(plugin.getDescription().getName()).concat("] ").concat(message));
-            }
-        }
-
-        // Set the last message so they don't duplicate.
-        lastMesage = message;
+        enqueue(new LogEntry(LogEntry.INFO, message, null, null));
     }
 
     /**
@@ -96,18 +124,282 @@ public class LogUtils {
      * @param message Debug message.
      */
     public static void sendDebug(String message) {
-        if (debugMode) {
-            sendLog(message);
-        }
+        recordDebug(new LogEntry(LogEntry.DEBUG, message, null, null));
     }
 
     /**
-     * This posts a tidy stack trace to the console.
+     * Sends a debug message that is built on the background writer, not by
+     * the caller. It is built soon after, whether debugging is enabled or
+     * not, so what it refers to is not kept for long.
+     *
+     * @param message Builds the message.
+     */
+    public static void sendDebug(Supplier<String> message) {
+        recordDebug(new LogEntry(LogEntry.DEBUG, null, message, null));
+    }
+
+    /**
+     * This posts a tidy stack trace to the console. The recent debug messages
+     * are written to debug.log along with it.
      *
      * @param ste The Stack Trace object.
      */
     public static void exceptionLog(Throwable ste) {
-        sendLog("Please provide following error with support request:");
-        ste.printStackTrace(System.out);
+        enqueue(new LogEntry(LogEntry.EXCEPTION, "Please provide following error with support request:", null, ste));
+    }
+
+    /**
+     * Adds a debug message to the ring buffer, and queues it for output if
+     * debugging is enabled.
+     *
+     * @param entry The debug entry.
+     */
+    private static void recordDebug(LogEntry entry) {
+        int slot = (int) (debugBufferIndex.getAndIncrement() % DEBUG_BUFFER_SIZE);
+        debugBuffer.set(slot, entry);
+        if (debugMode) {
+            enqueue(entry);
+        }
+    }
+
+    /**
+     * Hands an entry to the background writer, or drops it if the writer is
+     * too far behind.
+     *
+     * @param entry The entry to write.
+     */
+    private static void enqueue(LogEntry entry) {
+        if (queued.incrementAndGet() > MAX_QUEUED) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        logQueue.offer(entry);
+        Thread thread = writerThread;
+        if (thread == null || !writerRunning.get()) {
+            startWriter();
+        } else {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Gets the number of messages waiting for the background writer.
+     *
+     * @return The queue depth.
+     */
+    public static int getQueueSize() {
+        return queued.get();
+    }
+
+    /**
+     * Gets the number of messages dropped because the queue was full.
+     *
+     * @return The number dropped since the server started.
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Starts the background writer thread, if it is not already running.
+     */
+    private static void startWriter() {
+        if (writerRunning.compareAndSet(false, true)) {
+            Thread thread = new Thread(new LogWriter(), "Backup-LogWriter");
+            thread.setDaemon(true);
+            writerThread = thread;
+            thread.start();
+        }
+    }
+
+    /**
+     * A single queued log message. Building it is deferred to the writer
+     * thread, which is the only thread that calls getMessage().
+     */
+    private static final class LogEntry {
+
+        static final int INFO = 0;
+        static final int DEBUG = 1;
+        static final int EXCEPTION = 2;
+        final int type;
+        final long time;
+        final String threadName;
+        final Throwable throwable;
+        private String message;
+        private Supplier<String> supplier;
+
+        LogEntry(int type, String message, Supplier<String> supplier, Throwable throwable) {
+            this.type = type;
+            this.time = System.currentTimeMillis();
+            this.threadName = Thread.currentThread().getName();
+            this.message = message;
+            this.supplier = supplier;
+            this.throwable = throwable;
+        }
+
+        String getMessage() {
+            if (supplier != null) {
+                try {
+                    message = supplier.get();
+                } catch (Exception e) {
+                    message = "(bad debug message: " + e + ")";
+                }
+                supplier = null;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * The background writer. All console and debug.log output happens on this
+     * thread, so the state in here is not shared.
+     */
+    private static final class LogWriter implements Runnable {
+
+        private final SimpleDateFormat timeFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        private String lastMessage = "";
+        private BufferedWriter debugWriter;
+        private long debugLogSize;
+        private long droppedReported = 0;
+
+        public void run() {
+            while (writerRunning.get() || !logQueue.isEmpty()) {
+                LogEntry entry = logQueue.poll();
+                if (entry == null) {
+                    reportDropped();
+                    buildDebugBuffer();
+                    flushDebugLog();
+                    LockSupport.parkNanos(WRITER_PARK_NANOS);
+                    continue;
+                }
+                queued.decrementAndGet();
+                try {
+                    writeEntry(entry);
+                } catch (Exception e) {
+                    e.printStackTrace(System.out);
+                }
+            }
+            closeDebugLog();
+        }
+
+        private void writeEntry(LogEntry entry) {
+            String message = entry.getMessage();
+
+            // Send to the console, line by line.
+            if (logToConsole && !lastMessage.equals(message)) {
+                int start = 0;
+                int split;
+                while ((split = message.indexOf(";;", start)) != -1) {
+                    logger.log(Level.INFO, logPrefix.concat(message.substring(start, split)));
+                    start = split + 2;
+                }
+                logger.log(Level.INFO, logPrefix.concat(start == 0 ? message : message.substring(start)));
+            }
+
+            // Set the last message so they don't duplicate.
+            lastMessage = message;
+
+            if (entry.type == LogEntry.EXCEPTION) {
+
+                // Print the trace, and keep it along with the recent debug messages.
+                entry.throwable.printStackTrace(System.out);
+                StringWriter trace = new StringWriter();
+                entry.throwable.printStackTrace(new PrintWriter(trace));
+                writeDebugLog(entry, trace.toString());
+                dumpDebugBuffer();
+            } else if (debugMode) {
+                writeDebugLog(entry, message);
+            }
+        }
+
+        private void reportDropped() {
+            long droppedNow = dropped.get();
+            if (droppedNow > droppedReported) {
+                logger.log(Level.WARNING, logPrefix + (droppedNow - droppedReported) + " log messages were dropped, as the console could not keep up.");
+                droppedReported = droppedNow;
+            }
+        }
+
+        /**
+         * Builds the messages in the ring buffer, so it does not keep what
+         * their suppliers refer to. This is done while the writer is idle.
+         */
+        private void buildDebugBuffer() {
+            for (int i = 0; i < DEBUG_BUFFER_SIZE; i++) {
+                LogEntry entry = debugBuffer.get(i);
+                if (entry != null) {
+                    entry.getMessage();
+                }
+            }
+        }
+
+        private void dumpDebugBuffer() {
+            long end = debugBufferIndex.get();
+            long start = Math.max(0, end - DEBUG_BUFFER_SIZE);
+            writeDebugLine("---- Last " + (end - start) + " debug messages ----");
+            for (long i = start; i < end; i++) {
+                LogEntry entry = debugBuffer.get((int) (i % DEBUG_BUFFER_SIZE));
+                if (entry != null) {
+                    writeDebugLog(entry, entry.getMessage());
+                }
+            }
+            writeDebugLine("---- End of debug messages ----");
+            flushDebugLog();
+        }
+
+        private void writeDebugLog(LogEntry entry, String message) {
+            writeDebugLine(timeFormat.format(new Date(entry.time)) + " [" + entry.threadName + "] " + message);
+        }
+
+        private void writeDebugLine(String line) {
+            if (debugLogFile == null) {
+                return;
+            }
+            try {
+                if (debugWriter == null) {
+                    debugLogSize = debugLogFile.length();
+                    debugWriter = new BufferedWriter(new FileWriter(debugLogFile, true));
+                }
+                debugWriter.write(line);
+                debugWriter.newLine();
+                debugLogSize += line.length() + 1;
+                if (debugLogSize > DEBUG_LOG_MAX_SIZE) {
+                    rotateDebugLog();
+                }
+            } catch (IOException ioe) {
+                closeDebugLog();
+            }
+        }
+
+        private void rotateDebugLog() {
+            closeDebugLog();
+            new File(debugLogFile.getPath() + "." + DEBUG_LOG_HISTORY).delete();
+            for (int i = DEBUG_LOG_HISTORY - 1; i > 0; i--) {
+                new File(debugLogFile.getPath() + "." + i).renameTo(new File(debugLogFile.getPath() + "." + (i + 1)));
+            }
+            debugLogFile.renameTo(new File(debugLogFile.getPath() + ".1"));
+        }
+
+        private void flushDebugLog() {
+            if (debugWriter != null) {
+                try {
+                    debugWriter.flush();
+                } catch (IOException ioe) {
+                    closeDebugLog();
+                }
+            }
+        }
+
+        private void closeDebugLog() {
+            if (debugWriter != null) {
+                try {
+                    debugWriter.close();
+                } catch (IOException ioe) {
+                    // ignore
+                }
+                debugWriter = null;
+            }
+        }
     }
 }
@@ -0,0 +1,58 @@
+package com.bukkitbackup.full.utils;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Keeps work that is shared by several threads, such as reading or uploading
+ * backups, within a number of bytes per second. Each caller reserves the time
+ * its bytes take at the limit, after those reserved before it, and waits
+ * until then.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class RateLimiter {
+
+    private volatile long bytesPerSecond;
+    private long nextNanos = 0;
+
+    /**
+     * @param bytesPerSecond The limit, 0 for none.
+     */
+    public RateLimiter(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Changes the limit. Callers already waiting are not affected.
+     *
+     * @param bytesPerSecond The limit, 0 for none.
+     */
+    public void setRate(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * Waits until some bytes are within the limit.
+     *
+     * @param bytes The bytes that were, or are about to be, used.
+     * @throws InterruptedException If the thread was interrupted.
+     */
+    public void acquire(long bytes) throws InterruptedException {
+        long limit = bytesPerSecond;
+        if (limit <= 0) {
+            return;
+        }
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            if (nextNanos - now < 0) {
+                nextNanos = now;
+            }
+            nextNanos += bytes * 1000000000L / limit;
+            waitNanos = nextNanos - now;
+        }
+        if (waitNanos > 0) {
+            Thread.sleep(waitNanos / 1000000L, (int) (waitNanos % 1000000L));
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.bukkitbackup.full.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Chooses which old backups to remove. This has no Bukkit dependencies, so it
+ * can be benchmarked on its own.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public final class RetentionUtils {
+
+    private RetentionUtils() {
+    }
+
+    /**
+     * Selects the backups to delete when keeping a number of backups.
+     *
+     * @param backups The backups in the backup folder.
+     * @param backupLimit How many of the newest backups to keep.
+     * @return The backups to delete, empty if within the limit.
+     */
+    public static List<File> selectByCount(File[] backups, long backupLimit) {
+        ArrayList<File> backupList = new ArrayList<File>(backups.length);
+        if (backups.length <= backupLimit) {
+            return backupList;
+        }
+        backupList.addAll(Arrays.asList(backups));
+
+        int maxModifiedIndex;
+        long maxModified;
+
+        // Remove the newest backups from the list.
+        for (int i = 0; i < backupLimit; ++i) {
+            maxModifiedIndex = 0;
+            maxModified = backupList.get(0).lastModified();
+            for (int j = 1; j < backupList.size(); ++j) {
+                File currentFile = backupList.get(j);
+                if (currentFile.lastModified() > maxModified) {
+                    maxModified = currentFile.lastModified();
+                    maxModifiedIndex = j;
+                }
+            }
+            backupList.remove(maxModifiedIndex);
+        }
+        return backupList;
+    }
+
+    /**
+     * Finds the oldest backup, the next to delete when limiting by size.
+     *
+     * @param backups The backups in the backup folder, must not be empty.
+     * @return The oldest backup.
+     */
+    public static File selectOldest(File[] backups) {
+        return selectByCount(backups, backups.length - 1).get(0);
+    }
+}
@@ -0,0 +1,229 @@
+package com.bukkitbackup.full.archive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Tests the chunked AES-GCM format: that what is written reads back the same,
+ * and that chunks which were cut off, or moved, are not read.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class ArchiveEncryptionTest {
+
+    private static final int STRIDE = ArchiveEncryption.CHUNK_BYTES + ArchiveEncryption.TAG_BYTES;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        ArchiveEncryption.setKeyFile(new File(folder.getRoot(), "backup.key").getPath());
+    }
+
+    @After
+    public void tearDown() {
+        ArchiveEncryption.setKeyFile("");
+    }
+
+    @Test
+    public void roundTripsAcrossChunks() throws IOException {
+        byte[] data = randomBytes(ArchiveEncryption.CHUNK_BYTES * 3 + 1234);
+        File file = encrypt(data);
+        assertEquals(ArchiveEncryption.HEADER_BYTES + data.length + 4 * ArchiveEncryption.TAG_BYTES, file.length());
+        assertArrayEquals(data, decrypt(file));
+    }
+
+    @Test
+    public void roundTripsWhenTheLastChunkIsFull() throws IOException {
+        byte[] data = randomBytes(ArchiveEncryption.CHUNK_BYTES * 2);
+        File file = encrypt(data);
+
+        // The last full chunk is the one marked last, with no empty one after.
+        assertEquals(ArchiveEncryption.HEADER_BYTES + 2L * STRIDE, file.length());
+        assertArrayEquals(data, decrypt(file));
+    }
+
+    @Test
+    public void roundTripsAnEmptyFile() throws IOException {
+        File file = encrypt(new byte[0]);
+        assertEquals(ArchiveEncryption.HEADER_BYTES + ArchiveEncryption.TAG_BYTES, file.length());
+        ArchiveFile archiveFile = ArchiveFile.open(file);
+        try {
+            assertEquals(0, archiveFile.size());
+            assertEquals(-1, archiveFile.read(ByteBuffer.allocate(16), 0));
+        } finally {
+            archiveFile.close();
+        }
+    }
+
+    @Test
+    public void rejectsAFileCutOffAtAChunk() throws IOException {
+        byte[] data = randomBytes(ArchiveEncryption.CHUNK_BYTES * 2 + 100);
+        File file = encrypt(data);
+
+        // Without its last chunk, the one before is taken as the last.
+        truncate(file, ArchiveEncryption.HEADER_BYTES + 2L * STRIDE);
+        assertUnreadable(file, ArchiveEncryption.CHUNK_BYTES);
+    }
+
+    @Test
+    public void rejectsATruncatedFinalChunk() throws IOException {
+        byte[] data = randomBytes(ArchiveEncryption.CHUNK_BYTES + 5000);
+        File file = encrypt(data);
+        truncate(file, file.length() - 100);
+        assertUnreadable(file, ArchiveEncryption.CHUNK_BYTES);
+    }
+
+    @Test
+    public void rejectsReorderedChunks() throws IOException {
+        byte[] data = randomBytes(ArchiveEncryption.CHUNK_BYTES * 3 + 10);
+        File file = encrypt(data);
+        byte[] encrypted = Files.readAllBytes(file.toPath());
+        int first = ArchiveEncryption.HEADER_BYTES;
+        int second = first + STRIDE;
+        byte[] swapped = encrypted.clone();
+        System.arraycopy(encrypted, first, swapped, second, STRIDE);
+        System.arraycopy(encrypted, second, swapped, first, STRIDE);
+        Files.write(file.toPath(), swapped);
+
+        assertUnreadable(file, 0);
+        assertUnreadable(file, ArchiveEncryption.CHUNK_BYTES);
+    }
+
+    @Test
+    public void rejectsAnotherFilesHeader() throws IOException {
+        byte[] data = randomBytes(1000);
+        File first = encrypt(data);
+        File second = encrypt(data);
+
+        // Each file has its own nonces, which the header gives.
+        byte[] encrypted = Files.readAllBytes(second.toPath());
+        System.arraycopy(Files.readAllBytes(first.toPath()), 0, encrypted, 0, ArchiveEncryption.HEADER_BYTES);
+        Files.write(second.toPath(), encrypted);
+        assertUnreadable(second, 0);
+    }
+
+    @Test
+    public void roundTripsAnIndexedArchive() throws IOException {
+        byte[] level = randomBytes(200000);
+        File source = new File(folder.getRoot(), "level.dat");
+        Files.write(source.toPath(), level);
+        File archive = new File(folder.getRoot(), "backup.bia");
+        IndexedArchiveWriter writer = new IndexedArchiveWriter(archive);
+        try {
+            writer.addFile("world/level.dat", source);
+        } finally {
+            writer.close();
+        }
+        assertTrue(ArchiveEncryption.isEncrypted(ByteBuffer.wrap(Files.readAllBytes(archive.toPath()))));
+
+        IndexedArchive reader = new IndexedArchive(archive);
+        try {
+            assertEquals(Arrays.asList("world/level.dat"), reader.getNames());
+            assertArrayEquals(level, readAll(reader.getInputStream("world/level.dat")));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private File encrypt(byte[] data) throws IOException {
+        File file = File.createTempFile("archive", ".bia", folder.getRoot());
+        FileOutputStream fos = new FileOutputStream(file);
+        try {
+            EncryptedOutputStream out = new EncryptedOutputStream(fos, ArchiveEncryption.getKey());
+            try {
+
+                // In uneven writes, so chunks are filled across them.
+                for (int offset = 0; offset < data.length; offset += 10000) {
+                    out.write(data, offset, Math.min(10000, data.length - offset));
+                }
+                out.finish();
+            } finally {
+                out.close();
+            }
+        } finally {
+            fos.close();
+        }
+        return file;
+    }
+
+    private static byte[] decrypt(File file) throws IOException {
+        ArchiveFile archiveFile = ArchiveFile.open(file);
+        try {
+            ByteBuffer plain = ByteBuffer.allocate((int) archiveFile.size());
+            ArchiveFile.readFully(archiveFile, plain, 0);
+            return plain.array();
+        } finally {
+            archiveFile.close();
+        }
+    }
+
+    /**
+     * Checks that reading at a position fails.
+     */
+    private static void assertUnreadable(File file, long position) throws IOException {
+        ArchiveFile archiveFile;
+        try {
+            archiveFile = ArchiveFile.open(file);
+        } catch (IOException ioe) {
+            return;
+        }
+        try {
+            archiveFile.read(ByteBuffer.allocate(16), position);
+            fail("Read " + file + " at " + position + ".");
+        } catch (IOException ioe) {
+            // Expected.
+        } finally {
+            archiveFile.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+}
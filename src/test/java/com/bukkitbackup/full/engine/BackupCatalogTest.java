@@ -0,0 +1,141 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Tests the catalog's line checksums, and that lines damaged or torn by a
+ * crash are skipped without losing the lines around them.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupCatalogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void linesEndWithTheirChecksum() throws IOException {
+        File backups = folder.newFolder("backups");
+        BackupCatalog catalog = BackupCatalog.forFolder(backups);
+        catalog.addBackup("2024-01-01-00-00-00", CatalogEntry.KIND_FULL, Collections.singletonList("world"), newBackup(backups, "2024-01-01-00-00-00"), 10);
+
+        List<String> lines = readLines(backups);
+        assertEquals(1, lines.size());
+        String line = lines.get(0);
+        int lastTab = line.lastIndexOf('\t');
+        assertEquals(BackupCatalog.getChecksum(line.substring(0, lastTab)), line.substring(lastTab + 1));
+        assertTrue(line.startsWith("add\t"));
+    }
+
+    @Test
+    public void damagedLinesAreSkipped() throws IOException {
+        File backups = folder.newFolder("backups");
+        String first = addLine("2024-01-01-00-00-00", 1000);
+        String second = addLine("2024-01-02-00-00-00", 2000);
+
+        // A flipped digit in the size.
+        first = first.replace("\t4096\t", "\t4097\t");
+        write(backups, first + second);
+
+        BackupCatalog catalog = BackupCatalog.forFolder(backups);
+        assertEquals(1, catalog.getCount(null));
+        assertFalse(catalog.hasBackup("2024-01-01-00-00-00"));
+        assertTrue(catalog.hasBackup("2024-01-02-00-00-00"));
+    }
+
+    @Test
+    public void tornLineIsSkippedAndNotJoinedToTheNext() throws IOException {
+        File backups = folder.newFolder("backups");
+        String first = addLine("2024-01-01-00-00-00", 1000);
+        String torn = addLine("2024-01-02-00-00-00", 2000);
+        write(backups, first + torn.substring(0, torn.length() / 2));
+
+        BackupCatalog catalog = BackupCatalog.forFolder(backups);
+        assertEquals(1, catalog.getCount(null));
+
+        // The next line starts on a line of its own.
+        catalog.addBackup("2024-01-03-00-00-00", CatalogEntry.KIND_FULL, Collections.singletonList("world"), newBackup(backups, "2024-01-03-00-00-00"), 10);
+        assertEquals(2, catalog.getCount(null));
+        assertTrue(catalog.hasBackup("2024-01-01-00-00-00"));
+        assertFalse(catalog.hasBackup("2024-01-02-00-00-00"));
+        assertTrue(catalog.hasBackup("2024-01-03-00-00-00"));
+
+        List<String> lines = readLines(backups);
+        assertEquals(3, lines.size());
+        assertTrue(lines.get(2).startsWith("add\t"));
+    }
+
+    @Test
+    public void linesAreOnlyReadOnceWhole() throws IOException {
+        File backups = folder.newFolder("backups");
+        String first = addLine("2024-01-01-00-00-00", 1000);
+        String second = addLine("2024-01-02-00-00-00", 2000);
+        int half = second.length() / 2;
+        write(backups, first + second.substring(0, half));
+
+        BackupCatalog catalog = BackupCatalog.forFolder(backups);
+        assertEquals(1, catalog.getCount(null));
+
+        // Another process finishes writing the line.
+        Files.write(new File(backups, BackupCatalog.CATALOG_NAME).toPath(), second.substring(half).getBytes("UTF-8"), StandardOpenOption.APPEND);
+        assertEquals(2, catalog.getCount(null));
+        assertTrue(catalog.hasBackup("2024-01-02-00-00-00"));
+    }
+
+    @Test
+    public void removalsAndMovesAreApplied() throws IOException {
+        File backups = folder.newFolder("backups");
+        BackupCatalog catalog = BackupCatalog.forFolder(backups);
+        File first = newBackup(backups, "2024-01-01-00-00-00");
+        File second = newBackup(backups, "2024-01-02-00-00-00");
+        catalog.addBackup("2024-01-01-00-00-00", CatalogEntry.KIND_FULL, Collections.singletonList("world"), first, 10);
+        catalog.addBackup("2024-01-02-00-00-00", CatalogEntry.KIND_FULL, Collections.singletonList("world"), second, 10);
+
+        catalog.removeBackup(first);
+        File moved = new File(new File(backups, "shard"), second.getName());
+        catalog.moveBackup(second, moved);
+
+        assertEquals(1, catalog.getCount("world"));
+        assertFalse(catalog.hasBackup("2024-01-01-00-00-00"));
+        assertTrue(catalog.hasBackup("shard/2024-01-02-00-00-00"));
+        assertEquals(moved.getAbsoluteFile(), catalog.getFile(catalog.findBackup(null, "world")));
+    }
+
+    /**
+     * Makes a backup folder holding one file.
+     */
+    private static File newBackup(File backups, String name) throws IOException {
+        File backup = new File(backups, name);
+        assertTrue(backup.mkdirs());
+        Files.write(new File(backup, "level.dat").toPath(), new byte[]{1, 2, 3});
+        return backup;
+    }
+
+    /**
+     * Gets a catalog line that adds a backup folder.
+     */
+    private static String addLine(String id, long time) {
+        return BackupCatalog.toLine("add", new String[]{String.valueOf(time), id, CatalogEntry.KIND_FULL, "world", id, "4096", "1", "10", "1000", "-"});
+    }
+
+    private static void write(File backups, String text) throws IOException {
+        Files.write(new File(backups, BackupCatalog.CATALOG_NAME).toPath(), text.getBytes("UTF-8"));
+    }
+
+    private static List<String> readLines(File backups) throws IOException {
+        return Files.readAllLines(new File(backups, BackupCatalog.CATALOG_NAME).toPath());
+    }
+}
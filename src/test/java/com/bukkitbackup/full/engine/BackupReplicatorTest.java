@@ -0,0 +1,120 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Tests replication against FakeS3: that an interrupted upload is resumed,
+ * sending only the parts the store does not have, and that a replicated
+ * backup is not sent again.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class BackupReplicatorTest {
+
+    private static final int PART_SIZE = (int) FakeS3.MIN_PART_SIZE;
+    private static final String BACKUP = "2024-01-01-00-00-00.zip";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FakeS3 store;
+    private File backups;
+    private byte[] archive;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new FakeS3("backups", 2);
+        backups = folder.newFolder("backups");
+
+        // Five full parts, and a short one.
+        archive = S3ClientTest.randomBytes(PART_SIZE * 5 + 1000, 1);
+        Files.write(new File(backups, BACKUP).toPath(), archive);
+        Files.write(new File(backups, BackupCatalog.CATALOG_NAME).toPath(), BackupCatalog.toLine("add", new String[]{"1704067200000", "2024-01-01-00-00-00",
+            CatalogEntry.KIND_FULL, "world", BACKUP, String.valueOf(archive.length), "1", "10", "1000", "crc32:01234567"}).getBytes("UTF-8"));
+        configure(FakeS3.SECRET_KEY);
+    }
+
+    @After
+    public void tearDown() {
+        BackupReplicator.shutdown();
+        FileSettings settings = new FileSettings(null, "/none", null);
+        BackupReplicator.configure(settings);
+        store.stop();
+    }
+
+    @Test
+    public void replicatesABackup() throws IOException {
+        assertEquals(0, BackupReplicator.replicate(BackupCatalog.forFolder(backups)));
+        assertArrayEquals(archive, store.getObject("server/" + BACKUP));
+        List<Integer> received = store.getPartsReceived();
+        Collections.sort(received);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), received);
+
+        // It is not sent again.
+        store.clearPartsReceived();
+        assertEquals(0, BackupReplicator.replicate(BackupCatalog.forFolder(backups)));
+        assertTrue(store.getPartsReceived().isEmpty());
+    }
+
+    @Test
+    public void resumesAnInterruptedUpload() throws IOException {
+        S3Client client = new S3Client(store.getEndpoint(), FakeS3.REGION, "backups", FakeS3.ACCESS_KEY, FakeS3.SECRET_KEY);
+        String key = "server/" + BACKUP;
+        String uploadId = client.createUpload(key);
+        for (int part = 1; part <= 4; part++) {
+
+            // Part 2 was cut short, so it is sent again.
+            int length = part == 2 ? 1000 : PART_SIZE;
+            client.uploadPart(key, uploadId, part, Arrays.copyOfRange(archive, (part - 1) * PART_SIZE, (part - 1) * PART_SIZE + length), length, null);
+        }
+        Files.write(new File(backups, BackupReplicator.STATE_NAME).toPath(),
+                BackupCatalog.toLine("upload", new String[]{BACKUP, uploadId, String.valueOf(archive.length), String.valueOf(PART_SIZE)}).getBytes("UTF-8"));
+        store.clearPartsReceived();
+
+        assertEquals(0, BackupReplicator.replicate(BackupCatalog.forFolder(backups)));
+        assertArrayEquals(archive, store.getObject(key));
+        List<Integer> received = store.getPartsReceived();
+        Collections.sort(received);
+        assertEquals(Arrays.asList(2, 5, 6), received);
+
+        // Two pages of parts were listed.
+        assertEquals(2, store.getListRequests());
+    }
+
+    @Test
+    public void reportsAFailedUpload() throws IOException {
+        configure("not the secret");
+        assertEquals(1, BackupReplicator.replicate(BackupCatalog.forFolder(backups)));
+        assertTrue(store.getRejected() > 0);
+        assertNull(store.getObject("server/" + BACKUP));
+    }
+
+    private void configure(String secretKey) {
+        FileSettings settings = new FileSettings(null, "/none", null);
+        settings.set("replicateendpoint", store.getEndpoint());
+        settings.set("replicatebucket", "backups");
+        settings.set("replicateprefix", "server");
+        settings.set("replicateregion", FakeS3.REGION);
+        settings.set("replicateaccesskey", FakeS3.ACCESS_KEY);
+        settings.set("replicatesecretkey", secretKey);
+        settings.set("replicatepartsize", "5");
+        settings.set("replicatethreads", "3");
+        assertTrue(BackupReplicator.configure(settings));
+    }
+}
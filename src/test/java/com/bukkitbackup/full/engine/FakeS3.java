@@ -0,0 +1,328 @@
+package com.bukkitbackup.full.engine;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * A store on localhost that answers the S3 requests S3Client makes, for
+ * tests. It checks each request's Signature Version 4 signature on its own,
+ * rejecting any that do not match, and lists parts a few at a time so
+ * clients have to follow the pages.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+class FakeS3 {
+
+    static final String REGION = "us-east-1";
+    static final String ACCESS_KEY = "AKIDEXAMPLE";
+    static final String SECRET_KEY = "wJalrXUtnFEMI/K7MDENG+bPxRfiCYEXAMPLEKEY";
+    static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final Pattern AUTHORIZATION = Pattern.compile(
+            "AWS4-HMAC-SHA256 Credential=([^/]+)/(\\d{8})/([^/]+)/s3/aws4_request, SignedHeaders=([^,]+), Signature=([0-9a-f]{64})");
+    private static final Pattern COMPLETED_PART = Pattern.compile("<Part><PartNumber>(\\d+)</PartNumber><ETag>([^<]+)</ETag></Part>");
+
+    private final String bucket;
+    private final int partsPerPage;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, byte[]> objects = new HashMap<String, byte[]>();
+    private final Map<String, SortedMap<Integer, byte[]>> uploads = new HashMap<String, SortedMap<Integer, byte[]>>();
+    private final List<Integer> partsReceived = new ArrayList<Integer>();
+    private int nextUploadId = 1;
+    private int listRequests = 0;
+    private int rejected = 0;
+
+    /**
+     * Starts the store on a free port.
+     *
+     * @param bucket The only bucket it has.
+     * @param partsPerPage The most parts listed in each response.
+     * @throws IOException If it could not be started.
+     */
+    FakeS3(String bucket, int partsPerPage) throws IOException {
+        this.bucket = bucket;
+        this.partsPerPage = partsPerPage;
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    FakeS3.this.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    synchronized byte[] getObject(String key) {
+        return objects.get(key);
+    }
+
+    /**
+     * @return The numbers of the parts uploaded, in the order they came.
+     */
+    synchronized List<Integer> getPartsReceived() {
+        return new ArrayList<Integer>(partsReceived);
+    }
+
+    synchronized void clearPartsReceived() {
+        partsReceived.clear();
+    }
+
+    synchronized int getListRequests() {
+        return listRequests;
+    }
+
+    synchronized int getRejected() {
+        return rejected;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        byte[] body = readAll(exchange.getRequestBody());
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getRawPath();
+        String query = exchange.getRequestURI().getRawQuery();
+        Map<String, String> parameters = parseQuery(query);
+        if (!isSigned(exchange, method, path, query, body)) {
+            synchronized (this) {
+                rejected++;
+            }
+            respond(exchange, 403, "<Error><Code>SignatureDoesNotMatch</Code></Error>");
+            return;
+        }
+        String prefix = "/" + bucket + "/";
+        if (!path.startsWith(prefix)) {
+            respond(exchange, 404, "<Error><Code>NoSuchBucket</Code></Error>");
+            return;
+        }
+        String key = path.substring(prefix.length());
+
+        synchronized (this) {
+            if (method.equals("HEAD")) {
+                byte[] object = objects.get(key);
+                if (object == null) {
+                    exchange.sendResponseHeaders(404, -1);
+                } else {
+                    exchange.getResponseHeaders().set("Content-Length", String.valueOf(object.length));
+                    exchange.sendResponseHeaders(200, -1);
+                }
+            } else if (method.equals("POST") && parameters.containsKey("uploads")) {
+                String uploadId = "upload-" + nextUploadId++;
+                uploads.put(uploadId, new TreeMap<Integer, byte[]>());
+                respond(exchange, 200, "<InitiateMultipartUploadResult><UploadId>" + uploadId + "</UploadId></InitiateMultipartUploadResult>");
+            } else if (!uploads.containsKey(parameters.get("uploadId"))) {
+                respond(exchange, 404, "<Error><Code>NoSuchUpload</Code></Error>");
+            } else if (method.equals("PUT")) {
+                int partNumber = Integer.parseInt(parameters.get("partNumber"));
+                uploads.get(parameters.get("uploadId")).put(partNumber, body);
+                partsReceived.add(partNumber);
+                exchange.getResponseHeaders().set("ETag", getETag(body));
+                exchange.sendResponseHeaders(200, -1);
+            } else if (method.equals("GET")) {
+                listRequests++;
+                respond(exchange, 200, listParts(uploads.get(parameters.get("uploadId")), Integer.parseInt(parameters.get("part-number-marker"))));
+            } else if (method.equals("POST")) {
+                complete(exchange, key, parameters.get("uploadId"), new String(body, "UTF-8"));
+            } else if (method.equals("DELETE")) {
+                uploads.remove(parameters.get("uploadId"));
+                exchange.sendResponseHeaders(204, -1);
+            } else {
+                respond(exchange, 400, "<Error><Code>BadRequest</Code></Error>");
+            }
+        }
+    }
+
+    private String listParts(SortedMap<Integer, byte[]> parts, int marker) {
+        StringBuilder xml = new StringBuilder("<ListPartsResult>");
+        int listed = 0;
+        int last = marker;
+        boolean truncated = false;
+        for (Map.Entry<Integer, byte[]> part : parts.tailMap(marker + 1).entrySet()) {
+            if (listed == partsPerPage) {
+                truncated = true;
+                break;
+            }
+            xml.append("<Part><PartNumber>").append(part.getKey()).append("</PartNumber><ETag>")
+                    .append(getETag(part.getValue()).replace("\"", "&quot;")).append("</ETag><Size>")
+                    .append(part.getValue().length).append("</Size></Part>");
+            last = part.getKey();
+            listed++;
+        }
+        xml.append("<IsTruncated>").append(truncated).append("</IsTruncated>");
+        xml.append("<NextPartNumberMarker>").append(last).append("</NextPartNumberMarker>");
+        return xml.append("</ListPartsResult>").toString();
+    }
+
+    private void complete(HttpExchange exchange, String key, String uploadId, String request) throws IOException {
+        SortedMap<Integer, byte[]> parts = uploads.get(uploadId);
+        ByteArrayOutputStream object = new ByteArrayOutputStream();
+        Matcher matcher = COMPLETED_PART.matcher(request);
+        int previous = 0;
+        List<byte[]> listed = new ArrayList<byte[]>();
+        while (matcher.find()) {
+            int partNumber = Integer.parseInt(matcher.group(1));
+            byte[] part = parts.get(partNumber);
+            if (partNumber <= previous || part == null || !getETag(part).equals(matcher.group(2).replace("&quot;", "\""))) {
+                respond(exchange, 400, "<Error><Code>InvalidPart</Code></Error>");
+                return;
+            }
+            listed.add(part);
+            previous = partNumber;
+        }
+        for (int i = 0; i < listed.size(); i++) {
+            if (i < listed.size() - 1 && listed.get(i).length < MIN_PART_SIZE) {
+                respond(exchange, 400, "<Error><Code>EntityTooSmall</Code></Error>");
+                return;
+            }
+            object.write(listed.get(i));
+        }
+        objects.put(key, object.toByteArray());
+        uploads.remove(uploadId);
+        respond(exchange, 200, "<CompleteMultipartUploadResult><Key>" + key + "</Key></CompleteMultipartUploadResult>");
+    }
+
+    /**
+     * Checks a request's signature, by working it out again from the request
+     * as it arrived.
+     */
+    private boolean isSigned(HttpExchange exchange, String method, String path, String query, byte[] body) throws IOException {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        String payloadHash = exchange.getRequestHeaders().getFirst("x-amz-content-sha256");
+        String amzDate = exchange.getRequestHeaders().getFirst("x-amz-date");
+        if (authorization == null || payloadHash == null || amzDate == null || !payloadHash.equals(toHex(sha256(body)))) {
+            return false;
+        }
+        Matcher matcher = AUTHORIZATION.matcher(authorization);
+        if (!matcher.matches() || !matcher.group(1).equals(ACCESS_KEY) || !amzDate.startsWith(matcher.group(2)) || !matcher.group(3).equals(REGION)) {
+            return false;
+        }
+        String date = matcher.group(2);
+        String signedHeaders = matcher.group(4);
+        StringBuilder canonicalHeaders = new StringBuilder();
+        for (String header : signedHeaders.split(";")) {
+            String value = exchange.getRequestHeaders().getFirst(header);
+            if (value == null) {
+                return false;
+            }
+            canonicalHeaders.append(header).append(':').append(value.trim()).append('\n');
+        }
+        SortedMap<String, String> sorted = new TreeMap<String, String>(parseQuery(query));
+        StringBuilder canonicalQuery = new StringBuilder();
+        for (Map.Entry<String, String> parameter : sorted.entrySet()) {
+            if (canonicalQuery.length() > 0) {
+                canonicalQuery.append('&');
+            }
+            canonicalQuery.append(parameter.getKey()).append('=').append(parameter.getValue());
+        }
+        String canonicalRequest = method + "\n" + path + "\n" + canonicalQuery + "\n" + canonicalHeaders + "\n" + signedHeaders + "\n" + payloadHash;
+        String stringToSign = "AWS4-HMAC-SHA256\n" + amzDate + "\n" + date + "/" + REGION + "/s3/aws4_request\n" + toHex(sha256(canonicalRequest.getBytes("UTF-8")));
+        return toHex(hmac(getSigningKey(SECRET_KEY, date, REGION, "s3"), stringToSign)).equals(matcher.group(5));
+    }
+
+    /**
+     * Derives the key that a day's requests are signed with.
+     */
+    static byte[] getSigningKey(String secretKey, String date, String region, String service) throws IOException {
+        return hmac(hmac(hmac(hmac(("AWS4" + secretKey).getBytes("UTF-8"), date), region), service), "aws4_request");
+    }
+
+    /**
+     * Splits a raw query into its parameters, still encoded.
+     */
+    private static Map<String, String> parseQuery(String query) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        if (query != null && !query.isEmpty()) {
+            for (String parameter : query.split("&")) {
+                int equals = parameter.indexOf('=');
+                parameters.put(equals < 0 ? parameter : parameter.substring(0, equals), equals < 0 ? "" : parameter.substring(equals + 1));
+            }
+        }
+        return parameters;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String xml) throws IOException {
+        byte[] bytes = xml.getBytes("UTF-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[65536];
+        int length;
+        while ((length = in.read(buffer)) != -1) {
+            out.write(buffer, 0, length);
+        }
+        return out.toByteArray();
+    }
+
+    private static String getETag(byte[] data) {
+        try {
+            return "\"" + toHex(MessageDigest.getInstance("MD5").digest(data)) + "\"";
+        } catch (GeneralSecurityException gse) {
+            throw new IllegalStateException(gse);
+        }
+    }
+
+    private static byte[] sha256(byte[] data) throws IOException {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    private static byte[] hmac(byte[] key, String data) throws IOException {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes("UTF-8"));
+        } catch (GeneralSecurityException gse) {
+            throw new IOException(gse);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        return hex.toString();
+    }
+}
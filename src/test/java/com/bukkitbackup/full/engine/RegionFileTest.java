@@ -0,0 +1,229 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Random;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Tests that compacting a region file keeps every chunk and its timestamp,
+ * and leaves a file it cannot safely compact as it was.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class RegionFileTest {
+
+    private static final int SECTOR = RegionFile.SECTOR_BYTES;
+    private static final int HEADER = SECTOR * 2;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void compactKeepsChunksAndTimestamps() throws IOException {
+        File regionFile = folder.newFile("r.0.0.mca");
+        byte[] first = newPayload(3000, 1);
+        byte[] second = newPayload(10000, 2);
+        byte[] third = newPayload(5000, 3);
+        byte[] grown = newPayload(18000, 4);
+        RegionFile region = new RegionFile(regionFile);
+        try {
+            region.writeChunk(0, first, 100);
+            region.writeChunk(1, second, 200);
+            region.writeChunk(2, third, 300);
+
+            // Moved to the end, leaving its old sectors free.
+            region.writeChunk(1, grown, 400);
+        } finally {
+            region.close();
+        }
+        long oldLength = regionFile.length();
+        long modified = regionFile.lastModified();
+
+        RegionFile.Compaction compaction = RegionFile.compact(regionFile);
+        long saved = compaction.savedBytes;
+        assertTrue(compaction.rewritten);
+        assertEquals(3L * SECTOR, saved);
+        assertEquals(oldLength - saved, regionFile.length());
+        assertEquals(HEADER + (1 + 5 + 2) * SECTOR, regionFile.length());
+        assertEquals(modified, regionFile.lastModified());
+        assertFalse(new File(regionFile.getPath() + ".compact").exists());
+
+        // Each chunk is as it was, in the order it was stored.
+        region = new RegionFile(regionFile);
+        try {
+            assertArrayEquals(first, region.readChunk(0));
+            assertArrayEquals(grown, region.readChunk(1));
+            assertArrayEquals(third, region.readChunk(2));
+            assertNull(region.readChunk(3));
+        } finally {
+            region.close();
+        }
+        assertTrue(getSector(regionFile, 0) < getSector(regionFile, 2));
+        assertTrue(getSector(regionFile, 2) < getSector(regionFile, 1));
+        assertEquals(100, getTimestamp(regionFile, 0));
+        assertEquals(400, getTimestamp(regionFile, 1));
+        assertEquals(300, getTimestamp(regionFile, 2));
+    }
+
+    @Test
+    public void compactLeavesOutRemovedChunks() throws IOException {
+        File regionFile = folder.newFile("r.0.0.mca");
+        byte[] first = newPayload(3000, 1);
+        byte[] second = newPayload(6000, 2);
+        RegionFile region = new RegionFile(regionFile);
+        try {
+            region.writeChunk(0, first, 100);
+            region.writeChunk(5, second, 200);
+        } finally {
+            region.close();
+        }
+
+        BitSet removed = new BitSet();
+        removed.set(0);
+        RegionFile.Compaction compaction = RegionFile.compact(regionFile, removed);
+        assertTrue(compaction.rewritten);
+        assertEquals((long) SECTOR, compaction.savedBytes);
+
+        region = new RegionFile(regionFile);
+        try {
+            assertNull(region.readChunk(0));
+            assertArrayEquals(second, region.readChunk(5));
+        } finally {
+            region.close();
+        }
+        assertEquals(0, getTimestamp(regionFile, 0));
+        assertEquals(200, getTimestamp(regionFile, 5));
+        assertEquals(HEADER / SECTOR, getSector(regionFile, 5));
+    }
+
+    @Test
+    public void compactReportsARewriteThatSavesNothing() throws IOException {
+        File regionFile = folder.newFile("r.0.0.mca");
+        byte[] first = newPayload(3000, 1);
+        byte[] shared = newPayload(3000, 2);
+
+        // Chunks 1 and 2 share a sector, which the rewrite gives each its own.
+        RandomAccessFile raf = new RandomAccessFile(regionFile, "rw");
+        try {
+            raf.setLength(HEADER + 2 * SECTOR);
+            raf.seek(0);
+            raf.writeInt(2 << 8 | 1);
+            raf.writeInt(3 << 8 | 1);
+            raf.writeInt(3 << 8 | 1);
+            raf.seek(HEADER);
+            raf.write(first);
+            raf.seek(HEADER + SECTOR);
+            raf.write(shared);
+        } finally {
+            raf.close();
+        }
+
+        BitSet removed = new BitSet();
+        removed.set(0);
+        RegionFile.Compaction compaction = RegionFile.compact(regionFile, removed);
+        assertTrue(compaction.rewritten);
+        assertEquals(0, compaction.savedBytes);
+
+        RegionFile region = new RegionFile(regionFile);
+        try {
+            assertNull(region.readChunk(0));
+            assertArrayEquals(shared, region.readChunk(1));
+            assertArrayEquals(shared, region.readChunk(2));
+        } finally {
+            region.close();
+        }
+    }
+
+    @Test
+    public void compactLeavesAPackedFileAlone() throws IOException {
+        File regionFile = folder.newFile("r.0.0.mca");
+        RegionFile region = new RegionFile(regionFile);
+        try {
+            region.writeChunk(0, newPayload(3000, 1), 100);
+            region.writeChunk(1, newPayload(5000, 2), 200);
+        } finally {
+            region.close();
+        }
+        byte[] before = Files.readAllBytes(regionFile.toPath());
+
+        assertFalse(RegionFile.compact(regionFile).rewritten);
+        assertArrayEquals(before, Files.readAllBytes(regionFile.toPath()));
+    }
+
+    @Test
+    public void compactLeavesADamagedFileAlone() throws IOException {
+        File regionFile = folder.newFile("r.0.0.mca");
+        RegionFile region = new RegionFile(regionFile);
+        try {
+            region.writeChunk(0, newPayload(3000, 1), 100);
+            region.writeChunk(1, newPayload(10000, 2), 200);
+            region.writeChunk(2, newPayload(3000, 3), 300);
+            region.removeChunk(1);
+        } finally {
+            region.close();
+        }
+
+        // A length longer than the chunk's sectors.
+        RandomAccessFile raf = new RandomAccessFile(regionFile, "rw");
+        try {
+            raf.seek((long) getSector(regionFile, 2) * SECTOR);
+            raf.writeInt(SECTOR * 3);
+        } finally {
+            raf.close();
+        }
+        byte[] before = Files.readAllBytes(regionFile.toPath());
+
+        assertFalse(RegionFile.compact(regionFile).rewritten);
+        assertArrayEquals(before, Files.readAllBytes(regionFile.toPath()));
+        assertFalse(new File(regionFile.getPath() + ".compact").exists());
+    }
+
+    @Test
+    public void compactLeavesAnEmptyFileAlone() throws IOException {
+        File regionFile = folder.newFile("r.0.0.mca");
+        assertFalse(RegionFile.compact(regionFile).rewritten);
+        assertEquals(0, regionFile.length());
+    }
+
+    /**
+     * Makes a chunk's payload: its length, zlib compression, and data.
+     */
+    private static byte[] newPayload(int length, long seed) {
+        byte[] payload = new byte[length];
+        new Random(seed).nextBytes(payload);
+        ByteBuffer.wrap(payload).putInt(length - 4).put((byte) 2);
+        return payload;
+    }
+
+    private static int getSector(File regionFile, int index) throws IOException {
+        return readHeaderInt(regionFile, index * 4) >>> 8;
+    }
+
+    private static int getTimestamp(File regionFile, int index) throws IOException {
+        return readHeaderInt(regionFile, SECTOR + index * 4);
+    }
+
+    private static int readHeaderInt(File regionFile, long position) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(regionFile, "r");
+        try {
+            raf.seek(position);
+            return raf.readInt();
+        } finally {
+            raf.close();
+        }
+    }
+}
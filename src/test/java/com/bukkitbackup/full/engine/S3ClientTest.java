@@ -0,0 +1,115 @@
+package com.bukkitbackup.full.engine;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Backup - The simple server backup solution.
+ *
+ * Tests S3Client against FakeS3, which checks every request's signature.
+ *
+ * @author Domenic Horner (gamerx)
+ */
+public class S3ClientTest {
+
+    private FakeS3 store;
+    private S3Client client;
+
+    @Before
+    public void setUp() throws IOException {
+        store = new FakeS3("backups", 2);
+        client = new S3Client(store.getEndpoint(), FakeS3.REGION, "backups", FakeS3.ACCESS_KEY, FakeS3.SECRET_KEY);
+    }
+
+    @After
+    public void tearDown() {
+        store.stop();
+    }
+
+    @Test
+    public void uploadsInParts() throws IOException {
+        byte[] first = randomBytes((int) FakeS3.MIN_PART_SIZE, 1);
+        byte[] second = randomBytes(1000, 2);
+        assertEquals(-1, client.getSize("world/backup.zip"));
+
+        String uploadId = client.createUpload("world/backup.zip");
+        SortedMap<Integer, String> etags = new TreeMap<Integer, String>();
+        etags.put(1, client.uploadPart("world/backup.zip", uploadId, 1, first, first.length, null));
+        etags.put(2, client.uploadPart("world/backup.zip", uploadId, 2, second, second.length, null));
+        client.completeUpload("world/backup.zip", uploadId, etags);
+
+        assertEquals(first.length + second.length, client.getSize("world/backup.zip"));
+        byte[] expected = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, expected, first.length, second.length);
+        assertArrayEquals(expected, store.getObject("world/backup.zip"));
+        assertEquals(0, store.getRejected());
+    }
+
+    @Test
+    public void signsKeysThatNeedEncoding() throws IOException {
+        String key = "my world/backup (1) \u00e9.zip";
+        String uploadId = client.createUpload(key);
+        byte[] data = randomBytes(100, 3);
+        SortedMap<Integer, String> etags = new TreeMap<Integer, String>();
+        etags.put(1, client.uploadPart(key, uploadId, 1, data, data.length, null));
+        client.completeUpload(key, uploadId, etags);
+
+        assertArrayEquals(data, store.getObject(S3Client.encode(key, false)));
+        assertEquals(0, store.getRejected());
+    }
+
+    @Test
+    public void listsPartsAcrossPages() throws IOException {
+        String uploadId = client.createUpload("backup.zip");
+        for (int part = 1; part <= 5; part++) {
+            byte[] data = randomBytes(100 + part, part);
+            client.uploadPart("backup.zip", uploadId, part, data, data.length, null);
+        }
+
+        SortedMap<Integer, S3Client.Part> parts = client.listParts("backup.zip", uploadId);
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), Arrays.asList(parts.keySet().toArray()));
+        assertEquals(103, parts.get(3).size);
+        assertEquals(3, store.getListRequests());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void listingAMissingUploadFails() throws IOException {
+        client.listParts("backup.zip", "no-such-upload");
+    }
+
+    @Test
+    public void rejectsAWrongSecret() throws IOException {
+        S3Client wrong = new S3Client(store.getEndpoint(), FakeS3.REGION, "backups", FakeS3.ACCESS_KEY, "not the secret");
+        try {
+            wrong.createUpload("backup.zip");
+            fail("The store accepted a bad signature.");
+        } catch (IOException ioe) {
+            assertEquals(1, store.getRejected());
+        }
+    }
+
+    @Test
+    public void storeDerivesSigningKeysLikeAws() throws IOException {
+
+        // The example from AWS's Signature Version 4 documentation, so the
+        // store is not just checking the client against itself.
+        assertEquals("f4780e2d9f65fa895f9c67b32ce1baf0b0d8a43505a000a1a9e090d414db404d",
+                FakeS3.toHex(FakeS3.getSigningKey(FakeS3.SECRET_KEY, "20120215", "us-east-1", "iam")));
+    }
+
+    static byte[] randomBytes(int length, long seed) {
+        byte[] bytes = new byte[length];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}